@@ -18,30 +18,70 @@ import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.ConceptSource;
+import org.openmrs.GlobalProperty;
 import org.openmrs.PersonAttributeType;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ConceptService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.FormService;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
+import org.openmrs.api.UserService;
+import org.openmrs.api.VisitService;
 import org.openmrs.api.context.Context;
+import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.Module;
 import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.concept.ConceptSearchScorer;
+import org.openmrs.module.emr.concept.DiagnosisSearchIndex;
+import org.openmrs.module.emr.concept.ConceptFragmentCache;
+import org.openmrs.module.emr.concept.ConceptFragmentCacheAdvice;
+import org.openmrs.module.emr.concept.DiagnosisSearchIndexAdvice;
+import org.openmrs.module.emr.concept.DiagnosisSetClosure;
+import org.openmrs.module.emr.concept.DiagnosisSetClosureAdvice;
+import org.openmrs.module.emr.concept.MappingTypeScorer;
+import org.openmrs.module.emr.concept.PrefixMatchScorer;
+import org.openmrs.module.emr.concept.UsageFrequencyScorer;
+import org.openmrs.module.emr.concept.WordPositionScorer;
+import org.openmrs.module.emr.consult.ConsultMetadataAdvice;
+import org.openmrs.module.emr.consult.ConsultService;
+import org.openmrs.module.emr.htmlform.HtmlFormBootstrap;
+import org.openmrs.module.emr.htmlform.PublishedHtmlFormsAdvice;
+import org.openmrs.module.emr.htmlform.PublishedHtmlFormsTaskFactory;
+import org.openmrs.module.emr.htmlformentry.UiMessageCacheAdvice;
 import org.openmrs.module.emr.htmlformentry.UiMessageTagHandler;
+import org.openmrs.module.emr.patient.PatientSearchIndex;
+import org.openmrs.module.emr.patient.PatientSearchIndexAdvice;
+import org.openmrs.module.emr.patient.PrimaryIdentifierCache;
+import org.openmrs.module.emr.patient.PrimaryIdentifierCacheAdvice;
+import org.openmrs.module.emr.task.AvailableTasksCacheAdvice;
 import org.openmrs.module.emr.task.TaskDescriptor;
 import org.openmrs.module.emr.task.TaskFactory;
 import org.openmrs.module.emr.task.TaskService;
-import org.openmrs.module.emrapi.adt.CloseStaleVisitsTask;
+import org.openmrs.module.emr.visit.ActiveVisitRoster;
+import org.openmrs.module.emr.visit.ActiveVisitRosterAdvice;
+import org.openmrs.module.emr.visit.EmrCloseStaleVisitsTask;
 import org.openmrs.module.emrapi.utils.GeneralUtils;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.scheduler.SchedulerException;
 import org.openmrs.scheduler.SchedulerService;
 import org.openmrs.scheduler.TaskDefinition;
+import org.openmrs.ui.framework.resource.ResourceFactory;
+import org.openmrs.util.PrivilegeConstants;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static org.openmrs.module.emr.EmrConstants.EMR_MODULE_ID;
 import static org.openmrs.module.emr.EmrConstants.TEST_PATIENT_ATTRIBUTE_UUID;
@@ -53,6 +93,31 @@ public class EmrActivator implements ModuleActivator {
 
     protected Log log = LogFactory.getLog(getClass());
     private PersonService personService;
+    private PatientSearchIndexAdvice patientSearchIndexAdvice;
+    private ActiveVisitRosterAdvice activeVisitRosterAdvice;
+    private PrimaryIdentifierCacheAdvice primaryIdentifierCacheAdvice;
+    private DiagnosisSearchIndexAdvice diagnosisSearchIndexAdvice;
+    private ConceptFragmentCacheAdvice conceptFragmentCacheAdvice;
+    private AvailableTasksCacheAdvice availableTasksCacheAdvice;
+    private List<PublishedHtmlFormsAdvice> publishedHtmlFormsAdvice = new ArrayList<PublishedHtmlFormsAdvice>();
+    private DiagnosisSetClosureAdvice diagnosisSetClosureAdvice;
+    private UiMessageTagHandler uiMessageTagHandler;
+    private UiMessageCacheAdvice uiMessageCacheAdvice;
+    private GlobalPropertyListener diagnosisSetOfSetsListener;
+    private GlobalPropertyListener consultMetadataListener;
+    private ConsultMetadataAdvice consultMetadataAdvice;
+    private PatientSearchIndex patientSearchIndex;
+    private DiagnosisSearchIndex diagnosisSearchIndex;
+    private ExecutorService backgroundExecutor;
+
+    /**
+     * Privileges that warm-ups need to read what they load, since they don't run as any user
+     */
+    private static final String[] BACKGROUND_PRIVILEGES = { PrivilegeConstants.VIEW_GLOBAL_PROPERTIES,
+            PrivilegeConstants.VIEW_PATIENTS, PrivilegeConstants.VIEW_IDENTIFIER_TYPES, PrivilegeConstants.VIEW_CONCEPTS,
+            PrivilegeConstants.VIEW_CONCEPT_SOURCES, PrivilegeConstants.VIEW_OBS };
+
+    private static final long BACKGROUND_SHUTDOWN_SECONDS = 10;
 
     /**
      * @see ModuleActivator#willRefreshContext()
@@ -82,15 +147,71 @@ public class EmrActivator implements ModuleActivator {
         for (TaskDescriptor task : allTasks) {
             taskService.ensurePrivilegeExistsInternal(task);
         }
+        bootstrapHtmlForms(allTasks);
 
         List<TaskFactory> allTaskFactories = Context.getRegisteredComponents(TaskFactory.class);
         taskService.setAllTaskFactoriesInternal(allTaskFactories);
+        taskService.setTaskFactoryTimeoutInternal(getTaskFactoryTimeoutMillis());
+
+        // concepts (e.g. mappings) that consult metadata is resolved by may have changed too, as may the disposition
+        // action beans
+        ConsultService consultService = Context.getService(ConsultService.class);
+        consultService.clearMetadataCacheInternal();
+        consultService.refreshDispositionActionsInternal();
+
+        // modules' messages are reloaded when the context is refreshed
+        if (uiMessageTagHandler != null) {
+            uiMessageTagHandler.clearCache();
+        }
 
         log.info("EMR Module refreshed. " + allTasks.size() + " tasks and " + allTaskFactories.size() + " task factories available.");
 
+        setupConceptSearchScorers();
+
         ensureScheduledTasks();
     }
 
+    /**
+     * Ranks concept searches by the registered scorers, and (if enabled by global property) loads diagnosis usage
+     * counts for them in a background thread. This module's scorers beyond the default one only apply if enabled by
+     * global property, so that the default ranking doesn't change unless a site asks for it.
+     */
+    private void setupConceptSearchScorers() {
+        AdministrationService administrationService = Context.getAdministrationService();
+        boolean usageRanking = Boolean.parseBoolean(administrationService.getGlobalProperty(EmrConstants.GP_DIAGNOSIS_USAGE_RANKING_ENABLED, "false"));
+        boolean extraScorers = Boolean.parseBoolean(administrationService.getGlobalProperty(EmrConstants.GP_CONCEPT_SEARCH_EXTRA_SCORERS_ENABLED, "false"));
+
+        List<ConceptSearchScorer> scorers = new ArrayList<ConceptSearchScorer>();
+        for (ConceptSearchScorer scorer : Context.getRegisteredComponents(ConceptSearchScorer.class)) {
+            if (scorer instanceof UsageFrequencyScorer) {
+                if (usageRanking) {
+                    scorers.add(scorer);
+                }
+            } else if (scorer instanceof PrefixMatchScorer || scorer instanceof WordPositionScorer || scorer instanceof MappingTypeScorer) {
+                if (extraScorers) {
+                    scorers.add(scorer);
+                }
+            } else {
+                scorers.add(scorer);
+            }
+        }
+        Context.getService(EmrService.class).setConceptSearchScorersInternal(scorers);
+
+        if (!usageRanking) {
+            return;
+        }
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Context.getService(EmrService.class).refreshConceptUsageFrequenciesInternal();
+                } catch (Exception ex) {
+                    log.error("Failed to load diagnosis usage counts; concept search will not rank by them", ex);
+                }
+            }
+        });
+    }
+
     private void ensureScheduledTasks() {
         SchedulerService schedulerService = Context.getSchedulerService();
         TaskDefinition task = schedulerService.getTaskByName(EmrConstants.TASK_CLOSE_STALE_VISITS_NAME);
@@ -98,7 +219,7 @@ public class EmrActivator implements ModuleActivator {
             task = new TaskDefinition();
             task.setName(EmrConstants.TASK_CLOSE_STALE_VISITS_NAME);
             task.setDescription(EmrConstants.TASK_CLOSE_STALE_VISITS_DESCRIPTION);
-            task.setTaskClass(CloseStaleVisitsTask.class.getName());
+            task.setTaskClass(EmrCloseStaleVisitsTask.class.getName());
             task.setStartTime(DateUtils.addMinutes(new Date(), 5));
             task.setRepeatInterval(EmrConstants.TASK_CLOSE_STALE_VISITS_REPEAT_INTERVAL);
             task.setStartOnStartup(true);
@@ -109,7 +230,7 @@ public class EmrActivator implements ModuleActivator {
             }
         } else {
             // if you modify any of the properties above, you also need to set them here, in order to update existing servers
-            boolean changed = GeneralUtils.setPropertyIfDifferent(task, "taskClass", CloseStaleVisitsTask.class.getName());
+            boolean changed = GeneralUtils.setPropertyIfDifferent(task, "taskClass", EmrCloseStaleVisitsTask.class.getName());
             if (changed) {
                 schedulerService.saveTask(task);
             }
@@ -158,7 +279,31 @@ public class EmrActivator implements ModuleActivator {
 
             createConceptSources(conceptService);
 
-            htmlFormEntryService.addHandler(EmrConstants.HTMLFORMENTRY_UI_MESSAGE_TAG_NAME, new UiMessageTagHandler());
+            uiMessageTagHandler = new UiMessageTagHandler();
+            htmlFormEntryService.addHandler(EmrConstants.HTMLFORMENTRY_UI_MESSAGE_TAG_NAME, uiMessageTagHandler);
+            uiMessageCacheAdvice = new UiMessageCacheAdvice(uiMessageTagHandler);
+            Context.addAdvice(MessageSourceService.class, uiMessageCacheAdvice);
+
+            setupPatientSearchIndex();
+
+            setupActiveVisitRoster();
+
+            setupPrimaryIdentifierCache();
+
+            setupConceptFragmentCache();
+
+            availableTasksCacheAdvice = new AvailableTasksCacheAdvice(Context.getService(TaskService.class));
+            Context.addAdvice(UserService.class, availableTasksCacheAdvice);
+
+            setupPublishedHtmlFormsTaskFactories();
+
+            Runnable reloadDiagnosisSearchIndex = setupDiagnosisSearchIndex();
+            setupDiagnosisSetClosure(reloadDiagnosisSearchIndex);
+            if (reloadDiagnosisSearchIndex != null) {
+                reloadDiagnosisSearchIndex.run();
+            }
+
+            setupConsultMetadata();
         } catch (Exception e) {
             Module mod = ModuleFactory.getModuleById(EMR_MODULE_ID);
             ModuleFactory.stopModule(mod);
@@ -168,6 +313,282 @@ public class EmrActivator implements ModuleActivator {
         log.info("EMR Module started");
     }
 
+    /**
+     * If enabled by global property, keeps the in-memory patient search index up to date as patients change, and
+     * warms it up in a background thread (searches go to the database until it's ready)
+     */
+    private void setupPatientSearchIndex() {
+        List<PatientSearchIndex> indexes = Context.getRegisteredComponents(PatientSearchIndex.class);
+        if (indexes.isEmpty()) {
+            return;
+        }
+        PatientSearchIndex index = indexes.get(0);
+        patientSearchIndex = index;
+        boolean enabled = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(EmrConstants.GP_PATIENT_SEARCH_INDEX_ENABLED, "false"));
+        index.setEnabled(enabled);
+        if (!enabled) {
+            return;
+        }
+
+        patientSearchIndexAdvice = new PatientSearchIndexAdvice(index);
+        Context.addAdvice(PatientService.class, patientSearchIndexAdvice);
+
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Context.getService(EmrService.class).rebuildPatientSearchIndexInternal();
+                    log.info("Patient search index is ready");
+                } catch (Exception ex) {
+                    log.error("Failed to build patient search index; patient searches will use the database", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Invalidates the cached membership of the diagnosis sets whenever they (or the set-of-sets global property) change
+     * @param reloadIndex if not null, this is run whenever that happens (to reload the diagnosis search index)
+     */
+    private void setupDiagnosisSetClosure(final Runnable reloadIndex) {
+        List<DiagnosisSetClosure> closures = Context.getRegisteredComponents(DiagnosisSetClosure.class);
+        if (closures.isEmpty()) {
+            return;
+        }
+        final DiagnosisSetClosure closure = closures.get(0);
+        closure.invalidate();
+
+        final Runnable onChange = new Runnable() {
+            @Override
+            public void run() {
+                if (reloadIndex != null) {
+                    reloadIndex.run();
+                }
+            }
+        };
+        diagnosisSetClosureAdvice = new DiagnosisSetClosureAdvice(closure, onChange);
+        Context.addAdvice(ConceptService.class, diagnosisSetClosureAdvice);
+
+        diagnosisSetOfSetsListener = new GlobalPropertyListener() {
+            @Override
+            public boolean supportsPropertyName(String propertyName) {
+                return EmrConstants.GP_DIAGNOSIS_SET_OF_SETS.equals(propertyName);
+            }
+
+            @Override
+            public void globalPropertyChanged(GlobalProperty newValue) {
+                closure.invalidate();
+                onChange.run();
+            }
+
+            @Override
+            public void globalPropertyDeleted(String propertyName) {
+                closure.invalidate();
+                onChange.run();
+            }
+        };
+        Context.getAdministrationService().addGlobalPropertyListener(diagnosisSetOfSetsListener);
+    }
+
+    /**
+     * Consult notes are saved with metadata resolved once (see {@link ConsultService#getConsultMetadata()}), which we
+     * resolve again whenever the global properties, concepts, encounter types or encounter roles that define it change
+     */
+    private void setupConsultMetadata() {
+        final ConsultService consultService = Context.getService(ConsultService.class);
+        consultService.clearMetadataCacheInternal();
+        consultMetadataListener = new GlobalPropertyListener() {
+            @Override
+            public boolean supportsPropertyName(String propertyName) {
+                return EmrConstants.GP_CONSULT_ENCOUNTER_TYPE.equals(propertyName)
+                        || EmrConstants.GP_CLINICIAN_ENCOUNTER_ROLE.equals(propertyName);
+            }
+
+            @Override
+            public void globalPropertyChanged(GlobalProperty newValue) {
+                consultService.clearMetadataCacheInternal();
+            }
+
+            @Override
+            public void globalPropertyDeleted(String propertyName) {
+                consultService.clearMetadataCacheInternal();
+            }
+        };
+        Context.getAdministrationService().addGlobalPropertyListener(consultMetadataListener);
+        consultMetadataAdvice = new ConsultMetadataAdvice(consultService);
+        Context.addAdvice(ConceptService.class, consultMetadataAdvice);
+        Context.addAdvice(EncounterService.class, consultMetadataAdvice);
+    }
+
+    /**
+     * If enabled by global property, keeps the in-memory diagnosis search index up to date as concepts change. The
+     * caller loads it (in a background thread; searches go to the database until it's ready) by running the callback.
+     * @return a callback that reloads the index (in the background), or null if the index isn't enabled
+     */
+    private Runnable setupDiagnosisSearchIndex() {
+        List<DiagnosisSearchIndex> indexes = Context.getRegisteredComponents(DiagnosisSearchIndex.class);
+        if (indexes.isEmpty()) {
+            return null;
+        }
+        final DiagnosisSearchIndex index = indexes.get(0);
+        diagnosisSearchIndex = index;
+        index.invalidate();
+        boolean enabled = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(EmrConstants.GP_DIAGNOSIS_SEARCH_INDEX_ENABLED, "true"));
+        if (!enabled) {
+            return null;
+        }
+
+        Runnable reload = new Runnable() {
+            @Override
+            public void run() {
+                index.invalidate();
+                runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Context.getService(EmrService.class).rebuildDiagnosisSearchIndexInternal();
+                            log.info("Diagnosis search index is ready");
+                        } catch (Exception ex) {
+                            log.error("Failed to build diagnosis search index; diagnosis searches will use the database", ex);
+                        }
+                    }
+                });
+            }
+        };
+        diagnosisSearchIndexAdvice = new DiagnosisSearchIndexAdvice(index);
+        Context.addAdvice(ConceptService.class, diagnosisSearchIndexAdvice);
+        return reload;
+    }
+
+    /**
+     * Syncs the HTML Forms that tasks define in UI resources now, so the first requests after a deploy don't have to
+     */
+    private void bootstrapHtmlForms(List<TaskDescriptor> allTasks) {
+        try {
+            ResourceFactory resourceFactory = Context.getRegisteredComponent("coreResourceFactory", ResourceFactory.class);
+            int synced = new HtmlFormBootstrap(resourceFactory, Context.getService(EmrService.class)).bootstrap(allTasks);
+            log.info("Synced " + synced + " HTML Forms from UI resources");
+        } catch (Exception e) {
+            // tasks will sync their forms when first used instead
+            log.error("Failed to sync HTML Forms from UI resources", e);
+        }
+    }
+
+    private long getTaskFactoryTimeoutMillis() {
+        String timeout = Context.getAdministrationService().getGlobalProperty(EmrConstants.GP_TASK_FACTORY_TIMEOUT_MILLIS, "0");
+        try {
+            return Long.parseLong(timeout.trim());
+        } catch (NumberFormatException ex) {
+            log.warn("Invalid value for " + EmrConstants.GP_TASK_FACTORY_TIMEOUT_MILLIS + ": " + timeout);
+            return 0;
+        }
+    }
+
+    /**
+     * Runs a warm-up on the module's (single, daemon) background thread, in a session of its own, with the privileges
+     * it needs to read what it loads. Warm-ups run one at a time, in the order they were submitted, and are interrupted
+     * when the module stops.
+     */
+    private synchronized void runInBackground(final Runnable task) {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EMR background tasks");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Context.openSession();
+                try {
+                    for (String privilege : BACKGROUND_PRIVILEGES) {
+                        Context.addProxyPrivilege(privilege);
+                    }
+                    task.run();
+                } finally {
+                    for (String privilege : BACKGROUND_PRIVILEGES) {
+                        Context.removeProxyPrivilege(privilege);
+                    }
+                    Context.closeSession();
+                }
+            }
+        });
+    }
+
+    /**
+     * Interrupts any warm-up that is running, and drops the ones that haven't started
+     */
+    private synchronized void stopBackgroundTasks() {
+        if (backgroundExecutor == null) {
+            return;
+        }
+        backgroundExecutor.shutdownNow();
+        try {
+            if (!backgroundExecutor.awaitTermination(BACKGROUND_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("EMR background tasks did not stop within " + BACKGROUND_SHUTDOWN_SECONDS + " seconds");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        backgroundExecutor = null;
+    }
+
+    /**
+     * Keeps the roster of checked-in patients (used when searching among patients checked in at a location) up to
+     * date as visits start and end
+     */
+    private void setupActiveVisitRoster() {
+        List<ActiveVisitRoster> rosters = Context.getRegisteredComponents(ActiveVisitRoster.class);
+        if (rosters.isEmpty()) {
+            return;
+        }
+        ActiveVisitRoster roster = rosters.get(0);
+        roster.invalidateAll();
+        activeVisitRosterAdvice = new ActiveVisitRosterAdvice(roster);
+        Context.addAdvice(VisitService.class, activeVisitRosterAdvice);
+    }
+
+    /**
+     * Evicts patients from the cache used for (barcode) lookups by primary identifier when they change
+     */
+    private void setupPrimaryIdentifierCache() {
+        List<PrimaryIdentifierCache> caches = Context.getRegisteredComponents(PrimaryIdentifierCache.class);
+        if (caches.isEmpty()) {
+            return;
+        }
+        PrimaryIdentifierCache cache = caches.get(0);
+        cache.clear();
+        primaryIdentifierCacheAdvice = new PrimaryIdentifierCacheAdvice(cache);
+        Context.addAdvice(PatientService.class, primaryIdentifierCacheAdvice);
+    }
+
+    private void setupConceptFragmentCache() {
+        List<ConceptFragmentCache> caches = Context.getRegisteredComponents(ConceptFragmentCache.class);
+        if (caches.isEmpty()) {
+            return;
+        }
+        ConceptFragmentCache cache = caches.get(0);
+        cache.clear();
+        conceptFragmentCacheAdvice = new ConceptFragmentCacheAdvice(cache);
+        Context.addAdvice(ConceptService.class, conceptFragmentCacheAdvice);
+    }
+
+    /**
+     * Published HTML Form task factories cache their task descriptors until a form changes
+     */
+    private void setupPublishedHtmlFormsTaskFactories() {
+        for (PublishedHtmlFormsTaskFactory factory : Context.getRegisteredComponents(PublishedHtmlFormsTaskFactory.class)) {
+            PublishedHtmlFormsAdvice advice = new PublishedHtmlFormsAdvice(factory);
+            Context.addAdvice(FormService.class, advice);
+            Context.addAdvice(HtmlFormEntryService.class, advice);
+            publishedHtmlFormsAdvice.add(advice);
+        }
+    }
+
     private void saveTestPatientAttribute() {
         PersonAttributeType personAttributeTypeByUuid = personService.getPersonAttributeTypeByUuid(TEST_PATIENT_ATTRIBUTE_UUID);
 
@@ -205,12 +626,73 @@ public class EmrActivator implements ModuleActivator {
      * @see ModuleActivator#stopped()
      */
     public void stopped() {
+        stopBackgroundTasks();
+        // a loader that was interrupted mid-way leaves its partial index behind
+        if (patientSearchIndex != null) {
+            patientSearchIndex.setEnabled(false);
+            patientSearchIndex = null;
+        }
+        if (diagnosisSearchIndex != null) {
+            diagnosisSearchIndex.clear();
+            diagnosisSearchIndex = null;
+        }
         HtmlFormEntryService htmlFormEntryService = Context.getService(HtmlFormEntryService.class);
         try {
             htmlFormEntryService.getHandlers().remove(EmrConstants.HTMLFORMENTRY_UI_MESSAGE_TAG_NAME);
         } catch (Exception ex) {
             // pass
         }
+        if (uiMessageCacheAdvice != null) {
+            Context.removeAdvice(MessageSourceService.class, uiMessageCacheAdvice);
+            uiMessageCacheAdvice = null;
+        }
+        uiMessageTagHandler = null;
+        if (patientSearchIndexAdvice != null) {
+            Context.removeAdvice(PatientService.class, patientSearchIndexAdvice);
+            patientSearchIndexAdvice = null;
+        }
+        if (activeVisitRosterAdvice != null) {
+            Context.removeAdvice(VisitService.class, activeVisitRosterAdvice);
+            activeVisitRosterAdvice = null;
+        }
+        if (primaryIdentifierCacheAdvice != null) {
+            Context.removeAdvice(PatientService.class, primaryIdentifierCacheAdvice);
+            primaryIdentifierCacheAdvice = null;
+        }
+        for (PublishedHtmlFormsAdvice advice : publishedHtmlFormsAdvice) {
+            Context.removeAdvice(FormService.class, advice);
+            Context.removeAdvice(HtmlFormEntryService.class, advice);
+        }
+        publishedHtmlFormsAdvice.clear();
+        if (availableTasksCacheAdvice != null) {
+            Context.removeAdvice(UserService.class, availableTasksCacheAdvice);
+            availableTasksCacheAdvice = null;
+        }
+        if (conceptFragmentCacheAdvice != null) {
+            Context.removeAdvice(ConceptService.class, conceptFragmentCacheAdvice);
+            conceptFragmentCacheAdvice = null;
+        }
+        if (diagnosisSearchIndexAdvice != null) {
+            Context.removeAdvice(ConceptService.class, diagnosisSearchIndexAdvice);
+            diagnosisSearchIndexAdvice = null;
+        }
+        if (diagnosisSetClosureAdvice != null) {
+            Context.removeAdvice(ConceptService.class, diagnosisSetClosureAdvice);
+            diagnosisSetClosureAdvice = null;
+        }
+        if (diagnosisSetOfSetsListener != null) {
+            Context.getAdministrationService().removeGlobalPropertyListener(diagnosisSetOfSetsListener);
+            diagnosisSetOfSetsListener = null;
+        }
+        if (consultMetadataListener != null) {
+            Context.getAdministrationService().removeGlobalPropertyListener(consultMetadataListener);
+            consultMetadataListener = null;
+        }
+        if (consultMetadataAdvice != null) {
+            Context.removeAdvice(ConceptService.class, consultMetadataAdvice);
+            Context.removeAdvice(EncounterService.class, consultMetadataAdvice);
+            consultMetadataAdvice = null;
+        }
         log.info("EMR Module stopped");
     }
 
@@ -140,6 +140,16 @@ public class EmrConstants {
 
     public static final String HTMLFORMENTRY_UI_MESSAGE_TAG_NAME = "uimessage";
 
+    public static final String GP_PATIENT_SEARCH_INDEX_ENABLED = "emr.patientSearchIndex.enabled";
+
+    public static final String GP_DIAGNOSIS_SEARCH_INDEX_ENABLED = "emr.diagnosisSearchIndex.enabled";
+
+    public static final String GP_DIAGNOSIS_USAGE_RANKING_ENABLED = "emr.diagnosisUsageRanking.enabled";
+
+    public static final String GP_CONCEPT_SEARCH_EXTRA_SCORERS_ENABLED = "emr.conceptSearch.extraScorers.enabled";
+
+    public static final String GP_TASK_FACTORY_TIMEOUT_MILLIS = "emr.taskFactories.timeoutMillis";
+
     // copied to emrapi
     public static final String EMR_CONCEPT_SOURCE_NAME = "org.openmrs.module.emr";
     // copied to emrapi
@@ -17,13 +17,24 @@ import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.Visit;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.emr.concept.ConceptSearchCursor;
+import org.openmrs.module.emr.concept.ConceptSearchPage;
+import org.openmrs.module.emr.concept.ConceptSearchScorer;
+import org.openmrs.module.emr.htmlform.UiResourceHtmlForm;
+import org.openmrs.module.emr.patient.PatientSearchPage;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchSession;
+import org.openmrs.module.htmlformentry.FormEntrySession;
 
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Public API for EMR-related functionality.
@@ -32,6 +43,48 @@ public interface EmrService extends OpenmrsService {
 
     List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer length);
 
+    /**
+     * Same search as {@link #findPatients(String, Location, Integer, Integer)}, but only fetches the columns needed to
+     * display the results, without loading Patient objects
+     * @param query
+     * @param checkedInAt
+     * @param start
+     * @param length
+     * @return matching patients
+     */
+    List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Integer start, Integer length);
+
+    /**
+     * Search-as-you-type variant of {@link #findPatientSearchResults(String, Location, Integer, Integer)}. Starting a
+     * search cancels the previous one in the same searchSession, and a query that narrows the previous one (moments
+     * ago, with no patient or active visit changed since) only looks among its matches.
+     * @param searchSession one per user (e.g. kept in the HTTP session)
+     * @param query
+     * @param checkedInAt
+     * @param length
+     * @return matching patients, or an empty list if a newer search in searchSession superseded this one
+     */
+    List<PatientSearchResult> findPatientSearchResults(PatientSearchSession searchSession, String query, Location checkedInAt, Integer length);
+
+    /**
+     * Pages through patient search results using a keyset cursor, so that fetching a deep page costs the same as
+     * fetching the first one. Results are ordered by patientId.
+     * @param query
+     * @param checkedInAt if specified, only search among patients with an active visit at this location
+     * @param continuationToken null to fetch the first page, otherwise the token from the previous page
+     * @param batchSize return up to this many results (defaults to 50, at most 100)
+     * @return a batch of results, and a token for the next batch if there are more
+     */
+    PatientSearchPage findPatientPage(String query, Location checkedInAt, String continuationToken, Integer batchSize);
+
+    /**
+     * Rebuilds the in-memory patient search index from the database, if it is enabled. Searches fall back to the
+     * database while this runs.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     */
+    void rebuildPatientSearchIndexInternal();
+
     /**
      * If any locations are tagged as supporting logins, we return only those. If no locations have this tag, we
      * return all non-retired ones.
@@ -47,11 +100,87 @@ public interface EmrService extends OpenmrsService {
      * @param query
      * @param locale
      * @param classes if specified, only search among concepts with this class
-     * @param inSets if specified, only search among concepts within these sets (doesn't explode sets-of-sets; caller must do this)
+     * @param inSets if specified, only search among concepts within these sets (for the diagnosis sets, this includes
+     * members of sets nested inside them; other sets-of-sets aren't exploded, so the caller must do this)
      * @param sources if specified, search for exact matches on mappings in this source
      * @param limit return up to this many results (defaults to 100)
      * @return
      */
     List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, Integer limit);
 
+    /**
+     * Pages through the results of {@link #conceptSearch}, only loading the concepts on the requested page. The first
+     * page ranks (at least) the top 100 hits, and remembers them in cursor so that later pages of the same search can
+     * reuse them.
+     * @param cursor remembers the ranking of the caller's most recent search (may be null)
+     * @param query
+     * @param locale
+     * @param classes
+     * @param inSets
+     * @param sources
+     * @param start the (zero-based) position of the first result to return (defaults to 0)
+     * @param size return up to this many results (defaults to 50, at most 100)
+     * @return a page of results
+     * @see #conceptSearch
+     */
+    ConceptSearchPage conceptSearchPage(ConceptSearchCursor cursor, String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, Integer start, Integer size);
+
+    /**
+     * Loads the names and mappings (with their reference terms, sources and map types) of all the given concepts in a
+     * fixed number of queries, so that code about to display them doesn't lazy-load them one concept at a time.
+     * @param concepts
+     */
+    void prefetchNamesAndMappings(Collection<Concept> concepts);
+
+    /**
+     * Creates or updates the Forms and HtmlForms defined by the given UI resources, in a single transaction. Resources
+     * that haven't changed since they were last synced are skipped.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     *
+     * @param resources
+     * @return the id of the HtmlForm for each resource, keyed by provider:path
+     * @see org.openmrs.module.emr.htmlform.HtmlFormBootstrap
+     */
+    Map<String, Integer> syncHtmlFormsFromUiResourcesInternal(List<UiResourceHtmlForm> resources);
+
+    /**
+     * Applies the actions of a form entry session whose submission has already been validated and handled, all in one
+     * transaction. In ENTER mode, the encounter is put into its visit before it is saved, so that it's inserted with
+     * its visit rather than being saved a second time to attach it.
+     * @param session
+     * @param visit the visit to put a newly-entered encounter into (may be null)
+     * @param createVisitAt if visit is null and this is specified, put the encounter in the patient's active visit at
+     * this location, creating one (starting at the encounter's datetime) if necessary
+     * @return the encounter that was created or edited
+     * @throws Exception
+     */
+    Encounter applyFormEntrySession(FormEntrySession session, Visit visit, Location createVisitAt) throws Exception;
+
+    /**
+     * Rebuilds the in-memory index used by {@link #conceptSearch} for searches among the diagnosis sets. Searches fall
+     * back to the database while this runs.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     */
+    void rebuildDiagnosisSearchIndexInternal();
+
+    /**
+     * Sets the scorers that rank the results of {@link #conceptSearch}. (If none are given, it ranks by
+     * {@link org.openmrs.module.emr.concept.DefaultConceptSearchScorer} alone.)
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     *
+     * @param scorers
+     */
+    void setConceptSearchScorersInternal(List<ConceptSearchScorer> scorers);
+
+    /**
+     * Reloads how often each diagnosis has been recorded at this site, for any
+     * {@link org.openmrs.module.emr.concept.UsageFrequencyScorer}s among the concept search scorers.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     */
+    void refreshConceptUsageFrequenciesInternal();
+
 }
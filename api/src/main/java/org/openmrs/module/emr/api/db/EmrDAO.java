@@ -15,19 +15,149 @@ package org.openmrs.module.emr.api.db;
 
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
-import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSource;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.emr.concept.ConceptSearchCandidates;
+import org.openmrs.module.emr.concept.DiagnosisSearchIndex;
+import org.openmrs.module.emr.concept.DiagnosisSetMembership;
+import org.openmrs.module.emr.patient.PatientSearchIndex;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchSession;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 
 public interface EmrDAO {
 
-    List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer length);
+    /**
+     * @param query
+     * @param checkedInAt if not null (and amongPatientIds is null), only search among patients with an active visit
+     * at this visit location
+     * @param amongPatientIds if not null, only search among these patients (e.g. those checked in somewhere). These go
+     * into an IN list, so callers should pass checkedInAt rather than a long list of ids.
+     * @param start
+     * @param length
+     * @return matching patients
+     */
+    List<Patient> findPatients(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer start, Integer length);
 
-    List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, Integer limit);
+    /**
+     * Like {@link #findPatients(String, Location, Collection, Integer, Integer)} but returns lightweight projections
+     */
+    List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer start, Integer length);
+
+    /**
+     * @param query
+     * @param checkedInAt if not null (and amongPatientIds is null), only search among patients with an active visit
+     * at this visit location
+     * @param amongPatientIds if not null, only search among these patients
+     * @param start
+     * @param maxRows
+     * @return ids of matching patients, ordered by name. A patient matching on several names appears once per name, so
+     * fewer than maxRows results means that these are all the matches.
+     */
+    List<Integer> findPatientIds(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer start, Integer maxRows);
+
+    /**
+     * @return something that can cancel the query currently running in this thread's database session, from another
+     * thread
+     */
+    PatientSearchSession.QueryCanceller getQueryCanceller();
+
+    /**
+     * Keyset-paginated search, ordered by patientId
+     * @param query
+     * @param checkedInAt if not null (and amongPatientIds is null), only search among patients with an active visit
+     * at this visit location
+     * @param amongPatientIds if not null, only search among these patients
+     * @param afterPatientId if specified, only return patients with a greater patientId
+     * @param maxResults
+     * @return up to maxResults matching patients
+     */
+    List<PatientSearchResult> findPatientsAfter(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer afterPatientId, int maxResults);
+
+    /**
+     * Exact-match lookup, suitable for barcode scans
+     * @param identifierType
+     * @param identifier
+     * @return the non-voided patient with a non-voided identifier of this type and value (fetched in one query), or null
+     */
+    Patient getPatientByIdentifier(PatientIdentifierType identifierType, String identifier);
+
+    /**
+     * @param visitLocation
+     * @return ids of patients with an active (non-voided, not stopped) visit at visitLocation
+     */
+    List<Integer> getActiveVisitPatientIds(Location visitLocation);
+
+    /**
+     * @param patientIds
+     * @return search results for the given patients, in the same order, fetched with set-based queries
+     */
+    List<PatientSearchResult> getPatientSearchResults(List<Integer> patientIds);
+
+    /**
+     * @param patientIds
+     * @return the given patients, in the same order
+     */
+    List<Patient> getPatients(List<Integer> patientIds);
+
+    /**
+     * Bulk-loads the names and identifiers of all non-voided patients into index, in batches
+     * @param index
+     * @param identifierTypes only load identifiers of these types
+     */
+    void loadPatientSearchIndex(PatientSearchIndex index, Collection<PatientIdentifierType> identifierTypes);
+
+    /**
+     * Initializes the names and mappings (with their reference terms, sources and map types) of the given concepts in
+     * the current session, in a fixed number of queries per batch of concepts
+     * @param conceptIds
+     */
+    void prefetchNamesAndMappings(Collection<Integer> conceptIds);
+
+    /**
+     * Loads the given concepts with their names, in one query per batch of concepts
+     * @param conceptIds
+     * @return the concepts (that exist), keyed by id
+     */
+    Map<Integer, Concept> getConceptsWithNames(Collection<Integer> conceptIds);
+
+    /**
+     * @return the direct members of every concept set, keyed by set id
+     */
+    Map<Integer, List<Integer>> getConceptSetMembers();
+
+    /**
+     * Bulk-loads the given (non-retired) concepts with their names, and all concept mappings to the given sources, into
+     * index
+     * @param index
+     * @param memberIds ids of concepts in the diagnosis sets
+     * @param sources
+     */
+    void loadDiagnosisSearchIndex(DiagnosisSearchIndex index, int[] memberIds, Collection<ConceptSource> sources);
+
+    /**
+     * Finds concepts whose names (in the candidates' locale) contain every word of the candidates' query, and concepts
+     * with a mapping whose code is exactly the query, and adds them to candidates (unranked)
+     * @param candidates
+     * @param classes if not null, only find concepts of these classes
+     * @param inSets if not null, only find names of concepts in these sets
+     * @param inSetsFilter if not null, this is used to check membership of inSets in memory (instead of querying the
+     * members of inSets). Only a bounded number of names are read before filtering, so a very common query may find
+     * fewer than maxCandidates names
+     * @param sources if not null, also find mappings in these sources
+     * @param maxCandidates find at most this many name matches, and this many mapping matches
+     */
+    void findConceptSearchCandidates(ConceptSearchCandidates candidates, Collection<ConceptClass> classes, Collection<Concept> inSets, DiagnosisSetMembership.Filter inSetsFilter, Collection<ConceptSource> sources, int maxCandidates);
+
+    /**
+     * @param question
+     * @return how many (non-voided) obs for question have each coded answer, keyed by answer concept id
+     */
+    Map<Integer, Integer> getValueCodedUsageCounts(Concept question);
 
 }
@@ -14,43 +14,70 @@
 package org.openmrs.module.emr.api.db.hibernate;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
-import org.hibernate.criterion.Property;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.criterion.Subqueries;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptMap;
 import org.openmrs.ConceptName;
-import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSet;
 import org.openmrs.ConceptSource;
 import org.openmrs.ConceptWord;
 import org.openmrs.Location;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.Visit;
+import org.openmrs.api.db.DAOException;
 import org.openmrs.api.db.hibernate.PatientSearchCriteria;
 import org.openmrs.module.emr.api.db.EmrDAO;
+import org.openmrs.module.emr.concept.ConceptSearchCandidates;
+import org.openmrs.module.emr.concept.DiagnosisSearchIndex;
+import org.openmrs.module.emr.concept.DiagnosisSetMembership;
+import org.openmrs.module.emr.patient.PatientSearchIndex;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchSession;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 public class HibernateEmrDAO implements EmrDAO {
 
+    private final Log log = LogFactory.getLog(getClass());
+
+    private static final int INDEX_BATCH_SIZE = 5000;
+
+    private static final int IN_CLAUSE_BATCH_SIZE = 1000;
+
+    /**
+     * When concept search filters set membership in memory, it reads at most this many times maxCandidates names, so a
+     * common word can't make it scan every matching name in the dictionary
+     */
+    private static final int IN_SETS_FILTER_OVERFETCH = 20;
+
     private SessionFactory sessionFactory;
     private EmrApiProperties emrApiProperties;
 
@@ -63,24 +90,11 @@ public class HibernateEmrDAO implements EmrDAO {
     }
 
     @Override
-    public List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer maxResults) {
-
-        Criteria criteria;
-        if (checkedInAt != null) {
-            criteria = sessionFactory.getCurrentSession().createCriteria(Visit.class);
-            criteria.setProjection(Property.forName("patient"));
-            criteria.add(Restrictions.isNull("stopDatetime"));
-            criteria.add(Restrictions.eq("location", checkedInAt));
-            Criteria patientCriteria = criteria.createCriteria("patient");
-            if (StringUtils.isNotBlank(query)) {
-                patientCriteria = buildCriteria(query, patientCriteria);
-            }
-            criteria = patientCriteria;
-        }
-        else {
-            criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class);
-            criteria = buildCriteria(query, criteria);
+    public List<Patient> findPatients(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer start, Integer maxResults) {
+        if (amongPatientIds != null && amongPatientIds.isEmpty()) {
+            return new ArrayList<Patient>();
         }
+        Criteria criteria = createPatientSearchCriteria(query, checkedInAt, amongPatientIds, true);
 
         if (start != null) {
             criteria.setFirstResult(start);
@@ -93,115 +107,546 @@ public class HibernateEmrDAO implements EmrDAO {
         return (List<Patient>) criteria.list();
     }
 
-    private Criteria buildCriteria(String query, Criteria criteria) {
+    @Override
+    public List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer start, Integer maxResults) {
+        if (amongPatientIds != null && amongPatientIds.isEmpty()) {
+            return new ArrayList<PatientSearchResult>();
+        }
+        Criteria criteria = createPatientSearchCriteria(query, checkedInAt, amongPatientIds, true);
+        criteria.setProjection(Projections.property("p.patientId"));
+
+        // a patient matching on several names comes back once per name, so page over distinct patients as we read
+        // the rows (in name order), rather than limiting the rows themselves
+        int skip = start == null ? 0 : start;
+        Set<Integer> seen = new HashSet<Integer>();
+        List<Integer> patientIds = new ArrayList<Integer>();
+        ScrollableResults rows = criteria.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while ((maxResults == null || patientIds.size() < maxResults) && rows.next()) {
+                Integer patientId = (Integer) rows.get(0);
+                if (seen.add(patientId) && seen.size() > skip) {
+                    patientIds.add(patientId);
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return getPatientSearchResults(patientIds);
+    }
+
+    @Override
+    public List<Integer> findPatientIds(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer start, Integer maxRows) {
+        if (amongPatientIds != null && amongPatientIds.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+        Criteria criteria = createPatientSearchCriteria(query, checkedInAt, amongPatientIds, true);
+        criteria.setProjection(Projections.property("p.patientId"));
+
+        if (start != null) {
+            criteria.setFirstResult(start);
+        }
+
+        if (maxRows != null) {
+            criteria.setMaxResults(maxRows);
+        }
+
+        return (List<Integer>) criteria.list();
+    }
+
+    @Override
+    public PatientSearchSession.QueryCanceller getQueryCanceller() {
+        final Session session = sessionFactory.getCurrentSession();
+        return new PatientSearchSession.QueryCanceller() {
+            @Override
+            public void cancel() {
+                try {
+                    session.cancelQuery();
+                } catch (HibernateException ex) {
+                    // the query (or the whole session) already finished
+                    log.debug("Failed to cancel query", ex);
+                }
+            }
+        };
+    }
+
+    @Override
+    public List<PatientSearchResult> findPatientsAfter(String query, Location checkedInAt, Collection<Integer> amongPatientIds, Integer afterPatientId, int maxResults) {
+        if (amongPatientIds != null && amongPatientIds.isEmpty()) {
+            return new ArrayList<PatientSearchResult>();
+        }
+        Criteria criteria = createPatientSearchCriteria(query, checkedInAt, amongPatientIds, false);
+
+        // seek past the previous page instead of skipping over it, so every page costs the same
+        if (afterPatientId != null) {
+            criteria.add(Restrictions.gt("p.patientId", afterPatientId));
+        }
+        criteria.setProjection(Projections.distinct(Projections.property("p.patientId")));
+        criteria.addOrder(Order.asc("p.patientId"));
+        criteria.setMaxResults(maxResults);
+
+        return getPatientSearchResults((List<Integer>) criteria.list());
+    }
+
+    /**
+     * Fetches just the columns needed to display search results for the given patients, with one query for patients
+     * and their names, and one for their primary identifiers
+     * @param patientIds
+     * @return search results in the same order as patientIds
+     */
+    @Override
+    public List<PatientSearchResult> getPatientSearchResults(List<Integer> patientIds) {
+        if (patientIds.isEmpty()) {
+            return new ArrayList<PatientSearchResult>();
+        }
+
+        Map<Integer, PatientSearchResult> byId = new HashMap<Integer, PatientSearchResult>();
+        Set<Integer> havePreferredName = new HashSet<Integer>();
+        {
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class, "p");
+            criteria.createAlias("p.names", "n");
+            criteria.add(Restrictions.in("p.patientId", patientIds));
+            criteria.add(Restrictions.eq("n.voided", false));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("p.patientId"))
+                    .add(Projections.property("p.uuid"))
+                    .add(Projections.property("p.gender"))
+                    .add(Projections.property("p.birthdate"))
+                    .add(Projections.property("p.birthdateEstimated"))
+                    .add(Projections.property("p.deathDate"))
+                    .add(Projections.property("n.preferred"))
+                    .add(Projections.property("n.prefix"))
+                    .add(Projections.property("n.givenName"))
+                    .add(Projections.property("n.middleName"))
+                    .add(Projections.property("n.familyNamePrefix"))
+                    .add(Projections.property("n.familyName"))
+                    .add(Projections.property("n.familyName2"))
+                    .add(Projections.property("n.familyNameSuffix"))
+                    .add(Projections.property("n.degree")));
+            criteria.addOrder(Order.asc("n.personNameId"));
+
+            for (Object[] row : (List<Object[]>) criteria.list()) {
+                Integer patientId = (Integer) row[0];
+                boolean preferred = Boolean.TRUE.equals(row[6]);
+                PatientSearchResult result = byId.get(patientId);
+                if (result == null) {
+                    result = new PatientSearchResult(patientId);
+                    result.setUuid((String) row[1]);
+                    result.setGender((String) row[2]);
+                    result.setBirthdate((Date) row[3]);
+                    result.setBirthdateEstimated((Boolean) row[4]);
+                    result.setDeathDate((Date) row[5]);
+                    byId.put(patientId, result);
+                }
+                else if (!preferred || havePreferredName.contains(patientId)) {
+                    continue;
+                }
+                // same choice as Person.getPersonName(): the preferred name, otherwise the first one (by personNameId)
+                if (preferred) {
+                    havePreferredName.add(patientId);
+                }
+                result.setPrefix((String) row[7]);
+                result.setGivenName((String) row[8]);
+                result.setMiddleName((String) row[9]);
+                result.setFamilyNamePrefix((String) row[10]);
+                result.setFamilyName((String) row[11]);
+                result.setFamilyName2((String) row[12]);
+                result.setFamilyNameSuffix((String) row[13]);
+                result.setDegree((String) row[14]);
+            }
+        }
+
+        PatientIdentifierType primaryIdentifierType = emrApiProperties.getPrimaryIdentifierType();
+        if (primaryIdentifierType != null) {
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientIdentifier.class, "pi");
+            criteria.add(Restrictions.in("pi.patient.id", patientIds));
+            criteria.add(Restrictions.eq("pi.identifierType", primaryIdentifierType));
+            criteria.add(Restrictions.eq("pi.voided", false));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("pi.patient.id"))
+                    .add(Projections.property("pi.identifier")));
+            criteria.addOrder(Order.desc("pi.preferred"));
+
+            for (Object[] row : (List<Object[]>) criteria.list()) {
+                PatientSearchResult result = byId.get(row[0]);
+                if (result != null) {
+                    result.addPrimaryIdentifier((String) row[1]);
+                }
+            }
+        }
+
+        List<PatientSearchResult> results = new ArrayList<PatientSearchResult>(patientIds.size());
+        for (Integer patientId : patientIds) {
+            PatientSearchResult result = byId.get(patientId);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<Patient> getPatients(List<Integer> patientIds) {
+        if (patientIds.isEmpty()) {
+            return new ArrayList<Patient>();
+        }
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class);
+        criteria.add(Restrictions.in("patientId", patientIds));
+
+        Map<Integer, Patient> byId = new HashMap<Integer, Patient>();
+        for (Patient patient : (List<Patient>) criteria.list()) {
+            byId.put(patient.getPatientId(), patient);
+        }
+        List<Patient> patients = new ArrayList<Patient>(patientIds.size());
+        for (Integer patientId : patientIds) {
+            Patient patient = byId.get(patientId);
+            if (patient != null) {
+                patients.add(patient);
+            }
+        }
+        return patients;
+    }
+
+    @Override
+    public void loadPatientSearchIndex(PatientSearchIndex index, Collection<PatientIdentifierType> identifierTypes) {
+        Integer afterPersonNameId = 0;
+        List<Object[]> rows;
+        do {
+            checkNotInterrupted();
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class, "p");
+            criteria.createAlias("p.names", "n");
+            criteria.add(Restrictions.eq("p.voided", false));
+            criteria.add(Restrictions.eq("n.voided", false));
+            criteria.add(Restrictions.gt("n.personNameId", afterPersonNameId));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("n.personNameId"))
+                    .add(Projections.property("p.patientId"))
+                    .add(Projections.property("n.givenName"))
+                    .add(Projections.property("n.middleName"))
+                    .add(Projections.property("n.familyName"))
+                    .add(Projections.property("n.familyName2")));
+            criteria.addOrder(Order.asc("n.personNameId"));
+            criteria.setMaxResults(INDEX_BATCH_SIZE);
+
+            rows = (List<Object[]>) criteria.list();
+            for (Object[] row : rows) {
+                index.addName((Integer) row[1], (String) row[2], (String) row[3], (String) row[4], (String) row[5]);
+                afterPersonNameId = (Integer) row[0];
+            }
+        } while (rows.size() == INDEX_BATCH_SIZE);
+
+        if (identifierTypes == null || identifierTypes.isEmpty()) {
+            return;
+        }
+        Integer afterPatientIdentifierId = 0;
+        do {
+            checkNotInterrupted();
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientIdentifier.class, "pi");
+            criteria.createAlias("pi.patient", "p");
+            criteria.add(Restrictions.eq("p.voided", false));
+            criteria.add(Restrictions.eq("pi.voided", false));
+            criteria.add(Restrictions.in("pi.identifierType", identifierTypes));
+            criteria.add(Restrictions.gt("pi.patientIdentifierId", afterPatientIdentifierId));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("pi.patientIdentifierId"))
+                    .add(Projections.property("p.patientId"))
+                    .add(Projections.property("pi.identifier")));
+            criteria.addOrder(Order.asc("pi.patientIdentifierId"));
+            criteria.setMaxResults(INDEX_BATCH_SIZE);
+
+            rows = (List<Object[]>) criteria.list();
+            for (Object[] row : rows) {
+                index.addIdentifier((Integer) row[1], (String) row[2]);
+                afterPatientIdentifierId = (Integer) row[0];
+            }
+        } while (rows.size() == INDEX_BATCH_SIZE);
+    }
+
+    /**
+     * Search indexes are loaded in the module's background thread, which is interrupted when the module stops
+     */
+    private void checkNotInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new DAOException("Interrupted while loading a search index");
+        }
+    }
+
+    @Override
+    public Patient getPatientByIdentifier(PatientIdentifierType identifierType, String identifier) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class, "p");
+        criteria.createAlias("p.identifiers", "pi");
+        criteria.add(Restrictions.eq("pi.identifier", identifier));
+        criteria.add(Restrictions.eq("pi.identifierType", identifierType));
+        criteria.add(Restrictions.eq("pi.voided", false));
+        criteria.add(Restrictions.eq("p.voided", false));
+        criteria.setMaxResults(1);
+        return (Patient) criteria.uniqueResult();
+    }
+
+    @Override
+    public List<Integer> getActiveVisitPatientIds(Location visitLocation) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Visit.class, "v");
+        criteria.add(Restrictions.eq("v.location", visitLocation));
+        criteria.add(Restrictions.isNull("v.stopDatetime"));
+        criteria.add(Restrictions.eq("v.voided", false));
+        criteria.setProjection(Projections.distinct(Projections.property("v.patient.id")));
+        return (List<Integer>) criteria.list();
+    }
+
+    /**
+     * @param query
+     * @param checkedInAt if not null (and amongPatientIds is null), restrict to patients with an active visit here
+     * @param amongPatientIds if not null (or empty), restrict to these patients
+     * @param orderByNames
+     * @return criteria with "p" as the alias for the patient being searched for
+     */
+    private Criteria createPatientSearchCriteria(String query, Location checkedInAt, Collection<Integer> amongPatientIds, boolean orderByNames) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class, "p");
+        if (amongPatientIds != null) {
+            criteria.add(Restrictions.in("p.patientId", amongPatientIds));
+        } else if (checkedInAt != null) {
+            DetachedCriteria activeVisits = DetachedCriteria.forClass(Visit.class, "v");
+            activeVisits.add(Restrictions.eq("v.location", checkedInAt));
+            activeVisits.add(Restrictions.isNull("v.stopDatetime"));
+            activeVisits.add(Restrictions.eq("v.voided", false));
+            activeVisits.setProjection(Projections.property("v.patient.id"));
+            criteria.add(Subqueries.propertyIn("p.patientId", activeVisits));
+        }
+        if (StringUtils.isNotBlank(query)) {
+            buildCriteria(query, criteria, orderByNames);
+        } else {
+            criteria.add(Restrictions.eq("voided", false));
+        }
+        return criteria;
+    }
+
+    private Criteria buildCriteria(String query, Criteria criteria, boolean orderByNames) {
         if (query.matches(".*\\d.*")) {
             // has at least one digit, so treat as an identifier
-            return new PatientSearchCriteria(sessionFactory, criteria).prepareCriteria(null, query, emrApiProperties.getIdentifierTypesToSearch(), true, true, true);
+            return new PatientSearchCriteria(sessionFactory, criteria).prepareCriteria(null, query, emrApiProperties.getIdentifierTypesToSearch(), true, orderByNames, true);
         } else {
             // no digits, so treat as a name
-            return new PatientSearchCriteria(sessionFactory, criteria).prepareCriteria(query, null, new ArrayList<PatientIdentifierType>(), true, true, true);
+            return new PatientSearchCriteria(sessionFactory, criteria).prepareCriteria(query, null, new ArrayList<PatientIdentifierType>(), true, orderByNames, true);
+        }
+    }
+
+    @Override
+    public void prefetchNamesAndMappings(Collection<Integer> conceptIds) {
+        List<Integer> ids = new ArrayList<Integer>(conceptIds);
+        for (int from = 0; from < ids.size(); from += IN_CLAUSE_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(from, Math.min(from + IN_CLAUSE_BATCH_SIZE, ids.size()));
+
+            // (fetched separately, since joining both collections at once would multiply the rows)
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Concept.class);
+            criteria.add(Restrictions.in("conceptId", batch));
+            criteria.setFetchMode("names", FetchMode.JOIN);
+            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            criteria.list();
+
+            criteria = sessionFactory.getCurrentSession().createCriteria(Concept.class);
+            criteria.add(Restrictions.in("conceptId", batch));
+            criteria.setFetchMode("conceptMappings", FetchMode.JOIN);
+            criteria.setFetchMode("conceptMappings.conceptMapType", FetchMode.JOIN);
+            criteria.setFetchMode("conceptMappings.conceptReferenceTerm", FetchMode.JOIN);
+            criteria.setFetchMode("conceptMappings.conceptReferenceTerm.conceptSource", FetchMode.JOIN);
+            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            criteria.list();
+        }
+    }
+
+    @Override
+    public Map<Integer, Concept> getConceptsWithNames(Collection<Integer> conceptIds) {
+        List<Integer> ids = new ArrayList<Integer>(conceptIds);
+        Map<Integer, Concept> concepts = new HashMap<Integer, Concept>();
+        for (int from = 0; from < ids.size(); from += IN_CLAUSE_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(from, Math.min(from + IN_CLAUSE_BATCH_SIZE, ids.size()));
+
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Concept.class);
+            criteria.add(Restrictions.in("conceptId", batch));
+            criteria.setFetchMode("names", FetchMode.JOIN);
+            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            for (Concept concept : (List<Concept>) criteria.list()) {
+                concepts.put(concept.getConceptId(), concept);
+            }
+        }
+        return concepts;
+    }
+
+    @Override
+    public Map<Integer, List<Integer>> getConceptSetMembers() {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptSet.class, "cs");
+        criteria.createAlias("cs.conceptSet", "s");
+        criteria.createAlias("cs.concept", "c");
+        criteria.setProjection(Projections.projectionList()
+                .add(Projections.property("s.conceptId"))
+                .add(Projections.property("c.conceptId")));
+
+        Map<Integer, List<Integer>> members = new HashMap<Integer, List<Integer>>();
+        for (Object[] row : (List<Object[]>) criteria.list()) {
+            List<Integer> setMembers = members.get(row[0]);
+            if (setMembers == null) {
+                setMembers = new ArrayList<Integer>();
+                members.put((Integer) row[0], setMembers);
+            }
+            setMembers.add((Integer) row[1]);
+        }
+        return members;
+    }
+
+    @Override
+    public void loadDiagnosisSearchIndex(DiagnosisSearchIndex index, int[] memberIds, Collection<ConceptSource> sources) {
+        for (int from = 0; from < memberIds.length; from += IN_CLAUSE_BATCH_SIZE) {
+            checkNotInterrupted();
+            List<Integer> batch = new ArrayList<Integer>(IN_CLAUSE_BATCH_SIZE);
+            for (int i = from; i < memberIds.length && i < from + IN_CLAUSE_BATCH_SIZE; ++i) {
+                batch.add(memberIds[i]);
+            }
+
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Concept.class, "c");
+            criteria.createAlias("c.conceptClass", "cc");
+            criteria.add(Restrictions.in("c.conceptId", batch));
+            criteria.add(Restrictions.eq("c.retired", false));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("c.conceptId"))
+                    .add(Projections.property("cc.conceptClassId")));
+            for (Object[] row : (List<Object[]>) criteria.list()) {
+                index.addSetMember((Integer) row[0], (Integer) row[1]);
+            }
+
+            criteria = sessionFactory.getCurrentSession().createCriteria(ConceptName.class, "cn");
+            criteria.createAlias("cn.concept", "c");
+            criteria.add(Restrictions.in("c.conceptId", batch));
+            criteria.add(Restrictions.eq("cn.voided", false));
+            criteria.add(Restrictions.eq("c.retired", false));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("c.conceptId"))
+                    .add(Projections.property("cn.conceptNameId"))
+                    .add(Projections.property("cn.name"))
+                    .add(Projections.property("cn.locale"))
+                    .add(Projections.property("cn.localePreferred")));
+            for (Object[] row : (List<Object[]>) criteria.list()) {
+                index.addName((Integer) row[0], (Integer) row[1], (String) row[2], (Locale) row[3], Boolean.TRUE.equals(row[4]));
+            }
+        }
+
+        if (sources != null && !sources.isEmpty()) {
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptMap.class, "cm");
+            criteria.createAlias("cm.concept", "c");
+            criteria.createAlias("c.conceptClass", "cc");
+            criteria.createAlias("cm.conceptReferenceTerm", "t");
+            criteria.createAlias("t.conceptSource", "src");
+            criteria.createAlias("cm.conceptMapType", "mt", Criteria.LEFT_JOIN);
+            criteria.add(Restrictions.in("t.conceptSource", sources));
+            criteria.add(Restrictions.eq("t.retired", false));
+            criteria.add(Restrictions.eq("c.retired", false));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("c.conceptId"))
+                    .add(Projections.property("cc.conceptClassId"))
+                    .add(Projections.property("src.conceptSourceId"))
+                    .add(Projections.property("mt.conceptMapTypeId"))
+                    .add(Projections.property("t.code")));
+            for (Object[] row : (List<Object[]>) criteria.list()) {
+                index.addMapping((Integer) row[0], (Integer) row[1], (Integer) row[2], (Integer) row[3], (String) row[4]);
+            }
         }
     }
 
     @Override
     @Transactional(readOnly=true)
-    public List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, Integer limit) {
-        List<String> uniqueWords = ConceptWord.getUniqueWords(query, locale);
+    public void findConceptSearchCandidates(ConceptSearchCandidates candidates, Collection<ConceptClass> classes, Collection<Concept> inSets, DiagnosisSetMembership.Filter inSetsFilter, Collection<ConceptSource> sources, int maxCandidates) {
+        List<String> uniqueWords = ConceptWord.getUniqueWords(candidates.getQuery(), candidates.getLocale());
         if (uniqueWords.size() == 0) {
-            return Collections.emptyList();
+            return;
         }
 
-        List<ConceptSearchResult> results = new ArrayList<ConceptSearchResult>();
+        Session session = sessionFactory.getCurrentSession();
 
-        // find matches based on name
+        // find matches based on name (fetching just what we need to rank them, not whole concepts)
         {
-            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptName.class, "cn");
-            criteria.add(Restrictions.eq("voided", false));
-            criteria.add(Restrictions.eq("locale", locale));
-            criteria.setMaxResults(limit);
-
-            Criteria conceptCriteria = criteria.createCriteria("concept");
-            conceptCriteria.add(Restrictions.eq("retired", false));
+            Criteria criteria = session.createCriteria(ConceptName.class, "cn");
+            criteria.createAlias("cn.concept", "c");
+            criteria.add(Restrictions.eq("cn.voided", false));
+            criteria.add(Restrictions.eq("cn.locale", candidates.getLocale()));
+            criteria.add(Restrictions.eq("c.retired", false));
             if (classes != null) {
-                conceptCriteria.add(Restrictions.in("conceptClass", classes));
+                criteria.add(Restrictions.in("c.conceptClass", classes));
             }
-            if (inSets != null) {
+            if (inSets != null && inSetsFilter == null) {
                 DetachedCriteria allowedSetMembers = DetachedCriteria.forClass(ConceptSet.class);
                 allowedSetMembers.add(Restrictions.in("conceptSet", inSets));
                 allowedSetMembers.setProjection(Projections.property("concept"));
-                criteria.add(Subqueries.propertyIn("concept", allowedSetMembers));
+                criteria.add(Subqueries.propertyIn("cn.concept", allowedSetMembers));
             }
 
             for (String word : uniqueWords) {
-                criteria.add(Restrictions.ilike("name", word, MatchMode.ANYWHERE));
+                criteria.add(Restrictions.ilike("cn.name", word, MatchMode.ANYWHERE));
             }
 
-            Set<Concept> conceptsMatchedByPreferredName = new HashSet<Concept>();
-            for (ConceptName matchedName : (List<ConceptName>) criteria.list()) {
-                results.add(new ConceptSearchResult(null, matchedName.getConcept(), matchedName, calculateMatchScore(query, uniqueWords, matchedName)));
-                if (matchedName.isLocalePreferred()) {
-                    conceptsMatchedByPreferredName.add(matchedName.getConcept());
-                }
-            }
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("c.conceptId"))
+                    .add(Projections.property("cn.conceptNameId"))
+                    .add(Projections.property("cn.name"))
+                    .add(Projections.property("cn.localePreferred")));
+            criteria.setMaxResults(inSetsFilter == null ? maxCandidates : maxCandidates * IN_SETS_FILTER_OVERFETCH);
 
-            // don't display synonym matches if the preferred name matches too
-            for (Iterator<ConceptSearchResult> i = results.iterator(); i.hasNext(); ) {
-                ConceptSearchResult candidate = i.next();
-                if (!candidate.getConceptName().isLocalePreferred() && conceptsMatchedByPreferredName.contains(candidate.getConcept())) {
-                    i.remove();
+            ScrollableResults rows = criteria.scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                int found = 0;
+                while (found < maxCandidates && rows.next()) {
+                    Object[] row = rows.get();
+                    // filtering by set in memory, rather than with a subquery, means we have to skip non-members here
+                    if (inSetsFilter != null && !inSetsFilter.accepts((Integer) row[0])) {
+                        continue;
+                    }
+                    candidates.addName((Integer) row[0], (Integer) row[1], (String) row[2], Boolean.TRUE.equals(row[3]));
+                    ++found;
                 }
+            } finally {
+                rows.close();
             }
         }
 
         // find matches based on mapping
         if (sources != null) {
-            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptMap.class);
-            criteria.setMaxResults(limit);
-
-            Criteria conceptCriteria = criteria.createCriteria("concept");
-            conceptCriteria.add(Restrictions.eq("retired", false));
+            Criteria criteria = session.createCriteria(ConceptMap.class, "map");
+            criteria.createAlias("map.concept", "c");
+            criteria.createAlias("map.conceptReferenceTerm", "term");
+            criteria.createAlias("map.conceptMapType", "mapType", Criteria.LEFT_JOIN);
+            criteria.add(Restrictions.eq("c.retired", false));
             if (classes != null) {
-                conceptCriteria.add(Restrictions.in("conceptClass", classes));
+                criteria.add(Restrictions.in("c.conceptClass", classes));
             }
+            criteria.add(Restrictions.eq("term.retired", false));
+            criteria.add(Restrictions.in("term.conceptSource", sources));
+            criteria.add(Restrictions.ilike("term.code", candidates.getQuery(), MatchMode.EXACT));
 
-            Criteria mappedTerm = criteria.createCriteria("conceptReferenceTerm");
-            mappedTerm.add(Restrictions.eq("retired", false));
-            mappedTerm.add(Restrictions.in("conceptSource", sources));
-            mappedTerm.add(Restrictions.ilike("code", query, MatchMode.EXACT));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("c.conceptId"))
+                    .add(Projections.property("mapType.conceptMapTypeId")));
+            criteria.setMaxResults(maxCandidates);
 
-            for (ConceptMap mapping : (List<ConceptMap>) criteria.list()) {
-                results.add(new ConceptSearchResult(null, mapping.getConcept(), null, calculateMatchScore(query, mapping)));
+            for (Object[] row : (List<Object[]>) criteria.list()) {
+                Integer mapTypeId = (Integer) row[1];
+                candidates.addMapping((Integer) row[0], mapTypeId == null ? 0 : mapTypeId);
             }
         }
-
-        Collections.sort(results, new Comparator<ConceptSearchResult>() {
-            @Override
-            public int compare(ConceptSearchResult left, ConceptSearchResult right) {
-                return right.getTransientWeight().compareTo(left.getTransientWeight());
-            }
-        });
-
-        if (results.size() > limit) {
-            results = results.subList(0, limit);
-        }
-        return results;
     }
 
-    private Double calculateMatchScore(String query, ConceptMap matchedMapping) {
-        // eventually consider weighting this by map type (e.g. same-as > narrower-than > others)
-        return 10000d;
-    }
+    @Override
+    @Transactional(readOnly=true)
+    public Map<Integer, Integer> getValueCodedUsageCounts(Concept question) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class, "o");
+        criteria.createAlias("o.valueCoded", "vc");
+        criteria.add(Restrictions.eq("o.voided", false));
+        criteria.add(Restrictions.eq("o.concept", question));
+        criteria.setProjection(Projections.projectionList()
+                .add(Projections.groupProperty("vc.conceptId"))
+                .add(Projections.rowCount()));
 
-    private Double calculateMatchScore(String query, List<String> uniqueWords, ConceptName matchedName) {
-        double score = 0d;
-        if (query.equalsIgnoreCase(matchedName.getName())) {
-            score += 1000d;
-        }
-        if (matchedName.isLocalePreferred()) {
-            score += 500d;
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Object[] row : (List<Object[]>) criteria.list()) {
+            counts.put((Integer) row[0], ((Number) row[1]).intValue());
         }
-        score -= matchedName.getName().length();
-        return score;
+        return counts;
     }
 
 }
@@ -13,31 +13,96 @@
  */
 package org.openmrs.module.emr.api.impl;
 
+import org.apache.commons.lang.StringUtils;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
+import org.openmrs.ConceptName;
 import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.Visit;
 import org.openmrs.api.APIException;
 import org.openmrs.api.EncounterService;
+import org.openmrs.api.FormService;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.emr.api.EmrService;
 import org.openmrs.module.emr.api.db.EmrDAO;
+import org.openmrs.module.emr.concept.ConceptSearchCandidates;
+import org.openmrs.module.emr.concept.ConceptSearchCursor;
+import org.openmrs.module.emr.concept.ConceptSearchHit;
+import org.openmrs.module.emr.concept.ConceptSearchPage;
+import org.openmrs.module.emr.concept.ConceptSearchScorer;
+import org.openmrs.module.emr.concept.DefaultConceptSearchScorer;
+import org.openmrs.module.emr.concept.DiagnosisSearchIndex;
+import org.openmrs.module.emr.concept.DiagnosisSetClosure;
+import org.openmrs.module.emr.concept.DiagnosisSetMembership;
+import org.openmrs.module.emr.concept.TopConceptSearchHits;
+import org.openmrs.module.emr.concept.UsageFrequencyScorer;
+import org.openmrs.module.emr.htmlform.HtmlFormUtil;
+import org.openmrs.module.emr.htmlform.UiResourceHtmlForm;
+import org.openmrs.module.emr.patient.PatientSearchCursor;
+import org.openmrs.module.emr.patient.PatientSearchIndex;
+import org.openmrs.module.emr.patient.PatientSearchPage;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchSession;
+import org.openmrs.module.emr.patient.PrimaryIdentifierCache;
+import org.openmrs.module.emr.visit.ActiveVisitRoster;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.adt.AdtService;
+import org.openmrs.module.htmlformentry.FormEntryContext;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
 
+    public static final int DEFAULT_PATIENT_PAGE_SIZE = 50;
+
+    public static final int MAX_PATIENT_PAGE_SIZE = 100;
+
+    /**
+     * Search sessions fetch (the ids of) up to this many matches, so that narrowing searches can look among them
+     */
+    public static final int SEARCH_SESSION_MAX_MATCHES = 1000;
+
+    /**
+     * Database patient searches restrict to a list of patient ids (e.g. a checked-in roster) only up to this many; a
+     * longer roster is restricted with a subquery on active visits instead
+     */
+    public static final int MAX_PATIENT_IDS_IN_QUERY = 500;
+
+    /**
+     * conceptSearch ranks at most this many candidates (per kind of match) from the database for each result it returns
+     */
+    public static final int CONCEPT_SEARCH_CANDIDATES_PER_RESULT = 10;
+
+    public static final int DEFAULT_CONCEPT_PAGE_SIZE = 50;
+
+    public static final int MAX_CONCEPT_PAGE_SIZE = 100;
+
+    /**
+     * conceptSearchPage ranks at least this many hits, so that later pages of the same search can reuse the ranking
+     */
+    public static final int CONCEPT_SEARCH_RANKED_HITS = 100;
+
     private EmrDAO dao;
 
     private EmrApiProperties emrApiProperties;
@@ -50,6 +115,22 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
 
     private PatientService patientService;
 
+    private PatientSearchIndex patientSearchIndex;
+
+    private ActiveVisitRoster activeVisitRoster;
+
+    private PrimaryIdentifierCache primaryIdentifierCache;
+
+    private FormService formService;
+
+    private HtmlFormEntryService htmlFormEntryService;
+
+    private DiagnosisSearchIndex diagnosisSearchIndex;
+
+    private DiagnosisSetClosure diagnosisSetClosure;
+
+    private List<ConceptSearchScorer> conceptSearchScorers = defaultConceptSearchScorers();
+
     public void setDao(EmrDAO dao) {
         this.dao = dao;
     }
@@ -74,12 +155,250 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
         this.patientService = patientService;
     }
 
+    public void setPatientSearchIndex(PatientSearchIndex patientSearchIndex) {
+        this.patientSearchIndex = patientSearchIndex;
+    }
+
+    public void setActiveVisitRoster(ActiveVisitRoster activeVisitRoster) {
+        this.activeVisitRoster = activeVisitRoster;
+    }
+
+    public void setPrimaryIdentifierCache(PrimaryIdentifierCache primaryIdentifierCache) {
+        this.primaryIdentifierCache = primaryIdentifierCache;
+    }
+
+    public void setFormService(FormService formService) {
+        this.formService = formService;
+    }
+
+    public void setHtmlFormEntryService(HtmlFormEntryService htmlFormEntryService) {
+        this.htmlFormEntryService = htmlFormEntryService;
+    }
+
+    public void setDiagnosisSearchIndex(DiagnosisSearchIndex diagnosisSearchIndex) {
+        this.diagnosisSearchIndex = diagnosisSearchIndex;
+    }
+
+    public void setDiagnosisSetClosure(DiagnosisSetClosure diagnosisSetClosure) {
+        this.diagnosisSetClosure = diagnosisSetClosure;
+    }
+
 	@Override
     public List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer length) {
+        Location visitLocation = null;
+        int[] amongPatientIds = null;
+        if (checkedInAt != null) {
+            visitLocation = adtService.getLocationThatSupportsVisits(checkedInAt);
+            amongPatientIds = getCheckedInPatientIds(visitLocation);
+        }
+        List<Integer> indexed = searchIndex(query, amongPatientIds, start, length);
+        if (indexed != null) {
+            return dao.getPatients(indexed);
+        }
+        return dao.findPatients(query, visitLocation, asQueryRestriction(amongPatientIds), start, length);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Integer start, Integer length) {
+        Location visitLocation = null;
+        int[] amongPatientIds = null;
+        if (checkedInAt != null) {
+            visitLocation = adtService.getLocationThatSupportsVisits(checkedInAt);
+            amongPatientIds = getCheckedInPatientIds(visitLocation);
+        }
+        List<Integer> indexed = searchIndex(query, amongPatientIds, start, length);
+        if (indexed != null) {
+            return dao.getPatientSearchResults(indexed);
+        }
+        return dao.findPatientSearchResults(query, visitLocation, asQueryRestriction(amongPatientIds), start, length);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PatientSearchResult> findPatientSearchResults(PatientSearchSession searchSession, String query, Location checkedInAt, Integer length) {
+        long ticket = searchSession.begin();
+        long dataGeneration = getPatientDataGeneration();
+
+        Location visitLocation = null;
+        int[] amongPatientIds = null;
+        if (checkedInAt != null) {
+            visitLocation = adtService.getLocationThatSupportsVisits(checkedInAt);
+            amongPatientIds = getCheckedInPatientIds(visitLocation);
+        }
+        int[] candidates = searchSession.getCandidatesFor(query, visitLocation, dataGeneration);
+        if (candidates != null) {
+            // patients may have left since the previous search, so keep to those still checked in
+            amongPatientIds = amongPatientIds == null ? candidates : intersectSorted(amongPatientIds, candidates);
+        }
+
+        List<Integer> matches = searchIndex(query, amongPatientIds, 0, SEARCH_SESSION_MAX_MATCHES);
+        boolean complete;
+        if (matches != null) {
+            complete = matches.size() < SEARCH_SESSION_MAX_MATCHES;
+        } else {
+            if (!searchSession.queryStarting(ticket, dao.getQueryCanceller())) {
+                return new ArrayList<PatientSearchResult>();
+            }
+            List<Integer> rows;
+            try {
+                rows = dao.findPatientIds(query, visitLocation, asQueryRestriction(amongPatientIds), 0, SEARCH_SESSION_MAX_MATCHES);
+            } catch (RuntimeException ex) {
+                if (!searchSession.isCurrent(ticket)) {
+                    // cancelled because the user has already typed something else
+                    return new ArrayList<PatientSearchResult>();
+                }
+                searchSession.failed(ticket);
+                throw ex;
+            }
+            complete = rows.size() < SEARCH_SESSION_MAX_MATCHES;
+            matches = new ArrayList<Integer>(new LinkedHashSet<Integer>(rows));
+        }
+        searchSession.finished(ticket, query, visitLocation, matches, complete, dataGeneration);
+
+        if (!searchSession.isCurrent(ticket)) {
+            return new ArrayList<PatientSearchResult>();
+        }
+        if (length != null && matches.size() > length) {
+            matches = matches.subList(0, length);
+        }
+        return dao.getPatientSearchResults(matches);
+    }
+
+    /**
+     * Both counters only ever increase, so their sum changes whenever either of them does
+     * @return a counter that changes whenever the patient search index or any active visit roster changes
+     */
+    private long getPatientDataGeneration() {
+        long generation = 0;
+        if (patientSearchIndex != null) {
+            generation += patientSearchIndex.getGeneration();
+        }
+        if (activeVisitRoster != null) {
+            generation += activeVisitRoster.getGeneration();
+        }
+        return generation;
+    }
+
+    /**
+     * @return the ids in both sorted arrays, sorted
+     */
+    private static int[] intersectSorted(int[] left, int[] right) {
+        int[] both = new int[Math.min(left.length, right.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < left.length && j < right.length; ) {
+            if (left[i] < right[j]) {
+                ++i;
+            } else if (left[i] > right[j]) {
+                ++j;
+            } else {
+                both[count++] = left[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    /**
+     * @return ids of matching patients from the in-memory index, or null if the index can't answer this query (e.g.
+     * because it's disabled or still warming up)
+     */
+    private List<Integer> searchIndex(String query, int[] amongPatientIds, Integer start, Integer length) {
+        if (patientSearchIndex == null || StringUtils.isBlank(query)) {
+            return null;
+        }
+        int from = start == null ? 0 : start;
+        int maxResults = length == null ? Integer.MAX_VALUE : (int) Math.min((long) from + length, Integer.MAX_VALUE);
+        List<Integer> patientIds = patientSearchIndex.search(query, maxResults, amongPatientIds);
+        if (patientIds == null) {
+            return null;
+        }
+        if (from >= patientIds.size()) {
+            return new ArrayList<Integer>();
+        }
+        return patientIds.subList(from, patientIds.size());
+    }
+
+    /**
+     * @param visitLocation
+     * @return sorted ids of patients with an active visit at visitLocation, from the roster cache if possible
+     */
+    private int[] getCheckedInPatientIds(Location visitLocation) {
+        if (activeVisitRoster != null) {
+            int[] cached = activeVisitRoster.getPatientIds(visitLocation.getId());
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long generation = activeVisitRoster == null ? 0 : activeVisitRoster.getGeneration();
+        List<Integer> loaded = dao.getActiveVisitPatientIds(visitLocation);
+        int[] patientIds = new int[loaded.size()];
+        for (int i = 0; i < patientIds.length; ++i) {
+            patientIds[i] = loaded.get(i);
+        }
+        Arrays.sort(patientIds);
+        if (activeVisitRoster != null) {
+            activeVisitRoster.setPatientIds(visitLocation.getId(), generation, patientIds);
+        }
+        return patientIds;
+    }
+
+    /**
+     * @param patientIds
+     * @return patientIds, to restrict a database search to, or null if there are too many of them for an IN list (in
+     * which case the search should be restricted by visit location instead)
+     */
+    private List<Integer> asQueryRestriction(int[] patientIds) {
+        if (patientIds == null || patientIds.length > MAX_PATIENT_IDS_IN_QUERY) {
+            return null;
+        }
+        List<Integer> list = new ArrayList<Integer>(patientIds.length);
+        for (int patientId : patientIds) {
+            list.add(patientId);
+        }
+        return list;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void rebuildPatientSearchIndexInternal() {
+        if (patientSearchIndex == null || !patientSearchIndex.isEnabled()) {
+            return;
+        }
+        List<PatientIdentifierType> identifierTypes = emrApiProperties.getIdentifierTypesToSearch();
+        patientSearchIndex.beginBulkLoad(identifierTypes);
+        dao.loadPatientSearchIndex(patientSearchIndex, identifierTypes);
+        patientSearchIndex.finishBulkLoad();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public PatientSearchPage findPatientPage(String query, Location checkedInAt, String continuationToken, Integer batchSize) {
+        int[] amongPatientIds = null;
         if (checkedInAt != null) {
             checkedInAt = adtService.getLocationThatSupportsVisits(checkedInAt);
+            amongPatientIds = getCheckedInPatientIds(checkedInAt);
         }
-        return dao.findPatients(query, checkedInAt, start, length);
+
+        int size = DEFAULT_PATIENT_PAGE_SIZE;
+        if (batchSize != null && batchSize > 0) {
+            size = Math.min(batchSize, MAX_PATIENT_PAGE_SIZE);
+        }
+
+        Integer afterPatientId = null;
+        if (StringUtils.isNotBlank(continuationToken)) {
+            afterPatientId = PatientSearchCursor.decode(continuationToken, query, checkedInAt).getAfterPatientId();
+        }
+
+        // fetch one extra row so we know whether there is another page
+        List<PatientSearchResult> results = dao.findPatientsAfter(query, checkedInAt, asQueryRestriction(amongPatientIds), afterPatientId, size + 1);
+        String nextToken = null;
+        if (results.size() > size) {
+            results = new ArrayList<PatientSearchResult>(results.subList(0, size));
+            nextToken = new PatientSearchCursor(query, checkedInAt, results.get(size - 1).getPatientId()).encode();
+        }
+        return new PatientSearchPage(results, nextToken);
     }
 
     @Override
@@ -93,6 +412,7 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public Patient findPatientByPrimaryId(String primaryId) {
         if(primaryId==null){
             throw new IllegalArgumentException("primary ID should not be null");
@@ -104,24 +424,277 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
             throw new RuntimeException("primary identifier is not configured");
         }
 
-        List<PatientIdentifierType> patientIdentifierTypes = new ArrayList<PatientIdentifierType>();
-        patientIdentifierTypes.add(primaryIdentifierType);
-
-        List<Patient> patients = patientService.getPatients(null, primaryId, patientIdentifierTypes, true);
+        if (primaryIdentifierCache != null) {
+            Integer cachedPatientId = primaryIdentifierCache.get(primaryIdentifierType, primaryId);
+            if (cachedPatientId != null) {
+                // the cached entry may predate a change we haven't been told about yet, so make sure it still holds
+                Patient patient = patientService.getPatient(cachedPatientId);
+                if (patient != null && !patient.isVoided() && hasIdentifier(patient, primaryIdentifierType, primaryId)) {
+                    return patient;
+                }
+                primaryIdentifierCache.evictPatient(cachedPatientId);
+            }
+        }
 
-        if (patients.isEmpty()) {
+        Patient patient = dao.getPatientByIdentifier(primaryIdentifierType, primaryId);
+        if (patient == null) {
             throw new APIException("no such patient");
         }
+        if (primaryIdentifierCache != null) {
+            primaryIdentifierCache.put(primaryIdentifierType, primaryId, patient.getPatientId());
+        }
+        return patient;
+    }
 
-        return patients.get(0);
-
+    /**
+     * @return whether patient has a non-voided identifier of this type, with exactly this value
+     */
+    private boolean hasIdentifier(Patient patient, PatientIdentifierType identifierType, String identifier) {
+        for (PatientIdentifier candidate : patient.getIdentifiers()) {
+            if (!candidate.isVoided() && candidate.getIdentifierType() != null
+                    && OpenmrsUtil.nullSafeEquals(candidate.getIdentifierType().getId(), identifierType.getId())
+                    && identifier.equals(candidate.getIdentifier())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, Integer limit) {
         if (limit == null) {
             limit = 100;
         }
-        return dao.conceptSearch(query, locale, classes, inSets, sources, limit);
+        return toConceptSearchResults(findConceptSearchHits(query, locale, classes, inSets, sources, limit));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public ConceptSearchPage conceptSearchPage(ConceptSearchCursor cursor, String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, Integer start, Integer size) {
+        int from = start == null || start < 0 ? 0 : start;
+        int pageSize = DEFAULT_CONCEPT_PAGE_SIZE;
+        if (size != null && size > 0) {
+            pageSize = Math.min(size, MAX_CONCEPT_PAGE_SIZE);
+        }
+        int needed = from + pageSize;
+
+        String searchKey = ConceptSearchCursor.searchKey(query, locale, classes, inSets, sources);
+        ConceptSearchCursor.Ranking ranking = null;
+        if (cursor != null && from > 0) {
+            ranking = cursor.getRanking(searchKey, needed);
+        }
+        if (ranking == null) {
+            int rankFor = Math.max(needed, CONCEPT_SEARCH_RANKED_HITS);
+            ranking = new ConceptSearchCursor.Ranking(searchKey, findConceptSearchHits(query, locale, classes, inSets, sources, rankFor), rankFor);
+            if (cursor != null) {
+                cursor.setRanking(ranking);
+            }
+        }
+
+        List<ConceptSearchResult> results = toConceptSearchResults(ranking.getHits(from, pageSize));
+        return new ConceptSearchPage(results, from, ranking.hasMoreAfter(needed));
+    }
+
+    /**
+     * @return the best (up to limit) hits for this search, best first
+     */
+    private List<ConceptSearchHit> findConceptSearchHits(String query, Locale locale, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources, int limit) {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates(query, locale);
+        if (!findCandidatesInDiagnosisIndex(candidates, classes, inSets, sources)) {
+            DiagnosisSetMembership.Filter inSetsFilter = null;
+            if (inSets != null && diagnosisSetClosure != null) {
+                inSetsFilter = getDiagnosisSetMembership().getFilter(getIds(inSets));
+            }
+            dao.findConceptSearchCandidates(candidates, classes, inSets, inSetsFilter, sources, limit * CONCEPT_SEARCH_CANDIDATES_PER_RESULT);
+        }
+        return rank(candidates, limit);
+    }
+
+    /**
+     * Loads the concepts (and names) of hits in one query, rather than two per hit, keeping the hits' order
+     */
+    private List<ConceptSearchResult> toConceptSearchResults(List<ConceptSearchHit> hits) {
+        List<Integer> conceptIds = new ArrayList<Integer>();
+        for (ConceptSearchHit hit : hits) {
+            conceptIds.add(hit.getConceptId());
+        }
+        Map<Integer, Concept> concepts = conceptIds.isEmpty() ? new HashMap<Integer, Concept>() : dao.getConceptsWithNames(conceptIds);
+
+        List<ConceptSearchResult> results = new ArrayList<ConceptSearchResult>();
+        for (ConceptSearchHit hit : hits) {
+            Concept concept = concepts.get(hit.getConceptId());
+            if (concept == null) {
+                // deleted since it was ranked
+                continue;
+            }
+            ConceptName conceptName = null;
+            if (hit.getConceptNameId() != null) {
+                for (ConceptName candidate : concept.getNames(true)) {
+                    if (hit.getConceptNameId().equals(candidate.getConceptNameId())) {
+                        conceptName = candidate;
+                        break;
+                    }
+                }
+            }
+            results.add(new ConceptSearchResult(null, concept, conceptName, hit.getScore()));
+        }
+        return results;
+    }
+
+    /**
+     * @return the best hits among candidates, according to all the registered scorers
+     */
+    private List<ConceptSearchHit> rank(ConceptSearchCandidates candidates, int limit) {
+        double[] scores = new double[candidates.size()];
+        for (ConceptSearchScorer scorer : conceptSearchScorers) {
+            scorer.score(candidates, scores);
+        }
+        TopConceptSearchHits top = new TopConceptSearchHits(limit);
+        for (int i = 0; i < scores.length; ++i) {
+            top.offer(candidates.toHit(i, scores[i]));
+        }
+        return top.getHits();
+    }
+
+    /**
+     * @return false if the in-memory diagnosis index can't answer this query (e.g. because it's still warming up, or
+     * the query isn't restricted to the diagnosis sets)
+     */
+    private boolean findCandidatesInDiagnosisIndex(ConceptSearchCandidates candidates, Collection<ConceptClass> classes, Collection<Concept> inSets, Collection<ConceptSource> sources) {
+        if (diagnosisSearchIndex == null || !diagnosisSearchIndex.isReady() || inSets == null) {
+            return false;
+        }
+        List<Integer> classIds = null;
+        if (classes != null) {
+            classIds = new ArrayList<Integer>();
+            for (ConceptClass conceptClass : classes) {
+                classIds.add(conceptClass.getConceptClassId());
+            }
+        }
+        List<Integer> setIds = getIds(inSets);
+        List<Integer> sourceIds = null;
+        if (sources != null) {
+            sourceIds = new ArrayList<Integer>();
+            for (ConceptSource source : sources) {
+                sourceIds.add(source.getConceptSourceId());
+            }
+        }
+        return diagnosisSearchIndex.findCandidates(candidates, classIds, setIds, sourceIds);
+    }
+
+    private List<Integer> getIds(Collection<Concept> concepts) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Concept concept : concepts) {
+            ids.add(concept.getConceptId());
+        }
+        return ids;
+    }
+
+    /**
+     * @return the cached membership of the diagnosis sets, loading it if necessary
+     */
+    private DiagnosisSetMembership getDiagnosisSetMembership() {
+        DiagnosisSetMembership membership = diagnosisSetClosure.getMembership();
+        if (membership == null) {
+            long generation = diagnosisSetClosure.getGeneration();
+            membership = DiagnosisSetMembership.explode(getIds(emrApiProperties.getDiagnosisSets()), dao.getConceptSetMembers());
+            diagnosisSetClosure.setMembership(generation, membership);
+        }
+        return membership;
+    }
+
+    @Override
+    public void setConceptSearchScorersInternal(List<ConceptSearchScorer> scorers) {
+        if (scorers == null || scorers.isEmpty()) {
+            conceptSearchScorers = defaultConceptSearchScorers();
+        } else {
+            conceptSearchScorers = new ArrayList<ConceptSearchScorer>(scorers);
+        }
+    }
+
+    private static List<ConceptSearchScorer> defaultConceptSearchScorers() {
+        List<ConceptSearchScorer> scorers = new ArrayList<ConceptSearchScorer>();
+        scorers.add(new DefaultConceptSearchScorer());
+        return scorers;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void refreshConceptUsageFrequenciesInternal() {
+        Map<Integer, Integer> counts = null;
+        for (ConceptSearchScorer scorer : conceptSearchScorers) {
+            if (scorer instanceof UsageFrequencyScorer) {
+                if (counts == null) {
+                    counts = dao.getValueCodedUsageCounts(emrApiProperties.getDiagnosisMetadata().getCodedDiagnosisConcept());
+                }
+                ((UsageFrequencyScorer) scorer).setUsageCounts(counts);
+            }
+        }
+    }
+
+    @Override
+    @Transactional
+    public Map<String, Integer> syncHtmlFormsFromUiResourcesInternal(List<UiResourceHtmlForm> resources) {
+        Map<String, Integer> htmlFormIds = new LinkedHashMap<String, Integer>();
+        for (UiResourceHtmlForm resource : resources) {
+            HtmlForm htmlForm = HtmlFormUtil.getSyncedHtmlForm(htmlFormEntryService, resource);
+            if (htmlForm == null) {
+                htmlForm = HtmlFormUtil.syncUiResource(formService, htmlFormEntryService, resource, true);
+            }
+            htmlFormIds.put(resource.getProviderAndPath(), htmlForm.getId());
+        }
+        return htmlFormIds;
+    }
+
+    @Override
+    @Transactional
+    public Encounter applyFormEntrySession(FormEntrySession session, Visit visit, Location createVisitAt) throws Exception {
+        boolean enterMode = session.getContext().getMode() == FormEntryContext.Mode.ENTER;
+        Encounter encounter = enterMode ? getEncounterToCreate(session) : session.getEncounter();
+
+        if (visit == null && createVisitAt != null && encounter != null) {
+            visit = adtService.ensureActiveVisit(session.getPatient(), createVisitAt);
+            visit.setStartDatetime(encounter.getEncounterDatetime());
+        }
+        if (enterMode && encounter != null && visit != null) {
+            encounter.setVisit(visit);
+        }
+
+        session.applyActions();
+        return enterMode ? session.getEncounter() : encounter;
+    }
+
+    private Encounter getEncounterToCreate(FormEntrySession session) {
+        List<Encounter> toCreate = session.getSubmissionActions().getEncountersToCreate();
+        return toCreate == null || toCreate.isEmpty() ? null : toCreate.get(0);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void prefetchNamesAndMappings(Collection<Concept> concepts) {
+        if (concepts.isEmpty()) {
+            return;
+        }
+        dao.prefetchNamesAndMappings(getIds(concepts));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void rebuildDiagnosisSearchIndexInternal() {
+        if (diagnosisSearchIndex == null || diagnosisSetClosure == null) {
+            return;
+        }
+        DiagnosisSetMembership membership = getDiagnosisSetMembership();
+        List<ConceptSource> sources = emrApiProperties.getConceptSourcesForDiagnosisSearch();
+
+        List<Integer> sourceIds = new ArrayList<Integer>();
+        for (ConceptSource source : sources) {
+            sourceIds.add(source.getConceptSourceId());
+        }
+
+        diagnosisSearchIndex.beginBulkLoad(membership, sourceIds);
+        dao.loadDiagnosisSearchIndex(diagnosisSearchIndex, membership.getMemberIds(), sources);
+        diagnosisSearchIndex.finishBulkLoad();
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of how concepts are rendered for the UI (e.g. the JSON fragment for each concept
+ * in diagnosis search results), per locale, so that showing the same concepts again doesn't have to load their names
+ * and mappings.
+ *
+ * Fragments are evicted when their concept changes, and everything is cleared when reference terms, sources or map
+ * types change (see {@link ConceptFragmentCacheAdvice}). Cached fragments are shared, so callers must not modify them.
+ */
+public class ConceptFragmentCache {
+
+    public static final int DEFAULT_MAX_CONCEPTS = 5000;
+
+    private final Map<Integer, Map<Locale, Object>> cache;
+
+    public ConceptFragmentCache() {
+        this(DEFAULT_MAX_CONCEPTS);
+    }
+
+    public ConceptFragmentCache(final int maxConcepts) {
+        cache = new LinkedHashMap<Integer, Map<Locale, Object>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Map<Locale, Object>> eldest) {
+                return size() > maxConcepts;
+            }
+        };
+    }
+
+    /**
+     * @param conceptId
+     * @param locale
+     * @return the cached fragment for this concept in this locale, or null if there isn't one
+     */
+    public synchronized Object get(Integer conceptId, Locale locale) {
+        Map<Locale, Object> byLocale = cache.get(conceptId);
+        return byLocale == null ? null : byLocale.get(locale);
+    }
+
+    public synchronized void put(Integer conceptId, Locale locale, Object fragment) {
+        Map<Locale, Object> byLocale = cache.get(conceptId);
+        if (byLocale == null) {
+            byLocale = new HashMap<Locale, Object>(2);
+            cache.put(conceptId, byLocale);
+        }
+        byLocale.put(locale, fragment);
+    }
+
+    /**
+     * Evicts this concept's fragments in all locales
+     * @param conceptId
+     */
+    public synchronized void evictConcept(Integer conceptId) {
+        cache.remove(conceptId);
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of concepts with cached fragments
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+}
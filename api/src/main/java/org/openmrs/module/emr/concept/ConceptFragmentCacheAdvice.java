@@ -0,0 +1,68 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptMapType;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.ConceptSource;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to ConceptService (by the module activator) to evict concepts from the {@link ConceptFragmentCache} when
+ * they (or their names) are saved, retired or purged. Changes to reference terms, sources and map types may affect
+ * any number of concepts, so they clear the whole cache.
+ */
+public class ConceptFragmentCacheAdvice implements AfterReturningAdvice {
+
+    private ConceptFragmentCache cache;
+
+    public ConceptFragmentCacheAdvice(ConceptFragmentCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge"))) {
+            return;
+        }
+        if (args != null) {
+            for (Object arg : args) {
+                handle(arg);
+            }
+        }
+        handle(returnValue);
+    }
+
+    private void handle(Object o) {
+        if (o instanceof Concept) {
+            Integer conceptId = ((Concept) o).getConceptId();
+            if (conceptId != null) {
+                cache.evictConcept(conceptId);
+            }
+        } else if (o instanceof ConceptName) {
+            Concept concept = ((ConceptName) o).getConcept();
+            if (concept != null && concept.getConceptId() != null) {
+                cache.evictConcept(concept.getConceptId());
+            }
+        } else if (o instanceof ConceptReferenceTerm || o instanceof ConceptSource || o instanceof ConceptMapType) {
+            cache.clear();
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The candidate matches for one concept search, along with the features that {@link ConceptSearchScorer}s rank them
+ * by. Features are worked out once, as each candidate is added, and stored in parallel primitive arrays (indexed by
+ * candidate), so that scoring even thousands of candidates is just a few passes over those arrays.
+ *
+ * A candidate is either a match on a concept name, or an exact match on the code of a concept mapping.
+ */
+public class ConceptSearchCandidates {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final String NON_WORD_CHARACTERS = " \t\n\r,.;:-_/()[]'\"";
+
+    private final String query;
+
+    private final Locale locale;
+
+    private final String lowerCaseQuery;
+
+    private final String[] queryWords;
+
+    private int size = 0;
+
+    private int[] conceptIds = new int[INITIAL_CAPACITY];
+
+    private int[] conceptNameIds = new int[INITIAL_CAPACITY];
+
+    private boolean[] mappings = new boolean[INITIAL_CAPACITY];
+
+    private int[] mapTypeIds = new int[INITIAL_CAPACITY];
+
+    private boolean[] localePreferred = new boolean[INITIAL_CAPACITY];
+
+    private boolean[] exactMatches = new boolean[INITIAL_CAPACITY];
+
+    private boolean[] prefixMatches = new boolean[INITIAL_CAPACITY];
+
+    private int[] wordPositions = new int[INITIAL_CAPACITY];
+
+    private int[] nameLengths = new int[INITIAL_CAPACITY];
+
+    public ConceptSearchCandidates(String query, Locale locale) {
+        this.query = query;
+        this.locale = locale;
+        this.lowerCaseQuery = query.trim().toLowerCase(locale);
+        this.queryWords = StringUtils.split(lowerCaseQuery, NON_WORD_CHARACTERS);
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * @param conceptId
+     * @param conceptNameId
+     * @param name a name (in the search locale) that contains every word of the query
+     * @param localePreferred whether that is the concept's preferred name in the search locale
+     */
+    public void addName(int conceptId, int conceptNameId, String name, boolean localePreferred) {
+        int i = next(conceptId);
+        String lowerCaseName = name.toLowerCase(locale);
+        conceptNameIds[i] = conceptNameId;
+        this.localePreferred[i] = localePreferred;
+        exactMatches[i] = query.equalsIgnoreCase(name);
+        prefixMatches[i] = lowerCaseName.startsWith(lowerCaseQuery);
+        wordPositions[i] = wordPosition(lowerCaseName);
+        nameLengths[i] = name.length();
+    }
+
+    /**
+     * @param conceptId
+     * @param mapTypeId the type of the mapping whose code exactly matches the query (or 0 if unknown)
+     */
+    public void addMapping(int conceptId, int mapTypeId) {
+        int i = next(conceptId);
+        mappings[i] = true;
+        mapTypeIds[i] = mapTypeId;
+        wordPositions[i] = -1;
+    }
+
+    /**
+     * The feature arrays below may be longer than this; only their first size() entries are meaningful
+     * @return the number of candidates
+     */
+    public int size() {
+        return size;
+    }
+
+    public int[] getConceptIds() {
+        return conceptIds;
+    }
+
+    /**
+     * @return for each name match, the id of the matching concept name (0 for mapping matches)
+     */
+    public int[] getConceptNameIds() {
+        return conceptNameIds;
+    }
+
+    /**
+     * @return for each candidate, true if it is a match on a mapping's code, and false if it is a match on a name
+     */
+    public boolean[] getMappings() {
+        return mappings;
+    }
+
+    /**
+     * @return for each mapping match, the id of its concept map type
+     */
+    public int[] getMapTypeIds() {
+        return mapTypeIds;
+    }
+
+    /**
+     * @return for each name match, whether it is the concept's preferred name in the search locale
+     */
+    public boolean[] getLocalePreferred() {
+        return localePreferred;
+    }
+
+    /**
+     * @return for each name match, whether the whole name equals the query (ignoring case)
+     */
+    public boolean[] getExactMatches() {
+        return exactMatches;
+    }
+
+    /**
+     * @return for each name match, whether the name starts with the query (in the search locale's lower case)
+     */
+    public boolean[] getPrefixMatches() {
+        return prefixMatches;
+    }
+
+    /**
+     * @return for each name match, the index of the first word of the name that starts with one of the query's words,
+     * or -1 if the query's words only occur inside the name's words (and for mapping matches)
+     */
+    public int[] getWordPositions() {
+        return wordPositions;
+    }
+
+    /**
+     * @return for each name match, the length of the name
+     */
+    public int[] getNameLengths() {
+        return nameLengths;
+    }
+
+    /**
+     * @param i
+     * @param score
+     * @return the i'th candidate, as a search hit with the given score
+     */
+    public ConceptSearchHit toHit(int i, double score) {
+        return new ConceptSearchHit(conceptIds[i], mappings[i] ? null : conceptNameIds[i], localePreferred[i], score);
+    }
+
+    private int next(int conceptId) {
+        if (size == conceptIds.length) {
+            int capacity = size * 2;
+            conceptIds = Arrays.copyOf(conceptIds, capacity);
+            conceptNameIds = Arrays.copyOf(conceptNameIds, capacity);
+            mappings = Arrays.copyOf(mappings, capacity);
+            mapTypeIds = Arrays.copyOf(mapTypeIds, capacity);
+            localePreferred = Arrays.copyOf(localePreferred, capacity);
+            exactMatches = Arrays.copyOf(exactMatches, capacity);
+            prefixMatches = Arrays.copyOf(prefixMatches, capacity);
+            wordPositions = Arrays.copyOf(wordPositions, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+        }
+        conceptIds[size] = conceptId;
+        return size++;
+    }
+
+    private int wordPosition(String lowerCaseName) {
+        int position = 0;
+        boolean inWord = false;
+        for (int i = 0; i < lowerCaseName.length(); ++i) {
+            boolean wordChar = Character.isLetterOrDigit(lowerCaseName.charAt(i));
+            if (wordChar && !inWord) {
+                for (String word : queryWords) {
+                    if (lowerCaseName.startsWith(word, i)) {
+                        return position;
+                    }
+                }
+                ++position;
+            }
+            inWord = wordChar;
+        }
+        return -1;
+    }
+
+}
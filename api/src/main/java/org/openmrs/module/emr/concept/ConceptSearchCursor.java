@@ -0,0 +1,161 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.openmrs.OpenmrsObject;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Remembers the ranked hits of one user's most recent concept search (we keep one of these in each HTTP session), so
+ * that fetching later pages of the same search just loads the concepts on those pages, rather than finding and
+ * ranking all the candidates again.
+ *
+ * A ranking is only reused for later pages of exactly the same search, and only as far as it goes; asking for the
+ * first page always starts a fresh ranking.
+ */
+public class ConceptSearchCursor implements Serializable {
+
+    public static final String HTTP_SESSION_ATTRIBUTE = "emr.conceptSearchCursor";
+
+    private Ranking ranking;
+
+    /**
+     * @param searchKey as returned by {@link #searchKey}
+     * @param needed the number of ranked hits the caller needs
+     * @return the remembered ranking, if it is for this search and covers the first <code>needed</code> hits, or null
+     */
+    public synchronized Ranking getRanking(String searchKey, int needed) {
+        if (ranking == null || !ranking.searchKey.equals(searchKey) || !ranking.covers(needed)) {
+            return null;
+        }
+        return ranking;
+    }
+
+    public synchronized void setRanking(Ranking ranking) {
+        this.ranking = ranking;
+    }
+
+    /**
+     * @return a key that identifies the search with these parameters
+     */
+    public static String searchKey(String query, Locale locale, Collection<? extends OpenmrsObject> classes, Collection<? extends OpenmrsObject> inSets, Collection<? extends OpenmrsObject> sources) {
+        StringBuilder key = new StringBuilder();
+        key.append(query == null ? "" : query.trim().toLowerCase(locale)).append('|').append(locale);
+        appendIds(key, classes);
+        appendIds(key, inSets);
+        appendIds(key, sources);
+        return key.toString();
+    }
+
+    private static void appendIds(StringBuilder key, Collection<? extends OpenmrsObject> objects) {
+        key.append('|');
+        if (objects == null) {
+            return;
+        }
+        List<Integer> ids = new ArrayList<Integer>();
+        for (OpenmrsObject o : objects) {
+            ids.add(o.getId());
+        }
+        Collections.sort(ids);
+        for (Integer id : ids) {
+            key.append(id).append(',');
+        }
+    }
+
+    /**
+     * The best hits for one search, best first
+     */
+    public static class Ranking implements Serializable {
+
+        private final String searchKey;
+
+        private final int[] conceptIds;
+
+        private final int[] conceptNameIds;
+
+        private final boolean[] localePreferred;
+
+        private final double[] scores;
+
+        private final int rankedFor;
+
+        /**
+         * @param searchKey
+         * @param hits the best hits, best first
+         * @param rankedFor the number of hits that were asked for when ranking (if there are fewer than this, then these
+         * are all the hits there are)
+         */
+        public Ranking(String searchKey, List<ConceptSearchHit> hits, int rankedFor) {
+            this.searchKey = searchKey;
+            this.rankedFor = rankedFor;
+            conceptIds = new int[hits.size()];
+            conceptNameIds = new int[hits.size()];
+            localePreferred = new boolean[hits.size()];
+            scores = new double[hits.size()];
+            for (int i = 0; i < hits.size(); ++i) {
+                ConceptSearchHit hit = hits.get(i);
+                conceptIds[i] = hit.getConceptId();
+                conceptNameIds[i] = hit.getConceptNameId() == null ? 0 : hit.getConceptNameId();
+                localePreferred[i] = hit.isLocalePreferred();
+                scores[i] = hit.getScore();
+            }
+        }
+
+        public int size() {
+            return conceptIds.length;
+        }
+
+        /**
+         * @param start
+         * @param size
+         * @return up to size hits, starting at the start'th
+         */
+        public List<ConceptSearchHit> getHits(int start, int size) {
+            int end = Math.min(start + size, conceptIds.length);
+            List<ConceptSearchHit> hits = new ArrayList<ConceptSearchHit>();
+            for (int i = start; i < end; ++i) {
+                hits.add(new ConceptSearchHit(conceptIds[i], conceptNameIds[i] == 0 ? null : conceptNameIds[i], localePreferred[i], scores[i]));
+            }
+            return hits;
+        }
+
+        /**
+         * @param needed
+         * @return whether the first <code>needed</code> hits of this search are all in this ranking
+         */
+        public boolean covers(int needed) {
+            return needed <= rankedFor || isComplete();
+        }
+
+        /**
+         * @param end
+         * @return whether there may be hits after the first <code>end</code> ones
+         */
+        public boolean hasMoreAfter(int end) {
+            return end < conceptIds.length || (end == conceptIds.length && !isComplete());
+        }
+
+        private boolean isComplete() {
+            return conceptIds.length < rankedFor;
+        }
+
+    }
+
+}
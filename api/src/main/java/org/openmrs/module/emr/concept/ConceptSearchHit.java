@@ -0,0 +1,59 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+/**
+ * A concept search match, by id only (so that we only have to load the concepts and names we end up returning)
+ */
+public class ConceptSearchHit {
+
+    private int conceptId;
+
+    private Integer conceptNameId;
+
+    private boolean localePreferred;
+
+    private double score;
+
+    public ConceptSearchHit(int conceptId, Integer conceptNameId, boolean localePreferred, double score) {
+        this.conceptId = conceptId;
+        this.conceptNameId = conceptNameId;
+        this.localePreferred = localePreferred;
+        this.score = score;
+    }
+
+    public int getConceptId() {
+        return conceptId;
+    }
+
+    /**
+     * @return the name that matched, or null if this was a match on a mapping
+     */
+    public Integer getConceptNameId() {
+        return conceptNameId;
+    }
+
+    /**
+     * @return whether the name that matched is the concept's preferred name in the search locale
+     */
+    public boolean isLocalePreferred() {
+        return localePreferred;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.openmrs.ConceptSearchResult;
+
+import java.util.List;
+
+/**
+ * One page of a concept search
+ * @see ConceptSearchCursor
+ */
+public class ConceptSearchPage {
+
+    private List<ConceptSearchResult> results;
+
+    private int start;
+
+    private boolean more;
+
+    public ConceptSearchPage(List<ConceptSearchResult> results, int start, boolean more) {
+        this.results = results;
+        this.start = start;
+        this.more = more;
+    }
+
+    public List<ConceptSearchResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the (zero-based) position of the first result on this page, among all the results of the search
+     */
+    public int getStart() {
+        return start;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+/**
+ * Contributes to the ranking of concept search results. The score of each candidate is the sum of what every
+ * scorer adds to it, and the highest-scoring candidates are returned.
+ *
+ * Implementations registered as Spring beans (in this or any other module) are picked up when the context is
+ * refreshed. Scorers are shared by concurrent searches, so they must be thread-safe, and since they are called for
+ * every candidate of every search they should only look at the precomputed features in {@link ConceptSearchCandidates}
+ * (and their own in-memory data), never the database.
+ */
+public interface ConceptSearchScorer {
+
+    /**
+     * @param candidates
+     * @param scores add this scorer's contribution for candidate i to scores[i] (for i < candidates.size())
+     */
+    void score(ConceptSearchCandidates candidates, double[] scores);
+
+}
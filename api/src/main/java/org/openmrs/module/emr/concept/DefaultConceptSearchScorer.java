@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+/**
+ * The basic ranking that concept search has always used: exact matches on codes first, then exact matches on names,
+ * preferred names over synonyms, and shorter names over longer ones
+ */
+public class DefaultConceptSearchScorer implements ConceptSearchScorer {
+
+    public static final double MAPPING_MATCH = 10000d;
+
+    public static final double EXACT_NAME_MATCH = 1000d;
+
+    public static final double PREFERRED_NAME = 500d;
+
+    @Override
+    public void score(ConceptSearchCandidates candidates, double[] scores) {
+        boolean[] mappings = candidates.getMappings();
+        boolean[] exactMatches = candidates.getExactMatches();
+        boolean[] localePreferred = candidates.getLocalePreferred();
+        int[] nameLengths = candidates.getNameLengths();
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (mappings[i]) {
+                scores[i] += MAPPING_MATCH;
+                continue;
+            }
+            if (exactMatches[i]) {
+                scores[i] += EXACT_NAME_MATCH;
+            }
+            if (localePreferred[i]) {
+                scores[i] += PREFERRED_NAME;
+            }
+            scores[i] -= nameLengths[i];
+        }
+    }
+
+}
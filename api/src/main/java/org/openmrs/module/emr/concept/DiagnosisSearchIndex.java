@@ -0,0 +1,660 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.ConceptWord;
+import org.openmrs.module.emr.utils.IntPostingList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index for searching diagnoses, i.e. the members of the diagnosis sets, by name (in each locale) and by
+ * the codes they are mapped to in the sources we search for diagnoses. It gives the same results as the database
+ * search in {@link org.openmrs.module.emr.api.EmrService#conceptSearch}, but without touching the database.
+ *
+ * Every word of a query must appear somewhere in a name, so names are indexed by all of their trigrams; candidates
+ * are the intersection of the postings for the query's trigrams, and are then checked against the actual words.
+ * (Words shorter than a trigram fall back to scanning all names in the locale.)
+ *
+ * Which concepts are in which diagnosis sets (including nested sets) comes from a {@link DiagnosisSetMembership}
+ * snapshot, which the index is loaded for; if the diagnosis sets change, the whole index is reloaded.
+ *
+ * The index is bulk-loaded at startup (see {@link #beginBulkLoad(DiagnosisSetMembership, Collection)}) and then kept up to date as
+ * concepts are saved (see {@link #updateConcept(Concept)}). Until it is ready, {@link #findCandidates} returns false
+ * and callers should use the database. Names of re-indexed concepts leave holes (so that ordinals in the posting lists
+ * stay valid), and a locale's names are compacted once holes make up half of them.
+ */
+public class DiagnosisSearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * Codes are matched regardless of the search locale
+     */
+    private static final Locale CODE_LOCALE = Locale.ENGLISH;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean ready = false;
+
+    private boolean loading = false;
+
+    private DiagnosisSetMembership membership;
+
+    private Set<Integer> indexedSourceIds = new HashSet<Integer>();
+
+    private Map<Integer, ConceptEntry> concepts = new HashMap<Integer, ConceptEntry>();
+
+    private Map<Locale, LocaleIndex> locales = new HashMap<Locale, LocaleIndex>();
+
+    private Map<String, List<CodeEntry>> codes = new HashMap<String, List<CodeEntry>>();
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Stops the index from answering queries, e.g. because the diagnosis sets have changed and it needs to be reloaded.
+     * (What is indexed is kept until the reload's {@link #beginBulkLoad} replaces it.)
+     */
+    public void invalidate() {
+        ready = false;
+    }
+
+    /**
+     * Empties the index and abandons any bulk load in progress (whose further additions are ignored), e.g. because the
+     * module is stopping
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            loading = false;
+            concepts = new HashMap<Integer, ConceptEntry>();
+            locales = new HashMap<Locale, LocaleIndex>();
+            codes = new HashMap<String, List<CodeEntry>>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clears the index and prepares it for {@link #addSetMember}, {@link #addName} and {@link #addMapping}
+     * @param membership the diagnosis sets whose members will be indexed
+     * @param sourceIds the concept sources whose mappings will be indexed
+     */
+    public void beginBulkLoad(DiagnosisSetMembership membership, Collection<Integer> sourceIds) {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            loading = true;
+            this.membership = membership;
+            indexedSourceIds = new HashSet<Integer>(sourceIds);
+            concepts = new HashMap<Integer, ConceptEntry>();
+            locales = new HashMap<Locale, LocaleIndex>();
+            codes = new HashMap<String, List<CodeEntry>>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Only call this for concepts that are members of the diagnosis sets
+     */
+    public void addSetMember(int conceptId, Integer conceptClassId) {
+        lock.writeLock().lock();
+        try {
+            if (!loading) {
+                return;
+            }
+            getOrCreateConcept(conceptId, conceptClassId).setMember = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Only call this for names of concepts that have been added with {@link #addSetMember}
+     */
+    public void addName(int conceptId, int conceptNameId, String name, Locale locale, boolean localePreferred) {
+        lock.writeLock().lock();
+        try {
+            ConceptEntry concept = concepts.get(conceptId);
+            if (loading && concept != null && concept.setMember) {
+                addNameInternal(concept, conceptId, conceptNameId, name, locale, localePreferred);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mappings are indexed for all concepts (not just set members), like the database search does
+     */
+    public void addMapping(int conceptId, Integer conceptClassId, int sourceId, Integer mapTypeId, String code) {
+        lock.writeLock().lock();
+        try {
+            if (!loading) {
+                return;
+            }
+            addMappingInternal(getOrCreateConcept(conceptId, conceptClassId), conceptId, sourceId, mapTypeId, code);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void finishBulkLoad() {
+        lock.writeLock().lock();
+        try {
+            if (!loading) {
+                return;
+            }
+            for (LocaleIndex localeIndex : locales.values()) {
+                localeIndex.build();
+            }
+            loading = false;
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Re-indexes a concept that has been saved (or retired, or unretired). This doesn't notice changes to the members
+     * of indexed sets; the whole index should be reloaded for those.
+     * @param concept
+     */
+    public void updateConcept(Concept concept) {
+        ConceptUpdate update = prepareUpdate(concept);
+        if (update != null) {
+            applyUpdate(update);
+        }
+    }
+
+    /**
+     * Reads everything we need to re-index concept (possibly lazy-loading it), so that it can be applied later, e.g.
+     * once the transaction that saved it commits
+     * @param concept
+     * @return the update to pass to {@link #applyUpdate(ConceptUpdate)}, or null if there's nothing to index
+     */
+    public ConceptUpdate prepareUpdate(Concept concept) {
+        if (concept.getConceptId() == null) {
+            return null;
+        }
+        Integer conceptClassId = concept.getConceptClass() == null ? null : concept.getConceptClass().getConceptClassId();
+        List<ConceptName> names = new ArrayList<ConceptName>();
+        List<ConceptMap> mappings = new ArrayList<ConceptMap>();
+        if (!concept.isRetired()) {
+            for (ConceptName name : concept.getNames()) {
+                if (!name.isVoided() && name.getConceptNameId() != null) {
+                    names.add(name);
+                }
+            }
+            for (ConceptMap mapping : concept.getConceptMappings()) {
+                ConceptReferenceTerm term = mapping.getConceptReferenceTerm();
+                if (term != null && !term.isRetired() && term.getConceptSource() != null) {
+                    // (touch the map type too, so it's loaded before we take the lock)
+                    if (mapping.getConceptMapType() != null) {
+                        mapping.getConceptMapType().getConceptMapTypeId();
+                    }
+                    mappings.add(mapping);
+                }
+            }
+        }
+        return new ConceptUpdate(concept.getConceptId(), conceptClassId, names, mappings);
+    }
+
+    /**
+     * Replaces whatever is indexed for a concept with what was read by {@link #prepareUpdate(Concept)}
+     * @param update
+     */
+    public void applyUpdate(ConceptUpdate update) {
+        int conceptId = update.conceptId;
+        lock.writeLock().lock();
+        try {
+            if (membership == null) {
+                return;
+            }
+            removeConceptInternal(conceptId);
+            ConceptEntry entry = getOrCreateConcept(conceptId, update.conceptClassId);
+            entry.setMember = membership.isMember(conceptId);
+            if (entry.setMember) {
+                for (ConceptName name : update.names) {
+                    addNameInternal(entry, conceptId, name.getConceptNameId(), name.getName(), name.getLocale(), name.isLocalePreferred());
+                }
+            }
+            for (ConceptMap mapping : update.mappings) {
+                ConceptReferenceTerm term = mapping.getConceptReferenceTerm();
+                if (indexedSourceIds.contains(term.getConceptSource().getConceptSourceId())) {
+                    Integer mapTypeId = mapping.getConceptMapType() == null ? null : mapping.getConceptMapType().getConceptMapTypeId();
+                    addMappingInternal(entry, conceptId, term.getConceptSource().getConceptSourceId(), mapTypeId, term.getCode());
+                }
+            }
+            if (entry.names.isEmpty() && entry.codes.isEmpty()) {
+                concepts.remove(conceptId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param conceptId a concept that has been purged
+     */
+    public void removeConcept(Integer conceptId) {
+        lock.writeLock().lock();
+        try {
+            removeConceptInternal(conceptId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the same candidates as the database search in {@link org.openmrs.module.emr.api.EmrService#conceptSearch}
+     * @param candidates the query and locale to search for, and where to add the matches
+     * @param classIds if not null, only match concepts of these classes
+     * @param setIds only match names of concepts in these sets (or sets nested inside them)
+     * @param sourceIds if not null, also look for exact matches on mappings in these sources
+     * @return false if the index can't answer this query (because it isn't ready, or the query involves sets or
+     * sources that aren't indexed), in which case nothing was added to candidates
+     */
+    public boolean findCandidates(ConceptSearchCandidates candidates, Collection<Integer> classIds, Collection<Integer> setIds, Collection<Integer> sourceIds) {
+        if (!ready || setIds == null) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            if (!ready || (sourceIds != null && !indexedSourceIds.containsAll(sourceIds))) {
+                return false;
+            }
+            DiagnosisSetMembership.Filter inSets = membership.getFilter(setIds);
+            if (inSets == null) {
+                return false;
+            }
+            List<String> words = new ArrayList<String>();
+            for (String word : ConceptWord.getUniqueWords(candidates.getQuery(), candidates.getLocale())) {
+                words.add(normalize(word, candidates.getLocale()));
+            }
+            if (words.isEmpty()) {
+                return true;
+            }
+
+            findNames(candidates, words, classIds, inSets);
+            if (sourceIds != null) {
+                findCodes(candidates, classIds, sourceIds);
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void findNames(ConceptSearchCandidates candidates, List<String> words, Collection<Integer> classIds, DiagnosisSetMembership.Filter inSets) {
+        LocaleIndex localeIndex = locales.get(candidates.getLocale());
+        if (localeIndex == null) {
+            return;
+        }
+        Iterator<Integer> ordinals = candidateOrdinals(localeIndex, words);
+        while (ordinals.hasNext()) {
+            NameEntry name = localeIndex.names.get(ordinals.next());
+            if (name == null || !containsAll(name.normalized, words)) {
+                continue;
+            }
+            ConceptEntry concept = concepts.get(name.conceptId);
+            if (concept.isAllowed(classIds) && inSets.accepts(name.conceptId)) {
+                candidates.addName(name.conceptId, name.conceptNameId, name.name, name.localePreferred);
+            }
+        }
+    }
+
+    private void findCodes(ConceptSearchCandidates candidates, Collection<Integer> classIds, Collection<Integer> sourceIds) {
+        List<CodeEntry> matches = codes.get(normalize(candidates.getQuery(), CODE_LOCALE));
+        if (matches != null) {
+            for (CodeEntry match : matches) {
+                ConceptEntry concept = concepts.get(match.conceptId);
+                if (sourceIds.contains(match.sourceId) && concept.isAllowed(classIds)) {
+                    candidates.addMapping(match.conceptId, match.mapTypeId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return ordinals of names in localeIndex that might contain all of words
+     */
+    private Iterator<Integer> candidateOrdinals(final LocaleIndex localeIndex, List<String> words) {
+        Set<String> grams = new LinkedHashSet<String>();
+        for (String word : words) {
+            grams.addAll(grams(word));
+        }
+        if (grams.isEmpty()) {
+            return new Iterator<Integer>() {
+                private int next = 0;
+                public boolean hasNext() {
+                    return next < localeIndex.names.size();
+                }
+                public Integer next() {
+                    return next++;
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        final List<IntPostingList> postings = new ArrayList<IntPostingList>();
+        for (String gram : grams) {
+            IntPostingList candidate = localeIndex.grams.get(gram);
+            if (candidate == null) {
+                return Collections.<Integer>emptyList().iterator();
+            }
+            postings.add(candidate);
+        }
+        // walk the shortest list, and probe the others
+        Collections.sort(postings, new Comparator<IntPostingList>() {
+            @Override
+            public int compare(IntPostingList left, IntPostingList right) {
+                return left.size() - right.size();
+            }
+        });
+        List<Integer> ordinals = new ArrayList<Integer>();
+        IntPostingList shortest = postings.get(0);
+        candidates:
+        for (int i = 0; i < shortest.size(); ++i) {
+            int ordinal = shortest.get(i);
+            for (int j = 1; j < postings.size(); ++j) {
+                if (!postings.get(j).contains(ordinal)) {
+                    continue candidates;
+                }
+            }
+            ordinals.add(ordinal);
+        }
+        return ordinals.iterator();
+    }
+
+    private ConceptEntry getOrCreateConcept(int conceptId, Integer conceptClassId) {
+        ConceptEntry entry = concepts.get(conceptId);
+        if (entry == null) {
+            entry = new ConceptEntry();
+            concepts.put(conceptId, entry);
+        }
+        entry.conceptClassId = conceptClassId;
+        return entry;
+    }
+
+    private void addNameInternal(ConceptEntry concept, int conceptId, int conceptNameId, String name, Locale locale, boolean localePreferred) {
+        if (StringUtils.isBlank(name) || locale == null) {
+            return;
+        }
+        LocaleIndex localeIndex = locales.get(locale);
+        if (localeIndex == null) {
+            localeIndex = new LocaleIndex(loading);
+            locales.put(locale, localeIndex);
+        }
+        NameEntry entry = new NameEntry();
+        entry.conceptId = conceptId;
+        entry.conceptNameId = conceptNameId;
+        entry.name = name;
+        entry.normalized = normalize(name, locale);
+        entry.localePreferred = localePreferred;
+        entry.locale = locale;
+        entry.ordinal = localeIndex.names.size();
+
+        localeIndex.names.add(entry);
+        concept.names.add(entry);
+        for (String gram : grams(entry.normalized)) {
+            localeIndex.addPosting(gram, entry.ordinal);
+        }
+    }
+
+    private void addMappingInternal(ConceptEntry concept, int conceptId, int sourceId, Integer mapTypeId, String code) {
+        if (StringUtils.isBlank(code)) {
+            return;
+        }
+        String normalized = normalize(code, CODE_LOCALE);
+        List<CodeEntry> entries = codes.get(normalized);
+        if (entries == null) {
+            entries = new ArrayList<CodeEntry>(1);
+            codes.put(normalized, entries);
+        }
+        CodeEntry entry = new CodeEntry();
+        entry.conceptId = conceptId;
+        entry.sourceId = sourceId;
+        entry.mapTypeId = mapTypeId == null ? 0 : mapTypeId;
+        entries.add(entry);
+        concept.codes.add(normalized);
+    }
+
+    private void removeConceptInternal(Integer conceptId) {
+        ConceptEntry entry = concepts.remove(conceptId);
+        if (entry == null) {
+            return;
+        }
+        // leave a hole, so ordinals in the posting lists stay valid (until there are enough holes to compact them)
+        Set<LocaleIndex> withHoles = new HashSet<LocaleIndex>();
+        for (NameEntry name : entry.names) {
+            LocaleIndex localeIndex = locales.get(name.locale);
+            localeIndex.names.set(name.ordinal, null);
+            ++localeIndex.holes;
+            withHoles.add(localeIndex);
+        }
+        for (LocaleIndex localeIndex : withHoles) {
+            if (localeIndex.loadingGrams == null && localeIndex.holes * 2 > localeIndex.names.size()) {
+                localeIndex.compact();
+            }
+        }
+        for (String code : entry.codes) {
+            List<CodeEntry> entries = codes.get(code);
+            if (entries == null) {
+                continue;
+            }
+            for (Iterator<CodeEntry> i = entries.iterator(); i.hasNext(); ) {
+                if (i.next().conceptId == conceptId) {
+                    i.remove();
+                }
+            }
+            if (entries.isEmpty()) {
+                codes.remove(code);
+            }
+        }
+    }
+
+    private boolean containsAll(String normalizedName, List<String> words) {
+        for (String word : words) {
+            if (!normalizedName.contains(word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String normalize(String s, Locale locale) {
+        return s.toLowerCase(locale);
+    }
+
+    static Set<String> grams(String s) {
+        Set<String> grams = new LinkedHashSet<String>();
+        for (int i = 0; i + GRAM_LENGTH <= s.length(); ++i) {
+            grams.add(s.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+
+    /**
+     * What a concept's names and mappings were when it was saved (see {@link #prepareUpdate(Concept)})
+     */
+    public static class ConceptUpdate {
+
+        private final int conceptId;
+
+        private final Integer conceptClassId;
+
+        private final List<ConceptName> names;
+
+        private final List<ConceptMap> mappings;
+
+        ConceptUpdate(int conceptId, Integer conceptClassId, List<ConceptName> names, List<ConceptMap> mappings) {
+            this.conceptId = conceptId;
+            this.conceptClassId = conceptClassId;
+            this.names = names;
+            this.mappings = mappings;
+        }
+
+    }
+
+    private static class ConceptEntry {
+
+        Integer conceptClassId;
+
+        boolean setMember;
+
+        List<NameEntry> names = new ArrayList<NameEntry>(2);
+
+        List<String> codes = new ArrayList<String>(1);
+
+        boolean isAllowed(Collection<Integer> classIds) {
+            return classIds == null || classIds.contains(conceptClassId);
+        }
+
+    }
+
+    private static class LocaleIndex {
+
+        List<NameEntry> names = new ArrayList<NameEntry>();
+
+        Map<String, IntPostingList> grams = new HashMap<String, IntPostingList>();
+
+        /**
+         * While bulk loading, postings are collected here (and not in grams)
+         */
+        Map<String, IntPostingList.Builder> loadingGrams;
+
+        /**
+         * How many of names are null (i.e. removed)
+         */
+        int holes = 0;
+
+        LocaleIndex(boolean loading) {
+            if (loading) {
+                loadingGrams = new HashMap<String, IntPostingList.Builder>();
+            }
+        }
+
+        void addPosting(String gram, int ordinal) {
+            if (loadingGrams != null) {
+                IntPostingList.Builder builder = loadingGrams.get(gram);
+                if (builder == null) {
+                    builder = new IntPostingList.Builder();
+                    loadingGrams.put(gram, builder);
+                }
+                builder.add(ordinal);
+            } else {
+                IntPostingList postings = grams.get(gram);
+                grams.put(gram, postings == null ? new IntPostingList(ordinal) : postings.with(ordinal));
+            }
+        }
+
+        void build() {
+            if (loadingGrams == null) {
+                return;
+            }
+            for (Map.Entry<String, IntPostingList.Builder> entry : loadingGrams.entrySet()) {
+                grams.put(entry.getKey(), entry.getValue().build());
+            }
+            loadingGrams = null;
+        }
+
+        /**
+         * Drops the holes from names, renumbering the rest, and rebuilds the posting lists to match
+         */
+        void compact() {
+            List<NameEntry> compacted = new ArrayList<NameEntry>(names.size() - holes);
+            Map<String, IntPostingList.Builder> builders = new HashMap<String, IntPostingList.Builder>();
+            for (NameEntry name : names) {
+                if (name == null) {
+                    continue;
+                }
+                name.ordinal = compacted.size();
+                compacted.add(name);
+                for (String gram : grams(name.normalized)) {
+                    IntPostingList.Builder builder = builders.get(gram);
+                    if (builder == null) {
+                        builder = new IntPostingList.Builder();
+                        builders.put(gram, builder);
+                    }
+                    builder.add(name.ordinal);
+                }
+            }
+            names = compacted;
+            holes = 0;
+            grams = new HashMap<String, IntPostingList>(builders.size() * 2);
+            for (Map.Entry<String, IntPostingList.Builder> entry : builders.entrySet()) {
+                grams.put(entry.getKey(), entry.getValue().build());
+            }
+        }
+
+    }
+
+    private static class NameEntry {
+
+        int conceptId;
+
+        int conceptNameId;
+
+        String name;
+
+        String normalized;
+
+        boolean localePreferred;
+
+        Locale locale;
+
+        /**
+         * Where this is in its locale's names (which changes when they are compacted)
+         */
+        int ordinal;
+
+    }
+
+    private static class CodeEntry {
+
+        int conceptId;
+
+        int sourceId;
+
+        int mapTypeId;
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import org.openmrs.Concept;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to ConceptService (by the module activator) to keep the {@link DiagnosisSearchIndex} up to date as concepts
+ * are saved, retired and purged. (Edits to the diagnosis sets themselves are handled by
+ * {@link DiagnosisSetClosureAdvice}, which reloads the whole index.) What is indexed is read from the concept right
+ * away, but only applied once the transaction commits, so an edit that is rolled back never shows up in searches.
+ */
+public class DiagnosisSearchIndexAdvice implements AfterReturningAdvice {
+
+    private DiagnosisSearchIndex index;
+
+    public DiagnosisSearchIndexAdvice(DiagnosisSearchIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge"))) {
+            return;
+        }
+        boolean purge = name.startsWith("purge");
+        if (args != null) {
+            for (Object arg : args) {
+                handle(arg, purge);
+            }
+        }
+        handle(returnValue, purge);
+    }
+
+    private void handle(Object o, boolean purge) {
+        if (!(o instanceof Concept)) {
+            return;
+        }
+        Concept concept = (Concept) o;
+        if (purge) {
+            final Integer conceptId = concept.getConceptId();
+            afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    index.removeConcept(conceptId);
+                }
+            });
+        } else {
+            final DiagnosisSearchIndex.ConceptUpdate update = index.prepareUpdate(concept);
+            if (update != null) {
+                afterCommit(new Runnable() {
+                    @Override
+                    public void run() {
+                        index.applyUpdate(update);
+                    }
+                });
+            }
+        }
+    }
+
+    private void afterCommit(final Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the current {@link DiagnosisSetMembership}, i.e. the fully-exploded membership of the diagnosis sets (the
+ * members of the emr.concept.diagnosisSetOfSets set-of-sets), so that concept search can filter by diagnosis set
+ * without querying the concept_set table.
+ *
+ * It is loaded lazily (see {@link #getGeneration()} and {@link #setMembership(long, DiagnosisSetMembership)}), and
+ * invalidated whenever one of the sets involved is edited or the set-of-sets global property changes.
+ */
+public class DiagnosisSetClosure {
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile DiagnosisSetMembership membership;
+
+    /**
+     * @return the current membership, or null if it needs to be (re)loaded
+     */
+    public DiagnosisSetMembership getMembership() {
+        return membership;
+    }
+
+    /**
+     * Read this before loading the membership from the database, and pass it to
+     * {@link #setMembership(long, DiagnosisSetMembership)}
+     * @return a counter that changes whenever the membership is invalidated
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a membership that was loaded from the database, unless it was invalidated since the load started
+     * @param generationAtLoad the value of {@link #getGeneration()} before the load started
+     * @param membership
+     */
+    public synchronized void setMembership(long generationAtLoad, DiagnosisSetMembership membership) {
+        if (generation.get() == generationAtLoad) {
+            this.membership = membership;
+        }
+    }
+
+    public synchronized void invalidate() {
+        generation.incrementAndGet();
+        membership = null;
+    }
+
+}
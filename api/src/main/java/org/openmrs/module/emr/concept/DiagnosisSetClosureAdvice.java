@@ -0,0 +1,101 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import org.openmrs.Concept;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Applied to ConceptService (by the module activator) to invalidate the {@link DiagnosisSetClosure} when a concept set
+ * that it depends on is edited: the set-of-sets, a diagnosis set, or a set nested inside one (or a diagnosis that
+ * becomes a set). The given callback is then run, e.g. to reload things built from the closure. Both happen once the
+ * transaction commits, since until then a reload would read the old concept sets again.
+ */
+public class DiagnosisSetClosureAdvice implements AfterReturningAdvice {
+
+    private DiagnosisSetClosure closure;
+
+    private Runnable onChange;
+
+    public DiagnosisSetClosureAdvice(DiagnosisSetClosure closure, Runnable onChange) {
+        this.closure = closure;
+        this.onChange = onChange;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge"))) {
+            return;
+        }
+        DiagnosisSetMembership membership = closure.getMembership();
+        if (membership == null) {
+            // not loaded, so it will be up to date when it is
+            return;
+        }
+        boolean changed = false;
+        if (args != null) {
+            for (Object arg : args) {
+                changed |= affects(membership, arg);
+            }
+        }
+        changed |= affects(membership, returnValue);
+        if (changed) {
+            invalidateAfterCommit();
+        }
+    }
+
+    private void invalidateAfterCommit() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    closure.invalidate();
+                    onChange.run();
+                }
+            });
+        } else {
+            closure.invalidate();
+            onChange.run();
+        }
+    }
+
+    private boolean affects(DiagnosisSetMembership membership, Object o) {
+        if (!(o instanceof Concept)) {
+            return false;
+        }
+        Concept concept = (Concept) o;
+        if (membership.isDiagnosisSetOrNestedSet(concept.getConceptId())) {
+            return true;
+        }
+        List<Concept> setMembers = concept.getSetMembers();
+        if (membership.isMember(concept.getConceptId()) && !setMembers.isEmpty()) {
+            return true;
+        }
+        for (Concept member : setMembers) {
+            // this is the set-of-sets
+            if (membership.isDiagnosisSet(member.getConceptId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of which concepts are in which diagnosis sets, with nested sets fully exploded (a member of a
+ * set that is itself a member of a diagnosis set counts as being in that diagnosis set, however deep the nesting).
+ *
+ * Each diagnosis set gets a bit, and each member concept has a BitSet of the diagnosis sets it's in, so checking
+ * whether a concept is in any of a group of sets is a single bitset probe (see {@link #getFilter(Collection)}).
+ */
+public class DiagnosisSetMembership {
+
+    private static final BitSet NONE = new BitSet();
+
+    private final Map<Integer, Integer> bitsBySetId;
+
+    private final Map<Integer, BitSet> setsByMemberId;
+
+    private final Set<Integer> nestedSetIds;
+
+    private DiagnosisSetMembership(Map<Integer, Integer> bitsBySetId, Map<Integer, BitSet> setsByMemberId, Set<Integer> nestedSetIds) {
+        this.bitsBySetId = bitsBySetId;
+        this.setsByMemberId = setsByMemberId;
+        this.nestedSetIds = nestedSetIds;
+    }
+
+    /**
+     * @param diagnosisSetIds the diagnosis sets (i.e. the members of the diagnosis set-of-sets)
+     * @param setMembers the direct members of each concept set, keyed by set id (this may include sets that aren't
+     * reachable from the diagnosis sets; they are ignored)
+     * @return the exploded membership of the diagnosis sets
+     */
+    public static DiagnosisSetMembership explode(Collection<Integer> diagnosisSetIds, Map<Integer, ? extends Collection<Integer>> setMembers) {
+        Map<Integer, Integer> bitsBySetId = new HashMap<Integer, Integer>();
+        Map<Integer, BitSet> setsByMemberId = new HashMap<Integer, BitSet>();
+        Set<Integer> nestedSetIds = new HashSet<Integer>();
+
+        for (Integer setId : diagnosisSetIds) {
+            if (bitsBySetId.containsKey(setId)) {
+                continue;
+            }
+            int bit = bitsBySetId.size();
+            bitsBySetId.put(setId, bit);
+
+            // walk everything below this set (guarding against cycles)
+            Set<Integer> visited = new HashSet<Integer>();
+            visited.add(setId);
+            LinkedList<Integer> toVisit = new LinkedList<Integer>();
+            toVisit.add(setId);
+            while (!toVisit.isEmpty()) {
+                Collection<Integer> members = setMembers.get(toVisit.removeFirst());
+                if (members == null) {
+                    continue;
+                }
+                for (Integer memberId : members) {
+                    BitSet sets = setsByMemberId.get(memberId);
+                    if (sets == null) {
+                        sets = new BitSet();
+                        setsByMemberId.put(memberId, sets);
+                    }
+                    sets.set(bit);
+                    if (visited.add(memberId) && setMembers.containsKey(memberId)) {
+                        nestedSetIds.add(memberId);
+                        toVisit.add(memberId);
+                    }
+                }
+            }
+        }
+
+        // most concepts are in exactly the same sets as many others, so share equal bitsets
+        Map<BitSet, BitSet> canonical = new HashMap<BitSet, BitSet>();
+        for (Map.Entry<Integer, BitSet> entry : setsByMemberId.entrySet()) {
+            BitSet existing = canonical.get(entry.getValue());
+            if (existing == null) {
+                canonical.put(entry.getValue(), entry.getValue());
+            } else {
+                entry.setValue(existing);
+            }
+        }
+
+        return new DiagnosisSetMembership(bitsBySetId, setsByMemberId, nestedSetIds);
+    }
+
+    /**
+     * @param setIds
+     * @return a filter that accepts concepts in any of setIds, or null if some of setIds aren't diagnosis sets (so we
+     * don't know their members)
+     */
+    public Filter getFilter(Collection<Integer> setIds) {
+        BitSet mask = new BitSet();
+        for (Integer setId : setIds) {
+            Integer bit = bitsBySetId.get(setId);
+            if (bit == null) {
+                return null;
+            }
+            mask.set(bit);
+        }
+        return new Filter(mask);
+    }
+
+    /**
+     * @param conceptId
+     * @return whether conceptId is in any diagnosis set
+     */
+    public boolean isMember(Integer conceptId) {
+        return setsByMemberId.containsKey(conceptId);
+    }
+
+    /**
+     * @param conceptId
+     * @return whether conceptId is a diagnosis set
+     */
+    public boolean isDiagnosisSet(Integer conceptId) {
+        return bitsBySetId.containsKey(conceptId);
+    }
+
+    /**
+     * @param conceptId
+     * @return whether conceptId is a diagnosis set, or a set nested (at any depth) inside one, i.e. whether changing its
+     * members changes this membership
+     */
+    public boolean isDiagnosisSetOrNestedSet(Integer conceptId) {
+        return bitsBySetId.containsKey(conceptId) || nestedSetIds.contains(conceptId);
+    }
+
+    public Collection<Integer> getDiagnosisSetIds() {
+        return Collections.unmodifiableSet(bitsBySetId.keySet());
+    }
+
+    /**
+     * @return sorted ids of all concepts in any diagnosis set
+     */
+    public int[] getMemberIds() {
+        List<Integer> memberIds = new ArrayList<Integer>(setsByMemberId.keySet());
+        int[] ids = new int[memberIds.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = memberIds.get(i);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Accepts concepts that are in any of a group of diagnosis sets
+     */
+    public class Filter {
+
+        private final BitSet mask;
+
+        private Filter(BitSet mask) {
+            this.mask = mask;
+        }
+
+        public boolean accepts(int conceptId) {
+            BitSet sets = setsByMemberId.get(conceptId);
+            return (sets == null ? NONE : sets).intersects(mask);
+        }
+
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.openmrs.ConceptMapType;
+import org.openmrs.api.ConceptService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Weights matches on mapping codes by the type of the mapping, e.g. so that a concept that is the SAME-AS the code the
+ * user typed ranks above one that is merely NARROWER-THAN it. Map types are configured by name, and resolved to ids
+ * the first time they are needed (until all of them exist, we try again each time, so a map type that is created later
+ * is picked up).
+ */
+public class MappingTypeScorer implements ConceptSearchScorer {
+
+    private ConceptService conceptService;
+
+    private Map<String, Double> weights = new HashMap<String, Double>();
+
+    private volatile ResolvedWeights resolved;
+
+    public void setConceptService(ConceptService conceptService) {
+        this.conceptService = conceptService;
+    }
+
+    /**
+     * @param weights how much to add for a match on a mapping of each type, keyed by map type name
+     */
+    public void setWeights(Map<String, Double> weights) {
+        this.weights = new HashMap<String, Double>(weights);
+        this.resolved = null;
+    }
+
+    @Override
+    public void score(ConceptSearchCandidates candidates, double[] scores) {
+        boolean[] mappings = candidates.getMappings();
+        int[] mapTypeIds = candidates.getMapTypeIds();
+        ResolvedWeights resolvedWeights = null;
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (!mappings[i]) {
+                continue;
+            }
+            if (resolvedWeights == null) {
+                resolvedWeights = getResolvedWeights();
+            }
+            scores[i] += resolvedWeights.get(mapTypeIds[i]);
+        }
+    }
+
+    private ResolvedWeights getResolvedWeights() {
+        ResolvedWeights current = resolved;
+        if (current == null) {
+            int[] mapTypeIds = new int[weights.size()];
+            double[] mapTypeWeights = new double[weights.size()];
+            int count = 0;
+            for (Map.Entry<String, Double> entry : weights.entrySet()) {
+                ConceptMapType mapType = conceptService.getConceptMapTypeByName(entry.getKey());
+                if (mapType != null) {
+                    mapTypeIds[count] = mapType.getConceptMapTypeId();
+                    mapTypeWeights[count] = entry.getValue();
+                    ++count;
+                }
+            }
+            current = new ResolvedWeights(mapTypeIds, mapTypeWeights, count);
+            if (count == weights.size()) {
+                resolved = current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * There are only ever a handful of map types, so we just scan these
+     */
+    private static class ResolvedWeights {
+
+        private final int[] mapTypeIds;
+
+        private final double[] weights;
+
+        private final int count;
+
+        ResolvedWeights(int[] mapTypeIds, double[] weights, int count) {
+            this.mapTypeIds = mapTypeIds;
+            this.weights = weights;
+            this.count = count;
+        }
+
+        double get(int mapTypeId) {
+            for (int i = 0; i < count; ++i) {
+                if (mapTypeIds[i] == mapTypeId) {
+                    return weights[i];
+                }
+            }
+            return 0d;
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+/**
+ * Ranks names that start with the query (e.g. "Malaria, severe" when searching for "malar") above names that merely
+ * contain it
+ */
+public class PrefixMatchScorer implements ConceptSearchScorer {
+
+    private double weight = 100d;
+
+    public void setWeight(double weight) {
+        this.weight = weight;
+    }
+
+    @Override
+    public void score(ConceptSearchCandidates candidates, double[] scores) {
+        boolean[] prefixMatches = candidates.getPrefixMatches();
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (prefixMatches[i]) {
+                scores[i] += weight;
+            }
+        }
+    }
+
+}
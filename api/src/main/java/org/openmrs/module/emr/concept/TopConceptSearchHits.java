@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the best-scoring concept search hits as they are offered, at most one per concept, in a bounded heap. Memory
+ * use depends on the limit, rather than on how many hits there are.
+ *
+ * When a concept matches more than once, we keep a match on its preferred name over a match on a synonym (so we don't
+ * display a synonym when the preferred name matches too), and otherwise the higher-scoring match.
+ */
+public class TopConceptSearchHits {
+
+    private static final Comparator<ConceptSearchHit> WORST_FIRST = new Comparator<ConceptSearchHit>() {
+        @Override
+        public int compare(ConceptSearchHit left, ConceptSearchHit right) {
+            int result = Double.compare(left.getScore(), right.getScore());
+            if (result == 0) {
+                // deterministic order for ties
+                result = right.getConceptId() - left.getConceptId();
+            }
+            return result;
+        }
+    };
+
+    private final int limit;
+
+    private final PriorityQueue<ConceptSearchHit> heap;
+
+    private final Map<Integer, ConceptSearchHit> byConcept = new HashMap<Integer, ConceptSearchHit>();
+
+    public TopConceptSearchHits(int limit) {
+        this.limit = limit;
+        this.heap = new PriorityQueue<ConceptSearchHit>(Math.max(limit, 1), WORST_FIRST);
+    }
+
+    public void offer(ConceptSearchHit hit) {
+        if (limit <= 0) {
+            return;
+        }
+        ConceptSearchHit existing = byConcept.get(hit.getConceptId());
+        if (existing != null) {
+            if (!replaces(hit, existing)) {
+                return;
+            }
+            heap.remove(existing);
+            byConcept.remove(existing.getConceptId());
+        }
+        if (heap.size() >= limit) {
+            if (WORST_FIRST.compare(hit, heap.peek()) <= 0) {
+                return;
+            }
+            byConcept.remove(heap.poll().getConceptId());
+        }
+        heap.add(hit);
+        byConcept.put(hit.getConceptId(), hit);
+    }
+
+    /**
+     * @return the kept hits, best first
+     */
+    public List<ConceptSearchHit> getHits() {
+        List<ConceptSearchHit> hits = new ArrayList<ConceptSearchHit>(heap);
+        Collections.sort(hits, Collections.reverseOrder(WORST_FIRST));
+        return hits;
+    }
+
+    private boolean replaces(ConceptSearchHit candidate, ConceptSearchHit existing) {
+        boolean bothNames = candidate.getConceptNameId() != null && existing.getConceptNameId() != null;
+        if (bothNames && candidate.isLocalePreferred() != existing.isLocalePreferred()) {
+            return candidate.isLocalePreferred();
+        }
+        return candidate.getScore() > existing.getScore();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Ranks concepts that are used often at this site (e.g. diagnoses that are recorded often) above rarely-used ones. The
+ * boost grows with the logarithm of the usage count, so that the most common concepts don't swamp the match itself.
+ *
+ * Usage counts are loaded by {@link org.openmrs.module.emr.api.EmrService#refreshConceptUsageFrequenciesInternal()};
+ * until then this has no effect.
+ */
+public class UsageFrequencyScorer implements ConceptSearchScorer {
+
+    private double weight = 20d;
+
+    private volatile UsageCounts usageCounts = new UsageCounts(new int[0], new int[0]);
+
+    public void setWeight(double weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @param counts how many times each concept has been used, keyed by concept id
+     */
+    public void setUsageCounts(Map<Integer, Integer> counts) {
+        int[] conceptIds = new int[counts.size()];
+        int i = 0;
+        for (Integer conceptId : counts.keySet()) {
+            conceptIds[i++] = conceptId;
+        }
+        Arrays.sort(conceptIds);
+        int[] usage = new int[conceptIds.length];
+        for (i = 0; i < conceptIds.length; ++i) {
+            usage[i] = counts.get(conceptIds[i]);
+        }
+        usageCounts = new UsageCounts(conceptIds, usage);
+    }
+
+    /**
+     * @param conceptId
+     * @return the usage count for conceptId
+     */
+    public int getUsageCount(int conceptId) {
+        return usageCounts.get(conceptId);
+    }
+
+    @Override
+    public void score(ConceptSearchCandidates candidates, double[] scores) {
+        UsageCounts current = usageCounts;
+        if (current.isEmpty()) {
+            return;
+        }
+        int[] conceptIds = candidates.getConceptIds();
+        for (int i = 0; i < candidates.size(); ++i) {
+            int count = current.get(conceptIds[i]);
+            if (count > 0) {
+                scores[i] += weight * Math.log10(1 + count);
+            }
+        }
+    }
+
+    /**
+     * Sorted concept ids and their counts, replaced as a whole when reloaded
+     */
+    private static class UsageCounts {
+
+        private final int[] conceptIds;
+
+        private final int[] counts;
+
+        UsageCounts(int[] conceptIds, int[] counts) {
+            this.conceptIds = conceptIds;
+            this.counts = counts;
+        }
+
+        boolean isEmpty() {
+            return conceptIds.length == 0;
+        }
+
+        int get(int conceptId) {
+            int i = Arrays.binarySearch(conceptIds, conceptId);
+            return i < 0 ? 0 : counts[i];
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+/**
+ * Ranks names where the query matches the start of an early word above names where it matches a later word (or only
+ * the middle of a word), e.g. for "fever", "Fever of unknown origin" above "Typhoid fever" above "Parafever"
+ */
+public class WordPositionScorer implements ConceptSearchScorer {
+
+    private double weight = 50d;
+
+    public void setWeight(double weight) {
+        this.weight = weight;
+    }
+
+    @Override
+    public void score(ConceptSearchCandidates candidates, double[] scores) {
+        int[] wordPositions = candidates.getWordPositions();
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (wordPositions[i] >= 0) {
+                scores[i] += weight / (1 + wordPositions[i]);
+            }
+        }
+    }
+
+}
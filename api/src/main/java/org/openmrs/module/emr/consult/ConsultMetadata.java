@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.ConceptMap;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.diagnosis.DiagnosisMetadata;
+import org.openmrs.module.emrapi.disposition.DispositionDescriptor;
+
+/**
+ * The metadata needed to save consult notes, resolved (from global properties, and concepts by name or mapping) once,
+ * so that saving notes doesn't look it up again for each one.
+ *
+ * {@link ConsultService#getConsultMetadata()} shares one snapshot across requests (until a relevant global property,
+ * concept, encounter type or encounter role changes; see {@link ConsultMetadataAdvice}), so we load everything that building a note's obs will read up front, while we're still in the session that
+ * loaded it; after that the snapshot is only read, and only referred to by the encounters and obs we create.
+ */
+public class ConsultMetadata {
+
+    private final EncounterType consultEncounterType;
+
+    private final EncounterRole clinicianEncounterRole;
+
+    private final Concept consultFreeTextCommentsConcept;
+
+    private final DiagnosisMetadata diagnosisMetadata;
+
+    private final DispositionDescriptor dispositionDescriptor;
+
+    public ConsultMetadata(EmrApiProperties emrApiProperties) {
+        consultEncounterType = emrApiProperties.getConsultEncounterType();
+        clinicianEncounterRole = emrApiProperties.getClinicianEncounterRole();
+        consultFreeTextCommentsConcept = emrApiProperties.getConsultFreeTextCommentsConcept();
+        diagnosisMetadata = emrApiProperties.getDiagnosisMetadata();
+        dispositionDescriptor = emrApiProperties.getDispositionDescriptor();
+
+        initialize(consultFreeTextCommentsConcept);
+        initialize(diagnosisMetadata.getDiagnosisSetConcept());
+        initialize(diagnosisMetadata.getCodedDiagnosisConcept());
+        initialize(diagnosisMetadata.getNonCodedDiagnosisConcept());
+        initialize(diagnosisMetadata.getDiagnosisOrderConcept());
+        initialize(diagnosisMetadata.getDiagnosisCertaintyConcept());
+        initialize(dispositionDescriptor.getDispositionSetConcept());
+        initialize(dispositionDescriptor.getDispositionConcept());
+    }
+
+    /**
+     * Loads the parts of concept that are read when building obs for it: its datatype and class, and its answers with
+     * their mappings (by which diagnosis order and certainty answers are found)
+     */
+    private void initialize(Concept concept) {
+        if (concept == null) {
+            return;
+        }
+        if (concept.getDatatype() != null) {
+            concept.getDatatype().getHl7Abbreviation();
+        }
+        if (concept.getConceptClass() != null) {
+            concept.getConceptClass().getName();
+        }
+        concept.getSetMembers().size();
+        for (ConceptAnswer answer : concept.getAnswers()) {
+            for (ConceptMap mapping : answer.getAnswerConcept().getConceptMappings()) {
+                mapping.getConceptReferenceTerm().getConceptSource().getName();
+            }
+        }
+    }
+
+    public EncounterType getConsultEncounterType() {
+        return consultEncounterType;
+    }
+
+    public EncounterRole getClinicianEncounterRole() {
+        return clinicianEncounterRole;
+    }
+
+    public Concept getConsultFreeTextCommentsConcept() {
+        return consultFreeTextCommentsConcept;
+    }
+
+    public DiagnosisMetadata getDiagnosisMetadata() {
+        return diagnosisMetadata;
+    }
+
+    public DispositionDescriptor getDispositionDescriptor() {
+        return dispositionDescriptor;
+    }
+
+}
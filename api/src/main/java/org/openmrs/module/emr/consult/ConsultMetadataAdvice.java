@@ -0,0 +1,81 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptMapType;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.ConceptSource;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to ConceptService and EncounterService (by the module activator) to clear the {@link ConsultMetadata} that
+ * {@link ConsultService#getConsultMetadata()} holds whenever a concept (or its names, mappings, reference terms,
+ * sources or map types), encounter type or encounter role is saved, retired or purged, since the snapshot holds those
+ * entities and finds its concepts by mapping. This happens once the transaction commits, since until then the service
+ * would resolve the metadata from the old values again.
+ */
+public class ConsultMetadataAdvice implements AfterReturningAdvice {
+
+    private ConsultService consultService;
+
+    public ConsultMetadataAdvice(ConsultService consultService) {
+        this.consultService = consultService;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge"))) {
+            return;
+        }
+        boolean metadataChanged = isMetadata(returnValue);
+        if (args != null) {
+            for (Object arg : args) {
+                metadataChanged |= isMetadata(arg);
+            }
+        }
+        if (metadataChanged) {
+            clearAfterCommit();
+        }
+    }
+
+    private void clearAfterCommit() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    consultService.clearMetadataCacheInternal();
+                }
+            });
+        } else {
+            consultService.clearMetadataCacheInternal();
+        }
+    }
+
+    private boolean isMetadata(Object o) {
+        return o instanceof Concept || o instanceof ConceptName || o instanceof ConceptReferenceTerm
+                || o instanceof ConceptSource || o instanceof ConceptMapType || o instanceof EncounterType
+                || o instanceof EncounterRole;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.openmrs.Encounter;
+
+/**
+ * The outcome of saving one of the notes passed to {@link ConsultService#saveConsultNotes}: either the encounter that
+ * was created for it, or the error that prevented it from being saved
+ */
+public class ConsultNoteResult {
+
+    private final ConsultNote consultNote;
+
+    private final Encounter encounter;
+
+    private final Exception error;
+
+    private ConsultNoteResult(ConsultNote consultNote, Encounter encounter, Exception error) {
+        this.consultNote = consultNote;
+        this.encounter = encounter;
+        this.error = error;
+    }
+
+    public static ConsultNoteResult saved(ConsultNote consultNote, Encounter encounter) {
+        return new ConsultNoteResult(consultNote, encounter, null);
+    }
+
+    public static ConsultNoteResult failed(ConsultNote consultNote, Exception error) {
+        return new ConsultNoteResult(consultNote, null, error);
+    }
+
+    public ConsultNote getConsultNote() {
+        return consultNote;
+    }
+
+    /**
+     * @return the encounter created for this note, or null if it wasn't saved
+     */
+    public Encounter getEncounter() {
+        return encounter;
+    }
+
+    /**
+     * @return why this note wasn't saved, or null if it was
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isSaved() {
+        return error == null;
+    }
+
+}
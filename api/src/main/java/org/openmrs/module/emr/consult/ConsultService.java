@@ -17,6 +17,8 @@ package org.openmrs.module.emr.consult;
 import org.openmrs.Encounter;
 import org.openmrs.api.OpenmrsService;
 
+import java.util.List;
+
 /**
  *
  */
@@ -30,4 +32,50 @@ public interface ConsultService extends OpenmrsService {
      */
     Encounter saveConsultNote(ConsultNote consultNote);
 
+    /**
+     * Persists many consult notes (e.g. when back-entering paper consult sheets), resolving the metadata they need
+     * only once, and committing them in chunks (of 50 notes), each chunk in its own
+     * transaction. A note that is missing required fields is reported as failed without affecting the others; if
+     * saving a chunk fails, its notes are saved again one at a time, so that only the ones that fail on their own are
+     * reported as failed.
+     *
+     * @param consultNotes
+     * @return the outcome for each note, in the same order as consultNotes
+     */
+    List<ConsultNoteResult> saveConsultNotes(List<ConsultNote> consultNotes);
+
+    /**
+     * Persists the given consult notes in a new transaction of their own (used by {@link #saveConsultNotes} for each
+     * chunk).
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     *
+     * @param consultNotes
+     * @param metadata
+     * @return the encounters created, in the same order as consultNotes
+     */
+    List<Encounter> saveConsultNotesInternal(List<ConsultNote> consultNotes, ConsultMetadata metadata);
+
+    /**
+     * @return the metadata needed to save consult notes, resolved once and reused until
+     * {@link #clearMetadataCacheInternal()} is called
+     */
+    ConsultMetadata getConsultMetadata();
+
+    /**
+     * Forgets the resolved consult metadata, so that it is resolved again the next time a note is saved. Call this when
+     * the global properties, concepts or encounter types and roles that define it change.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     */
+    void clearMetadataCacheInternal();
+
+    /**
+     * Looks up all the DispositionAction beans in the application context, by name, so that saving consult notes doesn't
+     * have to. Call this when the context is refreshed.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     */
+    void refreshDispositionActionsInternal();
+
 }
@@ -14,15 +14,38 @@
 
 package org.openmrs.module.emr.consult;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.Visit;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.VisitService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.handler.EncounterVisitHandler;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.emr.utils.LoadedUserContext;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
 import org.openmrs.module.emrapi.diagnosis.Diagnosis;
@@ -32,7 +55,10 @@ import org.openmrs.module.emrapi.disposition.actions.DispositionAction;
 import org.openmrs.module.emrapi.encounter.EncounterDomainWrapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.StringUtils;
 
 /**
@@ -40,6 +66,12 @@ import org.springframework.util.StringUtils;
  */
 public class ConsultServiceImpl extends BaseOpenmrsService implements ConsultService {
 
+    public static final int SAVE_CONSULT_NOTES_CHUNK_SIZE = 50;
+
+    public static final int POST_COMMIT_ACTION_THREADS = 2;
+
+    protected final Log log = LogFactory.getLog(getClass());
+
     @Autowired
     private ApplicationContext applicationContext;
 
@@ -51,23 +83,250 @@ public class ConsultServiceImpl extends BaseOpenmrsService implements ConsultSer
 
     private EmrConceptService emrConceptService;
 
+    private volatile ConsultMetadata metadata;
+
+    /**
+     * Incremented whenever the metadata is cleared, so that a snapshot resolved before that isn't cached after it
+     */
+    private final AtomicLong metadataVersion = new AtomicLong();
+
+    /**
+     * DispositionAction beans by name (null until {@link #refreshDispositionActionsInternal()} is called)
+     */
+    private volatile Map<String, DispositionAction> dispositionActions;
+
+    private Executor postCommitActionExecutor;
+
+    /**
+     * Set by {@link #onShutdown()}, after which post-commit disposition actions no longer run
+     */
+    private boolean shutDown = false;
+
     @Transactional
     @Override
     public Encounter saveConsultNote(ConsultNote consultNote) {
+        validate(consultNote);
+        return saveConsultNote(consultNote, getConsultMetadata(), null);
+    }
+
+    /**
+     * (Not transactional itself: each chunk is saved via the service proxy, in its own transaction)
+     */
+    @Override
+    public List<ConsultNoteResult> saveConsultNotes(List<ConsultNote> consultNotes) {
+        ConsultService self = Context.getService(ConsultService.class);
+        ConsultMetadata metadata = self.getConsultMetadata();
+
+        ConsultNoteResult[] results = new ConsultNoteResult[consultNotes.size()];
+        for (int chunkStart = 0; chunkStart < consultNotes.size(); chunkStart += SAVE_CONSULT_NOTES_CHUNK_SIZE) {
+            int chunkEnd = Math.min(chunkStart + SAVE_CONSULT_NOTES_CHUNK_SIZE, consultNotes.size());
+
+            List<ConsultNote> chunk = new ArrayList<ConsultNote>();
+            List<Integer> chunkIndexes = new ArrayList<Integer>();
+            for (int i = chunkStart; i < chunkEnd; ++i) {
+                ConsultNote consultNote = consultNotes.get(i);
+                try {
+                    validate(consultNote);
+                    chunk.add(consultNote);
+                    chunkIndexes.add(i);
+                } catch (IllegalArgumentException ex) {
+                    results[i] = ConsultNoteResult.failed(consultNote, ex);
+                }
+            }
+            if (chunk.isEmpty()) {
+                continue;
+            }
+
+            List<Obs> newObs = getNewAdditionalObs(chunk);
+            try {
+                List<Encounter> encounters = self.saveConsultNotesInternal(chunk, metadata);
+                for (int j = 0; j < chunk.size(); ++j) {
+                    results[chunkIndexes.get(j)] = ConsultNoteResult.saved(chunk.get(j), encounters.get(j));
+                }
+            } catch (Exception ex) {
+                if (chunk.size() == 1) {
+                    results[chunkIndexes.get(0)] = ConsultNoteResult.failed(chunk.get(0), ex);
+                    continue;
+                }
+                log.warn("Failed to save a chunk of " + chunk.size() + " consult notes, saving them one at a time", ex);
+                // so that one bad note only fails itself. (The rolled back inserts still left ids on the notes' obs.)
+                for (Obs obs : newObs) {
+                    obs.setObsId(null);
+                }
+                for (int j = 0; j < chunk.size(); ++j) {
+                    try {
+                        Encounter encounter = self.saveConsultNotesInternal(Collections.singletonList(chunk.get(j)), metadata).get(0);
+                        results[chunkIndexes.get(j)] = ConsultNoteResult.saved(chunk.get(j), encounter);
+                    } catch (Exception noteEx) {
+                        results[chunkIndexes.get(j)] = ConsultNoteResult.failed(chunk.get(j), noteEx);
+                    }
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Override
+    public List<Encounter> saveConsultNotesInternal(List<ConsultNote> consultNotes, ConsultMetadata metadata) {
+        // each patient's notes at one location all go in the same visit (unless a disposition ends it), so we only need
+        // to ask the visit handler once per patient and location
+        Map<String, Visit> visits = new HashMap<String, Visit>();
+        List<Encounter> encounters = new ArrayList<Encounter>(consultNotes.size());
+        for (ConsultNote consultNote : consultNotes) {
+            validate(consultNote);
+            encounters.add(saveConsultNote(consultNote, metadata, visits));
+        }
+        return encounters;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public ConsultMetadata getConsultMetadata() {
+        ConsultMetadata current = metadata;
+        if (current == null) {
+            // if two threads race to resolve this, they get equivalent snapshots
+            long version = metadataVersion.get();
+            current = new ConsultMetadata(emrApiProperties);
+            synchronized (metadataVersion) {
+                if (metadataVersion.get() == version) {
+                    metadata = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void clearMetadataCacheInternal() {
+        synchronized (metadataVersion) {
+            metadataVersion.incrementAndGet();
+            metadata = null;
+        }
+    }
+
+    @Override
+    public void refreshDispositionActionsInternal() {
+        dispositionActions = Collections.unmodifiableMap(new HashMap<String, DispositionAction>(applicationContext.getBeansOfType(DispositionAction.class, false, true)));
+    }
+
+    /**
+     * Stops the thread pool that runs post-commit disposition actions (for good: actions of notes saved after this are
+     * not run)
+     */
+    @Override
+    public synchronized void onShutdown() {
+        if (postCommitActionExecutor instanceof ExecutorService) {
+            ((ExecutorService) postCommitActionExecutor).shutdown();
+        }
+        postCommitActionExecutor = null;
+        shutDown = true;
+    }
+
+    private DispositionAction getDispositionAction(String beanName) {
+        Map<String, DispositionAction> actions = dispositionActions;
+        DispositionAction action = actions == null ? null : actions.get(beanName);
+        if (action == null) {
+            // not a singleton, or registered since we looked them up
+            action = applicationContext.getBean(beanName, DispositionAction.class);
+        }
+        return action;
+    }
+
+    /**
+     * @return the post-commit action executor, or null if we have been shut down
+     */
+    private synchronized Executor getPostCommitActionExecutor() {
+        if (postCommitActionExecutor == null && !shutDown) {
+            postCommitActionExecutor = new ThreadPoolExecutor(POST_COMMIT_ACTION_THREADS, POST_COMMIT_ACTION_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        }
+        return postCommitActionExecutor;
+    }
+
+    /**
+     * Runs actions (on the post-commit action executor) once the current transaction commits, or straight away if there
+     * isn't one
+     */
+    private void runAfterCommit(List<PostCommitDispositionAction> actions, Encounter encounter, Obs dispositionGroup, Map<String, String[]> parameters) {
+        User user = Context.getAuthenticatedUser();
+        final PostCommitActions run = new PostCommitActions(actions, encounter.getEncounterId(), dispositionGroup.getObsId(), parameters,
+                user == null ? null : user.getUserId(), Context.getLocale());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    execute(run);
+                }
+            });
+        } else {
+            execute(run);
+        }
+    }
+
+    private void execute(PostCommitActions run) {
+        Executor executor = getPostCommitActionExecutor();
+        if (executor == null) {
+            log.warn("Not running post-commit disposition actions for encounter " + run.encounterId + ", because the module is stopping");
+            return;
+        }
+        executor.execute(run);
+    }
+
+    /**
+     * @return the additional obs of these notes (and their group members) that haven't been saved yet
+     */
+    private static List<Obs> getNewAdditionalObs(List<ConsultNote> consultNotes) {
+        List<Obs> newObs = new ArrayList<Obs>();
+        for (ConsultNote consultNote : consultNotes) {
+            addNewObs(consultNote.getAdditionalObs(), newObs);
+        }
+        return newObs;
+    }
+
+    private static void addNewObs(Collection<Obs> candidates, List<Obs> newObs) {
+        if (candidates == null) {
+            return;
+        }
+        for (Obs obs : candidates) {
+            if (obs.getObsId() == null) {
+                newObs.add(obs);
+            }
+            addNewObs(obs.getGroupMembers(), newObs);
+        }
+    }
+
+    /**
+     * The visit handler picks a visit by patient and location, so notes with both in common share a visit
+     */
+    private static String getVisitKey(ConsultNote consultNote) {
+        return consultNote.getPatient().getPatientId() + "@" + consultNote.getEncounterLocation().getLocationId();
+    }
+
+    private void validate(ConsultNote consultNote) {
         if (consultNote.getPatient() == null || consultNote.getEncounterLocation() == null || consultNote.getDiagnoses(Diagnosis.Order.PRIMARY).size() == 0 || consultNote.getClinician() == null) {
             throw new IllegalArgumentException("Required: patient, encounter location, clinician provider, primary diagnosis");
         }
+    }
 
-        DiagnosisMetadata diagnosisMetadata = emrApiProperties.getDiagnosisMetadata();
-        DispositionDescriptor dispositionDescriptor = emrApiProperties.getDispositionDescriptor();
+    /**
+     * @param consultNote
+     * @param metadata
+     * @param visits if not null, the visit already assigned to each patient's notes at each location, by
+     * {@link #getVisitKey} (this is updated with any visit we assign)
+     * @return the saved encounter
+     */
+    private Encounter saveConsultNote(ConsultNote consultNote, ConsultMetadata metadata, Map<String, Visit> visits) {
+        DiagnosisMetadata diagnosisMetadata = metadata.getDiagnosisMetadata();
+        DispositionDescriptor dispositionDescriptor = metadata.getDispositionDescriptor();
 
         Encounter encounter = new Encounter();
         encounter.setEncounterDatetime(new Date());
         encounter.setLocation(consultNote.getEncounterLocation());
-        encounter.setEncounterType(emrApiProperties.getConsultEncounterType());
+        encounter.setEncounterType(metadata.getConsultEncounterType());
         encounter.setPatient(consultNote.getPatient());
 
-        encounter.addProvider(emrApiProperties.getClinicianEncounterRole(), consultNote.getClinician());
+        encounter.addProvider(metadata.getClinicianEncounterRole(), consultNote.getClinician());
 
         for (Diagnosis diagnosis : consultNote.getDiagnoses()) {
             encounter.addObs(diagnosisMetadata.buildDiagnosisObsGroup(diagnosis));
@@ -78,32 +337,50 @@ public class ConsultServiceImpl extends BaseOpenmrsService implements ConsultSer
         }
 
         if (StringUtils.hasText(consultNote.getComments())) {
-            encounter.addObs(buildTextObs(emrApiProperties.getConsultFreeTextCommentsConcept(), consultNote.getComments()));
+            encounter.addObs(buildTextObs(metadata.getConsultFreeTextCommentsConcept(), consultNote.getComments()));
         }
 
         // normally we'd wait for encounterService.saveEncounter to assign a visit, but the actions may want to modify the visit,
         // so assign that now
-        EncounterVisitHandler activeEncounterVisitHandler = encounterService.getActiveEncounterVisitHandler();
-        if (activeEncounterVisitHandler != null) {
-            activeEncounterVisitHandler.beforeCreateEncounter(encounter);
-            if (encounter.getVisit() != null && encounter.getVisit().getVisitId() == null) {
-                //If we have been assigned a new visit, persist it.
-                visitService.saveVisit(encounter.getVisit());
+        Visit knownVisit = visits == null ? null : visits.get(getVisitKey(consultNote));
+        if (knownVisit != null && knownVisit.getStopDatetime() == null) {
+            encounter.setVisit(knownVisit);
+        } else {
+            EncounterVisitHandler activeEncounterVisitHandler = encounterService.getActiveEncounterVisitHandler();
+            if (activeEncounterVisitHandler != null) {
+                activeEncounterVisitHandler.beforeCreateEncounter(encounter);
+                if (encounter.getVisit() != null && encounter.getVisit().getVisitId() == null) {
+                    //If we have been assigned a new visit, persist it.
+                    visitService.saveVisit(encounter.getVisit());
+                }
+            }
+            if (visits != null && encounter.getVisit() != null) {
+                visits.put(getVisitKey(consultNote), encounter.getVisit());
             }
         }
 
         EncounterDomainWrapper encounterDomainWrapper = new EncounterDomainWrapper(encounter);
 
+        Obs dispositionGroup = null;
+        List<PostCommitDispositionAction> postCommitActions = new ArrayList<PostCommitDispositionAction>();
         if (consultNote.getDisposition() != null) {
-            Obs dispositionGroup = dispositionDescriptor.buildObsGroup(consultNote.getDisposition(), emrConceptService);
+            dispositionGroup = dispositionDescriptor.buildObsGroup(consultNote.getDisposition(), emrConceptService);
             for (String actionBeanName : consultNote.getDisposition().getActions()) {
-                DispositionAction action = applicationContext.getBean(actionBeanName, DispositionAction.class);
-                action.action(encounterDomainWrapper, dispositionGroup, consultNote.getDispositionParameters());
+                DispositionAction action = getDispositionAction(actionBeanName);
+                if (action instanceof PostCommitDispositionAction) {
+                    postCommitActions.add((PostCommitDispositionAction) action);
+                } else {
+                    action.action(encounterDomainWrapper, dispositionGroup, consultNote.getDispositionParameters());
+                }
             }
             encounter.addObs(dispositionGroup);
         }
 
-        return encounterService.saveEncounter(encounter);
+        Encounter saved = encounterService.saveEncounter(encounter);
+        if (!postCommitActions.isEmpty()) {
+            runAfterCommit(postCommitActions, saved, dispositionGroup, consultNote.getDispositionParameters());
+        }
+        return saved;
     }
 
     private Obs buildTextObs(Concept question, String answer) {
@@ -133,4 +410,81 @@ public class ConsultServiceImpl extends BaseOpenmrsService implements ConsultSer
         this.applicationContext = applicationContext;
     }
 
+    /**
+     * (By default, post-commit disposition actions run on a small pool of daemon threads)
+     * @param postCommitActionExecutor
+     */
+    public synchronized void setPostCommitActionExecutor(Executor postCommitActionExecutor) {
+        this.postCommitActionExecutor = postCommitActionExecutor;
+    }
+
+    /**
+     * Runs post-commit disposition actions for one saved encounter, in their own OpenMRS session, as the user who saved
+     * it (loaded again in that session). Each action runs even if an earlier one fails.
+     */
+    private class PostCommitActions implements Runnable {
+
+        private final List<PostCommitDispositionAction> actions;
+
+        private final Integer encounterId;
+
+        private final Integer dispositionGroupId;
+
+        private final Map<String, String[]> parameters;
+
+        private final Integer userId;
+
+        private final Locale locale;
+
+        PostCommitActions(List<PostCommitDispositionAction> actions, Integer encounterId, Integer dispositionGroupId, Map<String, String[]> parameters, Integer userId, Locale locale) {
+            this.actions = actions;
+            this.encounterId = encounterId;
+            this.dispositionGroupId = dispositionGroupId;
+            this.parameters = parameters;
+            this.userId = userId;
+            this.locale = locale;
+        }
+
+        @Override
+        public void run() {
+            Context.openSession();
+            try {
+                LoadedUserContext.become(userId, locale);
+                Encounter encounter = encounterService.getEncounter(encounterId);
+                Obs dispositionGroup = null;
+                for (Obs obs : encounter.getObsAtTopLevel(false)) {
+                    if (obs.getObsId() != null && obs.getObsId().equals(dispositionGroupId)) {
+                        dispositionGroup = obs;
+                    }
+                }
+                EncounterDomainWrapper encounterDomainWrapper = new EncounterDomainWrapper(encounter);
+                for (PostCommitDispositionAction action : actions) {
+                    try {
+                        action.action(encounterDomainWrapper, dispositionGroup, parameters);
+                    } catch (Exception ex) {
+                        log.error("Post-commit disposition action " + action.getClass().getName() + " failed for encounter " + encounterId, ex);
+                    }
+                }
+            } catch (Exception ex) {
+                log.error("Failed to run post-commit disposition actions for encounter " + encounterId, ex);
+            } finally {
+                Context.closeSession();
+            }
+        }
+
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EMR disposition action " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
 }
@@ -0,0 +1,30 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.openmrs.module.emrapi.disposition.actions.DispositionAction;
+
+/**
+ * A disposition action that isn't needed to save the consult note (e.g. sending a transfer notification), so that
+ * {@link ConsultService#saveConsultNote} runs it in the background, after the note's transaction commits, rather than
+ * making the clinician wait for it.
+ *
+ * When {@link #action} is called, it's on another thread, in its own OpenMRS session (as the user who saved the note),
+ * and it is given the saved encounter and disposition obs group, reloaded in that session. Changes it makes to the
+ * encounter are not saved unless the action saves them itself, and if it fails, the note remains saved.
+ */
+public interface PostCommitDispositionAction extends DispositionAction {
+
+}
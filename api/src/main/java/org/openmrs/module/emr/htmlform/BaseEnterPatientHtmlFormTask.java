@@ -19,6 +19,7 @@ import org.openmrs.api.FormService;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.emr.EmrContext;
 import org.openmrs.module.emr.task.BasePatientSpecificTaskDescriptor;
+import org.openmrs.module.emr.task.LocalizedLabelTaskDescriptor;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.ui.framework.UiUtils;
@@ -34,7 +35,7 @@ import java.io.IOException;
  * You may point to an existing HTML Form (by setting the formUuid property) or else have one be dynamically created
  * on the fly whenever this is task is selected (by setting formDefinitionFromUiResource)
  */
-public abstract class BaseEnterPatientHtmlFormTask extends BasePatientSpecificTaskDescriptor {
+public abstract class BaseEnterPatientHtmlFormTask extends BasePatientSpecificTaskDescriptor implements LocalizedLabelTaskDescriptor {
 
     @Autowired
     @Qualifier("uiUtils")
@@ -142,6 +143,14 @@ public abstract class BaseEnterPatientHtmlFormTask extends BasePatientSpecificTa
         }
     }
 
+    /**
+     * @return the code of the label's message, or null if the label is made from the form's name
+     */
+    @Override
+    public String getLabelCode() {
+        return labelCode;
+    }
+
     /**
      * Usually (unless formDefinitionFromUiResource is set and we are in UI development mode for that module) this will
      * cache the HTML Form's PK id, so subsequent loads are a bit faster.
@@ -203,6 +212,10 @@ public abstract class BaseEnterPatientHtmlFormTask extends BasePatientSpecificTa
         return formDefinitionFromUiResource;
     }
 
+    public String getFormDefinitionFromUiResource() {
+        return formDefinitionFromUiResource;
+    }
+
     public String getReturnUrl() {
         return returnUrl;
     }
@@ -0,0 +1,148 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.htmlform;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short-lived, in-memory record of recent HTML form submissions, by the submission key that the form was rendered with,
+ * so that a repeated submit of the same form (e.g. a double-click, or a retry on a slow network) gets the result of the
+ * first one, rather than creating a duplicate encounter.
+ *
+ * Only successful submissions are remembered (see {@link #complete}); if a submission fails or is rejected, it is
+ * {@link #abandon}ed, so the user can correct the form and submit it again with the same key.
+ */
+public class FormSubmissionRegistry {
+
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000;
+
+    public static final int DEFAULT_MAX_SUBMISSIONS = 10000;
+
+    private final long timeToLiveMillis;
+
+    private final Map<String, Submission> submissions;
+
+    public FormSubmissionRegistry() {
+        this(DEFAULT_MAX_SUBMISSIONS, DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    public FormSubmissionRegistry(final int maxSubmissions, long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        submissions = new LinkedHashMap<String, Submission>() {
+            /**
+             * Drops the oldest completed submission when there are too many. Submissions in progress are kept (even if
+             * that means going over maxSubmissions), or a repeat of one would be submitted again.
+             */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Submission> eldest) {
+                if (size() <= maxSubmissions) {
+                    return false;
+                }
+                for (Iterator<Submission> i = values().iterator(); i.hasNext(); ) {
+                    if (i.next().completed) {
+                        i.remove();
+                        break;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Starts a submission with the given key, unless there is already one
+     * @param key
+     * @return null if the caller should go ahead with the submission (and then call {@link #complete} or
+     * {@link #abandon}), otherwise the earlier submission with this key (which may still be in progress)
+     */
+    public synchronized Submission begin(String key) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Submission existing = submissions.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        submissions.put(key, new Submission(now));
+        return null;
+    }
+
+    /**
+     * Records that the submission with this key succeeded, so that repeats get the same result
+     * @param key
+     * @param result
+     */
+    public synchronized void complete(String key, Object result) {
+        Submission submission = submissions.get(key);
+        if (submission != null) {
+            submission.result = result;
+            submission.completed = true;
+        }
+    }
+
+    /**
+     * Forgets the submission with this key (because it failed or was rejected)
+     * @param key
+     */
+    public synchronized void abandon(String key) {
+        submissions.remove(key);
+    }
+
+    public synchronized int size() {
+        return submissions.size();
+    }
+
+    /**
+     * Submissions are kept in the order they began, so the expired ones are always at the start
+     */
+    private void expire(long now) {
+        for (Iterator<Submission> i = submissions.values().iterator(); i.hasNext(); ) {
+            if (now - i.next().began < timeToLiveMillis) {
+                break;
+            }
+            i.remove();
+        }
+    }
+
+    public static class Submission {
+
+        private final long began;
+
+        private volatile boolean completed = false;
+
+        private volatile Object result;
+
+        Submission(long began) {
+            this.began = began;
+        }
+
+        /**
+         * @return whether this submission succeeded (if false, it is still in progress)
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return the result of this submission, if it is completed
+         */
+        public Object getResult() {
+            return result;
+        }
+
+    }
+
+}
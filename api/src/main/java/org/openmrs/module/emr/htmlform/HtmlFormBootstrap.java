@@ -0,0 +1,129 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.htmlform;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.task.TaskDescriptor;
+import org.openmrs.ui.framework.resource.ResourceFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Syncs the HTML Forms that tasks define in UI resources (see
+ * {@link BaseEnterPatientHtmlFormTask#setFormDefinitionFromUiResource(String)}) to the database all at once, when the
+ * module starts, rather than one at a time on the first request that touches each task. Resources are read, hashed and
+ * parsed in parallel, and then any changed Forms and HtmlForms are saved in a single transaction.
+ *
+ * Resources from providers in development mode are skipped, since those are re-read on every request anyway.
+ */
+public class HtmlFormBootstrap {
+
+    public static final int THREADS = 4;
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private ResourceFactory resourceFactory;
+
+    private EmrService emrService;
+
+    public HtmlFormBootstrap(ResourceFactory resourceFactory, EmrService emrService) {
+        this.resourceFactory = resourceFactory;
+        this.emrService = emrService;
+    }
+
+    /**
+     * @param tasks
+     * @return the number of UI resources that were synced
+     */
+    public int bootstrap(Collection<TaskDescriptor> tasks) {
+        Map<String, List<BaseEnterPatientHtmlFormTask>> tasksByResource = new LinkedHashMap<String, List<BaseEnterPatientHtmlFormTask>>();
+        for (TaskDescriptor task : tasks) {
+            if (!(task instanceof BaseEnterPatientHtmlFormTask)) {
+                continue;
+            }
+            BaseEnterPatientHtmlFormTask htmlFormTask = (BaseEnterPatientHtmlFormTask) task;
+            String providerAndPath = htmlFormTask.getFormDefinitionFromUiResource();
+            if (providerAndPath == null || providerAndPath.indexOf(':') <= 0
+                    || resourceFactory.isResourceProviderInDevelopmentMode(providerAndPath.substring(0, providerAndPath.indexOf(':')))) {
+                continue;
+            }
+            List<BaseEnterPatientHtmlFormTask> list = tasksByResource.get(providerAndPath);
+            if (list == null) {
+                list = new ArrayList<BaseEnterPatientHtmlFormTask>();
+                tasksByResource.put(providerAndPath, list);
+            }
+            list.add(htmlFormTask);
+        }
+        if (tasksByResource.isEmpty()) {
+            return 0;
+        }
+
+        List<UiResourceHtmlForm> resources = readAndParse(tasksByResource.keySet());
+        Map<String, Integer> htmlFormIds = emrService.syncHtmlFormsFromUiResourcesInternal(resources);
+        for (Map.Entry<String, Integer> entry : htmlFormIds.entrySet()) {
+            for (BaseEnterPatientHtmlFormTask task : tasksByResource.get(entry.getKey())) {
+                task.setHtmlFormId(entry.getValue());
+            }
+        }
+        return htmlFormIds.size();
+    }
+
+    /**
+     * @return the resources that could be read and parsed (any that can't are logged, and left to be synced lazily,
+     * which will report the error)
+     */
+    private List<UiResourceHtmlForm> readAndParse(Collection<String> providerAndPaths) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, providerAndPaths.size()));
+        try {
+            Map<String, Future<UiResourceHtmlForm>> futures = new LinkedHashMap<String, Future<UiResourceHtmlForm>>();
+            for (final String providerAndPath : providerAndPaths) {
+                futures.put(providerAndPath, executor.submit(new Callable<UiResourceHtmlForm>() {
+                    @Override
+                    public UiResourceHtmlForm call() throws Exception {
+                        int ind = providerAndPath.indexOf(':');
+                        UiResourceHtmlForm resource = HtmlFormUtil.readUiResource(resourceFactory, providerAndPath.substring(0, ind), providerAndPath.substring(ind + 1));
+                        resource.parse();
+                        return resource;
+                    }
+                }));
+            }
+            List<UiResourceHtmlForm> resources = new ArrayList<UiResourceHtmlForm>();
+            for (Map.Entry<String, Future<UiResourceHtmlForm>> entry : futures.entrySet()) {
+                try {
+                    resources.add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    log.error("Failed to read HTML Form from UI resource " + entry.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return resources;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -14,24 +14,53 @@
 
 package org.openmrs.module.emr.htmlform;
 
+import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.Obs;
 import org.openmrs.api.FormService;
 import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryGenerator;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.ui.framework.resource.ResourceFactory;
 import org.openmrs.util.OpenmrsUtil;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
  */
 public class HtmlFormUtil {
 
+    /**
+     * For each UI resource we have synced to an HtmlForm: the hash of the resource's content at the time, and which
+     * HtmlForm (at which version) it produced
+     */
+    private static final ConcurrentMap<String, SyncedUiResource> syncedUiResources = new ConcurrentHashMap<String, SyncedUiResource>();
+
+    public static final int MAX_PREPARED_HTML_FORMS = 100;
+
+    /**
+     * For each HtmlForm we have prepared for a FormEntrySession: which version of it (i.e. its dateChanged) we prepared,
+     * and the resulting XML. Bounded and least-recently-used, like the other caches in this module.
+     */
+    private static final Map<Integer, PreparedXml> preparedXml = new LinkedHashMap<Integer, PreparedXml>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, PreparedXml> eldest) {
+            return size() > MAX_PREPARED_HTML_FORMS;
+        }
+    };
+
     public static HtmlForm getHtmlFormFromUiResource(ResourceFactory resourceFactory, FormService formService, HtmlFormEntryService htmlFormEntryService, String providerAndPath) throws IOException {
         int ind = providerAndPath.indexOf(':');
         String provider = providerAndPath.substring(0, ind);
@@ -40,22 +69,61 @@ public class HtmlFormUtil {
     }
 
     public static HtmlForm getHtmlFormFromUiResource(ResourceFactory resourceFactory, FormService formService, HtmlFormEntryService htmlFormEntryService, String providerName, String resourcePath) throws IOException {
-        String xml = resourceFactory.getResourceAsString(providerName, resourcePath);
-        // should be of the format <htmlform formUuid="..." formVersion="..." formEncounterType="...">...</htmlform>
+        UiResourceHtmlForm resource = readUiResource(resourceFactory, providerName, resourcePath);
+
+        // if neither the resource nor the form has changed since we last synced them, skip parsing and comparing the XML
+        boolean remember = !resourceFactory.isResourceProviderInDevelopmentMode(providerName);
+        if (remember) {
+            HtmlForm htmlForm = getSyncedHtmlForm(htmlFormEntryService, resource);
+            if (htmlForm != null) {
+                return htmlForm;
+            }
+        }
+        return syncUiResource(formService, htmlFormEntryService, resource, remember);
+    }
 
+    /**
+     * @param resourceFactory
+     * @param providerName
+     * @param resourcePath
+     * @return the content of the given UI resource (not yet parsed)
+     * @throws IOException
+     */
+    public static UiResourceHtmlForm readUiResource(ResourceFactory resourceFactory, String providerName, String resourcePath) throws IOException {
+        String xml = resourceFactory.getResourceAsString(providerName, resourcePath);
         if (xml == null) {
             throw new IllegalArgumentException("No resource found at " + providerName + ":" + resourcePath);
         }
+        return new UiResourceHtmlForm(providerName, resourcePath, xml);
+    }
+
+    /**
+     * @param htmlFormEntryService
+     * @param resource
+     * @return the HtmlForm we last synced from this resource, if neither has changed since, otherwise null
+     */
+    public static HtmlForm getSyncedHtmlForm(HtmlFormEntryService htmlFormEntryService, UiResourceHtmlForm resource) {
+        SyncedUiResource synced = syncedUiResources.get(resource.getProviderAndPath());
+        if (synced == null || !synced.contentHash.equals(resource.getContentHash())) {
+            return null;
+        }
+        HtmlForm htmlForm = htmlFormEntryService.getHtmlForm(synced.htmlFormId);
+        return synced.isUpToDate(htmlForm) ? htmlForm : null;
+    }
 
-        Form form = null;
+    /**
+     * Creates or updates the Form and HtmlForm defined by resource (parsing it if necessary)
+     * @param formService
+     * @param htmlFormEntryService
+     * @param resource
+     * @param remember whether to remember what we synced, so that {@link #getSyncedHtmlForm} can skip this next time
+     * @return the synced HtmlForm
+     */
+    public static HtmlForm syncUiResource(FormService formService, HtmlFormEntryService htmlFormEntryService, UiResourceHtmlForm resource, boolean remember) {
         try {
-            Document doc = HtmlFormEntryUtil.stringToDocument(xml);
-            Node htmlFormNode = HtmlFormEntryUtil.findChild(doc, "htmlform");
-            String formUuid = getAttributeValue(htmlFormNode, "formUuid");
-            if (formUuid == null) {
-                throw new IllegalArgumentException("formUuid is required");
-            }
-            form = formService.getFormByUuid(formUuid);
+            resource.parse();
+            String formUuid = resource.getFormUuid();
+            Form form = formService.getFormByUuid(formUuid);
             boolean needToSaveForm = false;
             if (form == null) {
                 form = new Form();
@@ -63,25 +131,25 @@ public class HtmlFormUtil {
                 needToSaveForm = true;
             }
 
-            String formName= getAttributeValue(htmlFormNode, "formName");
+            String formName = resource.getFormName();
             if (!OpenmrsUtil.nullSafeEquals(form.getName(), formName)) {
                 form.setName(formName);
                 needToSaveForm = true;
             }
 
-            String formDescription = getAttributeValue(htmlFormNode, "formDescription");
+            String formDescription = resource.getFormDescription();
             if (!OpenmrsUtil.nullSafeEquals(form.getDescription(), formDescription)) {
                 form.setDescription(formDescription);
                 needToSaveForm = true;
             }
 
-            String formVersion = getAttributeValue(htmlFormNode, "formVersion");
+            String formVersion = resource.getFormVersion();
             if (!OpenmrsUtil.nullSafeEquals(form.getVersion(), formVersion)) {
                 form.setVersion(formVersion);
                 needToSaveForm = true;
             }
 
-            String formEncounterType = getAttributeValue(htmlFormNode, "formEncounterType");
+            String formEncounterType = resource.getFormEncounterType();
             EncounterType encounterType = formEncounterType == null ? null : HtmlFormEntryUtil.getEncounterType(formEncounterType);
             if (encounterType != null && !OpenmrsUtil.nullSafeEquals(form.getEncounterType(), encounterType)) {
                 form.setEncounterType(encounterType);
@@ -99,13 +167,16 @@ public class HtmlFormUtil {
                 htmlForm.setForm(form);
                 needToSaveHtmlForm = true;
             }
-            if (!OpenmrsUtil.nullSafeEquals(htmlForm.getXmlData(), xml)) {
-                htmlForm.setXmlData(xml);
+            if (!OpenmrsUtil.nullSafeEquals(htmlForm.getXmlData(), resource.getXml())) {
+                htmlForm.setXmlData(resource.getXml());
                 needToSaveHtmlForm = true;
             }
             if (needToSaveHtmlForm) {
                 htmlFormEntryService.saveHtmlForm(htmlForm);
             }
+            if (remember) {
+                syncedUiResources.put(resource.getProviderAndPath(), new SyncedUiResource(resource.getContentHash(), htmlForm));
+            }
             return htmlForm;
 
         } catch (Exception e) {
@@ -113,9 +184,174 @@ public class HtmlFormUtil {
         }
     }
 
-    private static String getAttributeValue(Node htmlForm, String attributeName) {
-        Node item = htmlForm.getAttributes().getNamedItem(attributeName);
-        return item == null ? null : item.getNodeValue();
+    /**
+     * Forgets which UI resources have been synced, so the next call for each one parses and compares it again
+     */
+    public static void clearUiResourceCache() {
+        syncedUiResources.clear();
+    }
+
+    /**
+     * FormEntrySession runs a form's XML through several text-processing steps before handing it to the tag handlers.
+     * The ones that don't depend on the patient, user, encounter or session (character codes, comments, escaping within
+     * tests, macros and repeats) always give the same result for the same version of a form, so we do them once per
+     * version, and build sessions from a (transient, never to be saved) copy of the HtmlForm containing that prepared XML.
+     * FormEntrySession applies the same steps again, but they have nothing left to do.
+     *
+     * Role restrictions and translations are deliberately left to each session: the first depends on the current user,
+     * and the second fills in the session's own translator.
+     *
+     * @param htmlForm
+     * @return a copy of htmlForm whose XML has been prepared, or htmlForm itself if it hasn't been saved yet
+     * @throws Exception if the XML is invalid
+     */
+    public static HtmlForm getPreparedHtmlForm(HtmlForm htmlForm) throws Exception {
+        if (htmlForm.getId() == null) {
+            return htmlForm;
+        }
+        Long dateChanged = time(htmlForm.getDateChanged());
+        PreparedXml prepared;
+        synchronized (preparedXml) {
+            prepared = preparedXml.get(htmlForm.getId());
+        }
+        if (prepared == null || !prepared.isFor(dateChanged, htmlForm.getXmlData())) {
+            // prepared outside the lock; if two threads race to prepare the same form, they produce the same XML
+            prepared = new PreparedXml(dateChanged, htmlForm.getXmlData(), prepareXml(htmlForm.getXmlData()));
+            synchronized (preparedXml) {
+                preparedXml.put(htmlForm.getId(), prepared);
+            }
+        }
+
+        // a new copy each time, so it refers to this request's Form rather than one loaded in an earlier session
+        HtmlForm copy = new HtmlForm();
+        copy.setId(htmlForm.getId());
+        copy.setUuid(htmlForm.getUuid());
+        copy.setForm(htmlForm.getForm());
+        copy.setCreator(htmlForm.getCreator());
+        copy.setDateCreated(htmlForm.getDateCreated());
+        copy.setChangedBy(htmlForm.getChangedBy());
+        copy.setDateChanged(htmlForm.getDateChanged());
+        copy.setXmlData(prepared.xml);
+        return copy;
+    }
+
+    /**
+     * Forgets all prepared XML (which is also replaced automatically whenever a form's dateChanged changes)
+     */
+    public static void clearPreparedHtmlFormCache() {
+        synchronized (preparedXml) {
+            preparedXml.clear();
+        }
+    }
+
+    /**
+     * @param htmlForm
+     * @return when htmlForm was last changed (or created), in millis, for detecting that a form has changed between
+     * being displayed and submitted
+     */
+    public static long getModifiedTimestamp(HtmlForm htmlForm) {
+        return latest(0, htmlForm.getDateCreated(), htmlForm.getDateChanged());
+    }
+
+    /**
+     * @param encounter
+     * @return when encounter, or any of its obs, was last created, changed or voided, in millis, for detecting that
+     * someone else edited it between it being displayed and submitted
+     */
+    public static long getModifiedTimestamp(Encounter encounter) {
+        long timestamp = latest(0, encounter.getDateCreated(), encounter.getDateChanged());
+        for (Obs obs : encounter.getAllObs(true)) {
+            timestamp = latest(timestamp, obs.getDateCreated(), obs.getDateVoided());
+        }
+        return timestamp;
+    }
+
+    private static long latest(long timestamp, Date... dates) {
+        for (Date date : dates) {
+            if (date != null && date.getTime() > timestamp) {
+                timestamp = date.getTime();
+            }
+        }
+        return timestamp;
+    }
+
+    static String prepareXml(String xml) throws Exception {
+        HtmlFormEntryGenerator generator = new HtmlFormEntryGenerator();
+        xml = generator.substituteCharacterCodesWithAsciiCodes(xml);
+        xml = generator.stripComments(xml);
+        xml = generator.convertSpecialCharactersWithinLogicAndVelocityTests(xml);
+        xml = generator.applyMacros(xml);
+        xml = generator.applyRepeats(xml);
+        return xml;
+    }
+
+    /**
+     * (compared as millis, since a reloaded date may be a Timestamp, which doesn't equal a Date)
+     */
+    private static Long time(Date date) {
+        return date == null ? null : date.getTime();
+    }
+
+    static String hash(String xml) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(xml.getBytes("UTF-8"));
+            return new BigInteger(1, digest).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class SyncedUiResource {
+
+        private final String contentHash;
+
+        private final Integer htmlFormId;
+
+        private final Long htmlFormDateChanged;
+
+        private final Long formDateChanged;
+
+        SyncedUiResource(String contentHash, HtmlForm htmlForm) {
+            this.contentHash = contentHash;
+            this.htmlFormId = htmlForm.getId();
+            this.htmlFormDateChanged = time(htmlForm.getDateChanged());
+            this.formDateChanged = time(htmlForm.getForm().getDateChanged());
+        }
+
+        /**
+         * @return whether htmlForm (and its Form) are unchanged since we synced them from the resource
+         */
+        boolean isUpToDate(HtmlForm htmlForm) {
+            return htmlForm != null
+                    && OpenmrsUtil.nullSafeEquals(time(htmlForm.getDateChanged()), htmlFormDateChanged)
+                    && OpenmrsUtil.nullSafeEquals(time(htmlForm.getForm().getDateChanged()), formDateChanged);
+        }
+
+    }
+
+    private static class PreparedXml {
+
+        private final Long dateChanged;
+
+        private final String sourceXml;
+
+        private final String xml;
+
+        PreparedXml(Long dateChanged, String sourceXml, String xml) {
+            this.dateChanged = dateChanged;
+            this.sourceXml = sourceXml;
+            this.xml = xml;
+        }
+
+        /**
+         * (we compare the XML too, since dateChanged may only be stored to the second)
+         */
+        boolean isFor(Long dateChanged, String sourceXml) {
+            return OpenmrsUtil.nullSafeEquals(this.dateChanged, dateChanged) && OpenmrsUtil.nullSafeEquals(this.sourceXml, sourceXml);
+        }
+
     }
 
 }
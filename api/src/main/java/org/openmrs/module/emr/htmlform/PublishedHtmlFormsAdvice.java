@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.htmlform;
+
+import org.openmrs.Form;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to FormService and HtmlFormEntryService (by the module activator) to invalidate the task descriptors cached
+ * by a {@link PublishedHtmlFormsTaskFactory} whenever a Form or HtmlForm is saved (e.g. published), retired or purged.
+ * This happens once the transaction commits, since until then the factory would rebuild them from the old forms.
+ */
+public class PublishedHtmlFormsAdvice implements AfterReturningAdvice {
+
+    private PublishedHtmlFormsTaskFactory factory;
+
+    public PublishedHtmlFormsAdvice(PublishedHtmlFormsTaskFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire") || name.startsWith("purge") || name.startsWith("duplicate"))) {
+            return;
+        }
+        boolean formChanged = isForm(returnValue);
+        if (args != null) {
+            for (Object arg : args) {
+                formChanged |= isForm(arg);
+            }
+        }
+        if (formChanged) {
+            invalidateAfterCommit();
+        }
+    }
+
+    private void invalidateAfterCommit() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    factory.invalidate();
+                }
+            });
+        } else {
+            factory.invalidate();
+        }
+    }
+
+    private boolean isForm(Object o) {
+        return o instanceof Form || o instanceof HtmlForm;
+    }
+
+}
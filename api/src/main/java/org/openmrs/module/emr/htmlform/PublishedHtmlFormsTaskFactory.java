@@ -13,9 +13,12 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- *
+ * Offers a task for entering each published HTML Form. The task descriptors are built once and reused until an
+ * HtmlForm or Form is saved, retired or purged (see {@link PublishedHtmlFormsAdvice}).
  */
 public class PublishedHtmlFormsTaskFactory implements TaskFactory {
 
@@ -27,29 +30,83 @@ public class PublishedHtmlFormsTaskFactory implements TaskFactory {
     @Qualifier("htmlFormEntryService")
     private HtmlFormEntryService htmlFormEntryService;
 
+    /**
+     * Incremented whenever a form changes
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicReference<CachedDescriptors> cached = new AtomicReference<CachedDescriptors>();
+
     @Override
     public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
         if (emrContext.getCurrentPatient() == null) {
             return Collections.emptyList();
         }
-        List<TaskDescriptor> ret = new ArrayList<TaskDescriptor>();
         if (emrContext.getUserContext().hasPrivilege(PrivilegeConstants.FORM_ENTRY)) {
-            for (HtmlForm htmlForm : htmlFormEntryService.getAllHtmlForms()) {
-                if (htmlForm.getForm().getPublished()) {
-                    EnterHtmlFormWithOwnUiTask taskDescriptor = new EnterHtmlFormWithOwnUiTask() {
-                        @Override
-                        public boolean isAvailable(EmrContext context) {
-                            return true;
-                        }
-                    };
-                    taskDescriptor.setMessageSourceService(messageSourceService);
-                    taskDescriptor.setHtmlFormId(htmlForm.getId());
-                    taskDescriptor.setTiming(EntryTiming.REAL_TIME_OR_RETROSPECTIVE);
-                    ret.add(taskDescriptor);
-                }
+            return getDescriptors();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Discards the cached task descriptors, so they are rebuilt the next time they are needed
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    private List<TaskDescriptor> getDescriptors() {
+        long currentVersion = version.get();
+        CachedDescriptors current = cached.get();
+        if (current != null && current.version == currentVersion) {
+            return current.descriptors;
+        }
+        List<TaskDescriptor> built = buildDescriptors();
+        // if a form changed while we were building these, they are cached under a version that is already stale, so
+        // they won't be used again
+        cached.compareAndSet(current, new CachedDescriptors(currentVersion, built));
+        return built;
+    }
+
+    private List<TaskDescriptor> buildDescriptors() {
+        List<TaskDescriptor> ret = new ArrayList<TaskDescriptor>();
+        for (HtmlForm htmlForm : htmlFormEntryService.getAllHtmlForms()) {
+            if (htmlForm.getForm().getPublished()) {
+                EnterHtmlFormWithOwnUiTask taskDescriptor = new EnterHtmlFormWithOwnUiTask() {
+                    @Override
+                    public boolean isAvailable(EmrContext context) {
+                        return true;
+                    }
+                };
+                taskDescriptor.setMessageSourceService(messageSourceService);
+                taskDescriptor.setHtmlFormEntryService(htmlFormEntryService);
+                taskDescriptor.setHtmlFormId(htmlForm.getId());
+                taskDescriptor.setTiming(EntryTiming.REAL_TIME_OR_RETROSPECTIVE);
+                ret.add(taskDescriptor);
             }
         }
-        return ret;
+        return Collections.unmodifiableList(ret);
+    }
+
+    public void setMessageSourceService(MessageSourceService messageSourceService) {
+        this.messageSourceService = messageSourceService;
+    }
+
+    public void setHtmlFormEntryService(HtmlFormEntryService htmlFormEntryService) {
+        this.htmlFormEntryService = htmlFormEntryService;
+    }
+
+    private static class CachedDescriptors {
+
+        final long version;
+
+        final List<TaskDescriptor> descriptors;
+
+        CachedDescriptors(long version, List<TaskDescriptor> descriptors) {
+            this.version = version;
+            this.descriptors = descriptors;
+        }
+
     }
 
 }
@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.htmlform;
+
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * The definition of an HTML Form read from a UI resource, which should be of the format
+ * &lt;htmlform formUuid="..." formVersion="..." formEncounterType="..."&gt;...&lt;/htmlform&gt;
+ *
+ * Reading it (and hashing its content) and parsing its header don't touch the database, so these can be done on any
+ * thread; see {@link HtmlFormUtil#syncUiResource} for saving it as a Form and HtmlForm.
+ */
+public class UiResourceHtmlForm {
+
+    private final String providerName;
+
+    private final String resourcePath;
+
+    private final String xml;
+
+    private final String contentHash;
+
+    private boolean parsed = false;
+
+    private String formUuid;
+
+    private String formName;
+
+    private String formDescription;
+
+    private String formVersion;
+
+    private String formEncounterType;
+
+    public UiResourceHtmlForm(String providerName, String resourcePath, String xml) {
+        this.providerName = providerName;
+        this.resourcePath = resourcePath;
+        this.xml = xml;
+        this.contentHash = HtmlFormUtil.hash(xml);
+    }
+
+    /**
+     * Parses the attributes of the htmlform element (if this hasn't already been done)
+     * @throws Exception if the XML is invalid, or is missing formUuid
+     */
+    public synchronized void parse() throws Exception {
+        if (parsed) {
+            return;
+        }
+        Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+        Node htmlFormNode = HtmlFormEntryUtil.findChild(doc, "htmlform");
+        formUuid = getAttributeValue(htmlFormNode, "formUuid");
+        if (formUuid == null) {
+            throw new IllegalArgumentException("formUuid is required");
+        }
+        formName = getAttributeValue(htmlFormNode, "formName");
+        formDescription = getAttributeValue(htmlFormNode, "formDescription");
+        formVersion = getAttributeValue(htmlFormNode, "formVersion");
+        formEncounterType = getAttributeValue(htmlFormNode, "formEncounterType");
+        parsed = true;
+    }
+
+    public String getProviderName() {
+        return providerName;
+    }
+
+    public String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * @return e.g. "emr:htmlforms/vitals.xml"
+     */
+    public String getProviderAndPath() {
+        return providerName + ":" + resourcePath;
+    }
+
+    public String getXml() {
+        return xml;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public synchronized String getFormUuid() {
+        return formUuid;
+    }
+
+    public synchronized String getFormName() {
+        return formName;
+    }
+
+    public synchronized String getFormDescription() {
+        return formDescription;
+    }
+
+    public synchronized String getFormVersion() {
+        return formVersion;
+    }
+
+    public synchronized String getFormEncounterType() {
+        return formEncounterType;
+    }
+
+    private static String getAttributeValue(Node htmlForm, String attributeName) {
+        Node item = htmlForm.getAttributes().getNamedItem(attributeName);
+        return item == null ? null : item.getNodeValue();
+    }
+
+}
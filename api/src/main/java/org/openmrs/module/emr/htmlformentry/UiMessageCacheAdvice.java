@@ -0,0 +1,41 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.htmlformentry;
+
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to MessageSourceService (by the module activator) to clear the {@link UiMessageTagHandler}'s message cache
+ * whenever messages are added, removed or merged, or the active message source is replaced
+ */
+public class UiMessageCacheAdvice implements AfterReturningAdvice {
+
+    private UiMessageTagHandler handler;
+
+    public UiMessageCacheAdvice(UiMessageTagHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (name.equals("addPresentation") || name.equals("removePresentation") || name.equals("merge") || name.equals("setActiveMessageSource")) {
+            handler.clearCache();
+        }
+    }
+
+}
@@ -23,17 +23,38 @@ import org.openmrs.module.htmlformentry.FormSubmissionController;
 import org.openmrs.module.htmlformentry.handler.SubstitutionTagHandler;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Handles the &lt;uimessage code="..." arg0="..."/&gt; tag.
  *
+ * Messages looked up in the message source are cached by locale, code and arguments (up to
+ * {@link #MAX_CACHED_MESSAGES}, least-recently-used first out), since forms with many labels would otherwise format the
+ * same messages on every render. The module activator clears the cache whenever the message source changes (see
+ * {@link UiMessageCacheAdvice}) and when the context is refreshed. Lookups in a form's own &lt;translations&gt; go
+ * through the session's translator, and are never cached.
  */
 public class UiMessageTagHandler extends SubstitutionTagHandler {
 
+    public static final int MAX_CACHED_MESSAGES = 5000;
+
     MessageSourceService messageSourceService;
 
+    private final Map<String, String> messageCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_MESSAGES;
+        }
+    };
+
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    private final AtomicLong cacheMisses = new AtomicLong();
+
     public UiMessageTagHandler() {
         messageSourceService = Context.getMessageSourceService();
     }
@@ -73,9 +94,63 @@ public class UiMessageTagHandler extends SubstitutionTagHandler {
        }
 
        if (StringUtils.isBlank(message)) {
-            message = messageSourceService.getMessage(codeParam, args, locale);
+            message = getMessage(codeParam, args, locale);
        }
 
         return  message;
     }
+
+    private String getMessage(String code, Object[] args, Locale locale) {
+        String key = cacheKey(code, args, locale);
+        String message;
+        synchronized (messageCache) {
+            message = messageCache.get(key);
+        }
+        if (message != null) {
+            cacheHits.incrementAndGet();
+            return message;
+        }
+        cacheMisses.incrementAndGet();
+        message = messageSourceService.getMessage(code, args, locale);
+        if (message != null) {
+            synchronized (messageCache) {
+                messageCache.put(key, message);
+            }
+        }
+        return message;
+    }
+
+    private String cacheKey(String code, Object[] args, Locale locale) {
+        StringBuilder key = new StringBuilder().append(locale).append('|').append(code);
+        if (args != null) {
+            for (Object arg : args) {
+                key.append('\u0000').append(arg);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Forgets all cached messages (e.g. because the message source has changed)
+     */
+    public void clearCache() {
+        synchronized (messageCache) {
+            messageCache.clear();
+        }
+    }
+
+    /**
+     * @return how many message source lookups have been answered from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return how many message source lookups have missed the cache (and been made against the message source)
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Location;
+
+/**
+ * Position within a keyset-paginated patient search. Results are ordered by patientId, so the next page is simply
+ * "patientId greater than the last one we returned", which costs the same no matter how deep you page.
+ *
+ * Clients only ever see the encoded form, which also carries a fingerprint of the search it belongs to, so that a
+ * token can't silently be replayed against a different query.
+ */
+public class PatientSearchCursor {
+
+    private static final String SEPARATOR = ".";
+
+    private final Integer afterPatientId;
+
+    private final int fingerprint;
+
+    public PatientSearchCursor(String query, Location checkedInAt, Integer afterPatientId) {
+        this(afterPatientId, fingerprint(query, checkedInAt));
+    }
+
+    private PatientSearchCursor(Integer afterPatientId, int fingerprint) {
+        if (afterPatientId == null) {
+            throw new IllegalArgumentException("afterPatientId is required");
+        }
+        this.afterPatientId = afterPatientId;
+        this.fingerprint = fingerprint;
+    }
+
+    public Integer getAfterPatientId() {
+        return afterPatientId;
+    }
+
+    /**
+     * @return an opaque continuation token
+     */
+    public String encode() {
+        return Integer.toString(afterPatientId, Character.MAX_RADIX) + SEPARATOR + Integer.toHexString(fingerprint);
+    }
+
+    /**
+     * @param token as produced by {@link #encode()}
+     * @param query
+     * @param checkedInAt
+     * @return the cursor represented by token
+     * @throws IllegalArgumentException if the token is malformed, or was produced for a different search
+     */
+    public static PatientSearchCursor decode(String token, String query, Location checkedInAt) {
+        int ind = token.indexOf(SEPARATOR);
+        if (ind <= 0) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token);
+        }
+        PatientSearchCursor cursor;
+        try {
+            int afterPatientId = Integer.parseInt(token.substring(0, ind), Character.MAX_RADIX);
+            int fingerprint = (int) Long.parseLong(token.substring(ind + 1), 16);
+            cursor = new PatientSearchCursor(afterPatientId, fingerprint);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token, ex);
+        }
+        if (cursor.fingerprint != fingerprint(query, checkedInAt)) {
+            throw new IllegalArgumentException("Continuation token does not belong to this search");
+        }
+        return cursor;
+    }
+
+    private static int fingerprint(String query, Location checkedInAt) {
+        String normalized = StringUtils.isBlank(query) ? "" : query.trim().toLowerCase();
+        int hash = normalized.hashCode();
+        return 31 * hash + (checkedInAt == null || checkedInAt.getId() == null ? 0 : checkedInAt.getId());
+    }
+
+}
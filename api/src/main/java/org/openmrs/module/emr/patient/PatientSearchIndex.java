@@ -0,0 +1,682 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
+import org.openmrs.module.emr.utils.IntPostingList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Optional in-memory index for patient search, so that name and identifier searches can be answered without LIKE
+ * scans against the person_name table.
+ *
+ * Names are indexed by trigrams anchored at the start of each name part (e.g. "john" -> "^j", "^jo", "joh", "ohn"),
+ * and identifiers are kept in a map keyed on the lower-cased identifier and each of its prefixes (of at least
+ * {@link #MIN_IDENTIFIER_PREFIX_LENGTH} characters). Postings are primitive int lists of patient ids. The semantics are
+ * meant to match HibernateEmrDAO: a query containing a digit is an identifier search, otherwise every word in the query
+ * has to match the start of one of the patient's name parts. Identifier searches return exact matches first, followed
+ * by patients with an identifier that starts with the query (which the database search doesn't find).
+ *
+ * Results are ordered like the database search orders them, i.e. by given, middle and family name (of the patient's
+ * first name in that order), and then by patient id.
+ *
+ * The index is populated in bulk while warming up (see {@link #beginBulkLoad(Collection)}) and kept up to date
+ * incrementally as patients are saved and voided. Changes made while warming up are held back and applied once the
+ * bulk load finishes, since a batch read before the change could otherwise re-add what it replaced. Until it is ready,
+ * {@link #search(String, int)} returns null and callers should fall back to the database.
+ */
+public class PatientSearchIndex {
+
+    private static final char START_OF_WORD = '^';
+
+    /**
+     * Shorter prefixes of identifiers aren't indexed, so that e.g. a single digit doesn't match every patient
+     */
+    public static final int MIN_IDENTIFIER_PREFIX_LENGTH = 4;
+
+    private static final char NAME_PART_SEPARATOR = '\u0000';
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean enabled = false;
+
+    private volatile boolean ready = false;
+
+    private volatile long generation = 0;
+
+    private Set<Integer> identifierTypeIds = new HashSet<Integer>();
+
+    private Map<String, IntPostingList> nameGrams = new HashMap<String, IntPostingList>();
+
+    private Map<String, IntPostingList> identifiers = new HashMap<String, IntPostingList>();
+
+    private Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+    /**
+     * While bulk loading, postings are collected here (and not in nameGrams and identifiers)
+     */
+    private Map<String, IntPostingList.Builder> loadingNameGrams;
+
+    private Map<String, IntPostingList.Builder> loadingIdentifiers;
+
+    /**
+     * Changes to patients that arrived while bulk loading, to apply once it finishes
+     */
+    private Map<Integer, Update> pendingUpdates = new LinkedHashMap<Integer, Update>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * @return true if the index is enabled and has finished warming up
+     */
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * @return a counter that changes whenever any patient is (re)indexed or removed, or the index is cleared
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the index and marks it as warming up. Incremental updates are still accepted while warming up, but are
+     * only applied after {@link #finishBulkLoad()}.
+     * @param identifierTypesToSearch only identifiers of these types will be indexed
+     */
+    public void beginBulkLoad(Collection<PatientIdentifierType> identifierTypesToSearch) {
+        lock.writeLock().lock();
+        try {
+            clearInternal();
+            loadingNameGrams = new HashMap<String, IntPostingList.Builder>();
+            loadingIdentifiers = new HashMap<String, IntPostingList.Builder>();
+            identifierTypeIds = new HashSet<Integer>();
+            if (identifierTypesToSearch != null) {
+                for (PatientIdentifierType type : identifierTypesToSearch) {
+                    identifierTypeIds.add(type.getId());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds one name to a patient, during a bulk load (ignored otherwise, e.g. once the index has been cleared)
+     */
+    public void addName(int patientId, String... nameParts) {
+        lock.writeLock().lock();
+        try {
+            if (loadingNameGrams == null) {
+                return;
+            }
+            addNameInternal(getOrCreateEntry(patientId), patientId, nameParts);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds one identifier to a patient, during a bulk load (ignored otherwise, e.g. once the index has been cleared)
+     */
+    public void addIdentifier(int patientId, String identifier) {
+        lock.writeLock().lock();
+        try {
+            if (loadingNameGrams == null) {
+                return;
+            }
+            addIdentifierInternal(getOrCreateEntry(patientId), patientId, identifier);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds all posting lists, applies any changes that arrived while loading, and marks the index as ready
+     */
+    public void finishBulkLoad() {
+        lock.writeLock().lock();
+        try {
+            if (loadingNameGrams == null) {
+                return;
+            }
+            nameGrams = build(loadingNameGrams);
+            identifiers = build(loadingIdentifiers);
+            loadingNameGrams = null;
+            loadingIdentifiers = null;
+            for (Map.Entry<Integer, Update> pending : pendingUpdates.entrySet()) {
+                applyInternal(pending.getKey(), pending.getValue());
+            }
+            pendingUpdates.clear();
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearInternal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces whatever is indexed for this patient with its current non-voided names and identifiers (or removes
+     * it altogether if the patient is voided)
+     * @param patient
+     */
+    public void updatePatient(Patient patient) {
+        if (!enabled || patient == null || patient.getPatientId() == null) {
+            return;
+        }
+        int patientId = patient.getPatientId();
+
+        // read everything we need before taking the lock, since this may trigger lazy loading
+        List<String[]> names = new ArrayList<String[]>();
+        List<PatientIdentifier> patientIdentifiers = new ArrayList<PatientIdentifier>();
+        if (!patient.isVoided()) {
+            for (PersonName name : patient.getNames()) {
+                if (!name.isVoided()) {
+                    names.add(new String[] { name.getGivenName(), name.getMiddleName(), name.getFamilyName(), name.getFamilyName2() });
+                }
+            }
+            for (PatientIdentifier identifier : patient.getIdentifiers()) {
+                if (!identifier.isVoided() && identifier.getIdentifierType() != null) {
+                    patientIdentifiers.add(identifier);
+                }
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (patient.isVoided()) {
+                applyOrQueue(patientId, Update.REMOVE);
+                return;
+            }
+            List<String> identifierValues = new ArrayList<String>();
+            for (PatientIdentifier identifier : patientIdentifiers) {
+                if (identifierTypeIds.contains(identifier.getIdentifierType().getId())) {
+                    identifierValues.add(identifier.getIdentifier());
+                }
+            }
+            applyOrQueue(patientId, new Update(names, identifierValues));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removePatient(Integer patientId) {
+        if (!enabled || patientId == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            applyOrQueue(patientId, Update.REMOVE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param query
+     * @param maxResults
+     * @return ids of matching patients (in the order described above), or null if the index isn't ready to answer queries
+     */
+    public List<Integer> search(String query, int maxResults) {
+        return search(query, maxResults, null);
+    }
+
+    /**
+     * @param query
+     * @param maxResults
+     * @param amongPatientIds if not null, only these (sorted) patient ids may be returned
+     * @return ids of matching patients (in the order described above), or null if the index isn't ready to answer queries
+     */
+    public List<Integer> search(String query, int maxResults, int[] amongPatientIds) {
+        if (!isReady() || StringUtils.isBlank(query)) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            if (query.matches(".*\\d.*")) {
+                return searchByIdentifier(query, maxResults, amongPatientIds);
+            } else {
+                return searchByName(query, maxResults, amongPatientIds);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Integer> searchByIdentifier(String query, int maxResults, int[] amongPatientIds) {
+        final String identifier = normalize(query);
+        TopMatches results = new TopMatches(maxResults, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry left, Entry right) {
+                boolean leftExact = left.identifiers.contains(identifier);
+                boolean rightExact = right.identifiers.contains(identifier);
+                if (leftExact != rightExact) {
+                    return leftExact ? -1 : 1;
+                }
+                return BY_NAME.compare(left, right);
+            }
+        });
+        IntPostingList postings = identifiers.get(identifier);
+        if (postings != null) {
+            for (int i = 0; i < postings.size(); ++i) {
+                int patientId = postings.get(i);
+                if (amongPatientIds == null || Arrays.binarySearch(amongPatientIds, patientId) >= 0) {
+                    results.add(entries.get(patientId));
+                }
+            }
+        }
+        return results.getPatientIds();
+    }
+
+    private List<Integer> searchByName(String query, int maxResults, int[] amongPatientIds) {
+        String[] words = StringUtils.split(normalize(query));
+
+        Set<String> grams = new LinkedHashSet<String>();
+        for (String word : words) {
+            grams.addAll(grams(word));
+        }
+        List<IntPostingList> postings = new ArrayList<IntPostingList>();
+        for (String gram : grams) {
+            IntPostingList candidate = nameGrams.get(gram);
+            if (candidate == null) {
+                return new ArrayList<Integer>();
+            }
+            postings.add(candidate);
+        }
+        // walk the shortest list, and probe the others
+        Collections.sort(postings, new Comparator<IntPostingList>() {
+            @Override
+            public int compare(IntPostingList left, IntPostingList right) {
+                return left.size() - right.size();
+            }
+        });
+
+        // a restriction (e.g. to checked-in patients) is usually far smaller than any posting list, so walk that instead
+        IntPostingList shortest = postings.get(0);
+        boolean walkRestriction = amongPatientIds != null && amongPatientIds.length < shortest.size();
+        int toWalk = walkRestriction ? amongPatientIds.length : shortest.size();
+        int firstToProbe = walkRestriction ? 0 : 1;
+
+        TopMatches results = new TopMatches(maxResults, BY_NAME);
+        candidates:
+        for (int i = 0; i < toWalk; ++i) {
+            int patientId = walkRestriction ? amongPatientIds[i] : shortest.get(i);
+            if (!walkRestriction && amongPatientIds != null && Arrays.binarySearch(amongPatientIds, patientId) < 0) {
+                continue;
+            }
+            for (int j = firstToProbe; j < postings.size(); ++j) {
+                if (!postings.get(j).contains(patientId)) {
+                    continue candidates;
+                }
+            }
+            // grams can match across name parts, so check that every word starts some name part
+            Entry entry = entries.get(patientId);
+            if (entry.matchesAllWords(words)) {
+                results.add(entry);
+            }
+        }
+        return results.getPatientIds();
+    }
+
+    private void clearInternal() {
+        ++generation;
+        ready = false;
+        nameGrams = new HashMap<String, IntPostingList>();
+        identifiers = new HashMap<String, IntPostingList>();
+        entries = new HashMap<Integer, Entry>();
+        loadingNameGrams = null;
+        loadingIdentifiers = null;
+        pendingUpdates.clear();
+    }
+
+    private void applyOrQueue(int patientId, Update update) {
+        ++generation;
+        if (loadingNameGrams != null) {
+            pendingUpdates.remove(patientId);
+            pendingUpdates.put(patientId, update);
+        } else {
+            applyInternal(patientId, update);
+        }
+    }
+
+    private void applyInternal(int patientId, Update update) {
+        removeInternal(patientId);
+        if (update == Update.REMOVE) {
+            return;
+        }
+        Entry entry = getOrCreateEntry(patientId);
+        for (String[] nameParts : update.names) {
+            addNameInternal(entry, patientId, nameParts);
+        }
+        for (String identifier : update.identifiers) {
+            addIdentifierInternal(entry, patientId, identifier);
+        }
+    }
+
+    private Entry getOrCreateEntry(int patientId) {
+        Entry entry = entries.get(patientId);
+        if (entry == null) {
+            entry = new Entry(patientId);
+            entries.put(patientId, entry);
+        }
+        return entry;
+    }
+
+    private void addNameInternal(Entry entry, int patientId, String... nameParts) {
+        entry.addSortName(nameParts);
+        for (String namePart : nameParts) {
+            if (StringUtils.isBlank(namePart)) {
+                continue;
+            }
+            String normalized = normalize(namePart);
+            entry.nameParts.add(normalized);
+            for (String gram : indexedGrams(normalized)) {
+                addPosting(nameGrams, loadingNameGrams, gram, patientId);
+            }
+        }
+    }
+
+    private void addIdentifierInternal(Entry entry, int patientId, String identifier) {
+        if (StringUtils.isBlank(identifier)) {
+            return;
+        }
+        String normalized = normalize(identifier);
+        entry.identifiers.add(normalized);
+        for (String key : identifierKeys(normalized)) {
+            addPosting(identifiers, loadingIdentifiers, key, patientId);
+        }
+    }
+
+    /**
+     * Adds to the builder in loading if we're bulk loading, otherwise replaces the posting list in map
+     */
+    private void addPosting(Map<String, IntPostingList> map, Map<String, IntPostingList.Builder> loading, String key, int patientId) {
+        if (loading != null) {
+            IntPostingList.Builder builder = loading.get(key);
+            if (builder == null) {
+                builder = new IntPostingList.Builder();
+                loading.put(key, builder);
+            }
+            builder.add(patientId);
+        } else {
+            IntPostingList postings = map.get(key);
+            map.put(key, postings == null ? new IntPostingList(patientId) : postings.with(patientId));
+        }
+    }
+
+    private void removeInternal(int patientId) {
+        Entry entry = entries.remove(patientId);
+        if (entry == null) {
+            return;
+        }
+        for (String namePart : entry.nameParts) {
+            for (String gram : indexedGrams(namePart)) {
+                removePosting(nameGrams, gram, patientId);
+            }
+        }
+        for (String identifier : entry.identifiers) {
+            for (String key : identifierKeys(identifier)) {
+                removePosting(identifiers, key, patientId);
+            }
+        }
+    }
+
+    private void removePosting(Map<String, IntPostingList> map, String key, int patientId) {
+        IntPostingList postings = map.get(key);
+        if (postings != null) {
+            postings = postings.without(patientId);
+            if (postings.isEmpty()) {
+                map.remove(key);
+            } else {
+                map.put(key, postings);
+            }
+        }
+    }
+
+    private static Map<String, IntPostingList> build(Map<String, IntPostingList.Builder> builders) {
+        Map<String, IntPostingList> built = new HashMap<String, IntPostingList>(builders.size() * 2);
+        for (Map.Entry<String, IntPostingList.Builder> entry : builders.entrySet()) {
+            built.put(entry.getKey(), entry.getValue().build());
+        }
+        return built;
+    }
+
+    private static String normalize(String s) {
+        return s.trim().toLowerCase();
+    }
+
+    /**
+     * @param word (already normalized)
+     * @return trigrams of the word, anchored at its start (a one-letter word yields a single two-character gram)
+     */
+    static Set<String> grams(String word) {
+        Set<String> grams = new LinkedHashSet<String>();
+        String anchored = START_OF_WORD + word;
+        if (anchored.length() < 3) {
+            grams.add(anchored);
+        } else {
+            for (int i = 0; i + 3 <= anchored.length(); ++i) {
+                grams.add(anchored.substring(i, i + 3));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * @param word (already normalized)
+     * @return the grams we index for a name part, which also include its first letter so one-letter queries work
+     */
+    static Set<String> indexedGrams(String word) {
+        Set<String> grams = grams(word);
+        grams.add(START_OF_WORD + word.substring(0, 1));
+        return grams;
+    }
+
+    /**
+     * @param identifier (already normalized)
+     * @return the keys we index an identifier under: itself, and its prefixes that are long enough
+     */
+    static Set<String> identifierKeys(String identifier) {
+        Set<String> keys = new LinkedHashSet<String>();
+        keys.add(identifier);
+        for (int length = MIN_IDENTIFIER_PREFIX_LENGTH; length < identifier.length(); ++length) {
+            keys.add(identifier.substring(0, length));
+        }
+        return keys;
+    }
+
+    /**
+     * Orders entries like the database search does, by name and then by patient id (patients without a name last)
+     */
+    private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry left, Entry right) {
+            if (left.sortName == null || right.sortName == null) {
+                if (left.sortName != right.sortName) {
+                    return left.sortName == null ? 1 : -1;
+                }
+            } else {
+                int byName = left.sortName.compareTo(right.sortName);
+                if (byName != 0) {
+                    return byName;
+                }
+            }
+            return left.patientId < right.patientId ? -1 : (left.patientId == right.patientId ? 0 : 1);
+        }
+    };
+
+    /**
+     * Keeps the first maxResults entries added (according to the given order), without sorting all of them
+     */
+    private static class TopMatches {
+
+        private final int maxResults;
+
+        private final Comparator<Entry> order;
+
+        private final PriorityQueue<Entry> worstFirst;
+
+        TopMatches(int maxResults, Comparator<Entry> order) {
+            this.maxResults = maxResults;
+            this.order = order;
+            this.worstFirst = new PriorityQueue<Entry>(Math.max(1, Math.min(maxResults, 1024)), Collections.reverseOrder(order));
+        }
+
+        void add(Entry entry) {
+            if (maxResults <= 0) {
+                return;
+            }
+            if (worstFirst.size() < maxResults) {
+                worstFirst.add(entry);
+            } else if (order.compare(entry, worstFirst.peek()) < 0) {
+                worstFirst.poll();
+                worstFirst.add(entry);
+            }
+        }
+
+        List<Integer> getPatientIds() {
+            List<Entry> sorted = new ArrayList<Entry>(worstFirst);
+            Collections.sort(sorted, order);
+            List<Integer> patientIds = new ArrayList<Integer>(sorted.size());
+            for (Entry entry : sorted) {
+                patientIds.add(entry.patientId);
+            }
+            return patientIds;
+        }
+
+    }
+
+    /**
+     * A patient's current names and identifiers (to be indexed), or {@link #REMOVE}
+     */
+    private static class Update {
+
+        static final Update REMOVE = new Update(Collections.<String[]>emptyList(), Collections.<String>emptyList());
+
+        final List<String[]> names;
+
+        final List<String> identifiers;
+
+        Update(List<String[]> names, List<String> identifiers) {
+            this.names = names;
+            this.identifiers = identifiers;
+        }
+
+    }
+
+    /**
+     * What is indexed for a single patient, so that we can verify candidates and remove stale postings
+     */
+    private static class Entry {
+
+        private final int patientId;
+
+        private List<String> nameParts = new ArrayList<String>(4);
+
+        private List<String> identifiers = new ArrayList<String>(1);
+
+        /**
+         * Given, middle and family name of the patient's first name in that order (or null if the patient has no name)
+         */
+        private String sortName;
+
+        Entry(int patientId) {
+            this.patientId = patientId;
+        }
+
+        /**
+         * @param nameParts given name, middle name, family name (and family name 2)
+         */
+        void addSortName(String... nameParts) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 3; ++i) {
+                if (i > 0) {
+                    sb.append(NAME_PART_SEPARATOR);
+                }
+                if (i < nameParts.length && nameParts[i] != null) {
+                    sb.append(normalize(nameParts[i]));
+                }
+            }
+            String name = sb.toString();
+            if (sortName == null || name.compareTo(sortName) < 0) {
+                sortName = name;
+            }
+        }
+
+        boolean matchesAllWords(String[] words) {
+            for (String word : words) {
+                boolean matched = false;
+                for (String namePart : nameParts) {
+                    if (namePart.startsWith(word)) {
+                        matched = true;
+                        break;
+                    }
+                }
+                if (!matched) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
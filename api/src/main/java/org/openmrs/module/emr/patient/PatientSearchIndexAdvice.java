@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to PatientService (by the module activator) to keep the {@link PatientSearchIndex} up to date as patients
+ * and their identifiers are saved, voided, merged and purged.
+ */
+public class PatientSearchIndexAdvice implements AfterReturningAdvice {
+
+    private PatientSearchIndex index;
+
+    public PatientSearchIndexAdvice(PatientSearchIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid") || name.startsWith("purge") || name.startsWith("merge"))) {
+            return;
+        }
+        boolean purge = name.startsWith("purge");
+        if (args != null) {
+            for (Object arg : args) {
+                handle(arg, purge);
+            }
+        }
+        handle(returnValue, purge);
+    }
+
+    private void handle(Object o, boolean purge) {
+        Patient patient = null;
+        if (o instanceof Patient) {
+            patient = (Patient) o;
+        } else if (o instanceof PatientIdentifier) {
+            patient = ((PatientIdentifier) o).getPatient();
+            // purging an identifier doesn't purge its patient
+            purge = false;
+        }
+        if (patient == null) {
+            return;
+        }
+        if (purge) {
+            index.removePatient(patient.getPatientId());
+        } else {
+            index.updatePatient(patient);
+        }
+    }
+
+}
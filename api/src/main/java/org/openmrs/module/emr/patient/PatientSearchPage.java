@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import java.util.List;
+
+/**
+ * One batch of a keyset-paginated patient search
+ * @see PatientSearchCursor
+ */
+public class PatientSearchPage {
+
+    private List<PatientSearchResult> results;
+
+    private String continuationToken;
+
+    public PatientSearchPage(List<PatientSearchResult> results, String continuationToken) {
+        this.results = results;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<PatientSearchResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return pass this back to fetch the next page, or null if this is the last page
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+
+}
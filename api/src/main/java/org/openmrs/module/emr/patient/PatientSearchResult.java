@@ -0,0 +1,236 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lightweight projection of the patient columns needed to display a patient search result (including the preferred
+ * name and primary identifiers), so that searches don't have to hydrate full Patient objects
+ */
+public class PatientSearchResult {
+
+    private Integer patientId;
+
+    private String uuid;
+
+    private String gender;
+
+    private Date birthdate;
+
+    private Boolean birthdateEstimated;
+
+    private Date deathDate;
+
+    private String prefix;
+
+    private String givenName;
+
+    private String middleName;
+
+    private String familyNamePrefix;
+
+    private String familyName;
+
+    private String familyName2;
+
+    private String familyNameSuffix;
+
+    private String degree;
+
+    private List<String> primaryIdentifiers = new ArrayList<String>();
+
+    public PatientSearchResult() {
+    }
+
+    public PatientSearchResult(Integer patientId) {
+        this.patientId = patientId;
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(Integer patientId) {
+        this.patientId = patientId;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public void setGender(String gender) {
+        this.gender = gender;
+    }
+
+    public Date getBirthdate() {
+        return birthdate;
+    }
+
+    public void setBirthdate(Date birthdate) {
+        this.birthdate = birthdate;
+    }
+
+    public Boolean getBirthdateEstimated() {
+        return birthdateEstimated;
+    }
+
+    public void setBirthdateEstimated(Boolean birthdateEstimated) {
+        this.birthdateEstimated = birthdateEstimated;
+    }
+
+    public Date getDeathDate() {
+        return deathDate;
+    }
+
+    public void setDeathDate(Date deathDate) {
+        this.deathDate = deathDate;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    public void setGivenName(String givenName) {
+        this.givenName = givenName;
+    }
+
+    public String getMiddleName() {
+        return middleName;
+    }
+
+    public void setMiddleName(String middleName) {
+        this.middleName = middleName;
+    }
+
+    public String getFamilyNamePrefix() {
+        return familyNamePrefix;
+    }
+
+    public void setFamilyNamePrefix(String familyNamePrefix) {
+        this.familyNamePrefix = familyNamePrefix;
+    }
+
+    public String getFamilyName() {
+        return familyName;
+    }
+
+    public void setFamilyName(String familyName) {
+        this.familyName = familyName;
+    }
+
+    public String getFamilyName2() {
+        return familyName2;
+    }
+
+    public void setFamilyName2(String familyName2) {
+        this.familyName2 = familyName2;
+    }
+
+    public String getFamilyNameSuffix() {
+        return familyNameSuffix;
+    }
+
+    public void setFamilyNameSuffix(String familyNameSuffix) {
+        this.familyNameSuffix = familyNameSuffix;
+    }
+
+    public String getDegree() {
+        return degree;
+    }
+
+    public void setDegree(String degree) {
+        this.degree = degree;
+    }
+
+    /**
+     * Built the same way as {@link org.openmrs.PersonName#getFullName()}
+     * @return the preferred name, as a single string
+     */
+    public String getFullName() {
+        List<String> parts = new ArrayList<String>();
+        for (String part : new String[] { prefix, givenName, middleName, familyNamePrefix, familyName, familyName2, familyNameSuffix, degree }) {
+            if (StringUtils.isNotBlank(part)) {
+                parts.add(part);
+            }
+        }
+        return StringUtils.join(parts, " ");
+    }
+
+    /**
+     * @return values of the patient's non-voided identifiers of the primary identifier type
+     */
+    public List<String> getPrimaryIdentifiers() {
+        return primaryIdentifiers;
+    }
+
+    public void setPrimaryIdentifiers(List<String> primaryIdentifiers) {
+        this.primaryIdentifiers = primaryIdentifiers;
+    }
+
+    public void addPrimaryIdentifier(String identifier) {
+        primaryIdentifiers.add(identifier);
+    }
+
+    /**
+     * Computed the same way as {@link org.openmrs.Person#getAge()}
+     * @return age in years as of today (or as of the death date), or null if birthdate is unknown
+     */
+    public Integer getAge() {
+        if (birthdate == null) {
+            return null;
+        }
+
+        Calendar today = Calendar.getInstance();
+        if (deathDate != null && today.getTime().after(deathDate)) {
+            today.setTime(deathDate);
+        }
+
+        Calendar bday = Calendar.getInstance();
+        bday.setTime(birthdate);
+
+        int age = today.get(Calendar.YEAR) - bday.get(Calendar.YEAR);
+
+        // adjust age when today's date is before the person's birthday
+        int todaysMonth = today.get(Calendar.MONTH);
+        int bdayMonth = bday.get(Calendar.MONTH);
+        if (todaysMonth < bdayMonth || (todaysMonth == bdayMonth && today.get(Calendar.DAY_OF_MONTH) < bday.get(Calendar.DAY_OF_MONTH))) {
+            age--;
+        }
+        return age;
+    }
+
+}
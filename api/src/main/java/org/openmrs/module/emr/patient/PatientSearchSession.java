@@ -0,0 +1,185 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Location;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tracks the search-as-you-type patient searches made by one user (we keep one of these in each HTTP session), so
+ * that:
+ * <ul>
+ *     <li>starting a new search cancels the database query of the previous one, whose results nobody will see</li>
+ *     <li>a search that narrows the previous one (e.g. "jo" then "joh") only looks among the previous matches, as
+ *     long as we know all of those, the previous search was moments ago (i.e. in the same burst of typing), and no
+ *     patient or active visit has changed since then (see the dataGeneration arguments)</li>
+ * </ul>
+ * Each search calls {@link #begin()} to get a ticket, and passes it to the other methods; anything done with a ticket
+ * that has been superseded by a newer search is ignored.
+ */
+public class PatientSearchSession implements Serializable {
+
+    public static final String HTTP_SESSION_ATTRIBUTE = "emr.patientSearchSession";
+
+    public static final long DEFAULT_CANDIDATES_MAX_AGE_MILLIS = 5 * 1000;
+
+    /**
+     * Cancels a running database query (possibly from another thread)
+     */
+    public interface QueryCanceller {
+        void cancel();
+    }
+
+    private long latestTicket;
+
+    private transient QueryCanceller inFlight;
+
+    private String lastQuery;
+
+    private Integer lastVisitLocationId;
+
+    private int[] lastMatches;
+
+    private long lastFinishedAt;
+
+    private long lastDataGeneration;
+
+    private final long candidatesMaxAgeMillis;
+
+    public PatientSearchSession() {
+        this(DEFAULT_CANDIDATES_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param candidatesMaxAgeMillis how long the matches of a search may be used to narrow the next one
+     */
+    public PatientSearchSession(long candidatesMaxAgeMillis) {
+        this.candidatesMaxAgeMillis = candidatesMaxAgeMillis;
+    }
+
+    /**
+     * Starts a new search, cancelling the query of the previous one if it's still running
+     * @return a ticket for the new search
+     */
+    public synchronized long begin() {
+        ++latestTicket;
+        if (inFlight != null) {
+            inFlight.cancel();
+            inFlight = null;
+        }
+        return latestTicket;
+    }
+
+    /**
+     * @param ticket
+     * @return whether ticket belongs to the most recent search
+     */
+    public synchronized boolean isCurrent(long ticket) {
+        return ticket == latestTicket;
+    }
+
+    /**
+     * Call this just before running the database query for a search
+     * @param ticket
+     * @param canceller will be used to cancel the query if another search starts before it finishes
+     * @return false if a newer search has already started, in which case don't bother running the query
+     */
+    public synchronized boolean queryStarting(long ticket, QueryCanceller canceller) {
+        if (ticket != latestTicket) {
+            return false;
+        }
+        inFlight = canceller;
+        return true;
+    }
+
+    /**
+     * Call this once a search has found its matches
+     * @param ticket
+     * @param query
+     * @param visitLocation the location the search was restricted to patients checked in at, or null
+     * @param matches ids of matching patients
+     * @param complete true if matches contains every matching patient (rather than being truncated)
+     * @param dataGeneration a counter that changes whenever patients or active visits change, read before searching
+     */
+    public synchronized void finished(long ticket, String query, Location visitLocation, Collection<Integer> matches, boolean complete, long dataGeneration) {
+        if (ticket != latestTicket) {
+            return;
+        }
+        inFlight = null;
+        lastQuery = normalize(query);
+        lastVisitLocationId = visitLocation == null ? null : visitLocation.getId();
+        lastFinishedAt = System.currentTimeMillis();
+        lastDataGeneration = dataGeneration;
+        if (complete) {
+            lastMatches = new int[matches.size()];
+            int i = 0;
+            for (Integer patientId : matches) {
+                lastMatches[i++] = patientId;
+            }
+            Arrays.sort(lastMatches);
+        } else {
+            lastMatches = null;
+        }
+    }
+
+    /**
+     * Call this if a search fails
+     * @param ticket
+     */
+    public synchronized void failed(long ticket) {
+        if (ticket != latestTicket) {
+            return;
+        }
+        inFlight = null;
+        lastQuery = null;
+        lastMatches = null;
+    }
+
+    /**
+     * Name searches match each word against the start (or middle) of a name, so adding characters or words to a query
+     * can only remove matches. (Identifier searches are exact, so this doesn't apply to them.)
+     * @param query
+     * @param visitLocation
+     * @param dataGeneration the current value of the counter passed to {@link #finished}
+     * @return sorted ids of patients that every match for query must be among, or null if we can't tell
+     */
+    public synchronized int[] getCandidatesFor(String query, Location visitLocation, long dataGeneration) {
+        if (lastMatches == null) {
+            return null;
+        }
+        if (dataGeneration != lastDataGeneration || System.currentTimeMillis() - lastFinishedAt >= candidatesMaxAgeMillis) {
+            // e.g. a matching patient may have been registered or checked in since
+            return null;
+        }
+        Integer visitLocationId = visitLocation == null ? null : visitLocation.getId();
+        if (visitLocationId == null ? lastVisitLocationId != null : !visitLocationId.equals(lastVisitLocationId)) {
+            return null;
+        }
+        String normalized = normalize(query);
+        if (!normalized.startsWith(lastQuery) || normalized.matches(".*\\d.*")) {
+            return null;
+        }
+        return lastMatches;
+    }
+
+    private String normalize(String query) {
+        return query == null ? "" : StringUtils.join(StringUtils.split(query.toLowerCase()), " ");
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.openmrs.PatientIdentifierType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded, least-recently-used cache of identifier -> patientId, so that repeatedly scanning the same barcode (e.g.
+ * at registration, then at each station the patient visits) doesn't have to query the database each time.
+ *
+ * Only hits are cached, so a newly-registered identifier is found as soon as it's saved. Entries for a patient are
+ * evicted whenever that patient or any of their identifiers changes (see {@link PrimaryIdentifierCacheAdvice}), so we
+ * also keep the cached keys of each patient, to find them without scanning the whole cache.
+ */
+public class PrimaryIdentifierCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final Map<String, Integer> cache;
+
+    private final Map<Integer, Set<String>> keysByPatient = new HashMap<Integer, Set<String>>();
+
+    public PrimaryIdentifierCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public PrimaryIdentifierCache(final int maxSize) {
+        cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                if (size() > maxSize) {
+                    removeKey(eldest.getValue(), eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param identifierType
+     * @param identifier
+     * @return the id of the patient with this identifier, or null if it isn't cached
+     */
+    public synchronized Integer get(PatientIdentifierType identifierType, String identifier) {
+        return cache.get(key(identifierType, identifier));
+    }
+
+    public synchronized void put(PatientIdentifierType identifierType, String identifier, Integer patientId) {
+        String key = key(identifierType, identifier);
+        Integer previous = cache.put(key, patientId);
+        if (previous != null) {
+            removeKey(previous, key);
+        }
+        Set<String> keys = keysByPatient.get(patientId);
+        if (keys == null) {
+            keys = new HashSet<String>(2);
+            keysByPatient.put(patientId, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Evicts all cached identifiers that point to this patient
+     * @param patientId
+     */
+    public synchronized void evictPatient(Integer patientId) {
+        Set<String> keys = keysByPatient.remove(patientId);
+        if (keys != null) {
+            for (String key : keys) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        keysByPatient.clear();
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    private void removeKey(Integer patientId, String key) {
+        Set<String> keys = keysByPatient.get(patientId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByPatient.remove(patientId);
+            }
+        }
+    }
+
+    private String key(PatientIdentifierType identifierType, String identifier) {
+        return identifierType.getId() + ":" + identifier;
+    }
+
+}
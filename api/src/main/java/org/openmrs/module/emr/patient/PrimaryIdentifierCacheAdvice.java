@@ -0,0 +1,77 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to PatientService (by the module activator) to evict patients from the {@link PrimaryIdentifierCache} when
+ * they or their identifiers are saved, voided, merged or purged. This happens once the transaction commits, since until
+ * then a concurrent lookup would read (and cache) the old identifiers again.
+ */
+public class PrimaryIdentifierCacheAdvice implements AfterReturningAdvice {
+
+    private PrimaryIdentifierCache cache;
+
+    public PrimaryIdentifierCacheAdvice(PrimaryIdentifierCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid") || name.startsWith("purge") || name.startsWith("merge"))) {
+            return;
+        }
+        if (args != null) {
+            for (Object arg : args) {
+                handle(arg);
+            }
+        }
+        handle(returnValue);
+    }
+
+    private void handle(Object o) {
+        Patient patient = null;
+        if (o instanceof Patient) {
+            patient = (Patient) o;
+        } else if (o instanceof PatientIdentifier) {
+            patient = ((PatientIdentifier) o).getPatient();
+        }
+        if (patient != null && patient.getPatientId() != null) {
+            evictAfterCommit(patient.getPatientId());
+        }
+    }
+
+    private void evictAfterCommit(final Integer patientId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    cache.evictPatient(patientId);
+                }
+            });
+        } else {
+            cache.evictPatient(patientId);
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.task;
+
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to UserService (by the module activator) to clear the {@link TaskService}'s cache of which tasks each set of
+ * roles has access to, whenever roles or privileges are saved or purged
+ */
+public class AvailableTasksCacheAdvice implements AfterReturningAdvice {
+
+    private TaskService taskService;
+
+    public AvailableTasksCacheAdvice(TaskService taskService) {
+        this.taskService = taskService;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (name.equals("saveRole") || name.equals("purgeRole") || name.equals("savePrivilege") || name.equals("purgePrivilege")) {
+            taskService.clearAvailableTasksCacheInternal();
+        }
+    }
+
+}
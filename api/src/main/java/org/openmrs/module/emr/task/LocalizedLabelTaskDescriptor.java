@@ -0,0 +1,28 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.task;
+
+/**
+ * A {@link TaskDescriptor} whose label may be just a message looked up by its code in the user's locale, so that
+ * {@link TaskService} may cache it per code and locale.
+ */
+public interface LocalizedLabelTaskDescriptor extends TaskDescriptor {
+
+    /**
+     * @return the code of the message that is this task's label, or null if its label depends on anything else (in which
+     * case it isn't cached)
+     */
+    String getLabelCode();
+
+}
@@ -23,7 +23,7 @@ import org.springframework.beans.factory.annotation.Qualifier;
  * Simple implementation of TaskDescriptor. Typically you'd instantiate one or more of these as Spring beans in your
  * moduleApplicationContext.xml file.
  */
-public class SimpleTaskDescriptor extends BaseTaskDescriptor implements TaskDescriptor {
+public class SimpleTaskDescriptor extends BaseTaskDescriptor implements LocalizedLabelTaskDescriptor {
 
     @Autowired
     @Qualifier("messageSourceService")
@@ -88,6 +88,11 @@ public class SimpleTaskDescriptor extends BaseTaskDescriptor implements TaskDesc
         this.tinyIconUrl = tinyIconUrl;
     }
 
+    @Override
+    public String getLabelCode() {
+        return labelCode;
+    }
+
     /**
      * @param labelCode code a messages.properties file for this task's label
      */
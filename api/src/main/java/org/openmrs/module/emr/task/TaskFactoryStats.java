@@ -0,0 +1,83 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency metrics for one {@link TaskFactory}, so that slow factories can be found
+ */
+public class TaskFactoryStats {
+
+    private final AtomicLong invocations = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param nanos how long one call to the factory took (whether or not anyone waited for it)
+     */
+    public void recordInvocation(long nanos) {
+        invocations.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    public void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    public long getInvocations() {
+        return invocations.get();
+    }
+
+    public double getAverageMillis() {
+        long count = invocations.get();
+        return count == 0 ? 0d : totalNanos.get() / 1000000d / count;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000d;
+    }
+
+    /**
+     * @return how many times we stopped waiting for this factory and used its last good result instead
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return invocations.get() + " calls, avg " + getAverageMillis() + " ms, max " + getMaxMillis() + " ms, "
+                + timeouts.get() + " timeouts, " + failures.get() + " failures";
+    }
+
+}
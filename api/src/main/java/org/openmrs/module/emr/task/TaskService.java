@@ -20,6 +20,7 @@ import org.openmrs.module.emr.EmrContext;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * API functionality related to Tasks
@@ -56,6 +57,30 @@ public interface TaskService extends OpenmrsService {
      */
     void setAllTaskFactoriesInternal(List<TaskFactory> taskFactories);
 
+    /**
+     * Clears the cached lists of which (context-independent) tasks each set of roles has access to. Call this when
+     * roles or privileges change.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     */
+    void clearAvailableTasksCacheInternal();
+
+    /**
+     * If timeoutMillis is positive, task factories are run in parallel (on a small thread pool), and any factory that
+     * takes longer than this is given up on for this request (its last good result is used instead). Otherwise they
+     * are run one after another in the requesting thread.
+     *
+     * This is a utility method intended for internal use by this module. Do not call it yourself from client code.
+     *
+     * @param timeoutMillis
+     */
+    void setTaskFactoryTimeoutInternal(long timeoutMillis);
+
+    /**
+     * @return latency metrics for each task factory, keyed by its class name
+     */
+    Map<String, TaskFactoryStats> getTaskFactoryStats();
+
 
     /**
      *
@@ -64,4 +89,14 @@ public interface TaskService extends OpenmrsService {
      * @return all tasks available for the given context and the given extension point
      */
     List<TaskDescriptor> getAvailableTasksByExtensionPoint(EmrContext context, ExtensionPoint extensionPoint);
+
+    /**
+     * Like {@link #getAvailableTasksByExtensionPoint}, but evaluates each task's label, URLs and priority just once,
+     * into an immutable view to render in this request. Labels of {@link LocalizedLabelTaskDescriptor}s are cached per
+     * label code and locale.
+     * @param context
+     * @param extensionPoint
+     * @return views of all tasks available for the given context and the given extension point, sorted by priority
+     */
+    List<TaskView> getAvailableTaskViewsByExtensionPoint(EmrContext context, ExtensionPoint extensionPoint);
 }
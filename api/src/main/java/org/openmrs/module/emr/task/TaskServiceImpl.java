@@ -14,34 +14,155 @@
 
 package org.openmrs.module.emr.task;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Privilege;
+import org.openmrs.Role;
+import org.openmrs.User;
 import org.openmrs.api.UserService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.emr.EmrContext;
+import org.openmrs.module.emr.utils.LoadedUserContext;
+import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
+import org.openmrs.util.RoleConstants;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @see TaskService
  */
 public class TaskServiceImpl extends BaseOpenmrsService implements TaskService {
 
+    /**
+     * When task factories are run in parallel, at most this many run at once
+     */
+    public static final int TASK_FACTORY_THREADS = 4;
+
+    /**
+     * When task factories are run in parallel, at most this many calls wait for a thread (beyond this, the requesting
+     * thread runs the factory itself)
+     */
+    public static final int TASK_FACTORY_QUEUE_SIZE = 100;
+
+    /**
+     * At most this many last good results are kept per task factory (for the most recently used contexts)
+     */
+    public static final int LAST_GOOD_RESULTS_PER_FACTORY = 1000;
+
+    protected final Log log = LogFactory.getLog(getClass());
+
     UserService userService;
 
     List<TaskDescriptor> allTasks;
 
     List<TaskFactory> allTaskFactories;
+
+    volatile TaskIndex taskIndex;
+
+    /**
+     * Labels of {@link LocalizedLabelTaskDescriptor}s, by label code and then locale. (Keyed by code rather than by task,
+     * so that the new task descriptors that task factories build for each request share them.)
+     */
+    final ConcurrentMap<String, Map<Locale, String>> labels = new ConcurrentHashMap<String, Map<Locale, String>>();
+
+    long taskFactoryTimeoutMillis = 0;
+
+    ExecutorService taskFactoryExecutor;
+
+    final ConcurrentMap<TaskFactory, TaskFactoryStats> taskFactoryStats = new ConcurrentHashMap<TaskFactory, TaskFactoryStats>();
+
+    /**
+     * The last result of each factory for each (set of roles, session location, patient and visit), used when it times
+     * out
+     */
+    final ConcurrentMap<TaskFactory, Map<String, List<TaskDescriptor>>> lastGoodTaskDescriptors = new ConcurrentHashMap<TaskFactory, Map<String, List<TaskDescriptor>>>();
     
     public void setUserService(UserService userService) {
     	this.userService = userService;
     }
 
     @Override
-    public List<TaskDescriptor> getAvailableTasksByExtensionPoint(final EmrContext context, ExtensionPoint extensionPoint) {
-        if (allTasks == null || allTaskFactories == null) {
+    public List<TaskDescriptor> getAvailableTasksByExtensionPoint(EmrContext context, ExtensionPoint extensionPoint) {
+        AvailableTasks available = findAvailableTasks(context, extensionPoint);
+        if (!available.sorted) {
+            sortByPriority(available.tasks, context);
+        }
+        return available.tasks;
+    }
+
+    @Override
+    public List<TaskView> getAvailableTaskViewsByExtensionPoint(EmrContext context, ExtensionPoint extensionPoint) {
+        List<TaskDescriptor> available = findAvailableTasks(context, extensionPoint).tasks;
+        List<TaskView> views = new ArrayList<TaskView>(available.size());
+        for (TaskDescriptor task : available) {
+            views.add(new TaskView(task, getLabel(task, context), task.getUrl(context), task.getIconUrl(context),
+                    task.getTinyIconUrl(context), task.getPriority(context)));
+        }
+        Collections.sort(views, new Comparator<TaskView>() {
+            @Override
+            public int compare(TaskView left, TaskView right) {
+                return Double.compare(right.getPriority(), left.getPriority());
+            }
+        });
+        return Collections.unmodifiableList(views);
+    }
+
+    /**
+     * @return the label of task, from the per-locale cache if it is a {@link LocalizedLabelTaskDescriptor} with a label
+     * code
+     */
+    private String getLabel(TaskDescriptor task, EmrContext context) {
+        Locale locale = context.getUserContext() == null ? null : context.getUserContext().getLocale();
+        String labelCode = task instanceof LocalizedLabelTaskDescriptor ? ((LocalizedLabelTaskDescriptor) task).getLabelCode() : null;
+        if (labelCode == null || locale == null) {
+            return task.getLabel(context);
+        }
+        Map<Locale, String> byLocale = labels.get(labelCode);
+        if (byLocale == null) {
+            labels.putIfAbsent(labelCode, new ConcurrentHashMap<Locale, String>());
+            byLocale = labels.get(labelCode);
+        }
+        String label = byLocale.get(locale);
+        if (label == null) {
+            label = task.getLabel(context);
+            if (label != null) {
+                byLocale.put(locale, label);
+            }
+        }
+        return label;
+    }
+
+    /**
+     * @return the available tasks at extensionPoint (which are sorted by priority, unless tasks that depend on the
+     * context or come from factories were added to the cached, sorted, context-independent ones)
+     */
+    private AvailableTasks findAvailableTasks(EmrContext context, ExtensionPoint extensionPoint) {
+        TaskIndex index = taskIndex;
+        if (index == null || allTaskFactories == null) {
             throw new IllegalStateException("Need to configure with list of TaskDescriptor and TaskFactory");
         }
 
@@ -51,27 +172,24 @@ public class TaskServiceImpl extends BaseOpenmrsService implements TaskService {
 
         String extensionPointValue = extensionPoint.getValue();
 
-        List<TaskDescriptor> available = new ArrayList<TaskDescriptor>();
-        for (TaskDescriptor candidate : allTasks) {
-            if (candidate.isAvailable(context) && extensionPointValue.equals(candidate.getExtensionPoint())) {
-                available.add(candidate);
-            }
-        }
+        List<TaskDescriptor> available = new ArrayList<TaskDescriptor>(index.getAvailableContextIndependentTasks(context, extensionPointValue));
+        int cached = available.size();
 
-        for (TaskFactory factory : allTaskFactories) {
-            for (TaskDescriptor candidate : factory.getTaskDescriptors(context)) {
-                if (candidate.isAvailable(context) && extensionPointValue.equals(candidate.getExtensionPoint())) {
+        List<TaskDescriptor> contextDependent = index.contextDependentTasks.get(extensionPointValue);
+        if (contextDependent != null) {
+            for (TaskDescriptor candidate : contextDependent) {
+                if (candidate.isAvailable(context)) {
                     available.add(candidate);
                 }
             }
         }
-        Collections.sort(available, new Comparator<TaskDescriptor>() {
-            @Override
-            public int compare(TaskDescriptor left, TaskDescriptor right) {
-                return Double.compare(right.getPriority(context), left.getPriority(context));
+
+        for (TaskDescriptor candidate : getTaskDescriptorsFromFactories(context)) {
+            if (candidate.isAvailable(context) && extensionPointValue.equals(candidate.getExtensionPoint())) {
+                available.add(candidate);
             }
-        });
-        return available;
+        }
+        return new AvailableTasks(available, available.size() == cached);
     }
 
     @Override
@@ -93,10 +211,398 @@ public class TaskServiceImpl extends BaseOpenmrsService implements TaskService {
     @Override
     public void setAllTasksInternal(List<TaskDescriptor> tasks) {
         this.allTasks = tasks;
+        this.taskIndex = tasks == null ? null : new TaskIndex(tasks);
+        labels.clear();
     }
 
     @Override
     public void setAllTaskFactoriesInternal(List<TaskFactory> taskFactories) {
         this.allTaskFactories = taskFactories;
     }
+
+    @Override
+    public void clearAvailableTasksCacheInternal() {
+        TaskIndex index = taskIndex;
+        if (index != null) {
+            index.availableByRolesAndExtensionPoint.clear();
+        }
+    }
+
+    @Override
+    public synchronized void setTaskFactoryTimeoutInternal(long timeoutMillis) {
+        this.taskFactoryTimeoutMillis = timeoutMillis;
+        if (timeoutMillis > 0 && taskFactoryExecutor == null) {
+            taskFactoryExecutor = new ThreadPoolExecutor(TASK_FACTORY_THREADS, TASK_FACTORY_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(TASK_FACTORY_QUEUE_SIZE), new DaemonThreadFactory());
+        } else if (timeoutMillis <= 0 && taskFactoryExecutor != null) {
+            taskFactoryExecutor.shutdown();
+            taskFactoryExecutor = null;
+        }
+    }
+
+    @Override
+    public Map<String, TaskFactoryStats> getTaskFactoryStats() {
+        Map<String, TaskFactoryStats> stats = new LinkedHashMap<String, TaskFactoryStats>();
+        if (allTaskFactories != null) {
+            for (TaskFactory factory : allTaskFactories) {
+                stats.put(factory.getClass().getName(), getStats(factory));
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void onShutdown() {
+        setTaskFactoryTimeoutInternal(0);
+    }
+
+    /**
+     * Runs all the task factories, either one after another in this thread, or (if a timeout is configured) in
+     * parallel, giving up on any that don't finish in time and using their last good result instead
+     */
+    private List<TaskDescriptor> getTaskDescriptorsFromFactories(EmrContext context) {
+        List<TaskDescriptor> descriptors = new ArrayList<TaskDescriptor>();
+        ExecutorService executor;
+        long timeoutMillis;
+        synchronized (this) {
+            executor = taskFactoryExecutor;
+            timeoutMillis = taskFactoryTimeoutMillis;
+        }
+        if (executor == null || allTaskFactories.size() < 2) {
+            for (TaskFactory factory : allTaskFactories) {
+                descriptors.addAll(new TaskFactoryCall(factory, context).call());
+            }
+            return descriptors;
+        }
+
+        ContextIds contextIds = new ContextIds(context);
+        List<Future<List<TaskDescriptor>>> futures = new ArrayList<Future<List<TaskDescriptor>>>();
+        for (TaskFactory factory : allTaskFactories) {
+            try {
+                futures.add(executor.submit(new TaskFactoryCall(factory, contextIds)));
+            } catch (RejectedExecutionException ex) {
+                // all threads are busy and the queue is full (or we're shutting down), so run it in this thread
+                FutureTask<List<TaskDescriptor>> inline = new FutureTask<List<TaskDescriptor>>(new TaskFactoryCall(factory, context));
+                inline.run();
+                futures.add(inline);
+            }
+        }
+        String lastGoodKey = getRolesKey(context) + "@" + contextIds.sessionLocationId + "/" + contextIds.currentPatientId + "/" + contextIds.activeVisitId;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int i = 0; i < futures.size(); ++i) {
+            TaskFactory factory = allTaskFactories.get(i);
+            Future<List<TaskDescriptor>> future = futures.get(i);
+            List<TaskDescriptor> result;
+            try {
+                result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                getLastGood(factory).put(lastGoodKey, result);
+            } catch (TimeoutException ex) {
+                future.cancel(true);
+                getStats(factory).recordTimeout();
+                log.warn("Task factory " + factory.getClass().getName() + " took longer than " + timeoutMillis + " ms, using its last good result");
+                result = getLastGood(factory).get(lastGoodKey);
+            } catch (ExecutionException ex) {
+                getStats(factory).recordFailure();
+                log.error("Task factory " + factory.getClass().getName() + " failed, using its last good result", ex.getCause());
+                result = getLastGood(factory).get(lastGoodKey);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                result = getLastGood(factory).get(lastGoodKey);
+            }
+            if (result != null) {
+                descriptors.addAll(result);
+            }
+        }
+        return descriptors;
+    }
+
+    private TaskFactoryStats getStats(TaskFactory factory) {
+        TaskFactoryStats stats = taskFactoryStats.get(factory);
+        if (stats == null) {
+            taskFactoryStats.putIfAbsent(factory, new TaskFactoryStats());
+            stats = taskFactoryStats.get(factory);
+        }
+        return stats;
+    }
+
+    private Map<String, List<TaskDescriptor>> getLastGood(TaskFactory factory) {
+        Map<String, List<TaskDescriptor>> lastGood = lastGoodTaskDescriptors.get(factory);
+        if (lastGood == null) {
+            lastGoodTaskDescriptors.putIfAbsent(factory, Collections.synchronizedMap(new LinkedHashMap<String, List<TaskDescriptor>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<TaskDescriptor>> eldest) {
+                    return size() > LAST_GOOD_RESULTS_PER_FACTORY;
+                }
+            }));
+            lastGood = lastGoodTaskDescriptors.get(factory);
+        }
+        return lastGood;
+    }
+
+    /**
+     * Calls one task factory, recording how long it takes. Given an EmrContext, this runs in the requesting thread.
+     * Given just the ids of one, this runs in its own OpenMRS session (i.e. on another thread) as the requesting user,
+     * with the EmrContext (including that user) loaded again in that session.
+     */
+    private class TaskFactoryCall implements Callable<List<TaskDescriptor>> {
+
+        private final TaskFactory factory;
+
+        private final EmrContext context;
+
+        private final ContextIds contextIds;
+
+        TaskFactoryCall(TaskFactory factory, EmrContext context) {
+            this.factory = factory;
+            this.context = context;
+            this.contextIds = null;
+        }
+
+        TaskFactoryCall(TaskFactory factory, ContextIds contextIds) {
+            this.factory = factory;
+            this.context = null;
+            this.contextIds = contextIds;
+        }
+
+        @Override
+        public List<TaskDescriptor> call() {
+            if (contextIds == null) {
+                return callFactory(context);
+            }
+            Context.openSession();
+            try {
+                return callFactory(contextIds.load());
+            } finally {
+                Context.closeSession();
+            }
+        }
+
+        private List<TaskDescriptor> callFactory(EmrContext emrContext) {
+            long start = System.nanoTime();
+            try {
+                return factory.getTaskDescriptors(emrContext);
+            } finally {
+                getStats(factory).recordInvocation(System.nanoTime() - start);
+            }
+        }
+
+    }
+
+    /**
+     * Identifies what is in an EmrContext, so that it can be loaded again on another thread. (The request's own
+     * entities, including its authenticated user, belong to its Hibernate session, which mustn't be used from other
+     * threads.) The HTTP session, and any proxy privileges of the request, aren't carried over.
+     */
+    private static class ContextIds {
+
+        final Integer userId;
+
+        final Locale locale;
+
+        final Integer sessionLocationId;
+
+        final Integer currentPatientId;
+
+        final Integer currentProviderId;
+
+        final Integer activeVisitId;
+
+        ContextIds(EmrContext context) {
+            UserContext userContext = context.getUserContext();
+            User user = userContext == null ? null : userContext.getAuthenticatedUser();
+            userId = user == null ? null : user.getUserId();
+            locale = userContext == null ? null : userContext.getLocale();
+            sessionLocationId = context.getSessionLocation() == null ? null : context.getSessionLocation().getLocationId();
+            currentPatientId = context.getCurrentPatient() == null ? null : context.getCurrentPatient().getPatientId();
+            currentProviderId = context.getCurrentProvider() == null ? null : context.getCurrentProvider().getProviderId();
+            activeVisitId = context.getActiveVisit() == null ? null : context.getActiveVisit().getVisit().getVisitId();
+        }
+
+        /**
+         * @return a new EmrContext, with its entities loaded in the current session, which is also made to run as its
+         * user
+         */
+        EmrContext load() {
+            EmrContext context = new EmrContext();
+            context.setUserContext(LoadedUserContext.become(userId, locale));
+            if (sessionLocationId != null) {
+                context.setSessionLocation(Context.getLocationService().getLocation(sessionLocationId));
+            }
+            if (currentPatientId != null) {
+                context.setCurrentPatient(Context.getPatientService().getPatient(currentPatientId));
+            }
+            if (currentProviderId != null) {
+                context.setCurrentProvider(Context.getProviderService().getProvider(currentProviderId));
+            }
+            if (activeVisitId != null) {
+                context.setActiveVisit(new VisitDomainWrapper(Context.getVisitService().getVisit(activeVisitId)));
+            }
+            return context;
+        }
+
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EMR task factory " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+    /**
+     * Sorts tasks by priority, highest first (asking each task for its priority only once)
+     */
+    private static void sortByPriority(List<TaskDescriptor> tasks, EmrContext context) {
+        final Map<TaskDescriptor, Double> priorities = new IdentityHashMap<TaskDescriptor, Double>();
+        for (TaskDescriptor task : tasks) {
+            priorities.put(task, task.getPriority(context));
+        }
+        Collections.sort(tasks, new Comparator<TaskDescriptor>() {
+            @Override
+            public int compare(TaskDescriptor left, TaskDescriptor right) {
+                return Double.compare(priorities.get(right), priorities.get(left));
+            }
+        });
+    }
+
+    private static class AvailableTasks {
+
+        final List<TaskDescriptor> tasks;
+
+        final boolean sorted;
+
+        AvailableTasks(List<TaskDescriptor> tasks, boolean sorted) {
+            this.tasks = tasks;
+            this.sorted = sorted;
+        }
+
+    }
+
+    /**
+     * A task is context-independent if whether it is available is just a privilege check, and its priority is fixed
+     * (i.e. it doesn't override {@link BaseTaskDescriptor#isAvailable}, or getPriority beyond the fixed priority of
+     * {@link SimpleTaskDescriptor}). Which of these tasks are available depends only on the user's roles.
+     */
+    static boolean isContextIndependent(TaskDescriptor task) {
+        try {
+            Class<?> availableDeclaredBy = task.getClass().getMethod("isAvailable", EmrContext.class).getDeclaringClass();
+            Class<?> priorityDeclaredBy = task.getClass().getMethod("getPriority", EmrContext.class).getDeclaringClass();
+            return availableDeclaredBy.equals(BaseTaskDescriptor.class)
+                    && (priorityDeclaredBy.equals(BaseTaskDescriptor.class) || priorityDeclaredBy.equals(SimpleTaskDescriptor.class));
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return identifies the set of roles (and thus privileges) of the authenticated user
+     */
+    private static String getRolesKey(EmrContext context) {
+        User user = context.getUserContext() == null ? null : context.getUserContext().getAuthenticatedUser();
+        return user == null ? "" : getRolesKey(user);
+    }
+
+    private static String getRolesKey(User user) {
+        List<String> roles = new ArrayList<String>();
+        for (Role role : user.getAllRoles()) {
+            roles.add(role.getRole());
+        }
+        Collections.sort(roles);
+        StringBuilder key = new StringBuilder();
+        for (String role : roles) {
+            key.append(role).append('|');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return whether the user's roles (including the Anonymous and Authenticated roles that every user has) grant
+     * privilege. Unlike {@link UserContext#hasPrivilege}, this ignores proxy privileges given to the current request.
+     */
+    boolean rolesGrantPrivilege(User user, String privilege) {
+        if (user.hasPrivilege(privilege)) {
+            return true;
+        }
+        // User#getAllRoles only names these roles, without their privileges
+        for (String roleName : new String[] { RoleConstants.AUTHENTICATED, RoleConstants.ANONYMOUS }) {
+            Role role = userService.getRole(roleName);
+            if (role != null && role.hasPrivilege(privilege)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The configured tasks, indexed by extension point. Context-independent tasks are kept sorted by priority, and the
+     * ones that the roles of each set of authenticated users grant are cached (until roles or privileges change). Note
+     * that this means that proxy privileges don't make context-independent tasks available to authenticated users.
+     */
+    class TaskIndex {
+
+        final Map<String, List<TaskDescriptor>> contextIndependentTasks = new HashMap<String, List<TaskDescriptor>>();
+
+        final Map<String, List<TaskDescriptor>> contextDependentTasks = new HashMap<String, List<TaskDescriptor>>();
+
+        final ConcurrentMap<String, List<TaskDescriptor>> availableByRolesAndExtensionPoint = new ConcurrentHashMap<String, List<TaskDescriptor>>();
+
+        TaskIndex(List<TaskDescriptor> tasks) {
+            for (TaskDescriptor task : tasks) {
+                Map<String, List<TaskDescriptor>> byExtensionPoint = isContextIndependent(task) ? contextIndependentTasks : contextDependentTasks;
+                List<TaskDescriptor> list = byExtensionPoint.get(task.getExtensionPoint());
+                if (list == null) {
+                    list = new ArrayList<TaskDescriptor>();
+                    byExtensionPoint.put(task.getExtensionPoint(), list);
+                }
+                list.add(task);
+            }
+            for (List<TaskDescriptor> list : contextIndependentTasks.values()) {
+                sortByPriority(list, null);
+            }
+        }
+
+        /**
+         * @return the context-independent tasks at extensionPoint that are available to the user, sorted by priority
+         */
+        List<TaskDescriptor> getAvailableContextIndependentTasks(EmrContext context, String extensionPoint) {
+            List<TaskDescriptor> candidates = contextIndependentTasks.get(extensionPoint);
+            if (candidates == null) {
+                return Collections.emptyList();
+            }
+            User user = context.getUserContext() == null ? null : context.getUserContext().getAuthenticatedUser();
+            if (user == null) {
+                // no roles to cache this by
+                List<TaskDescriptor> available = new ArrayList<TaskDescriptor>();
+                for (TaskDescriptor candidate : candidates) {
+                    if (candidate.isAvailable(context)) {
+                        available.add(candidate);
+                    }
+                }
+                return available;
+            }
+
+            String key = getRolesKey(user) + "@" + extensionPoint;
+            List<TaskDescriptor> available = availableByRolesAndExtensionPoint.get(key);
+            if (available == null) {
+                available = new ArrayList<TaskDescriptor>();
+                for (TaskDescriptor candidate : candidates) {
+                    String privilege = candidate.getRequiredPrivilegeName();
+                    if (privilege == null || rolesGrantPrivilege(user, privilege)) {
+                        available.add(candidate);
+                    }
+                }
+                available = Collections.unmodifiableList(available);
+                availableByRolesAndExtensionPoint.put(key, available);
+            }
+            return available;
+        }
+
+    }
+
 }
@@ -0,0 +1,81 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.task;
+
+/**
+ * An immutable snapshot of how a {@link TaskDescriptor} renders in one request: each of its context-dependent
+ * properties is evaluated once, up front, so pages can sort and display these without calling back into the descriptor.
+ * @see TaskService#getAvailableTaskViewsByExtensionPoint
+ */
+public class TaskView {
+
+    private final TaskDescriptor task;
+
+    private final String id;
+
+    private final String label;
+
+    private final String url;
+
+    private final String iconUrl;
+
+    private final String tinyIconUrl;
+
+    private final double priority;
+
+    public TaskView(TaskDescriptor task, String label, String url, String iconUrl, String tinyIconUrl, double priority) {
+        this.task = task;
+        this.id = task.getId();
+        this.label = label;
+        this.url = url;
+        this.iconUrl = iconUrl;
+        this.tinyIconUrl = tinyIconUrl;
+        this.priority = priority;
+    }
+
+    /**
+     * @return the descriptor this was rendered from
+     */
+    public TaskDescriptor getTask() {
+        return task;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return relative to OpenMRS's context-path (or a javascript: URL)
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public String getIconUrl() {
+        return iconUrl;
+    }
+
+    public String getTinyIconUrl() {
+        return tinyIconUrl;
+    }
+
+    public double getPriority() {
+        return priority;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.utils;
+
+import java.util.Arrays;
+
+/**
+ * An immutable sorted set of ints backed by a primitive array, used for the posting lists of in-memory search indexes.
+ *
+ * Since a list never changes, it can be read without locking; {@link #with(int)} and {@link #without(int)} return a
+ * changed copy instead. Bulk loads should collect values (in any order) with a {@link Builder}, which sorts them once.
+ */
+public final class IntPostingList {
+
+    private final int[] values;
+
+    /**
+     * @param values in any order, possibly repeated (the array is copied, not modified)
+     */
+    public IntPostingList(int... values) {
+        this(sortedDistinct(values, values.length), true);
+    }
+
+    /**
+     * (The flag only tells this apart from the public constructor: values are used as they are.)
+     */
+    private IntPostingList(int[] sortedDistinctValues, boolean trusted) {
+        this.values = sortedDistinctValues;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    /**
+     * @param value
+     * @return this list with value added (or this list itself, if it already contains value)
+     */
+    public IntPostingList with(int value) {
+        int ind = Arrays.binarySearch(values, value);
+        if (ind >= 0) {
+            return this;
+        }
+        int insertAt = -ind - 1;
+        int[] added = new int[values.length + 1];
+        System.arraycopy(values, 0, added, 0, insertAt);
+        added[insertAt] = value;
+        System.arraycopy(values, insertAt, added, insertAt + 1, values.length - insertAt);
+        return new IntPostingList(added, true);
+    }
+
+    /**
+     * @param value
+     * @return this list with value removed (or this list itself, if it doesn't contain value)
+     */
+    public IntPostingList without(int value) {
+        int ind = Arrays.binarySearch(values, value);
+        if (ind < 0) {
+            return this;
+        }
+        int[] removed = new int[values.length - 1];
+        System.arraycopy(values, 0, removed, 0, ind);
+        System.arraycopy(values, ind + 1, removed, ind, values.length - ind - 1);
+        return new IntPostingList(removed, true);
+    }
+
+    public int[] toArray() {
+        return values.clone();
+    }
+
+    /**
+     * @return a sorted copy of the first length values, without repeats
+     */
+    private static int[] sortedDistinct(int[] values, int length) {
+        int[] sorted = Arrays.copyOf(values, length);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct);
+    }
+
+    /**
+     * Collects values in any order (appending is cheap), to make a list from them all at once. Not thread-safe.
+     */
+    public static class Builder {
+
+        private int[] values = new int[4];
+
+        private int size = 0;
+
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        public IntPostingList build() {
+            return new IntPostingList(sortedDistinct(values, size), true);
+        }
+
+    }
+
+}
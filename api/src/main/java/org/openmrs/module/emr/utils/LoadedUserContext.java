@@ -0,0 +1,67 @@
+/**
+ *  The contents of this file are subject to the OpenMRS Public License
+ *  Version 1.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://license.openmrs.org
+ *
+ *  Software distributed under the License is distributed on an "AS IS"
+ *  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing rights and limitations
+ *  under the License.
+ *
+ *  Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ *
+
+package org.openmrs.module.emr.utils;
+
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.util.PrivilegeConstants;
+
+import java.util.Locale;
+
+/**
+ * A user context that is authenticated as a user loaded (by id) in the current OpenMRS session, rather than by logging
+ * in. Work that a request hands to another thread runs in its own session, so it can't share the request's
+ * UserContext, whose User belongs to the request's Hibernate session.
+ */
+public class LoadedUserContext extends UserContext {
+
+    private User user;
+
+    /**
+     * Makes a new LoadedUserContext the current thread's user context. Call this just after
+     * {@link Context#openSession()}.
+     * @param userId the user to act as (or null, to act as no one)
+     * @param locale if not null, the locale to use
+     * @return the new user context
+     */
+    public static LoadedUserContext become(Integer userId, Locale locale) {
+        LoadedUserContext userContext = new LoadedUserContext();
+        if (locale != null) {
+            userContext.setLocale(locale);
+        }
+        Context.setUserContext(userContext);
+        if (userId != null) {
+            Context.addProxyPrivilege(PrivilegeConstants.VIEW_USERS);
+            try {
+                userContext.user = Context.getUserService().getUser(userId);
+            } finally {
+                Context.removeProxyPrivilege(PrivilegeConstants.VIEW_USERS);
+            }
+        }
+        return userContext;
+    }
+
+    @Override
+    public User getAuthenticatedUser() {
+        return user;
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return user != null;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.visit;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches, per visit location, the ids of patients who currently have an active visit there, so that "search among
+ * checked-in patients" can filter a small in-memory set instead of joining against the visit table.
+ *
+ * Rosters are loaded lazily (see {@link #getGeneration()} and {@link #setPatientIds(Integer, long, int[])}), patients
+ * are added as visits start, and a location's roster is invalidated whenever one of its visits ends or is voided. Since
+ * we aren't told where a changed visit used to be, any other roster that includes its patient is invalidated too (see
+ * {@link #invalidateOthersWith(int, Integer)}). The close-stale-visits task invalidates everything, which also picks up
+ * any changes we weren't told about.
+ *
+ * Each roster is an immutable sorted int array, replaced on every change.
+ */
+public class ActiveVisitRoster {
+
+    private final ConcurrentMap<Integer, int[]> rosters = new ConcurrentHashMap<Integer, int[]>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param visitLocationId
+     * @return sorted ids of patients with an active visit at this location, or null if that isn't currently cached
+     */
+    public int[] getPatientIds(Integer visitLocationId) {
+        return rosters.get(visitLocationId);
+    }
+
+    /**
+     * Read this before loading a roster from the database, and pass it to {@link #setPatientIds(Integer, long, int[])}
+     * @return a counter that changes whenever any roster is invalidated, or a patient is added
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a roster that was loaded from the database, unless something was invalidated since the load started
+     * @param visitLocationId
+     * @param generationAtLoad the value of {@link #getGeneration()} before the load started
+     * @param patientIds
+     */
+    public void setPatientIds(Integer visitLocationId, long generationAtLoad, int[] patientIds) {
+        int[] sorted = Arrays.copyOf(patientIds, patientIds.length);
+        Arrays.sort(sorted);
+        synchronized (this) {
+            if (generation.get() == generationAtLoad) {
+                rosters.put(visitLocationId, sorted);
+            }
+        }
+    }
+
+    /**
+     * Called when a visit starts
+     * @param visitLocationId
+     * @param patientId
+     */
+    public synchronized void addPatient(Integer visitLocationId, int patientId) {
+        // a load that is already running may have read the visits before this one was saved
+        generation.incrementAndGet();
+        int[] existing = rosters.get(visitLocationId);
+        if (existing == null) {
+            // not loaded yet, so it'll include this patient when it is
+            return;
+        }
+        int ind = Arrays.binarySearch(existing, patientId);
+        if (ind >= 0) {
+            return;
+        }
+        int insertAt = -ind - 1;
+        int[] updated = new int[existing.length + 1];
+        System.arraycopy(existing, 0, updated, 0, insertAt);
+        updated[insertAt] = patientId;
+        System.arraycopy(existing, insertAt, updated, insertAt + 1, existing.length - insertAt);
+        rosters.put(visitLocationId, updated);
+    }
+
+    /**
+     * Called when a visit ends (the patient may have other active visits at the same location, so we reload the
+     * whole roster the next time it's needed, rather than just removing this patient)
+     * @param visitLocationId
+     */
+    public synchronized void invalidate(Integer visitLocationId) {
+        generation.incrementAndGet();
+        rosters.remove(visitLocationId);
+    }
+
+    /**
+     * Called when a visit changes, since it may have moved from another location (the patient may also have active
+     * visits elsewhere, so this may invalidate rosters unnecessarily, but they're just reloaded)
+     * @param patientId
+     * @param exceptVisitLocationId don't invalidate this location's roster (i.e. where the visit is now), may be null
+     */
+    public synchronized void invalidateOthersWith(int patientId, Integer exceptVisitLocationId) {
+        boolean invalidated = false;
+        for (Iterator<Map.Entry<Integer, int[]>> i = rosters.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, int[]> roster = i.next();
+            if (!roster.getKey().equals(exceptVisitLocationId) && Arrays.binarySearch(roster.getValue(), patientId) >= 0) {
+                i.remove();
+                invalidated = true;
+            }
+        }
+        if (invalidated) {
+            generation.incrementAndGet();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation.incrementAndGet();
+        rosters.clear();
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.visit;
+
+import org.openmrs.Visit;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applied to VisitService (by the module activator) to keep the {@link ActiveVisitRoster} up to date as visits are
+ * started, ended, voided and purged. Changes are applied once the transaction commits, since until then a roster
+ * loaded from the database wouldn't include them (and if it rolls back, they never happened).
+ */
+public class ActiveVisitRosterAdvice implements AfterReturningAdvice {
+
+    private ActiveVisitRoster roster;
+
+    public ActiveVisitRosterAdvice(ActiveVisitRoster roster) {
+        this.roster = roster;
+    }
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("end") || name.startsWith("void") || name.startsWith("unvoid") || name.startsWith("purge"))) {
+            return;
+        }
+        boolean purge = name.startsWith("purge");
+        if (args != null) {
+            for (Object arg : args) {
+                handle(arg, purge);
+            }
+        }
+        handle(returnValue, purge);
+    }
+
+    private void handle(Object o, boolean purge) {
+        if (!(o instanceof Visit)) {
+            return;
+        }
+        Visit visit = (Visit) o;
+        if (visit.getLocation() == null || visit.getPatient() == null) {
+            return;
+        }
+        final Integer visitLocationId = visit.getLocation().getId();
+        final int patientId = visit.getPatient().getPatientId();
+        final boolean active = !purge && !visit.isVoided() && visit.getStopDatetime() == null;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    apply(visitLocationId, patientId, active);
+                }
+            });
+        } else {
+            apply(visitLocationId, patientId, active);
+        }
+    }
+
+    private void apply(Integer visitLocationId, int patientId, boolean active) {
+        // the visit may have been moved here from another location
+        roster.invalidateOthersWith(patientId, visitLocationId);
+        if (active) {
+            roster.addPatient(visitLocationId, patientId);
+        } else {
+            roster.invalidate(visitLocationId);
+        }
+    }
+
+}
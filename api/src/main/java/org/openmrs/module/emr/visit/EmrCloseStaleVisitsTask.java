@@ -0,0 +1,36 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.visit;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emrapi.adt.CloseStaleVisitsTask;
+
+/**
+ * Closes stale visits (see {@link CloseStaleVisitsTask}), and then refreshes the {@link ActiveVisitRoster}
+ */
+public class EmrCloseStaleVisitsTask extends CloseStaleVisitsTask {
+
+    @Override
+    public void execute() {
+        try {
+            super.execute();
+        } finally {
+            for (ActiveVisitRoster roster : Context.getRegisteredComponents(ActiveVisitRoster.class)) {
+                roster.invalidateAll();
+            }
+        }
+    }
+
+}
@@ -15,6 +15,7 @@ package org.openmrs.module.emr.api;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -38,16 +39,29 @@ import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrProperties;
+import org.openmrs.module.emr.api.db.hibernate.HibernateEmrDAO;
+import org.openmrs.module.emr.concept.ConceptSearchCursor;
+import org.openmrs.module.emr.concept.ConceptSearchPage;
+import org.openmrs.module.emr.concept.DiagnosisSearchIndex;
+import org.openmrs.module.emr.concept.DiagnosisSetClosure;
+import org.openmrs.module.emr.concept.DiagnosisSetMembership;
+import org.openmrs.module.emr.patient.PatientSearchPage;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.test.builder.ConceptBuilder;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.util.StringUtils;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.nullValue;
@@ -71,6 +85,13 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
     @Autowired
     ConceptService conceptService;
 
+    @Autowired
+    SessionFactory sessionFactory;
+
+    @Autowired
+    @Qualifier("emrApiProperties")
+    EmrApiProperties emrApiProperties;
+
 	@Before
 	public void before() throws Exception{
 		executeDataSet("privilegeTestDataset.xml");
@@ -129,6 +150,61 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
 		assertContainsElementWithProperty(patients, "patientId", 2);
 	}
 	
+    @Test
+    public void testFindPatientSearchResultsByName() throws Exception {
+        List<PatientSearchResult> results = service.findPatientSearchResults("Test", null, null, null);
+        assertEquals(4, results.size());
+        assertContainsElementWithProperty(results, "patientId", 2);
+        assertContainsElementWithProperty(results, "patientId", 6);
+        assertContainsElementWithProperty(results, "patientId", 7);
+        assertContainsElementWithProperty(results, "patientId", 8);
+    }
+
+    @Test
+    public void testFindPatientSearchResultsPagesOverDistinctPatients() throws Exception {
+        List<PatientSearchResult> firstPage = service.findPatientSearchResults("Test", null, 0, 3);
+        List<PatientSearchResult> secondPage = service.findPatientSearchResults("Test", null, 3, 3);
+        assertEquals(3, firstPage.size());
+        assertEquals(1, secondPage.size());
+
+        Set<Integer> patientIds = new HashSet<Integer>();
+        for (PatientSearchResult result : firstPage) {
+            patientIds.add(result.getPatientId());
+        }
+        patientIds.add(secondPage.get(0).getPatientId());
+        assertEquals(4, patientIds.size());
+    }
+
+    @Test
+    public void testFindPatientSearchResultsWithActiveVisits() throws Exception {
+        List<PatientSearchResult> results = service.findPatientSearchResults("Hora", where, null, null);
+        assertEquals(1, results.size());
+        assertContainsElementWithProperty(results, "patientId", 2);
+    }
+
+    @Test
+    public void testFindPatientSearchResultsCheckedInWithVisitSubquery() throws Exception {
+        HibernateEmrDAO dao = new HibernateEmrDAO();
+        dao.setSessionFactory(sessionFactory);
+        dao.setEmrApiProperties(emrApiProperties);
+
+        List<PatientSearchResult> results = dao.findPatientSearchResults("Hora", where, null, null, null);
+        assertEquals(1, results.size());
+        assertContainsElementWithProperty(results, "patientId", 2);
+    }
+
+    @Test
+    public void testFindPatientPageFollowsContinuationToken() throws Exception {
+        PatientSearchPage firstPage = service.findPatientPage("Test", null, null, 3);
+        assertEquals(3, firstPage.getResults().size());
+        assertEquals(true, firstPage.hasMore());
+
+        PatientSearchPage secondPage = service.findPatientPage("Test", null, firstPage.getContinuationToken(), 3);
+        assertEquals(1, secondPage.getResults().size());
+        assertEquals(false, secondPage.hasMore());
+        assertContainsElementWithProperty(secondPage.getResults(), "patientId", 8);
+    }
+
 	@Test
 	public void testFindAPIPrivileges() throws Exception{
 		UserService userService = Context.getUserService();
@@ -184,6 +260,25 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
         assertThat(otherResult.getConceptName().getName(), is("Cerebral Malaria"));
     }
 
+    @Test
+    public void testConceptSearchPage() throws Exception {
+        Map<String, Concept> concepts = setupConcepts();
+        ConceptClass diagnosis = conceptService.getConceptClassByName("Diagnosis");
+        ConceptSearchCursor cursor = new ConceptSearchCursor();
+
+        ConceptSearchPage page = service.conceptSearchPage(cursor, "malaria", Locale.ENGLISH, Collections.singleton(diagnosis), null, null, 0, 1);
+        assertThat(page.getResults().size(), is(1));
+        assertThat(page.getResults().get(0).getConcept(), is(concepts.get("malaria")));
+        assertThat(page.hasMore(), is(true));
+
+        page = service.conceptSearchPage(cursor, "malaria", Locale.ENGLISH, Collections.singleton(diagnosis), null, null, 1, 1);
+        assertThat(page.getStart(), is(1));
+        assertThat(page.getResults().size(), is(1));
+        assertThat(page.getResults().get(0).getConcept(), is(concepts.get("cerebral malaria")));
+        assertThat(page.getResults().get(0).getConceptName().getName(), is("Cerebral Malaria"));
+        assertThat(page.hasMore(), is(false));
+    }
+
     @Test
     public void testConceptSearchInAnotherLocale() throws Exception {
         Map<String, Concept> concepts = setupConcepts();
@@ -227,6 +322,69 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
         assertThat(firstResult.getConcept(), is(concepts.get("diabetes")));
     }
 
+    @Test
+    public void testConceptSearchFromDiagnosisIndex() throws Exception {
+        Map<String, Concept> concepts = setupConcepts();
+        ConceptClass diagnosis = conceptService.getConceptClassByName("Diagnosis");
+        ConceptSource icd10 = conceptService.getConceptSourceByName("ICD-10");
+        Concept allowedDiagnoses = concepts.get("allowedDiagnoses");
+
+        Map<Integer, List<Integer>> setMembers = new HashMap<Integer, List<Integer>>();
+        setMembers.put(allowedDiagnoses.getConceptId(), Arrays.asList(concepts.get("malaria").getConceptId(), concepts.get("diabetes").getConceptId()));
+        DiagnosisSetMembership membership = DiagnosisSetMembership.explode(Collections.singleton(allowedDiagnoses.getConceptId()), setMembers);
+
+        DiagnosisSearchIndex index = Context.getRegisteredComponents(DiagnosisSearchIndex.class).get(0);
+        index.beginBulkLoad(membership, Collections.singleton(icd10.getConceptSourceId()));
+        index.addSetMember(concepts.get("malaria").getConceptId(), diagnosis.getConceptClassId());
+        index.addSetMember(concepts.get("diabetes").getConceptId(), diagnosis.getConceptClassId());
+        index.finishBulkLoad();
+        try {
+            for (Concept concept : concepts.values()) {
+                index.updateConcept(concept);
+            }
+
+            List<ConceptSearchResult> searchResults = service.conceptSearch("malar", Locale.ENGLISH, null, Collections.singleton(allowedDiagnoses), null, null);
+            assertThat(searchResults.size(), is(1));
+            assertThat(searchResults.get(0).getConcept(), is(concepts.get("malaria")));
+            assertThat(searchResults.get(0).getConceptName().getName(), is("Malaria"));
+
+            searchResults = service.conceptSearch("b50.0", Locale.ENGLISH, null, Collections.singleton(allowedDiagnoses), Collections.singleton(icd10), null);
+            assertThat(searchResults.size(), is(1));
+            assertThat(searchResults.get(0).getConcept(), is(concepts.get("cerebral malaria")));
+            assertThat(searchResults.get(0).getConceptName(), nullValue());
+        } finally {
+            index.invalidate();
+        }
+    }
+
+    @Test
+    public void testConceptSearchAmongDiagnosisSetsIncludesNestedSets() throws Exception {
+        Map<String, Concept> concepts = setupConcepts();
+        ConceptDatatype na = conceptService.getConceptDatatypeByName("N/A");
+        ConceptClass convSet = conceptService.getConceptClassByName("ConvSet");
+        Concept allowedDiagnoses = concepts.get("allowedDiagnoses");
+        Concept nested = conceptService.saveConcept(new ConceptBuilder(conceptService, na, convSet)
+                .add(new ConceptName("More Diagnoses", Locale.ENGLISH))
+                .addSetMember(concepts.get("cerebral malaria")).get());
+        allowedDiagnoses.addSetMember(nested);
+        conceptService.saveConcept(allowedDiagnoses);
+
+        Map<Integer, List<Integer>> setMembers = new HashMap<Integer, List<Integer>>();
+        setMembers.put(allowedDiagnoses.getConceptId(), Arrays.asList(concepts.get("malaria").getConceptId(), concepts.get("diabetes").getConceptId(), nested.getConceptId()));
+        setMembers.put(nested.getConceptId(), Arrays.asList(concepts.get("cerebral malaria").getConceptId()));
+
+        DiagnosisSetClosure closure = Context.getRegisteredComponents(DiagnosisSetClosure.class).get(0);
+        closure.setMembership(closure.getGeneration(), DiagnosisSetMembership.explode(Collections.singleton(allowedDiagnoses.getConceptId()), setMembers));
+        try {
+            List<ConceptSearchResult> searchResults = service.conceptSearch("malaria", Locale.ENGLISH, null, Collections.singleton(allowedDiagnoses), null, null);
+            assertThat(searchResults.size(), is(2));
+            assertThat(searchResults.get(0).getConcept(), is(concepts.get("malaria")));
+            assertThat(searchResults.get(1).getConcept(), is(concepts.get("cerebral malaria")));
+        } finally {
+            closure.invalidate();
+        }
+    }
+
     private Map<String, Concept> setupConcepts() {
         Map<String, Concept> concepts = new HashMap<String, Concept>();
 
@@ -2,21 +2,43 @@ package org.openmrs.module.emr.api.impl;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.Visit;
 import org.openmrs.api.APIException;
+import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
+import org.openmrs.module.emr.api.db.EmrDAO;
+import org.openmrs.module.emr.patient.PatientSearchCursor;
+import org.openmrs.module.emr.patient.PatientSearchPage;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchSession;
+import org.openmrs.module.emr.patient.PrimaryIdentifierCache;
+import org.openmrs.module.emr.visit.ActiveVisitRoster;
 import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.adt.AdtService;
+import org.openmrs.module.htmlformentry.FormEntryContext;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.FormSubmissionActions;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Matchers.eq;
-import static org.mockito.Matchers.isNull;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class EmrServiceImplTest {
@@ -24,6 +46,7 @@ public class EmrServiceImplTest {
     private EmrServiceImpl emrService;
     private EmrApiProperties emrApiProperties;
     private PatientService patientService;
+    private EmrDAO dao;
 
     @Before
     public void setUp(){
@@ -34,6 +57,9 @@ public class EmrServiceImplTest {
 
         patientService = mock(PatientService.class);
         emrService.setPatientService(patientService);
+
+        dao = mock(EmrDAO.class);
+        emrService.setDao(dao);
     }
 
 
@@ -43,21 +69,61 @@ public class EmrServiceImplTest {
 
         PatientIdentifierType patientIdentifierType = new PatientIdentifierType();
 
-        List<PatientIdentifierType> patientIdentifierTypeList = new ArrayList<PatientIdentifierType>();
-        patientIdentifierTypeList.add(patientIdentifierType);
-
         when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
 
-        Patient patient = new Patient();
+        Patient patient = new Patient(7);
+
+        when(dao.getPatientByIdentifier(patientIdentifierType, identifierValue)).thenReturn(patient);
+
+        Patient expectedPatient = emrService.findPatientByPrimaryId(identifierValue);
 
-        List<Patient> patients = new ArrayList<Patient>();
-        patients.add(patient);
+        assertThat(expectedPatient, is(patient));
+    }
 
-        when(patientService.getPatients((String) isNull(), eq(identifierValue), eq(patientIdentifierTypeList), eq(true))).thenReturn(patients);
+    @Test
+    public void shouldUseCacheWhenSearchingByPrimaryIdAgain(){
+        String identifierValue = "Y27X42";
 
+        PatientIdentifierType patientIdentifierType = new PatientIdentifierType(1);
+        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+
+        Patient patient = new Patient(7);
+        patient.addIdentifier(new PatientIdentifier(identifierValue, patientIdentifierType, new Location()));
+        when(dao.getPatientByIdentifier(patientIdentifierType, identifierValue)).thenReturn(patient);
+        when(patientService.getPatient(7)).thenReturn(patient);
+
+        emrService.setPrimaryIdentifierCache(new PrimaryIdentifierCache());
+        emrService.findPatientByPrimaryId(identifierValue);
         Patient expectedPatient = emrService.findPatientByPrimaryId(identifierValue);
 
         assertThat(expectedPatient, is(patient));
+        verify(dao, times(1)).getPatientByIdentifier(patientIdentifierType, identifierValue);
+    }
+
+    @Test
+    public void shouldNotTrustCachedPatientWhoNoLongerHasTheIdentifier(){
+        String identifierValue = "Y27X42";
+
+        PatientIdentifierType patientIdentifierType = new PatientIdentifierType(1);
+        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+
+        // e.g. the identifier was moved to another patient, and a stale lookup cached the old mapping again
+        PrimaryIdentifierCache cache = new PrimaryIdentifierCache();
+        cache.put(patientIdentifierType, identifierValue, 7);
+        emrService.setPrimaryIdentifierCache(cache);
+
+        Patient previousOwner = new Patient(7);
+        PatientIdentifier voided = new PatientIdentifier(identifierValue, patientIdentifierType, new Location());
+        voided.setVoided(true);
+        previousOwner.addIdentifier(voided);
+        when(patientService.getPatient(7)).thenReturn(previousOwner);
+
+        Patient currentOwner = new Patient(8);
+        currentOwner.addIdentifier(new PatientIdentifier(identifierValue, patientIdentifierType, new Location()));
+        when(dao.getPatientByIdentifier(patientIdentifierType, identifierValue)).thenReturn(currentOwner);
+
+        assertThat(emrService.findPatientByPrimaryId(identifierValue), is(currentOwner));
+        assertThat(cache.get(patientIdentifierType, identifierValue), is(8));
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -72,12 +138,9 @@ public class EmrServiceImplTest {
 
         PatientIdentifierType patientIdentifierType = new PatientIdentifierType();
 
-        List<PatientIdentifierType> patientIdentifierTypeList = new ArrayList<PatientIdentifierType>();
-        patientIdentifierTypeList.add(patientIdentifierType);
-
         when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
 
-        when(patientService.getPatients((String) isNull(), eq(identifierValue), eq(patientIdentifierTypeList), eq(true))).thenReturn(Collections.<Patient>emptyList());
+        when(dao.getPatientByIdentifier(patientIdentifierType, identifierValue)).thenReturn(null);
 
         Patient expectedPatient = emrService.findPatientByPrimaryId(identifierValue);
     }
@@ -89,4 +152,179 @@ public class EmrServiceImplTest {
         when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(null);
         Patient expectedPatient = emrService.findPatientByPrimaryId(identifierValue);
     }
+
+    @Test
+    public void shouldReturnContinuationTokenWhenThereAreMorePatients() {
+        when(dao.findPatientsAfter("bob", null, null, null, 3)).thenReturn(patientSearchResults(10, 11, 12));
+
+        PatientSearchPage page = emrService.findPatientPage("bob", null, null, 2);
+
+        assertThat(page.getResults().size(), is(2));
+        assertThat(page.getResults().get(1).getPatientId(), is(11));
+        assertThat(PatientSearchCursor.decode(page.getContinuationToken(), "bob", null).getAfterPatientId(), is(11));
+    }
+
+    @Test
+    public void shouldSeekPastContinuationToken() {
+        String token = new PatientSearchCursor("bob", null, 11).encode();
+        when(dao.findPatientsAfter("bob", null, null, 11, 3)).thenReturn(patientSearchResults(12));
+
+        PatientSearchPage page = emrService.findPatientPage("bob", null, token, 2);
+
+        verify(dao).findPatientsAfter("bob", null, null, 11, 3);
+        assertThat(page.getResults().size(), is(1));
+        assertThat(page.getContinuationToken(), nullValue());
+    }
+
+    @Test
+    public void shouldCapPatientPageSize() {
+        when(dao.findPatientsAfter("bob", null, null, null, EmrServiceImpl.MAX_PATIENT_PAGE_SIZE + 1)).thenReturn(new ArrayList<PatientSearchResult>());
+
+        emrService.findPatientPage("bob", null, null, 100000);
+
+        verify(dao).findPatientsAfter("bob", null, null, null, EmrServiceImpl.MAX_PATIENT_PAGE_SIZE + 1);
+    }
+
+    @Test
+    public void shouldLoadCheckedInRosterOnceAndSearchAmongIt() {
+        Location visitLocation = new Location(2);
+        AdtService adtService = mock(AdtService.class);
+        when(adtService.getLocationThatSupportsVisits(visitLocation)).thenReturn(visitLocation);
+        emrService.setAdtService(adtService);
+        emrService.setActiveVisitRoster(new ActiveVisitRoster());
+        when(dao.getActiveVisitPatientIds(visitLocation)).thenReturn(Arrays.asList(12, 10));
+
+        emrService.findPatientSearchResults("bob", visitLocation, null, null);
+        emrService.findPatientSearchResults("bob", visitLocation, null, null);
+
+        verify(dao, times(1)).getActiveVisitPatientIds(visitLocation);
+        verify(dao, times(2)).findPatientSearchResults("bob", visitLocation, Arrays.asList(10, 12), null, null);
+    }
+
+    @Test
+    public void shouldSearchAmongLongRosterWithVisitSubquery() {
+        Location visitLocation = new Location(2);
+        AdtService adtService = mock(AdtService.class);
+        when(adtService.getLocationThatSupportsVisits(visitLocation)).thenReturn(visitLocation);
+        emrService.setAdtService(adtService);
+        List<Integer> roster = new ArrayList<Integer>();
+        for (int i = 1; i <= EmrServiceImpl.MAX_PATIENT_IDS_IN_QUERY + 1; ++i) {
+            roster.add(i);
+        }
+        when(dao.getActiveVisitPatientIds(visitLocation)).thenReturn(roster);
+
+        emrService.findPatientSearchResults("bob", visitLocation, null, null);
+
+        verify(dao).findPatientSearchResults("bob", visitLocation, null, null, null);
+    }
+
+    @Test
+    public void shouldNarrowPreviousSearchInSameSearchSession() {
+        PatientSearchSession searchSession = new PatientSearchSession();
+        when(dao.findPatientIds("jo", null, null, 0, EmrServiceImpl.SEARCH_SESSION_MAX_MATCHES)).thenReturn(Arrays.asList(12, 10, 12));
+        when(dao.findPatientIds("joh", null, Arrays.asList(10, 12), 0, EmrServiceImpl.SEARCH_SESSION_MAX_MATCHES)).thenReturn(Arrays.asList(10));
+
+        emrService.findPatientSearchResults(searchSession, "jo", null, 10);
+        emrService.findPatientSearchResults(searchSession, "joh", null, 10);
+
+        verify(dao).getPatientSearchResults(Arrays.asList(12, 10));
+        verify(dao).getPatientSearchResults(Arrays.asList(10));
+    }
+
+    @Test
+    public void shouldNotNarrowToPreviousMatchesOnceAnotherPatientChecksIn() {
+        Location visitLocation = new Location(2);
+        AdtService adtService = mock(AdtService.class);
+        when(adtService.getLocationThatSupportsVisits(visitLocation)).thenReturn(visitLocation);
+        emrService.setAdtService(adtService);
+        ActiveVisitRoster roster = new ActiveVisitRoster();
+        emrService.setActiveVisitRoster(roster);
+        when(dao.getActiveVisitPatientIds(visitLocation)).thenReturn(Arrays.asList(12, 10));
+        when(dao.findPatientIds("jo", visitLocation, Arrays.asList(10, 12), 0, EmrServiceImpl.SEARCH_SESSION_MAX_MATCHES)).thenReturn(Arrays.asList(10));
+
+        PatientSearchSession searchSession = new PatientSearchSession();
+        emrService.findPatientSearchResults(searchSession, "jo", visitLocation, 10);
+        roster.addPatient(2, 11);
+        emrService.findPatientSearchResults(searchSession, "joh", visitLocation, 10);
+
+        verify(dao).findPatientIds("joh", visitLocation, Arrays.asList(10, 11, 12), 0, EmrServiceImpl.SEARCH_SESSION_MAX_MATCHES);
+    }
+
+    @Test
+    public void shouldPutNewEncounterInGivenVisitBeforeApplyingTheFormOnce() throws Exception {
+        EncounterService encounterService = mock(EncounterService.class);
+        emrService.setEncounterService(encounterService);
+        Encounter encounter = new Encounter();
+        encounter.setEncounterDatetime(new Date());
+        Visit visit = new Visit();
+
+        FormEntrySession session = mockFormEntrySession(new Patient(8), encounter);
+        Visit[] visitWhenApplied = recordVisitWhenApplied(session, encounter);
+
+        assertThat(emrService.applyFormEntrySession(session, visit, null), is(encounter));
+        assertThat(visitWhenApplied[0], is(visit));
+        verify(session, times(1)).applyActions();
+        verifyZeroInteractions(encounterService);
+    }
+
+    @Test
+    public void shouldPutNewEncounterInActiveVisitCreatedAtLocationBeforeApplyingTheFormOnce() throws Exception {
+        EncounterService encounterService = mock(EncounterService.class);
+        emrService.setEncounterService(encounterService);
+        Patient patient = new Patient(8);
+        Location location = new Location(1);
+        Encounter encounter = new Encounter();
+        encounter.setEncounterDatetime(new Date());
+        Visit activeVisit = new Visit();
+
+        AdtService adtService = mock(AdtService.class);
+        when(adtService.ensureActiveVisit(patient, location)).thenReturn(activeVisit);
+        emrService.setAdtService(adtService);
+
+        FormEntrySession session = mockFormEntrySession(patient, encounter);
+        Visit[] visitWhenApplied = recordVisitWhenApplied(session, encounter);
+
+        emrService.applyFormEntrySession(session, null, location);
+        assertThat(visitWhenApplied[0], is(activeVisit));
+        assertThat(activeVisit.getStartDatetime(), is(encounter.getEncounterDatetime()));
+        verify(session, times(1)).applyActions();
+        verifyZeroInteractions(encounterService);
+    }
+
+    private FormEntrySession mockFormEntrySession(Patient patient, Encounter toCreate) {
+        FormEntryContext context = mock(FormEntryContext.class);
+        when(context.getMode()).thenReturn(FormEntryContext.Mode.ENTER);
+        FormSubmissionActions actions = mock(FormSubmissionActions.class);
+        when(actions.getEncountersToCreate()).thenReturn(Arrays.asList(toCreate));
+
+        FormEntrySession session = mock(FormEntrySession.class);
+        when(session.getContext()).thenReturn(context);
+        when(session.getSubmissionActions()).thenReturn(actions);
+        when(session.getPatient()).thenReturn(patient);
+        when(session.getEncounter()).thenReturn(toCreate);
+        return session;
+    }
+
+    /**
+     * @return will hold the visit that encounter was in when session's actions were applied (i.e. when it was saved)
+     */
+    private Visit[] recordVisitWhenApplied(FormEntrySession session, final Encounter encounter) throws Exception {
+        final Visit[] visitWhenApplied = new Visit[1];
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                visitWhenApplied[0] = encounter.getVisit();
+                return null;
+            }
+        }).when(session).applyActions();
+        return visitWhenApplied;
+    }
+
+    private List<PatientSearchResult> patientSearchResults(Integer... patientIds) {
+        List<PatientSearchResult> results = new ArrayList<PatientSearchResult>();
+        for (Integer patientId : patientIds) {
+            results.add(new PatientSearchResult(patientId));
+        }
+        return results;
+    }
 }
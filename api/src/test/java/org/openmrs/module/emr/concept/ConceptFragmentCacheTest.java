@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ConceptFragmentCacheTest {
+
+    @Test
+    public void shouldCacheFragmentsPerLocale() throws Exception {
+        ConceptFragmentCache cache = new ConceptFragmentCache(10);
+        cache.put(1, Locale.ENGLISH, "en");
+        cache.put(1, Locale.FRENCH, "fr");
+
+        assertThat((String) cache.get(1, Locale.ENGLISH), is("en"));
+        assertThat((String) cache.get(1, Locale.FRENCH), is("fr"));
+        assertThat(cache.get(1, Locale.GERMAN), nullValue());
+        assertThat(cache.get(2, Locale.ENGLISH), nullValue());
+    }
+
+    @Test
+    public void shouldEvictAllLocalesOfAConcept() throws Exception {
+        ConceptFragmentCache cache = new ConceptFragmentCache(10);
+        cache.put(1, Locale.ENGLISH, "en");
+        cache.put(1, Locale.FRENCH, "fr");
+        cache.put(2, Locale.ENGLISH, "other");
+
+        cache.evictConcept(1);
+
+        assertThat(cache.get(1, Locale.ENGLISH), nullValue());
+        assertThat(cache.get(1, Locale.FRENCH), nullValue());
+        assertThat((String) cache.get(2, Locale.ENGLISH), is("other"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedConcept() throws Exception {
+        ConceptFragmentCache cache = new ConceptFragmentCache(2);
+        cache.put(1, Locale.ENGLISH, "one");
+        cache.put(2, Locale.ENGLISH, "two");
+        cache.get(1, Locale.ENGLISH);
+        cache.put(3, Locale.ENGLISH, "three");
+
+        assertThat(cache.size(), is(2));
+        assertThat((String) cache.get(1, Locale.ENGLISH), is("one"));
+        assertThat(cache.get(2, Locale.ENGLISH), nullValue());
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ConceptSearchCandidatesTest {
+
+    @Test
+    public void shouldComputeNameMatchFeatures() throws Exception {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates("Malaria", Locale.ENGLISH);
+        candidates.addName(1, 11, "malaria", true);
+        candidates.addName(2, 21, "Cerebral Malaria", false);
+        candidates.addName(3, 31, "Antimalarial resistance", false);
+
+        assertThat(candidates.size(), is(3));
+        assertThat(candidates.getExactMatches()[0], is(true));
+        assertThat(candidates.getExactMatches()[1], is(false));
+        assertThat(candidates.getPrefixMatches()[0], is(true));
+        assertThat(candidates.getPrefixMatches()[1], is(false));
+        assertThat(candidates.getWordPositions()[0], is(0));
+        assertThat(candidates.getWordPositions()[1], is(1));
+        assertThat(candidates.getWordPositions()[2], is(-1));
+        assertThat(candidates.getNameLengths()[1], is(16));
+        assertThat(candidates.getLocalePreferred()[0], is(true));
+    }
+
+    @Test
+    public void shouldGrowPastInitialCapacity() throws Exception {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates("fever", Locale.ENGLISH);
+        for (int i = 0; i < 1000; ++i) {
+            candidates.addName(i, i, "Fever " + i, false);
+        }
+        candidates.addMapping(5000, 2);
+
+        assertThat(candidates.size(), is(1001));
+        assertThat(candidates.getConceptIds()[999], is(999));
+        assertThat(candidates.getMappings()[1000], is(true));
+        assertThat(candidates.getMapTypeIds()[1000], is(2));
+        assertThat(candidates.toHit(1000, 1d).getConceptNameId(), nullValue());
+        assertThat(candidates.toHit(999, 1d).getConceptNameId(), is(999));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.junit.Test;
+import org.openmrs.ConceptClass;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ConceptSearchCursorTest {
+
+    @Test
+    public void shouldReuseRankingOnlyForTheSameSearch() throws Exception {
+        String key = ConceptSearchCursor.searchKey("Malaria ", Locale.ENGLISH, null, null, null);
+        ConceptSearchCursor cursor = new ConceptSearchCursor();
+        cursor.setRanking(new ConceptSearchCursor.Ranking(key, hits(3), 10));
+
+        assertThat(cursor.getRanking(ConceptSearchCursor.searchKey("malaria", Locale.ENGLISH, null, null, null), 5), notNullValue());
+        assertThat(cursor.getRanking(ConceptSearchCursor.searchKey("malaria", Locale.FRENCH, null, null, null), 5), nullValue());
+        assertThat(cursor.getRanking(ConceptSearchCursor.searchKey("malaria", Locale.ENGLISH, Collections.singleton(conceptClass(1)), null, null), 5), nullValue());
+    }
+
+    @Test
+    public void shouldIgnoreOrderOfRestrictions() throws Exception {
+        String key = ConceptSearchCursor.searchKey("malaria", Locale.ENGLISH, Arrays.asList(conceptClass(1), conceptClass(2)), null, null);
+        assertThat(ConceptSearchCursor.searchKey("malaria", Locale.ENGLISH, Arrays.asList(conceptClass(2), conceptClass(1)), null, null), is(key));
+    }
+
+    @Test
+    public void shouldNotReuseTruncatedRankingBeyondWhatWasRanked() throws Exception {
+        ConceptSearchCursor cursor = new ConceptSearchCursor();
+        cursor.setRanking(new ConceptSearchCursor.Ranking("key", hits(10), 10));
+
+        assertThat(cursor.getRanking("key", 10), notNullValue());
+        assertThat(cursor.getRanking("key", 11), nullValue());
+    }
+
+    @Test
+    public void shouldReuseCompleteRankingForAnyPage() throws Exception {
+        ConceptSearchCursor.Ranking ranking = new ConceptSearchCursor.Ranking("key", hits(3), 10);
+
+        assertThat(ranking.covers(50), is(true));
+        assertThat(ranking.hasMoreAfter(2), is(true));
+        assertThat(ranking.hasMoreAfter(3), is(false));
+    }
+
+    @Test
+    public void shouldReturnHitsOfAPage() throws Exception {
+        ConceptSearchCursor.Ranking ranking = new ConceptSearchCursor.Ranking("key", hits(5), 10);
+
+        List<ConceptSearchHit> page = ranking.getHits(3, 5);
+        assertThat(page.size(), is(2));
+        assertThat(page.get(0).getConceptId(), is(4));
+        assertThat(page.get(0).getConceptNameId(), is(40));
+        assertThat(page.get(1).getConceptId(), is(5));
+        assertThat(page.get(1).getConceptNameId(), nullValue());
+    }
+
+    private List<ConceptSearchHit> hits(int count) {
+        ConceptSearchHit[] hits = new ConceptSearchHit[count];
+        for (int i = 0; i < count; ++i) {
+            int conceptId = i + 1;
+            // the last one is a match on a mapping
+            hits[i] = new ConceptSearchHit(conceptId, i == count - 1 ? null : conceptId * 10, true, 100d - i);
+        }
+        return Arrays.asList(hits);
+    }
+
+    private ConceptClass conceptClass(int id) {
+        ConceptClass conceptClass = new ConceptClass();
+        conceptClass.setId(id);
+        return conceptClass;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.junit.Test;
+import org.openmrs.ConceptMapType;
+import org.openmrs.api.ConceptService;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConceptSearchScorerTest {
+
+    @Test
+    public void defaultScorerShouldRankExactAndPreferredNamesFirst() throws Exception {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates("malaria", Locale.ENGLISH);
+        candidates.addName(1, 11, "Malaria", true);
+        candidates.addName(2, 21, "Cerebral Malaria", true);
+        candidates.addName(3, 31, "Malaria", false);
+        candidates.addMapping(4, 1);
+
+        double[] scores = score(candidates, new DefaultConceptSearchScorer());
+
+        assertThat(scores[0], is(1000d + 500d - 7));
+        assertThat(scores[1], is(500d - 16));
+        assertThat(scores[2], is(1000d - 7));
+        assertThat(scores[3], is(10000d));
+    }
+
+    @Test
+    public void prefixAndWordPositionScorersShouldPreferEarlyMatches() throws Exception {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates("fever", Locale.ENGLISH);
+        candidates.addName(1, 11, "Fever of unknown origin", true);
+        candidates.addName(2, 21, "Typhoid fever", true);
+        candidates.addName(3, 31, "Parafever", true);
+
+        PrefixMatchScorer prefix = new PrefixMatchScorer();
+        prefix.setWeight(100d);
+        WordPositionScorer wordPosition = new WordPositionScorer();
+        wordPosition.setWeight(50d);
+        double[] scores = score(candidates, prefix, wordPosition);
+
+        assertThat(scores[0], is(150d));
+        assertThat(scores[1], is(25d));
+        assertThat(scores[2], is(0d));
+    }
+
+    @Test
+    public void usageFrequencyScorerShouldBoostCommonlyUsedConcepts() throws Exception {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates("fever", Locale.ENGLISH);
+        candidates.addName(1, 11, "Fever", true);
+        candidates.addName(2, 21, "Fever, rheumatic", true);
+        candidates.addName(3, 31, "Fever, yellow", true);
+
+        UsageFrequencyScorer usage = new UsageFrequencyScorer();
+        usage.setWeight(10d);
+        double[] scores = score(candidates, usage);
+        assertThat(scores[0], is(0d));
+
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        counts.put(2, 999);
+        counts.put(3, 9);
+        usage.setUsageCounts(counts);
+        scores = score(candidates, usage);
+
+        assertThat(scores[0], is(0d));
+        assertThat(scores[1], is(30d));
+        assertThat(scores[2], is(10d));
+    }
+
+    @Test
+    public void mappingTypeScorerShouldResolveMapTypeCreatedLater() throws Exception {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates("A00", Locale.ENGLISH);
+        candidates.addMapping(1, 5);
+
+        ConceptService conceptService = mock(ConceptService.class);
+        MappingTypeScorer mappingType = new MappingTypeScorer();
+        mappingType.setConceptService(conceptService);
+        Map<String, Double> weights = new HashMap<String, Double>();
+        weights.put("SAME-AS", 200d);
+        mappingType.setWeights(weights);
+
+        assertThat(score(candidates, mappingType)[0], is(0d));
+
+        ConceptMapType sameAs = new ConceptMapType(5);
+        when(conceptService.getConceptMapTypeByName("SAME-AS")).thenReturn(sameAs);
+        assertThat(score(candidates, mappingType)[0], is(200d));
+        assertThat(score(candidates, mappingType)[0], is(200d));
+        verify(conceptService, times(2)).getConceptMapTypeByName("SAME-AS");
+    }
+
+    private double[] score(ConceptSearchCandidates candidates, ConceptSearchScorer... scorers) {
+        double[] scores = new double[candidates.size()];
+        for (ConceptSearchScorer scorer : scorers) {
+            scorer.score(candidates, scores);
+        }
+        return scores;
+    }
+
+}
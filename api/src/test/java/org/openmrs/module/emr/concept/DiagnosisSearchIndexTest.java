@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.api.ConceptService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class DiagnosisSearchIndexTest {
+
+    private static final int DIAGNOSES = 100;
+
+    private DiagnosisSearchIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<Integer, List<Integer>> setMembers = new TreeMap<Integer, List<Integer>>();
+        setMembers.put(DIAGNOSES, Arrays.asList(1, 2));
+
+        index = new DiagnosisSearchIndex();
+        index.beginBulkLoad(DiagnosisSetMembership.explode(Collections.singleton(DIAGNOSES), setMembers), Collections.<Integer>emptySet());
+        index.addSetMember(1, null);
+        index.addName(1, 11, "Malaria", Locale.ENGLISH, true);
+        index.addSetMember(2, null);
+        index.addName(2, 21, "Diabetes", Locale.ENGLISH, true);
+        index.finishBulkLoad();
+    }
+
+    @Test
+    public void shouldFindCurrentNamesOfConceptsSavedRepeatedly() throws Exception {
+        // each save leaves holes where the previous names were, which are compacted along the way
+        for (int i = 0; i < 10; ++i) {
+            Concept concept = new Concept();
+            concept.setConceptId(1);
+            ConceptName name = new ConceptName("Fever " + i, Locale.ENGLISH);
+            name.setConceptNameId(100 + i);
+            concept.addName(name);
+            index.updateConcept(concept);
+        }
+
+        assertThat(find("malaria").size(), is(0));
+        ConceptSearchCandidates fever = find("fever");
+        assertThat(fever.size(), is(1));
+        assertThat(fever.getConceptNameIds()[0], is(109));
+        ConceptSearchCandidates diabetes = find("diab");
+        assertThat(diabetes.size(), is(1));
+        assertThat(diabetes.getConceptIds()[0], is(2));
+    }
+
+    @Test
+    public void adviceShouldOnlyIndexConceptEditsThatCommit() throws Exception {
+        DiagnosisSearchIndexAdvice advice = new DiagnosisSearchIndexAdvice(index);
+        Concept concept = new Concept();
+        concept.setConceptId(1);
+        ConceptName name = new ConceptName("Fever", Locale.ENGLISH);
+        name.setConceptNameId(12);
+        concept.addName(name);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            advice.afterReturning(null, ConceptService.class.getMethod("saveConcept", Concept.class), new Object[] { concept }, null);
+            assertThat(find("fever").size(), is(0));
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertThat(find("fever").size(), is(0));
+        assertThat(find("malaria").size(), is(1));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            advice.afterReturning(null, ConceptService.class.getMethod("saveConcept", Concept.class), new Object[] { concept }, null);
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertThat(find("fever").size(), is(1));
+        assertThat(find("malaria").size(), is(0));
+    }
+
+    @Test
+    public void shouldNotAnswerQueriesOnceInvalidated() throws Exception {
+        index.invalidate();
+        assertThat(index.findCandidates(new ConceptSearchCandidates("malaria", Locale.ENGLISH), null, Collections.singleton(DIAGNOSES), null), is(false));
+    }
+
+    private ConceptSearchCandidates find(String query) {
+        ConceptSearchCandidates candidates = new ConceptSearchCandidates(query, Locale.ENGLISH);
+        assertThat(index.findCandidates(candidates, null, Collections.singleton(DIAGNOSES), null), is(true));
+        return candidates;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.concept;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.api.ConceptService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class DiagnosisSetMembershipTest {
+
+    private DiagnosisSetMembership membership;
+
+    @Before
+    public void setUp() throws Exception {
+        // sets 1 and 2 are diagnosis sets; 3 is nested in 1, and 4 is nested in 3 (and contains 3 again)
+        Map<Integer, List<Integer>> setMembers = new HashMap<Integer, List<Integer>>();
+        setMembers.put(1, Arrays.asList(10, 11, 3));
+        setMembers.put(2, Arrays.asList(11, 20));
+        setMembers.put(3, Arrays.asList(30, 4));
+        setMembers.put(4, Arrays.asList(40, 3));
+        setMembers.put(5, Arrays.asList(50));
+        membership = DiagnosisSetMembership.explode(Arrays.asList(1, 2), setMembers);
+    }
+
+    @Test
+    public void shouldExplodeNestedSets() throws Exception {
+        DiagnosisSetMembership.Filter inFirst = membership.getFilter(Arrays.asList(1));
+        assertThat(inFirst.accepts(10), is(true));
+        assertThat(inFirst.accepts(11), is(true));
+        assertThat(inFirst.accepts(30), is(true));
+        assertThat(inFirst.accepts(40), is(true));
+        assertThat(inFirst.accepts(20), is(false));
+        assertThat(inFirst.accepts(50), is(false));
+
+        DiagnosisSetMembership.Filter inEither = membership.getFilter(Arrays.asList(1, 2));
+        assertThat(inEither.accepts(20), is(true));
+        assertThat(inEither.accepts(40), is(true));
+        assertThat(inEither.accepts(50), is(false));
+
+        assertThat(membership.getMemberIds(), is(new int[] { 3, 4, 10, 11, 20, 30, 40 }));
+    }
+
+    @Test
+    public void shouldNotFilterBySetsItDoesNotKnow() throws Exception {
+        assertThat(membership.getFilter(Arrays.asList(1, 5)), nullValue());
+    }
+
+    @Test
+    public void shouldKnowWhichSetsItDependsOn() throws Exception {
+        assertThat(membership.isDiagnosisSet(1), is(true));
+        assertThat(membership.isDiagnosisSet(3), is(false));
+        assertThat(membership.isDiagnosisSetOrNestedSet(3), is(true));
+        assertThat(membership.isDiagnosisSetOrNestedSet(4), is(true));
+        assertThat(membership.isDiagnosisSetOrNestedSet(5), is(false));
+        assertThat(membership.isMember(30), is(true));
+        assertThat(membership.isMember(50), is(false));
+    }
+
+    @Test
+    public void closureAdviceShouldInvalidateOnlyOnceTheEditCommits() throws Exception {
+        DiagnosisSetClosure closure = new DiagnosisSetClosure();
+        closure.setMembership(closure.getGeneration(), membership);
+        Runnable onChange = mock(Runnable.class);
+        DiagnosisSetClosureAdvice advice = new DiagnosisSetClosureAdvice(closure, onChange);
+        Concept nestedSet = new Concept(3);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            advice.afterReturning(null, ConceptService.class.getMethod("saveConcept", Concept.class), new Object[] { nestedSet }, null);
+            assertThat(closure.getMembership(), is(membership));
+            verify(onChange, never()).run();
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+            assertThat(closure.getMembership(), nullValue());
+            verify(onChange).run();
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.concept;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class TopConceptSearchHitsTest {
+
+    @Test
+    public void shouldKeepOnlyTheBestHitsBestFirst() throws Exception {
+        TopConceptSearchHits top = new TopConceptSearchHits(2);
+        top.offer(new ConceptSearchHit(1, 11, true, 10d));
+        top.offer(new ConceptSearchHit(2, 21, true, 30d));
+        top.offer(new ConceptSearchHit(3, 31, true, 5d));
+        top.offer(new ConceptSearchHit(4, 41, true, 20d));
+
+        List<ConceptSearchHit> hits = top.getHits();
+        assertThat(hits.size(), is(2));
+        assertThat(hits.get(0).getConceptId(), is(2));
+        assertThat(hits.get(1).getConceptId(), is(4));
+    }
+
+    @Test
+    public void shouldKeepPreferredNameMatchOverSynonymMatch() throws Exception {
+        TopConceptSearchHits top = new TopConceptSearchHits(5);
+        top.offer(new ConceptSearchHit(1, 12, false, 1000d));
+        top.offer(new ConceptSearchHit(1, 11, true, 490d));
+        top.offer(new ConceptSearchHit(1, 13, false, 1200d));
+
+        List<ConceptSearchHit> hits = top.getHits();
+        assertThat(hits.size(), is(1));
+        assertThat(hits.get(0).getConceptNameId(), is(11));
+    }
+
+    @Test
+    public void shouldKeepHigherScoringMappingMatch() throws Exception {
+        TopConceptSearchHits top = new TopConceptSearchHits(5);
+        top.offer(new ConceptSearchHit(1, 11, true, 490d));
+        top.offer(new ConceptSearchHit(1, null, false, 10000d));
+
+        List<ConceptSearchHit> hits = top.getHits();
+        assertThat(hits.size(), is(1));
+        assertThat(hits.get(0).getScore(), is(10000d));
+    }
+
+    @Test
+    public void shouldNotLetADuplicateEvictAnotherConcept() throws Exception {
+        TopConceptSearchHits top = new TopConceptSearchHits(2);
+        top.offer(new ConceptSearchHit(1, 11, false, 10d));
+        top.offer(new ConceptSearchHit(2, 21, true, 5d));
+        top.offer(new ConceptSearchHit(1, 12, true, 20d));
+
+        List<ConceptSearchHit> hits = top.getHits();
+        assertThat(hits.size(), is(2));
+        assertThat(hits.get(0).getConceptNameId(), is(12));
+        assertThat(hits.get(1).getConceptId(), is(2));
+    }
+
+}
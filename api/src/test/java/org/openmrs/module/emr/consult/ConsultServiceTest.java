@@ -15,16 +15,20 @@
 package org.openmrs.module.emr.consult;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.hamcrest.Matcher;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.openmrs.Concept;
@@ -41,9 +45,12 @@ import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Provider;
 import org.openmrs.User;
+import org.openmrs.Visit;
+import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.handler.EncounterVisitHandler;
 import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
@@ -54,12 +61,15 @@ import org.openmrs.module.emrapi.disposition.Disposition;
 import org.openmrs.module.emrapi.disposition.DispositionDescriptor;
 import org.openmrs.module.emrapi.disposition.actions.DispositionAction;
 import org.openmrs.module.emrapi.disposition.actions.MarkPatientDeadDispositionAction;
+import org.openmrs.module.emrapi.encounter.EncounterDomainWrapper;
 import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.util.OpenmrsUtil;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
@@ -67,7 +77,11 @@ import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -108,6 +122,7 @@ public class ConsultServiceTest {
     private Concept patientDied;
     private Disposition death;
     private EmrConceptService emrConceptService;
+    private ApplicationContext applicationContext;
 
     @Before
     public void setUp() throws Exception {
@@ -209,7 +224,7 @@ public class ConsultServiceTest {
         markPatientDeadAction.setPatientService(patientService);
         markPatientDeadAction.setEmrApiProperties(emrApiProperties);
 
-        ApplicationContext applicationContext = mock(ApplicationContext.class);
+        applicationContext = mock(ApplicationContext.class);
         when(applicationContext.getBean("markPatientDeadAction", DispositionAction.class)).thenReturn(markPatientDeadAction);
 
         consultService = new ConsultServiceImpl();
@@ -221,6 +236,7 @@ public class ConsultServiceTest {
         death = new Disposition("patientDied", "Patient Died", snomedDiedCode, Arrays.asList("markPatientDeadAction"), null);
 
         PowerMockito.when(Context.getPatientService()).thenReturn(patientService);
+        PowerMockito.when(Context.getService(ConsultService.class)).thenReturn(consultService);
     }
 
     private Concept buildConcept(int conceptId, String name) {
@@ -360,6 +376,266 @@ public class ConsultServiceTest {
             new CodedObsMatcher(trauma, accident)));
     }
 
+    @Test
+    public void saveConsultNotes_shouldReportTheOutcomeOfEachNote() throws Exception {
+        ConsultNote first = buildConsultNote();
+        first.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        ConsultNote missingDiagnosis = buildConsultNote();
+        ConsultNote third = buildConsultNote();
+        third.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(diabetes)));
+
+        List<ConsultNoteResult> results = consultService.saveConsultNotes(Arrays.asList(first, missingDiagnosis, third));
+
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).isSaved(), is(true));
+        assertThat(results.get(1).isSaved(), is(false));
+        assertThat(results.get(1).getConsultNote(), is(missingDiagnosis));
+        assertThat(results.get(2).isSaved(), is(true));
+        assertThat(results.get(2).getConsultNote(), is(third));
+        verify(encounterService, times(2)).saveEncounter(any(Encounter.class));
+    }
+
+    @Test
+    public void saveConsultNotes_shouldAssignEachPatientsVisitOnce() throws Exception {
+        final Visit visit = new Visit(1);
+        EncounterVisitHandler visitHandler = mock(EncounterVisitHandler.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Encounter) invocation.getArguments()[0]).setVisit(visit);
+                return null;
+            }
+        }).when(visitHandler).beforeCreateEncounter(any(Encounter.class));
+        when(encounterService.getActiveEncounterVisitHandler()).thenReturn(visitHandler);
+
+        ConsultNote first = buildConsultNote();
+        first.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        ConsultNote second = buildConsultNote();
+        second.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(diabetes)));
+
+        List<ConsultNoteResult> results = consultService.saveConsultNotes(Arrays.asList(first, second));
+
+        assertThat(results.get(0).getEncounter().getVisit(), is(visit));
+        assertThat(results.get(1).getEncounter().getVisit(), is(visit));
+        verify(visitHandler, times(1)).beforeCreateEncounter(any(Encounter.class));
+        verify(emrApiProperties, times(1)).getDiagnosisMetadata();
+    }
+
+    @Test
+    public void saveConsultNotes_shouldAssignVisitOncePerPatientAndLocation() throws Exception {
+        EncounterVisitHandler visitHandler = mock(EncounterVisitHandler.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Encounter) invocation.getArguments()[0]).setVisit(new Visit(1));
+                return null;
+            }
+        }).when(visitHandler).beforeCreateEncounter(any(Encounter.class));
+        when(encounterService.getActiveEncounterVisitHandler()).thenReturn(visitHandler);
+
+        ConsultNote first = buildConsultNote();
+        first.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        ConsultNote elsewhere = buildConsultNote();
+        elsewhere.setEncounterLocation(new Location(2));
+        elsewhere.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(diabetes)));
+
+        consultService.saveConsultNotes(Arrays.asList(first, elsewhere));
+
+        verify(visitHandler, times(2)).beforeCreateEncounter(any(Encounter.class));
+    }
+
+    @Test
+    public void saveConsultNotes_shouldRetryAFailedChunkOneNoteAtATime() throws Exception {
+        final Patient badPatient = new Patient(456);
+        when(encounterService.saveEncounter(any(Encounter.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Encounter encounter = (Encounter) invocation.getArguments()[0];
+                if (encounter.getPatient() == badPatient) {
+                    throw new RuntimeException("constraint violation");
+                }
+                return encounter;
+            }
+        });
+
+        ConsultNote first = buildConsultNote();
+        first.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        ConsultNote bad = buildConsultNote();
+        bad.setPatient(badPatient);
+        bad.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        ConsultNote third = buildConsultNote();
+        third.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(diabetes)));
+
+        List<ConsultNoteResult> results = consultService.saveConsultNotes(Arrays.asList(first, bad, third));
+
+        assertThat(results.get(0).isSaved(), is(true));
+        assertThat(results.get(1).isSaved(), is(false));
+        assertThat(results.get(1).getConsultNote(), is(bad));
+        assertThat(results.get(2).isSaved(), is(true));
+        assertThat(results.get(2).getConsultNote(), is(third));
+        PowerMockito.verifyStatic(never());
+        Context.evictFromSession(any(Encounter.class));
+    }
+
+    @Test
+    public void saveConsultNotes_shouldForgetIdsOfObsFromARolledBackChunk() throws Exception {
+        final Patient badPatient = new Patient(456);
+        when(encounterService.saveEncounter(any(Encounter.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Encounter encounter = (Encounter) invocation.getArguments()[0];
+                if (encounter.getPatient() == badPatient) {
+                    throw new RuntimeException("constraint violation");
+                }
+                // e.g. the obs were inserted (getting ids) before the chunk failed
+                for (Obs obs : encounter.getAllObs()) {
+                    if (obs.getObsId() != null) {
+                        throw new RuntimeException("obs " + obs.getObsId() + " was never committed");
+                    }
+                    obs.setObsId(1);
+                }
+                return encounter;
+            }
+        });
+
+        ConsultNote first = buildConsultNote();
+        first.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        Obs additional = new Obs();
+        additional.setConcept(freeTextComments);
+        additional.setValueText("Back-entered");
+        first.addAdditionalObs(additional);
+        ConsultNote bad = buildConsultNote();
+        bad.setPatient(badPatient);
+        bad.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+
+        List<ConsultNoteResult> results = consultService.saveConsultNotes(Arrays.asList(first, bad));
+
+        assertThat(results.get(0).isSaved(), is(true));
+        assertThat(results.get(1).isSaved(), is(false));
+    }
+
+    @Test
+    public void saveConsultNote_shouldReuseResolvedMetadataUntilItIsCleared() throws Exception {
+        ConsultNote consultNote = buildConsultNote();
+        consultNote.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+
+        consultService.saveConsultNote(consultNote);
+        consultService.saveConsultNote(consultNote);
+        verify(emrApiProperties, times(1)).getDiagnosisMetadata();
+        verify(emrApiProperties, times(1)).getClinicianEncounterRole();
+
+        consultService.clearMetadataCacheInternal();
+        consultService.saveConsultNote(consultNote);
+        verify(emrApiProperties, times(2)).getDiagnosisMetadata();
+    }
+
+    @Test
+    public void getConsultMetadata_shouldNotCacheMetadataResolvedBeforeItWasCleared() throws Exception {
+        final DiagnosisMetadata diagnosisMetadata = emrApiProperties.getDiagnosisMetadata();
+        when(emrApiProperties.getDiagnosisMetadata()).thenAnswer(new Answer<DiagnosisMetadata>() {
+            @Override
+            public DiagnosisMetadata answer(InvocationOnMock invocation) throws Throwable {
+                // e.g. a concept is saved while another thread is resolving the metadata
+                consultService.clearMetadataCacheInternal();
+                return diagnosisMetadata;
+            }
+        });
+
+        consultService.getConsultMetadata();
+        consultService.getConsultMetadata();
+        verify(emrApiProperties, times(3)).getDiagnosisMetadata();
+    }
+
+    @Test
+    public void consultMetadataAdvice_shouldClearMetadataWhenConceptsOrEncounterRolesChange() throws Exception {
+        ConsultMetadataAdvice advice = new ConsultMetadataAdvice(consultService);
+        consultService.getConsultMetadata();
+
+        advice.afterReturning(null, PatientService.class.getMethod("savePatient", Patient.class), new Object[] { new Patient() }, null);
+        consultService.getConsultMetadata();
+        verify(emrApiProperties, times(1)).getDiagnosisMetadata();
+
+        advice.afterReturning(null, ConceptService.class.getMethod("saveConcept", Concept.class), new Object[] { new Concept() }, null);
+        consultService.getConsultMetadata();
+        verify(emrApiProperties, times(2)).getDiagnosisMetadata();
+
+        advice.afterReturning(null, EncounterService.class.getMethod("retireEncounterRole", EncounterRole.class, String.class), new Object[] { clinician, "reason" }, null);
+        consultService.getConsultMetadata();
+        verify(emrApiProperties, times(3)).getDiagnosisMetadata();
+    }
+
+    @Test
+    public void saveConsultNote_shouldRunPostCommitDispositionActionsAfterSaving() throws Exception {
+        PostCommitDispositionAction notifyAction = mock(PostCommitDispositionAction.class);
+        when(applicationContext.getBeansOfType(DispositionAction.class, false, true)).thenReturn(Collections.<String, DispositionAction>singletonMap("notifyAction", notifyAction));
+        consultService.refreshDispositionActionsInternal();
+        consultService.setPostCommitActionExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        ConsultNote consultNote = buildConsultNote();
+        consultNote.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        consultNote.setDisposition(new Disposition("notify", "Notify", "SNOMED CT:397709008", Arrays.asList("notifyAction"), null));
+
+        when(encounterService.getEncounter(any(Integer.class))).thenReturn(new Encounter());
+        Encounter encounter = consultService.saveConsultNote(consultNote);
+
+        InOrder inOrder = inOrder(encounterService, notifyAction);
+        inOrder.verify(encounterService).saveEncounter(encounter);
+        inOrder.verify(notifyAction).action(any(EncounterDomainWrapper.class), any(Obs.class), any(Map.class));
+        verify(applicationContext, never()).getBean("notifyAction", DispositionAction.class);
+    }
+
+    @Test
+    public void saveConsultNote_shouldNotRunPostCommitDispositionActionsUntilTheTransactionCommits() throws Exception {
+        PostCommitDispositionAction notifyAction = mock(PostCommitDispositionAction.class);
+        when(applicationContext.getBeansOfType(DispositionAction.class, false, true)).thenReturn(Collections.<String, DispositionAction>singletonMap("notifyAction", notifyAction));
+        consultService.refreshDispositionActionsInternal();
+        consultService.setPostCommitActionExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        when(encounterService.getEncounter(any(Integer.class))).thenReturn(new Encounter());
+
+        ConsultNote consultNote = buildConsultNote();
+        consultNote.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        consultNote.setDisposition(new Disposition("notify", "Notify", "SNOMED CT:397709008", Arrays.asList("notifyAction"), null));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            consultService.saveConsultNote(consultNote);
+            verify(notifyAction, never()).action(any(EncounterDomainWrapper.class), any(Obs.class), any(Map.class));
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+            verify(notifyAction, times(1)).action(any(EncounterDomainWrapper.class), any(Obs.class), any(Map.class));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void saveConsultNote_shouldNotStartPostCommitActionThreadsAfterShutdown() throws Exception {
+        PostCommitDispositionAction notifyAction = mock(PostCommitDispositionAction.class);
+        when(applicationContext.getBeansOfType(DispositionAction.class, false, true)).thenReturn(Collections.<String, DispositionAction>singletonMap("notifyAction", notifyAction));
+        consultService.refreshDispositionActionsInternal();
+        consultService.onShutdown();
+
+        ConsultNote consultNote = buildConsultNote();
+        consultNote.addPrimaryDiagnosis(new Diagnosis(new CodedOrFreeTextAnswer(malaria)));
+        consultNote.setDisposition(new Disposition("notify", "Notify", "SNOMED CT:397709008", Arrays.asList("notifyAction"), null));
+        Encounter encounter = consultService.saveConsultNote(consultNote);
+
+        verify(encounterService).saveEncounter(encounter);
+        verify(notifyAction, never()).action(any(EncounterDomainWrapper.class), any(Obs.class), any(Map.class));
+    }
+
     private ConsultNote buildConsultNote() {
         ConsultNote consultNote = new ConsultNote();
         consultNote.setPatient(patient);
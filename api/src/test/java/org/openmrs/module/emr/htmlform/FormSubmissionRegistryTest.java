@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.htmlform;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class FormSubmissionRegistryTest {
+
+    @Test
+    public void shouldReturnTheResultOfACompletedSubmission() throws Exception {
+        FormSubmissionRegistry registry = new FormSubmissionRegistry();
+        assertNull(registry.begin("key"));
+        registry.complete("key", "result");
+
+        FormSubmissionRegistry.Submission previous = registry.begin("key");
+        assertTrue(previous.isCompleted());
+        assertThat((String) previous.getResult(), is("result"));
+    }
+
+    @Test
+    public void shouldReportASubmissionInProgress() throws Exception {
+        FormSubmissionRegistry registry = new FormSubmissionRegistry();
+        assertNull(registry.begin("key"));
+
+        FormSubmissionRegistry.Submission previous = registry.begin("key");
+        assertNotNull(previous);
+        assertFalse(previous.isCompleted());
+    }
+
+    @Test
+    public void shouldAllowResubmittingAnAbandonedSubmission() throws Exception {
+        FormSubmissionRegistry registry = new FormSubmissionRegistry();
+        registry.begin("key");
+        registry.abandon("key");
+
+        assertNull(registry.begin("key"));
+    }
+
+    @Test
+    public void shouldForgetExpiredSubmissions() throws Exception {
+        FormSubmissionRegistry registry = new FormSubmissionRegistry(10, 0);
+        registry.begin("key");
+        registry.complete("key", "result");
+
+        assertNull(registry.begin("key"));
+    }
+
+    @Test
+    public void shouldKeepAtMostTheMaximumNumberOfSubmissions() throws Exception {
+        FormSubmissionRegistry registry = new FormSubmissionRegistry(2, FormSubmissionRegistry.DEFAULT_TIME_TO_LIVE_MILLIS);
+        registry.begin("a");
+        registry.complete("a", "result");
+        registry.begin("b");
+        registry.complete("b", "result");
+        registry.begin("c");
+
+        assertThat(registry.size(), is(2));
+        assertNull(registry.begin("a"));
+    }
+
+    @Test
+    public void shouldNotDropSubmissionsInProgressToKeepToTheMaximum() throws Exception {
+        FormSubmissionRegistry registry = new FormSubmissionRegistry(2, FormSubmissionRegistry.DEFAULT_TIME_TO_LIVE_MILLIS);
+        registry.begin("a");
+        registry.begin("b");
+        registry.complete("b", "result");
+        registry.begin("c");
+
+        assertThat(registry.size(), is(2));
+        assertFalse(registry.begin("a").isCompleted());
+        assertNull(registry.begin("b"));
+
+        registry.begin("d");
+        assertThat(registry.size(), is(4));
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.htmlform;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.task.TaskDescriptor;
+import org.openmrs.ui.framework.resource.ResourceFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HtmlFormBootstrapTest {
+
+    @Test
+    public void shouldSyncEachUiResourceOnceAndSkipDevelopmentMode() throws Exception {
+        ResourceFactory resourceFactory = mock(ResourceFactory.class);
+        EmrService emrService = mock(EmrService.class);
+        when(resourceFactory.getResourceAsString("emr", "htmlforms/vitals.xml")).thenReturn("<htmlform formUuid=\"vitals-uuid\">...</htmlform>");
+        when(resourceFactory.isResourceProviderInDevelopmentMode("devmodule")).thenReturn(true);
+        when(emrService.syncHtmlFormsFromUiResourcesInternal(anyList())).thenReturn(Collections.singletonMap("emr:htmlforms/vitals.xml", 7));
+
+        EnterHtmlFormWithSimpleUiTask vitals = new EnterHtmlFormWithSimpleUiTask();
+        vitals.setFormDefinitionFromUiResource("emr:htmlforms/vitals.xml");
+        EnterHtmlFormWithSimpleUiTask vitalsAgain = new EnterHtmlFormWithSimpleUiTask();
+        vitalsAgain.setFormDefinitionFromUiResource("emr:htmlforms/vitals.xml");
+        EnterHtmlFormWithSimpleUiTask inDevelopment = new EnterHtmlFormWithSimpleUiTask();
+        inDevelopment.setFormDefinitionFromUiResource("devmodule:htmlforms/new.xml");
+
+        int synced = new HtmlFormBootstrap(resourceFactory, emrService).bootstrap(Arrays.<TaskDescriptor>asList(vitals, vitalsAgain, inDevelopment));
+        assertThat(synced, is(1));
+
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(emrService).syncHtmlFormsFromUiResourcesInternal(captor.capture());
+        assertThat(captor.getValue().size(), is(1));
+        UiResourceHtmlForm resource = (UiResourceHtmlForm) captor.getValue().get(0);
+        assertThat(resource.getProviderAndPath(), is("emr:htmlforms/vitals.xml"));
+        assertThat(resource.getFormUuid(), is("vitals-uuid"));
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.htmlform;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Form;
+import org.openmrs.api.FormService;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.ui.framework.resource.ResourceFactory;
+
+import java.util.Date;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.Mock;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HtmlFormUtilTest {
+
+    private static final String XML = "<htmlform formUuid=\"form-uuid\" formName=\"Vitals\" formVersion=\"1.0\">...</htmlform>";
+
+    @Mock
+    FormService formService;
+
+    @Mock
+    HtmlFormEntryService htmlFormEntryService;
+
+    @Mock
+    ResourceFactory resourceFactory;
+
+    private Form form;
+
+    private HtmlForm htmlForm;
+
+    @Before
+    public void setUp() throws Exception {
+        HtmlFormUtil.clearUiResourceCache();
+        HtmlFormUtil.clearPreparedHtmlFormCache();
+
+        form = new Form();
+        form.setUuid("form-uuid");
+        form.setName("Vitals");
+        form.setVersion("1.0");
+
+        htmlForm = new HtmlForm();
+        htmlForm.setId(7);
+        htmlForm.setForm(form);
+        htmlForm.setXmlData(XML);
+
+        when(resourceFactory.getResourceAsString("emr", "htmlforms/vitals.xml")).thenReturn(XML);
+        when(formService.getFormByUuid("form-uuid")).thenReturn(form);
+        when(htmlFormEntryService.getHtmlFormByForm(form)).thenReturn(htmlForm);
+        when(htmlFormEntryService.getHtmlForm(7)).thenReturn(htmlForm);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        HtmlFormUtil.clearUiResourceCache();
+        HtmlFormUtil.clearPreparedHtmlFormCache();
+    }
+
+    @Test
+    public void shouldNotParseUnchangedResourceAgain() throws Exception {
+        assertThat(HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml"), is(htmlForm));
+        assertThat(HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml"), is(htmlForm));
+
+        verify(formService, times(1)).getFormByUuid("form-uuid");
+        verify(htmlFormEntryService, times(1)).getHtmlForm(7);
+    }
+
+    @Test
+    public void shouldSyncChangedResource() throws Exception {
+        HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml");
+
+        String changed = XML.replace("1.0", "1.1");
+        when(resourceFactory.getResourceAsString("emr", "htmlforms/vitals.xml")).thenReturn(changed);
+        HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml");
+
+        assertThat(form.getVersion(), is("1.1"));
+        assertThat(htmlForm.getXmlData(), is(changed));
+        verify(htmlFormEntryService).saveHtmlForm(htmlForm);
+    }
+
+    @Test
+    public void shouldSyncAgainIfTheFormWasEditedInTheDatabase() throws Exception {
+        HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml");
+
+        htmlForm.setXmlData("<htmlform>edited</htmlform>");
+        htmlForm.setDateChanged(new Date());
+        HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml");
+
+        assertThat(htmlForm.getXmlData(), is(XML));
+        verify(formService, times(2)).getFormByUuid("form-uuid");
+    }
+
+    @Test
+    public void shouldAlwaysParseInDevelopmentMode() throws Exception {
+        when(resourceFactory.isResourceProviderInDevelopmentMode("emr")).thenReturn(true);
+
+        HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml");
+        HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, htmlFormEntryService, "emr:htmlforms/vitals.xml");
+
+        verify(formService, times(2)).getFormByUuid("form-uuid");
+    }
+
+    @Test
+    public void shouldPrepareACopyOfTheFormWithoutModifyingIt() throws Exception {
+        htmlForm.setXmlData("<htmlform><!-- a comment -->Weight</htmlform>");
+
+        HtmlForm prepared = HtmlFormUtil.getPreparedHtmlForm(htmlForm);
+
+        assertThat(prepared, not(sameInstance(htmlForm)));
+        assertThat(prepared.getId(), is(7));
+        assertThat(prepared.getForm(), is(form));
+        assertFalse(prepared.getXmlData().contains("a comment"));
+        assertThat(htmlForm.getXmlData(), is("<htmlform><!-- a comment -->Weight</htmlform>"));
+    }
+
+    @Test
+    public void shouldPrepareTheFormAgainAfterItChanges() throws Exception {
+        htmlForm.setXmlData("<htmlform>Weight</htmlform>");
+        HtmlFormUtil.getPreparedHtmlForm(htmlForm);
+
+        htmlForm.setXmlData("<htmlform>Height</htmlform>");
+        htmlForm.setDateChanged(new Date());
+        HtmlForm prepared = HtmlFormUtil.getPreparedHtmlForm(htmlForm);
+
+        assertThat(prepared.getXmlData().contains("Height"), is(true));
+        assertThat(prepared.getDateChanged(), is(htmlForm.getDateChanged()));
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.emr.htmlform;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Form;
+import org.openmrs.Patient;
+import org.openmrs.api.FormService;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.messagesource.MessageSourceService;
+import org.openmrs.module.emr.EmrContext;
+import org.openmrs.module.emr.task.TaskDescriptor;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PublishedHtmlFormsTaskFactoryTest {
+
+    PublishedHtmlFormsTaskFactory factory;
+    PublishedHtmlFormsAdvice advice;
+    HtmlFormEntryService htmlFormEntryService;
+    EmrContext emrContext;
+    Form form;
+    Method saveForm;
+
+    @Before
+    public void setUp() throws Exception {
+        form = new Form();
+        form.setPublished(true);
+        HtmlForm htmlForm = new HtmlForm();
+        htmlForm.setId(1);
+        htmlForm.setForm(form);
+
+        htmlFormEntryService = mock(HtmlFormEntryService.class);
+        when(htmlFormEntryService.getAllHtmlForms()).thenReturn(Arrays.asList(htmlForm));
+
+        factory = new PublishedHtmlFormsTaskFactory();
+        factory.setHtmlFormEntryService(htmlFormEntryService);
+        factory.setMessageSourceService(mock(MessageSourceService.class));
+        advice = new PublishedHtmlFormsAdvice(factory);
+
+        UserContext userContext = mock(UserContext.class);
+        when(userContext.hasPrivilege(PrivilegeConstants.FORM_ENTRY)).thenReturn(true);
+        emrContext = new EmrContext();
+        emrContext.setUserContext(userContext);
+        emrContext.setCurrentPatient(new Patient());
+
+        saveForm = FormService.class.getMethod("saveForm", Form.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void shouldReuseTaskDescriptorsUntilAFormIsSaved() throws Throwable {
+        List<TaskDescriptor> descriptors = factory.getTaskDescriptors(emrContext);
+        assertThat(descriptors.size(), is(1));
+        assertThat(factory.getTaskDescriptors(emrContext), sameInstance(descriptors));
+        verify(htmlFormEntryService, times(1)).getAllHtmlForms();
+
+        advice.afterReturning(form, saveForm, new Object[] { form }, null);
+        assertThat(factory.getTaskDescriptors(emrContext), not(sameInstance(descriptors)));
+        verify(htmlFormEntryService, times(2)).getAllHtmlForms();
+    }
+
+    @Test
+    public void shouldInvalidateOnlyOnceTheTransactionCommits() throws Throwable {
+        List<TaskDescriptor> descriptors = factory.getTaskDescriptors(emrContext);
+
+        TransactionSynchronizationManager.initSynchronization();
+        advice.afterReturning(form, saveForm, new Object[] { form }, null);
+        assertThat(factory.getTaskDescriptors(emrContext), sameInstance(descriptors));
+
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCommit();
+        }
+        assertThat(factory.getTaskDescriptors(emrContext), not(sameInstance(descriptors)));
+    }
+
+    @Test
+    public void shouldNotReuseTaskDescriptorsBuiltWhileAFormChanged() throws Exception {
+        final HtmlForm htmlForm = new HtmlForm();
+        htmlForm.setId(1);
+        htmlForm.setForm(form);
+        when(htmlFormEntryService.getAllHtmlForms()).thenAnswer(new Answer<List<HtmlForm>>() {
+            private boolean first = true;
+
+            @Override
+            public List<HtmlForm> answer(InvocationOnMock invocation) throws Throwable {
+                if (first) {
+                    first = false;
+                    factory.invalidate();
+                }
+                return Arrays.asList(htmlForm);
+            }
+        });
+
+        List<TaskDescriptor> descriptors = factory.getTaskDescriptors(emrContext);
+        List<TaskDescriptor> rebuilt = factory.getTaskDescriptors(emrContext);
+        assertThat(rebuilt, not(sameInstance(descriptors)));
+        assertThat(factory.getTaskDescriptors(emrContext), sameInstance(rebuilt));
+        verify(htmlFormEntryService, times(2)).getAllHtmlForms();
+    }
+
+}
@@ -39,6 +39,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -161,4 +162,47 @@ public class UiMessageTagHandlerTest {
     }
 
 
+    @Test
+    public void testGetSubstitutionWithArgumentsIsCached() throws Exception {
+        Map<String, String> args = new HashMap<String, String>();
+        args.put("code", messageCodeWithArg);
+        args.put("arg0", "Arg Value");
+
+        tagHandler.getSubstitution(formEntrySession, null, args);
+        String substitution = tagHandler.getSubstitution(formEntrySession, null, args);
+
+        assertThat(substitution, is(englishMessageWithArg.replace("{0}", "Arg Value")));
+        verify(messageSourceService, times(1)).getMessage(eq(messageCodeWithArg), any(Object[].class), eq(Locale.ENGLISH));
+        assertThat(tagHandler.getCacheHits(), is(1L));
+        assertThat(tagHandler.getCacheMisses(), is(1L));
+    }
+
+    @Test
+    public void testGetSubstitutionWithDifferentArgumentsIsNotServedFromCache() throws Exception {
+        Map<String, String> args = new HashMap<String, String>();
+        args.put("code", messageCodeWithArg);
+        args.put("arg0", "One");
+        tagHandler.getSubstitution(formEntrySession, null, args);
+
+        args.put("arg0", "Two");
+        String substitution = tagHandler.getSubstitution(formEntrySession, null, args);
+
+        assertThat(substitution, is(englishMessageWithArg.replace("{0}", "Two")));
+        assertThat(tagHandler.getCacheMisses(), is(2L));
+    }
+
+    @Test
+    public void testClearCacheLooksUpMessagesAgain() throws Exception {
+        Map<String, String> args = new HashMap<String, String>();
+        args.put("code", messageCodeWithArg);
+        args.put("arg0", "Arg Value");
+
+        tagHandler.getSubstitution(formEntrySession, null, args);
+        tagHandler.clearCache();
+        tagHandler.getSubstitution(formEntrySession, null, args);
+
+        verify(messageSourceService, times(2)).getMessage(eq(messageCodeWithArg), any(Object[].class), eq(Locale.ENGLISH));
+    }
+
+
 }
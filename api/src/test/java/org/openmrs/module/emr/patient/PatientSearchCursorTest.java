@@ -0,0 +1,51 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.junit.Test;
+import org.openmrs.Location;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PatientSearchCursorTest {
+
+    @Test
+    public void shouldRoundTripThroughEncodedToken() throws Exception {
+        Location location = new Location(3);
+        String token = new PatientSearchCursor("Bob", location, 12345).encode();
+
+        PatientSearchCursor decoded = PatientSearchCursor.decode(token, "bob ", location);
+        assertThat(decoded.getAfterPatientId(), is(12345));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTokenFromADifferentQuery() throws Exception {
+        String token = new PatientSearchCursor("Bob", null, 12345).encode();
+        PatientSearchCursor.decode(token, "Alice", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTokenFromADifferentLocation() throws Exception {
+        String token = new PatientSearchCursor("Bob", new Location(3), 12345).encode();
+        PatientSearchCursor.decode(token, "Bob", new Location(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMalformedToken() throws Exception {
+        PatientSearchCursor.decode("not-a-token", "Bob", null);
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PatientSearchIndexTest {
+
+    private PatientSearchIndex index;
+
+    private PatientIdentifierType primaryIdentifierType;
+
+    @Before
+    public void setUp() throws Exception {
+        primaryIdentifierType = new PatientIdentifierType(1);
+
+        index = new PatientSearchIndex();
+        index.setEnabled(true);
+        index.beginBulkLoad(Arrays.asList(primaryIdentifierType));
+        index.addName(7, "Johnny", null, "Doe", null);
+        index.addName(3, "John", "Paul", "Smith", null);
+        index.addName(5, "Jane", null, "Johnson", null);
+        index.addIdentifier(3, "ABC123");
+        index.addIdentifier(5, "ABC1234");
+        index.finishBulkLoad();
+    }
+
+    @Test
+    public void shouldNotAnswerQueriesUntilWarmedUp() throws Exception {
+        index.beginBulkLoad(Arrays.asList(primaryIdentifierType));
+        assertThat(index.search("john", 10), nullValue());
+    }
+
+    @Test
+    public void shouldMatchStartOfAnyNamePart() throws Exception {
+        assertThat(index.search("joh", 10), contains(5, 3, 7));
+        assertThat(index.search("J", 10), contains(5, 3, 7));
+        assertThat(index.search("john smi", 10), contains(3));
+        assertThat(index.search("PAUL", 10), contains(3));
+    }
+
+    @Test
+    public void shouldNotMatchMiddleOfNamePart() throws Exception {
+        assertThat(index.search("ohn", 10), empty());
+        assertThat(index.search("son", 10), empty());
+    }
+
+    @Test
+    public void shouldOrderByNameLikeTheDatabaseSearch() throws Exception {
+        index.beginBulkLoad(Arrays.asList(primaryIdentifierType));
+        index.addName(2, "John", "Paul", "Taylor", null);
+        index.addName(9, "John", null, "Zed", null);
+        index.addName(9, "Adam", null, "Zed", null);
+        index.addName(4, "John", "Paul", "Smith", null);
+        index.finishBulkLoad();
+
+        // by given, middle and family name (of the patient's first name in that order), then by patient id
+        assertThat(index.search("john", 10), contains(9, 4, 2));
+    }
+
+    @Test
+    public void shouldRespectMaxResults() throws Exception {
+        assertThat(index.search("joh", 2), contains(5, 3));
+    }
+
+    @Test
+    public void shouldOnlySearchAmongGivenPatients() throws Exception {
+        assertThat(index.search("joh", 10, new int[] { 5, 7 }), contains(5, 7));
+        assertThat(index.search("j", 10, new int[] { 7 }), contains(7));
+        assertThat(index.search("abc123", 10, new int[] { 5 }), empty());
+    }
+
+    @Test
+    public void shouldMatchIdentifierPrefixesAfterExactMatches() throws Exception {
+        assertThat(index.search("abc1234", 10), contains(5));
+        assertThat(index.search("abc123", 10), contains(3, 5));
+        assertThat(index.search("ABC12", 10), contains(5, 3));
+        assertThat(index.search("abc123", 1), contains(3));
+    }
+
+    @Test
+    public void shouldNotMatchShortIdentifierPrefixes() throws Exception {
+        index.beginBulkLoad(Arrays.asList(primaryIdentifierType));
+        index.addName(2, "Ann", null, "Lee", null);
+        index.addIdentifier(2, "A1B");
+        index.addIdentifier(3, "A1B2C3");
+        index.finishBulkLoad();
+
+        assertThat(index.search("a1b", 10), contains(2));
+        assertThat(index.search("a1", 10), empty());
+    }
+
+    @Test
+    public void shouldReindexUpdatedPatient() throws Exception {
+        Patient patient = new Patient(3);
+        patient.addName(new PersonName("Jean", null, "Baptiste"));
+        patient.addIdentifier(new PatientIdentifier("XYZ789", primaryIdentifierType, new Location()));
+        index.updatePatient(patient);
+
+        assertThat(index.search("smith", 10), empty());
+        assertThat(index.search("abc123", 10), contains(5));
+        assertThat(index.search("abc1", 10), contains(5));
+        assertThat(index.search("bapt", 10), contains(3));
+        assertThat(index.search("xyz789", 10), contains(3));
+    }
+
+    @Test
+    public void shouldRemoveVoidedPatient() throws Exception {
+        Patient patient = new Patient(3);
+        patient.addName(new PersonName("John", "Paul", "Smith"));
+        patient.setVoided(true);
+        index.updatePatient(patient);
+
+        assertThat(index.search("joh", 10), contains(5, 7));
+        assertThat(index.search("abc123", 10), contains(5));
+        assertThat(index.size(), is(2));
+    }
+
+    @Test
+    public void shouldApplyChangesMadeWhileLoadingAfterTheLoad() throws Exception {
+        index.beginBulkLoad(Arrays.asList(primaryIdentifierType));
+        index.addName(3, "John", "Paul", "Smith", null);
+
+        Patient patient = new Patient(3);
+        patient.addName(new PersonName("Jean", null, "Baptiste"));
+        index.updatePatient(patient);
+        index.removePatient(5);
+
+        // batches read before those changes
+        index.addName(3, "Johnny", null, "Smith", null);
+        index.addName(5, "Jane", null, "Johnson", null);
+        index.finishBulkLoad();
+
+        assertThat(index.search("smith", 10), empty());
+        assertThat(index.search("jane", 10), empty());
+        assertThat(index.search("bapt", 10), contains(3));
+    }
+
+    @Test
+    public void shouldRemovePurgedPatient() throws Exception {
+        index.removePatient(5);
+        assertThat(index.search("j", 10), contains(3, 7));
+    }
+
+}
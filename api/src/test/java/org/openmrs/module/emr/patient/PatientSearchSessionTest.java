@@ -0,0 +1,113 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+
+import java.util.Arrays;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class PatientSearchSessionTest {
+
+    private PatientSearchSession searchSession;
+
+    @Before
+    public void setUp() throws Exception {
+        searchSession = new PatientSearchSession();
+    }
+
+    @Test
+    public void shouldCancelInFlightQueryWhenNewSearchBegins() throws Exception {
+        PatientSearchSession.QueryCanceller canceller = mock(PatientSearchSession.QueryCanceller.class);
+        long first = searchSession.begin();
+        searchSession.queryStarting(first, canceller);
+
+        long second = searchSession.begin();
+
+        verify(canceller).cancel();
+        assertThat(searchSession.isCurrent(first), is(false));
+        assertThat(searchSession.isCurrent(second), is(true));
+        assertThat(searchSession.queryStarting(first, canceller), is(false));
+    }
+
+    @Test
+    public void shouldNotCancelFinishedQuery() throws Exception {
+        PatientSearchSession.QueryCanceller canceller = mock(PatientSearchSession.QueryCanceller.class);
+        long ticket = searchSession.begin();
+        searchSession.queryStarting(ticket, canceller);
+        searchSession.finished(ticket, "jo", null, Arrays.asList(5, 3), true, 0);
+
+        searchSession.begin();
+
+        verify(canceller, never()).cancel();
+    }
+
+    @Test
+    public void shouldNarrowCompleteNameSearch() throws Exception {
+        long ticket = searchSession.begin();
+        searchSession.finished(ticket, "Jo", null, Arrays.asList(5, 3), true, 0);
+
+        assertThat(searchSession.getCandidatesFor("joh", null, 0), is(new int[] { 3, 5 }));
+        assertThat(searchSession.getCandidatesFor("jo  smith", null, 0), is(new int[] { 3, 5 }));
+        assertThat(searchSession.getCandidatesFor("j", null, 0), nullValue());
+        assertThat(searchSession.getCandidatesFor("jo1", null, 0), nullValue());
+        assertThat(searchSession.getCandidatesFor("joh", new Location(1), 0), nullValue());
+    }
+
+    @Test
+    public void shouldNotNarrowTruncatedSearch() throws Exception {
+        long ticket = searchSession.begin();
+        searchSession.finished(ticket, "jo", null, Arrays.asList(5, 3), false, 0);
+
+        assertThat(searchSession.getCandidatesFor("joh", null, 0), nullValue());
+    }
+
+    @Test
+    public void shouldNotNarrowOnceSomethingHasChanged() throws Exception {
+        long ticket = searchSession.begin();
+        searchSession.finished(ticket, "john", null, Arrays.<Integer>asList(), true, 7);
+
+        // e.g. John has been registered, or a patient has checked in, since
+        assertThat(searchSession.getCandidatesFor("john", null, 8), nullValue());
+        assertThat(searchSession.getCandidatesFor("john", null, 7), is(new int[0]));
+    }
+
+    @Test
+    public void shouldOnlyNarrowWithinABurstOfTyping() throws Exception {
+        searchSession = new PatientSearchSession(0);
+        long ticket = searchSession.begin();
+        searchSession.finished(ticket, "jo", null, Arrays.asList(5, 3), true, 0);
+
+        assertThat(searchSession.getCandidatesFor("joh", null, 0), nullValue());
+    }
+
+    @Test
+    public void shouldIgnoreResultsOfSupersededSearch() throws Exception {
+        long first = searchSession.begin();
+        searchSession.begin();
+        searchSession.finished(first, "jo", null, Arrays.asList(5, 3), true, 0);
+
+        assertThat(searchSession.getCandidatesFor("joh", null, 0), nullValue());
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.PatientService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PrimaryIdentifierCacheTest {
+
+    private PatientIdentifierType primaryIdentifierType = new PatientIdentifierType(1);
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntries() throws Exception {
+        PrimaryIdentifierCache cache = new PrimaryIdentifierCache(2);
+        cache.put(primaryIdentifierType, "A1", 1);
+        cache.put(primaryIdentifierType, "B2", 2);
+        cache.get(primaryIdentifierType, "A1");
+        cache.put(primaryIdentifierType, "C3", 3);
+
+        assertThat(cache.get(primaryIdentifierType, "A1"), is(1));
+        assertThat(cache.get(primaryIdentifierType, "B2"), nullValue());
+        assertThat(cache.get(primaryIdentifierType, "C3"), is(3));
+    }
+
+    @Test
+    public void shouldEvictPatientWhenSaved() throws Exception {
+        PrimaryIdentifierCache cache = new PrimaryIdentifierCache();
+        cache.put(primaryIdentifierType, "A1", 1);
+        cache.put(primaryIdentifierType, "B2", 2);
+
+        new PrimaryIdentifierCacheAdvice(cache).afterReturning(null, PatientService.class.getMethod("savePatient", Patient.class), new Object[] { new Patient(1) }, null);
+
+        assertThat(cache.get(primaryIdentifierType, "A1"), nullValue());
+        assertThat(cache.get(primaryIdentifierType, "B2"), is(2));
+    }
+
+    @Test
+    public void shouldEvictPatientOnlyOnceTheTransactionCommits() throws Exception {
+        PrimaryIdentifierCache cache = new PrimaryIdentifierCache();
+        cache.put(primaryIdentifierType, "A1", 1);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            new PrimaryIdentifierCacheAdvice(cache).afterReturning(null, PatientService.class.getMethod("savePatient", Patient.class), new Object[] { new Patient(1) }, null);
+            assertThat(cache.get(primaryIdentifierType, "A1"), is(1));
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+            assertThat(cache.get(primaryIdentifierType, "A1"), nullValue());
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void shouldEvictEveryIdentifierOfPatientButNotEntriesThatMovedToAnother() throws Exception {
+        PrimaryIdentifierCache cache = new PrimaryIdentifierCache(3);
+        cache.put(primaryIdentifierType, "A1", 1);
+        cache.put(primaryIdentifierType, "A2", 1);
+        cache.put(primaryIdentifierType, "B2", 2);
+        cache.put(primaryIdentifierType, "A2", 2);
+
+        cache.evictPatient(1);
+        assertThat(cache.get(primaryIdentifierType, "A1"), nullValue());
+        assertThat(cache.get(primaryIdentifierType, "A2"), is(2));
+
+        cache.put(primaryIdentifierType, "C3", 3);
+        cache.put(primaryIdentifierType, "D4", 4);
+        cache.evictPatient(2);
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get(primaryIdentifierType, "C3"), is(3));
+    }
+
+}
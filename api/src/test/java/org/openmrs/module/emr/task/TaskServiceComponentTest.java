@@ -16,10 +16,23 @@ package org.openmrs.module.emr.task;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.emr.EmrContext;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
 public class TaskServiceComponentTest extends BaseModuleContextSensitiveTest {
 
     @Autowired
@@ -31,4 +44,151 @@ public class TaskServiceComponentTest extends BaseModuleContextSensitiveTest {
         Assert.assertNotNull("Couldn't get TaskService from Context", Context.getService(TaskService.class));
     }
 
+    @Test
+    public void testSlowTaskFactoryFallsBackToLastGoodResult() throws Exception {
+        final SimpleTaskDescriptor fastTask = new SimpleTaskDescriptor();
+        fastTask.setId("fast");
+        fastTask.setExtensionPoint(ExtensionPoint.GLOBAL_ACTIONS.getValue());
+        final SimpleTaskDescriptor slowTask = new SimpleTaskDescriptor();
+        slowTask.setId("slow");
+        slowTask.setExtensionPoint(ExtensionPoint.GLOBAL_ACTIONS.getValue());
+        final AtomicBoolean slow = new AtomicBoolean(false);
+
+        TaskFactory fastFactory = new TaskFactory() {
+            @Override
+            public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
+                return Collections.<TaskDescriptor>singletonList(fastTask);
+            }
+        };
+        TaskFactory slowFactory = new TaskFactory() {
+            @Override
+            public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
+                if (slow.get()) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        // cancelled because we timed out
+                    }
+                }
+                return Collections.<TaskDescriptor>singletonList(slowTask);
+            }
+        };
+
+        TaskServiceImpl service = new TaskServiceImpl();
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>());
+        service.setAllTaskFactoriesInternal(Arrays.asList(fastFactory, slowFactory));
+        service.setTaskFactoryTimeoutInternal(200);
+        try {
+            EmrContext context = new EmrContext();
+            context.setUserContext(Context.getUserContext());
+
+            assertThat(service.getAvailableTasksByExtensionPoint(context, ExtensionPoint.GLOBAL_ACTIONS).size(), is(2));
+
+            slow.set(true);
+            List<TaskDescriptor> tasks = service.getAvailableTasksByExtensionPoint(context, ExtensionPoint.GLOBAL_ACTIONS);
+            assertThat(tasks, containsInAnyOrder((TaskDescriptor) fastTask, (TaskDescriptor) slowTask));
+
+            TaskFactoryStats stats = service.getTaskFactoryStats().get(slowFactory.getClass().getName());
+            assertThat(stats.getTimeouts(), is(1L));
+        } finally {
+            service.onShutdown();
+        }
+    }
+
+    @Test
+    public void testSlowTaskFactoryDoesNotFallBackToAnotherPatientsResult() throws Exception {
+        final SimpleTaskDescriptor fastTask = new SimpleTaskDescriptor();
+        fastTask.setId("fast");
+        fastTask.setExtensionPoint(ExtensionPoint.GLOBAL_ACTIONS.getValue());
+        final AtomicBoolean slow = new AtomicBoolean(false);
+
+        TaskFactory fastFactory = new TaskFactory() {
+            @Override
+            public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
+                return Collections.<TaskDescriptor>singletonList(fastTask);
+            }
+        };
+        TaskFactory patientFactory = new TaskFactory() {
+            @Override
+            public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
+                if (slow.get()) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        // cancelled because we timed out
+                    }
+                }
+                SimpleTaskDescriptor patientTask = new SimpleTaskDescriptor();
+                patientTask.setId("patient-" + emrContext.getCurrentPatient().getPatientId());
+                patientTask.setExtensionPoint(ExtensionPoint.GLOBAL_ACTIONS.getValue());
+                return Collections.<TaskDescriptor>singletonList(patientTask);
+            }
+        };
+
+        TaskServiceImpl service = new TaskServiceImpl();
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>());
+        service.setAllTaskFactoriesInternal(Arrays.asList(fastFactory, patientFactory));
+        service.setTaskFactoryTimeoutInternal(200);
+        try {
+            EmrContext context = new EmrContext();
+            context.setUserContext(Context.getUserContext());
+            context.setCurrentPatient(Context.getPatientService().getPatient(2));
+            assertThat(getIds(service.getAvailableTasksByExtensionPoint(context, ExtensionPoint.GLOBAL_ACTIONS)), containsInAnyOrder("fast", "patient-2"));
+
+            slow.set(true);
+            context.setCurrentPatient(Context.getPatientService().getPatient(7));
+            assertThat(getIds(service.getAvailableTasksByExtensionPoint(context, ExtensionPoint.GLOBAL_ACTIONS)), containsInAnyOrder("fast"));
+
+            context.setCurrentPatient(Context.getPatientService().getPatient(2));
+            assertThat(getIds(service.getAvailableTasksByExtensionPoint(context, ExtensionPoint.GLOBAL_ACTIONS)), containsInAnyOrder("fast", "patient-2"));
+        } finally {
+            service.onShutdown();
+        }
+    }
+
+    @Test
+    public void testTaskFactoriesRunInParallelRunAsTheRequestingUserLoadedAgain() throws Exception {
+        final Integer requestingUserId = Context.getAuthenticatedUser().getUserId();
+        final UserContext requestUserContext = Context.getUserContext();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        TaskFactory checkingFactory = new TaskFactory() {
+            @Override
+            public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
+                if (emrContext.getUserContext() == requestUserContext || Context.getUserContext() == requestUserContext) {
+                    failures.add("reused the request's user context");
+                }
+                User user = Context.getAuthenticatedUser();
+                if (user == null || !requestingUserId.equals(user.getUserId())) {
+                    failures.add("ran as " + user);
+                } else if (user == requestUserContext.getAuthenticatedUser()) {
+                    failures.add("reused the request's user");
+                }
+                return Collections.emptyList();
+            }
+        };
+
+        TaskServiceImpl service = new TaskServiceImpl();
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>());
+        service.setAllTaskFactoriesInternal(Arrays.asList(checkingFactory, checkingFactory));
+        service.setTaskFactoryTimeoutInternal(2000);
+        try {
+            EmrContext context = new EmrContext();
+            context.setUserContext(requestUserContext);
+            service.getAvailableTasksByExtensionPoint(context, ExtensionPoint.GLOBAL_ACTIONS);
+            assertThat(failures.toString(), failures.isEmpty(), is(true));
+            assertThat(service.getTaskFactoryStats().get(checkingFactory.getClass().getName()).getInvocations(), is(2L));
+        } finally {
+            service.onShutdown();
+        }
+    }
+
+    private List<String> getIds(List<TaskDescriptor> tasks) {
+        List<String> ids = new ArrayList<String>();
+        for (TaskDescriptor task : tasks) {
+            ids.add(task.getId());
+        }
+        return ids;
+    }
+
 }
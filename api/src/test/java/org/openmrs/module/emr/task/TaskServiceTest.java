@@ -17,11 +17,18 @@ package org.openmrs.module.emr.task;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.Privilege;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.UserService;
 import org.openmrs.api.context.UserContext;
+import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.emr.EmrContext;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import static java.util.Arrays.asList;
 import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
@@ -29,6 +36,8 @@ import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.emr.task.ExtensionPoint.ACTIVE_VISITS;
 
@@ -140,4 +149,170 @@ public class TaskServiceTest {
         Assert.assertEquals(taskC, availableTasks.get(2));
     }
 
+    @Test
+    public void shouldCacheAvailableTasksPerRoles() {
+        SimpleTaskDescriptor taskA = new SimpleTaskDescriptor();
+        taskA.setId("A");
+        taskA.setExtensionPoint(ACTIVE_VISITS.getValue());
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>(asList((TaskDescriptor) taskA)));
+        service.setAllTaskFactoriesInternal(new ArrayList<TaskFactory>());
+        service.setUserService(mock(UserService.class));
+
+        Role clinician = new Role("Clinician");
+        User user = new User();
+        user.addRole(clinician);
+        when(userContext.getAuthenticatedUser()).thenReturn(user);
+
+        // a proxy privilege given to this request doesn't make the task available to everyone with these roles
+        when(userContext.hasPrivilege(taskA.getRequiredPrivilegeName())).thenReturn(true);
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(0));
+
+        clinician.addPrivilege(new Privilege(taskA.getRequiredPrivilegeName()));
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(0));
+
+        service.clearAvailableTasksCacheInternal();
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(1));
+    }
+
+    @Test
+    public void shouldNotCacheAvailableTasksWithoutAuthenticatedUser() {
+        SimpleTaskDescriptor taskA = new SimpleTaskDescriptor();
+        taskA.setId("A");
+        taskA.setExtensionPoint(ACTIVE_VISITS.getValue());
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>(asList((TaskDescriptor) taskA)));
+        service.setAllTaskFactoriesInternal(new ArrayList<TaskFactory>());
+
+        when(userContext.hasPrivilege(taskA.getRequiredPrivilegeName())).thenReturn(true);
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(1));
+
+        when(userContext.hasPrivilege(taskA.getRequiredPrivilegeName())).thenReturn(false);
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(0));
+        verify(userContext, times(2)).hasPrivilege(taskA.getRequiredPrivilegeName());
+    }
+
+    @Test
+    public void shouldNotCacheContextDependentTasks() {
+        BasePatientSpecificTaskDescriptor taskA = new BasePatientSpecificTaskDescriptor() {
+            @Override
+            public String getId() {
+                return "A";
+            }
+
+            @Override
+            public String getLabel(EmrContext context) {
+                return null;
+            }
+
+            @Override
+            public String getIconUrl(EmrContext context) {
+                return null;
+            }
+
+            @Override
+            public String getTinyIconUrl(EmrContext context) {
+                return null;
+            }
+
+            @Override
+            public String getUrl(EmrContext context) {
+                return null;
+            }
+        };
+        taskA.setExtensionPoint(ACTIVE_VISITS.getValue());
+        assertThat(TaskServiceImpl.isContextIndependent(taskA), is(false));
+        assertThat(TaskServiceImpl.isContextIndependent(new SimpleTaskDescriptor()), is(true));
+
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>(asList((TaskDescriptor) taskA)));
+        service.setAllTaskFactoriesInternal(new ArrayList<TaskFactory>());
+        when(userContext.hasPrivilege(anyString())).thenReturn(true);
+
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(0));
+
+        context.setCurrentPatient(new Patient());
+        assertThat(service.getAvailableTasksByExtensionPoint(context, ACTIVE_VISITS).size(), is(1));
+    }
+
+    @Test
+    public void shouldRenderTaskViewsOnceAndCacheLabelsPerLocale() {
+        MessageSourceService messageSourceService = mock(MessageSourceService.class);
+        when(messageSourceService.getMessage("a.label")).thenReturn("Task A", "Changed");
+
+        SimpleTaskDescriptor taskA = new SimpleTaskDescriptor();
+        taskA.setId("A");
+        taskA.setLabelCode("a.label");
+        taskA.setUrl("a.page");
+        taskA.setPriority(1);
+        taskA.setExtensionPoint(ACTIVE_VISITS.getValue());
+        taskA.messageSourceService = messageSourceService;
+        SimpleTaskDescriptor taskB = new SimpleTaskDescriptor();
+        taskB.setId("B");
+        taskB.setLabelCode("b.label");
+        taskB.setPriority(2);
+        taskB.setExtensionPoint(ACTIVE_VISITS.getValue());
+        taskB.messageSourceService = messageSourceService;
+
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>(asList((TaskDescriptor) taskA, taskB)));
+        service.setAllTaskFactoriesInternal(new ArrayList<TaskFactory>());
+        when(userContext.hasPrivilege(anyString())).thenReturn(true);
+        when(userContext.getLocale()).thenReturn(Locale.ENGLISH);
+
+        List<TaskView> views = service.getAvailableTaskViewsByExtensionPoint(context, ACTIVE_VISITS);
+        assertThat(views.size(), is(2));
+        assertThat(views.get(0).getId(), is("B"));
+        assertThat(views.get(1).getLabel(), is("Task A"));
+        assertThat(views.get(1).getUrl(), is("a.page"));
+        assertThat(views.get(1).getPriority(), is(1d));
+
+        views = service.getAvailableTaskViewsByExtensionPoint(context, ACTIVE_VISITS);
+        assertThat(views.get(1).getLabel(), is("Task A"));
+        verify(messageSourceService, times(1)).getMessage("a.label");
+    }
+
+    @Test
+    public void shouldShareCachedLabelsByCodeAndNotCacheLabelsWithoutOne() {
+        final MessageSourceService messageSourceService = mock(MessageSourceService.class);
+        when(messageSourceService.getMessage("a.label")).thenReturn("Task A", "Changed");
+        final List<String> formNames = new ArrayList<String>(asList("Vitals", "Vital Signs"));
+
+        TaskFactory factory = new TaskFactory() {
+            @Override
+            public List<TaskDescriptor> getTaskDescriptors(EmrContext emrContext) {
+                SimpleTaskDescriptor byCode = new SimpleTaskDescriptor();
+                byCode.setId("A");
+                byCode.setLabelCode("a.label");
+                byCode.setPriority(2);
+                byCode.setExtensionPoint(ACTIVE_VISITS.getValue());
+                byCode.messageSourceService = messageSourceService;
+                SimpleTaskDescriptor byFormName = new SimpleTaskDescriptor() {
+                    @Override
+                    public String getLabel(EmrContext context) {
+                        return formNames.remove(0);
+                    }
+
+                    @Override
+                    public String getLabelCode() {
+                        return null;
+                    }
+                };
+                byFormName.setId("B");
+                byFormName.setPriority(1);
+                byFormName.setExtensionPoint(ACTIVE_VISITS.getValue());
+                return new ArrayList<TaskDescriptor>(asList((TaskDescriptor) byCode, byFormName));
+            }
+        };
+        service.setAllTasksInternal(new ArrayList<TaskDescriptor>());
+        service.setAllTaskFactoriesInternal(new ArrayList<TaskFactory>(asList(factory)));
+        when(userContext.hasPrivilege(anyString())).thenReturn(true);
+        when(userContext.getLocale()).thenReturn(Locale.ENGLISH);
+
+        List<TaskView> views = service.getAvailableTaskViewsByExtensionPoint(context, ACTIVE_VISITS);
+        assertThat(views.get(0).getLabel(), is("Task A"));
+        assertThat(views.get(1).getLabel(), is("Vitals"));
+
+        views = service.getAvailableTaskViewsByExtensionPoint(context, ACTIVE_VISITS);
+        assertThat(views.get(0).getLabel(), is("Task A"));
+        assertThat(views.get(1).getLabel(), is("Vital Signs"));
+        verify(messageSourceService, times(1)).getMessage("a.label");
+    }
+
 }
@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.utils;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class IntPostingListTest {
+
+    @Test
+    public void shouldSortAndDeduplicateValuesGivenToConstructor() throws Exception {
+        int[] values = { 5, 1, 3, 1, 5 };
+        IntPostingList list = new IntPostingList(values);
+        assertThat(list.toArray(), is(new int[] { 1, 3, 5 }));
+        assertThat(list.size(), is(3));
+        assertThat(list.get(0), is(1));
+        assertThat(list.contains(3), is(true));
+        assertThat(list.contains(4), is(false));
+        assertThat(values, is(new int[] { 5, 1, 3, 1, 5 }));
+    }
+
+    @Test
+    public void shouldReturnChangedCopiesAndLeaveOriginalAlone() throws Exception {
+        IntPostingList list = new IntPostingList(2, 4);
+
+        IntPostingList added = list.with(3);
+        assertThat(added.toArray(), is(new int[] { 2, 3, 4 }));
+        assertThat(list.with(4), sameInstance(list));
+
+        IntPostingList removed = added.without(2);
+        assertThat(removed.toArray(), is(new int[] { 3, 4 }));
+        assertThat(removed.without(7), sameInstance(removed));
+
+        assertThat(list.toArray(), is(new int[] { 2, 4 }));
+        assertThat(added.toArray(), is(new int[] { 2, 3, 4 }));
+        assertThat(new IntPostingList(2).without(2).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldBuildFromValuesInAnyOrder() throws Exception {
+        IntPostingList.Builder builder = new IntPostingList.Builder();
+        for (int i = 10; i > 0; --i) {
+            builder.add(i % 7);
+        }
+        assertThat(builder.build().toArray(), is(new int[] { 0, 1, 2, 3, 4, 5, 6 }));
+        assertThat(new IntPostingList.Builder().build().isEmpty(), is(true));
+    }
+
+}
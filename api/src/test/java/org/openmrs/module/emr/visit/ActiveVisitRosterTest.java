@@ -0,0 +1,119 @@
+package org.openmrs.module.emr.visit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.api.VisitService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ActiveVisitRosterTest {
+
+    private ActiveVisitRoster roster;
+
+    private ActiveVisitRosterAdvice advice;
+
+    private Location visitLocation;
+
+    @Before
+    public void setUp() throws Exception {
+        roster = new ActiveVisitRoster();
+        advice = new ActiveVisitRosterAdvice(roster);
+        visitLocation = new Location(2);
+        roster.setPatientIds(2, roster.getGeneration(), new int[] { 12, 10 });
+    }
+
+    @Test
+    public void shouldKeepRosterSorted() throws Exception {
+        assertThat(roster.getPatientIds(2), is(new int[] { 10, 12 }));
+    }
+
+    @Test
+    public void shouldAddPatientWhenVisitStarts() throws Exception {
+        advice.afterReturning(null, VisitService.class.getMethod("saveVisit", Visit.class), new Object[] { visit(11, null) }, null);
+        assertThat(roster.getPatientIds(2), is(new int[] { 10, 11, 12 }));
+    }
+
+    @Test
+    public void shouldInvalidateRosterWhenVisitEnds() throws Exception {
+        advice.afterReturning(null, VisitService.class.getMethod("endVisit", Visit.class, Date.class), new Object[] { visit(10, new Date()), new Date() }, null);
+        assertThat(roster.getPatientIds(2), nullValue());
+    }
+
+    @Test
+    public void shouldInvalidatePreviousLocationWhenVisitMoves() throws Exception {
+        roster.setPatientIds(3, roster.getGeneration(), new int[] { 20 });
+        Visit visit = visit(12, null);
+        visit.setLocation(new Location(3));
+        advice.afterReturning(null, VisitService.class.getMethod("saveVisit", Visit.class), new Object[] { visit }, null);
+
+        assertThat(roster.getPatientIds(2), nullValue());
+        assertThat(roster.getPatientIds(3), is(new int[] { 12, 20 }));
+    }
+
+    @Test
+    public void shouldNotCacheRosterLoadedBeforeInvalidation() throws Exception {
+        roster.invalidateAll();
+        long generation = roster.getGeneration();
+        roster.invalidate(2);
+        roster.setPatientIds(2, generation, new int[] { 10 });
+        assertThat(roster.getPatientIds(2), nullValue());
+    }
+
+    @Test
+    public void shouldNotCacheRosterLoadedBeforeAPatientWasAdded() throws Exception {
+        roster.invalidate(2);
+        long generation = roster.getGeneration();
+        // a visit is saved while the roster (which doesn't include it) is being loaded
+        roster.addPatient(2, 11);
+        roster.setPatientIds(2, generation, new int[] { 10, 12 });
+        assertThat(roster.getPatientIds(2), nullValue());
+    }
+
+    @Test
+    public void shouldApplyChangesOnlyAfterCommit() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            advice.afterReturning(null, VisitService.class.getMethod("saveVisit", Visit.class), new Object[] { visit(11, null) }, null);
+            assertThat(roster.getPatientIds(2), is(new int[] { 10, 12 }));
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+            assertThat(roster.getPatientIds(2), is(new int[] { 10, 11, 12 }));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void shouldNotApplyChangesThatRollBack() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            advice.afterReturning(null, VisitService.class.getMethod("saveVisit", Visit.class), new Object[] { visit(11, null) }, null);
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertThat(roster.getPatientIds(2), is(new int[] { 10, 12 }));
+    }
+
+    private Visit visit(Integer patientId, Date stopDatetime) {
+        Visit visit = new Visit();
+        visit.setPatient(new Patient(patientId));
+        visit.setLocation(visitLocation);
+        visit.setStopDatetime(stopDatetime);
+        return visit;
+    }
+
+}
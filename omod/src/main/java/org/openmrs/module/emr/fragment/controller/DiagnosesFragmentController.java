@@ -14,57 +14,112 @@
 
 package org.openmrs.module.emr.fragment.controller;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.openmrs.Concept;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSource;
 import org.openmrs.module.emr.EmrContext;
 import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.concept.ConceptFragmentCache;
+import org.openmrs.module.emr.concept.ConceptSearchCursor;
+import org.openmrs.module.emr.concept.ConceptSearchPage;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
 import org.openmrs.ui.framework.annotation.SpringBean;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.servlet.http.HttpSession;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  *
  */
 public class DiagnosesFragmentController {
 
-    public List<SimpleObject> search(EmrContext context,
+    /**
+     * @return one page of matching diagnoses ("results"), and whether there are more after it ("hasMore", in which case
+     * "nextStart" is the start of the next page)
+     */
+    public SimpleObject search(EmrContext context,
                                      UiUtils ui,
                                      @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
                                      @SpringBean("emrService") EmrService emrService,
+                                     @SpringBean("conceptFragmentCache") ConceptFragmentCache conceptFragmentCache,
                                      @RequestParam("term") String query,
                                      @RequestParam(value = "start", defaultValue = "0") Integer start,
-                                     @RequestParam(value = "size", defaultValue = "50") Integer size) throws Exception {
+                                     @RequestParam(value = "size", defaultValue = "10") Integer size,
+                                     HttpSession httpSession) throws Exception {
 
         Collection<Concept> diagnosisSets = emrApiProperties.getDiagnosisSets();
         Locale locale = context.getUserContext().getLocale();
 
         List<ConceptSource> sources = emrApiProperties.getConceptSourcesForDiagnosisSearch();
 
-        List<ConceptSearchResult> hits = emrService.conceptSearch(query, locale, null, diagnosisSets, sources, null);
-        List<SimpleObject> ret = new ArrayList<SimpleObject>();
+        ConceptSearchPage page = emrService.conceptSearchPage(getSearchCursor(httpSession), query, locale, null, diagnosisSets, sources, start, size);
+        List<ConceptSearchResult> hits = page.getResults();
+
+        // load names and mappings for all the concepts we have to render in a few queries, rather than lazily per hit
+        Set<Concept> toRender = new LinkedHashSet<Concept>();
+        for (ConceptSearchResult hit : hits) {
+            if (conceptFragmentCache.get(hit.getConcept().getConceptId(), locale) == null) {
+                toRender.add(hit.getConcept());
+            }
+        }
+        if (!toRender.isEmpty()) {
+            emrService.prefetchNamesAndMappings(toRender);
+        }
+
+        List<SimpleObject> results = new ArrayList<SimpleObject>();
         for (ConceptSearchResult hit : hits) {
-            ret.add(simplify(hit, ui, locale));
+            results.add(simplify(hit, ui, locale, conceptFragmentCache));
         }
+        SimpleObject ret = new SimpleObject();
+        ret.put("results", results);
+        ret.put("hasMore", page.hasMore());
+        ret.put("nextStart", page.getStart() + hits.size());
         return ret;
     }
 
-    private SimpleObject simplify(ConceptSearchResult result, UiUtils ui, Locale locale) throws Exception {
-        SimpleObject simple = SimpleObject.fromObject(result, ui, "word", "conceptName.id", "conceptName.conceptNameType", "conceptName.name", "concept.id", "concept.conceptMappings.conceptMapType", "concept.conceptMappings.conceptReferenceTerm.code", "concept.conceptMappings.conceptReferenceTerm.name", "concept.conceptMappings.conceptReferenceTerm.conceptSource.name");
+    /**
+     * Successive pages of a search in one HTTP session share a cursor, so later pages reuse the ranking of the first
+     */
+    private ConceptSearchCursor getSearchCursor(HttpSession httpSession) {
+        synchronized (httpSession) {
+            ConceptSearchCursor cursor = (ConceptSearchCursor) httpSession.getAttribute(ConceptSearchCursor.HTTP_SESSION_ATTRIBUTE);
+            if (cursor == null) {
+                cursor = new ConceptSearchCursor();
+                httpSession.setAttribute(ConceptSearchCursor.HTTP_SESSION_ATTRIBUTE, cursor);
+            }
+            return cursor;
+        }
+    }
+
+    private SimpleObject simplify(ConceptSearchResult result, UiUtils ui, Locale locale, ConceptFragmentCache conceptFragmentCache) throws Exception {
+        SimpleObject simple = SimpleObject.fromObject(result, ui, "word", "conceptName.id", "conceptName.conceptNameType", "conceptName.name");
 
         Concept concept = result.getConcept();
-        ConceptName conceptName = result.getConceptName();
+        Object simpleConcept = conceptFragmentCache.get(concept.getConceptId(), locale);
+        if (simpleConcept == null) {
+            simpleConcept = simplify(concept, ui, locale);
+            conceptFragmentCache.put(concept.getConceptId(), locale, simpleConcept);
+        }
+        simple.put("concept", simpleConcept);
+
+        return simple;
+    }
+
+    private SimpleObject simplify(Concept concept, UiUtils ui, Locale locale) throws Exception {
+        SimpleObject simple = SimpleObject.fromObject(concept, ui, "id", "conceptMappings.conceptMapType", "conceptMappings.conceptReferenceTerm.code", "conceptMappings.conceptReferenceTerm.name", "conceptMappings.conceptReferenceTerm.conceptSource.name");
+
         ConceptName preferredName = concept.getPreferredName(locale);
-        PropertyUtils.setProperty(simple, "concept.preferredName", preferredName.getName());
+        simple.put("preferredName", preferredName.getName());
 
         return simple;
     }
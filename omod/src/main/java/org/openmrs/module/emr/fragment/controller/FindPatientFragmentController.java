@@ -20,12 +20,17 @@ import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonName;
 import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.patient.PatientSearchPage;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchSession;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
 import org.openmrs.ui.framework.annotation.SpringBean;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.servlet.http.HttpSession;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -39,8 +44,8 @@ public class FindPatientFragmentController {
                                      @RequestParam(value = "checkedInAt", required = false) Location checkedInAt,
                                      @RequestParam(value = "maxResults", required = false) Integer maxResults,
                                      @SpringBean EmrService service,
-                                     @SpringBean EmrApiProperties emrApiProperties,
-                                     UiUtils ui) {
+                                     UiUtils ui,
+                                     HttpSession httpSession) {
         if (StringUtils.isBlank(query)) {
             query = term;
         }
@@ -48,8 +53,44 @@ public class FindPatientFragmentController {
         if(maxResults!=null && maxResults.intValue()>0){
             resultLimit = maxResults.intValue();
         }
-        List<Patient> results = service.findPatients(query, checkedInAt, 0, resultLimit);
-        return simplify(ui, emrApiProperties, results);
+        List<PatientSearchResult> results = service.findPatientSearchResults(getSearchSession(httpSession), query, checkedInAt, resultLimit);
+        List<SimpleObject> patients = new ArrayList<SimpleObject>(results.size());
+        for (PatientSearchResult result : results) {
+            patients.add(simplify(ui, result));
+        }
+        return patients;
+    }
+
+    /**
+     * Keyset-paginated search: pass back the continuationToken from one response to get the next batch
+     */
+    public SimpleObject searchPage(@RequestParam(value = "q", required = false) String query,
+                                   @RequestParam(value = "checkedInAt", required = false) Location checkedInAt,
+                                   @RequestParam(value = "continuationToken", required = false) String continuationToken,
+                                   @RequestParam(value = "batchSize", required = false) Integer batchSize,
+                                   @SpringBean EmrService service,
+                                   UiUtils ui) {
+        PatientSearchPage page = service.findPatientPage(query, checkedInAt, continuationToken, batchSize);
+        List<SimpleObject> results = new ArrayList<SimpleObject>(page.getResults().size());
+        for (PatientSearchResult result : page.getResults()) {
+            results.add(simplify(ui, result));
+        }
+        return SimpleObject.create("results", results, "continuationToken", page.getContinuationToken());
+    }
+
+    /**
+     * Successive searches (e.g. as the user types) in one HTTP session share a search session, so a new search can
+     * cancel the previous one, or narrow its results
+     */
+    private PatientSearchSession getSearchSession(HttpSession httpSession) {
+        synchronized (httpSession) {
+            PatientSearchSession searchSession = (PatientSearchSession) httpSession.getAttribute(PatientSearchSession.HTTP_SESSION_ATTRIBUTE);
+            if (searchSession == null) {
+                searchSession = new PatientSearchSession();
+                httpSession.setAttribute(PatientSearchSession.HTTP_SESSION_ATTRIBUTE, searchSession);
+            }
+            return searchSession;
+        }
     }
 
     public SimpleObject searchById(@RequestParam(value = "primaryId", required = false) String primaryId,
@@ -62,12 +103,23 @@ public class FindPatientFragmentController {
 
     }
 
-    List<SimpleObject> simplify(UiUtils ui, EmrApiProperties emrApiProperties, List<Patient> results) {
-        List<SimpleObject> patients = new ArrayList<SimpleObject>(results.size());
-        for (Patient patient : results) {
-            patients.add(simplify(ui, emrApiProperties, patient));
+    /**
+     * Produces the same structure as {@link #simplify(UiUtils, EmrApiProperties, Patient)}
+     */
+    SimpleObject simplify(UiUtils ui, PatientSearchResult result) {
+        SimpleObject preferredName = SimpleObject.fromObject(result, ui, "givenName", "middleName", "familyName", "familyName2");
+        preferredName.put("fullName", result.getFullName());
+
+        List<SimpleObject> primaryIdentifiers = new ArrayList<SimpleObject>();
+        for (String identifier : result.getPrimaryIdentifiers()) {
+            primaryIdentifiers.add(SimpleObject.create("identifier", identifier));
         }
-        return patients;
+
+        SimpleObject o = SimpleObject.fromObject(result, ui, "patientId", "gender", "age", "birthdate", "birthdateEstimated");
+        o.put("preferredName", preferredName);
+        o.put("primaryIdentifiers", primaryIdentifiers);
+
+        return o;
     }
 
     SimpleObject simplify(UiUtils ui, EmrApiProperties emrApiProperties, Patient patient) {
@@ -16,16 +16,17 @@ package org.openmrs.module.emr.fragment.controller.htmlform;
 
 import org.openmrs.Encounter;
 import org.openmrs.Form;
+import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
-import org.openmrs.api.EncounterService;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrContext;
+import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.htmlform.FormSubmissionRegistry;
 import org.openmrs.module.emr.htmlform.HtmlFormUtil;
-import org.openmrs.module.emrapi.adt.AdtService;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.FormSubmissionError;
@@ -48,6 +49,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  *
@@ -119,6 +121,7 @@ public class EnterHtmlFormFragmentController {
             throw new RuntimeException("Could not find HTML Form");
 
         // the code below doesn't handle the HFFS case where you might want to _add_ data to an existing encounter
+        hf = HtmlFormUtil.getPreparedHtmlForm(hf);
         FormEntrySession fes;
         if (encounter != null) {
             fes = new FormEntrySession(patient, encounter, FormEntryContext.Mode.EDIT, hf, emrContext.getSessionLocation(), httpSession, automaticValidation, !automaticValidation);
@@ -132,6 +135,9 @@ public class EnterHtmlFormFragmentController {
         }
 
         model.addAttribute("command", fes);
+        model.addAttribute("submissionKey", UUID.randomUUID().toString());
+        model.addAttribute("formModifiedTimestamp", HtmlFormUtil.getModifiedTimestamp(hf));
+        model.addAttribute("encounterModifiedTimestamp", encounter == null ? "" : HtmlFormUtil.getModifiedTimestamp(encounter));
         model.addAttribute("visit", visit);
         if(createVisit!=null){
             model.addAttribute("createVisit", createVisit.toString());
@@ -164,12 +170,18 @@ public class EnterHtmlFormFragmentController {
     }
 
     /**
-     * Handles a form submit request
+     * Handles a form submit request. If the form was rendered with a submissionKey, repeated submits with that key get
+     * the result of the first successful one (without validating or applying the form again), and a submit while the
+     * first is still in progress is rejected. When editing, the submit is rejected if the form or the encounter have
+     * changed since the form was rendered.
      * @param patient
      * @param hf
      * @param encounter
      * @param visit
      * @param returnUrl
+     * @param submissionKey
+     * @param formModifiedTimestamp
+     * @param encounterModifiedTimestamp
      * @param request
      * @return
      * @throws Exception
@@ -182,17 +194,59 @@ public class EnterHtmlFormFragmentController {
                          @RequestParam(value = "visitId", required = false) Visit visit,
                          @RequestParam(value = "createVisit", required = false) Boolean createVisit,
                          @RequestParam(value = "returnUrl", required = false) String returnUrl,
-                         @SpringBean("encounterService") EncounterService encounterService,
-                         @SpringBean("adtService") AdtService adtService,
+                         @RequestParam(value = "submissionKey", required = false) String submissionKey,
+                         @RequestParam(value = "formModifiedTimestamp", required = false) Long formModifiedTimestamp,
+                         @RequestParam(value = "encounterModifiedTimestamp", required = false) Long encounterModifiedTimestamp,
+                         @SpringBean("emrService") EmrService emrService,
+                         @SpringBean("formSubmissionRegistry") FormSubmissionRegistry formSubmissionRegistry,
                          @SpringBean("coreResourceFactory") ResourceFactory resourceFactory,
                          UiUtils ui,
                          HttpServletRequest request) throws Exception {
 
-        // TODO formModifiedTimestamp and encounterModifiedTimestamp
+        // scoped to the HTTP session, so that one user can never be handed the result of another's submission
+        String key = StringUtils.hasText(submissionKey) ? request.getSession().getId() + ":" + submissionKey : null;
+        if (key != null) {
+            FormSubmissionRegistry.Submission previous = formSubmissionRegistry.begin(key);
+            if (previous != null) {
+                if (previous.isCompleted()) {
+                    // the first submission's message may already have been shown, by the page it redirected to
+                    setSuccessMessage(encounter != null, hf, patient, ui, request);
+                    return (SimpleObject) previous.getResult();
+                }
+                return generalError(ui.message("emr.htmlForm.alreadySubmitting"));
+            }
+        }
+
+        SimpleObject result = null;
+        try {
+            if (formModifiedTimestamp != null && formModifiedTimestamp != HtmlFormUtil.getModifiedTimestamp(hf)) {
+                return generalError(ui.message("emr.htmlForm.formModified"));
+            }
+            if (encounter != null && encounterModifiedTimestamp != null && encounterModifiedTimestamp != HtmlFormUtil.getModifiedTimestamp(encounter)) {
+                return generalError(ui.message("emr.editHtmlForm.encounterModified"));
+            }
+
+            result = doSubmit(emrContext, patient, hf, encounter, visit, createVisit, returnUrl, emrService, ui, request);
+            return result;
+
+        } finally {
+            if (key != null) {
+                if (result != null && Boolean.TRUE.equals(result.get("success"))) {
+                    formSubmissionRegistry.complete(key, result);
+                } else {
+                    formSubmissionRegistry.abandon(key);
+                }
+            }
+        }
+    }
+
+    private SimpleObject doSubmit(EmrContext emrContext, Patient patient, HtmlForm hf, Encounter encounter, Visit visit, Boolean createVisit, String returnUrl, EmrService emrService, UiUtils ui, HttpServletRequest request) throws Exception {
+
         // TODO support for real-time mode (i.e. automatically set encounterDatetime=now, and put in the current visit)
 
         boolean editMode = encounter != null;
 
+        hf = HtmlFormUtil.getPreparedHtmlForm(hf);
         FormEntrySession fes;
         if (encounter != null) {
             fes = new FormEntrySession(patient, encounter, FormEntryContext.Mode.EDIT, hf, request.getSession());
@@ -233,26 +287,27 @@ public class EnterHtmlFormFragmentController {
             if (validationErrors.size() > 0) {
                 return returnHelper(validationErrors, fes.getContext());
             }
-        }else if(createVisit!=null && (createVisit)){
-            visit= adtService.ensureActiveVisit(patient, emrContext.getSessionLocation());
-            visit.setStartDatetime(formEncounterDateTime);
         }
 
-        // Do actual encounter creation/updating
-        fes.applyActions();
+        // Do actual encounter creation/updating, in the visit (if any), in a single transaction
+        Location createVisitAt = visit == null && createVisit != null && createVisit ? emrContext.getSessionLocation() : null;
+        emrService.applyFormEntrySession(fes, visit, createVisitAt);
 
-        // Add created encounter to the specified visit
-        if (encounter == null && visit != null) {
-            encounter = fes.getEncounter();
-            encounter.setVisit(visit);
-            encounterService.saveEncounter(encounter);
-        }
+        setSuccessMessage(editMode, hf, patient, ui, request);
 
+        return returnHelper(null, null);
+    }
+
+    private void setSuccessMessage(boolean editMode, HtmlForm hf, Patient patient, UiUtils ui, HttpServletRequest request) {
         request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_INFO_MESSAGE,
                 ui.message(editMode ? "emr.editHtmlForm.successMessage" : "emr.task.enterHtmlForm.successMessage", ui.format(hf.getForm()), ui.format(patient)));
         request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_TOAST_MESSAGE, "true");
+    }
 
-        return returnHelper(null, null);
+    private SimpleObject generalError(String message) {
+        Map<String, String> errors = new HashMap<String, String>();
+        errors.put("general-form-error", message);
+        return SimpleObject.create("success", false, "errors", errors);
     }
 
     private SimpleObject returnHelper(List<FormSubmissionError> validationErrors, FormEntryContext context) {
@@ -46,6 +46,13 @@ function FreeTextListItem(text) {
     return api;
 }
 
+function MoreResultsListItem() {
+    return {
+        moreResults: true,
+        conceptId: null
+    };
+}
+
 function Diagnosis(item) {
     var api = {
         diagnosis: ko.observable(item),
@@ -164,13 +171,40 @@ function ConsultFormViewModel() {
 }
 
 ko.bindingHandlers.autocomplete = {
+    pageSize: 10,
+
     init: function(element, valueAccessor, allBindingsAccessor, viewModel, bindingContext) {
 
+        // results loaded so far for the current search term (the first page, and any more the user asked for)
+        var search = { term: null, items: [], nextStart: 0, hasMore: false, loadingMore: false };
+
         $(element).keypress(function(e) {
             return e.which != 13;
         });
         $(element).autocomplete({
-            source: emr.fragmentActionLink("emr", "diagnoses", "search"),
+            source: function(request, response) {
+                if (!(search.loadingMore && request.term == search.term)) {
+                    search = { term: request.term, items: [], nextStart: 0, hasMore: false, loadingMore: false };
+                }
+                search.loadingMore = false;
+                var current = search;
+                jq.getJSON(emr.fragmentActionLink("emr", "diagnoses", "search"), {
+                    term: request.term,
+                    start: current.nextStart,
+                    size: ko.bindingHandlers.autocomplete.pageSize
+                }).success(function(data) {
+                    if (current !== search) {
+                        // the user has typed something else since
+                        return;
+                    }
+                    current.items = current.items.concat(data.results);
+                    current.nextStart = data.nextStart;
+                    current.hasMore = data.hasMore;
+                    response(current.items.slice(0));
+                }).error(function() {
+                    response([]);
+                });
+            },
             response: function(event, ui) {
                 var query = event.target.value.toLowerCase();
                 var items = ui.content;
@@ -186,11 +220,27 @@ ko.bindingHandlers.autocomplete = {
                         items.splice(i, 1);
                     }
                 }
+                if (search.hasMore) {
+                    items.push(MoreResultsListItem());
+                }
                 if (!exactMatch) {
                     items.push(FreeTextListItem($(element).val()))
                 }
             },
+            focus: function( event, ui ) {
+                // don't put the label of the "more results" item in the search box
+                return !ui.item.moreResults;
+            },
             select: function( event, ui ) {
+                if (ui.item.moreResults) {
+                    // search again once the menu has closed after this selection, or the new results would be suppressed
+                    var input = $(this);
+                    search.loadingMore = true;
+                    setTimeout(function() {
+                        input.autocomplete("search", search.term);
+                    }, 0);
+                    return false;
+                }
                 viewModel.addDiagnosis(Diagnosis(ui.item));
                 $(this).val("");
                 return false;
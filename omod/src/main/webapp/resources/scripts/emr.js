@@ -93,6 +93,11 @@ var emr = (function($) {
          *   resultTarget e.g. '#search-results'
          *   resultTemplate (should be an underscore template)
          */
+        /*
+         * Waits until opts.delay ms (default 300) pass without another call for the same resultTarget before searching,
+         * and aborts any earlier search for that target that is still running, so typing quickly only runs one search.
+         * (The server also cancels the earlier search's query when the new one arrives.)
+         */
         ajaxSearch: function(opts) {
             var provider = opts.provider;
             if (!provider) {
@@ -100,16 +105,36 @@ var emr = (function($) {
             }
             var url = this.fragmentActionLink(provider, opts.fragment, opts.action);
             var target = $(opts.resultTarget);
-            $.getJSON(url, opts.query)
-                .success(function(data) {
-                    target.html('');
-                    jq.each(data, function(i, result) {
-                        jq(opts.resultTemplate(result)).appendTo(target);
+            var state = target.data('emr-ajax-search') || {};
+            target.data('emr-ajax-search', state);
+
+            if (state.timer) {
+                clearTimeout(state.timer);
+            }
+            state.timer = setTimeout(function() {
+                state.timer = null;
+                if (state.xhr) {
+                    state.xhr.abort();
+                }
+                var xhr = $.getJSON(url, opts.query)
+                    .success(function(data) {
+                        target.html('');
+                        jq.each(data, function(i, result) {
+                            jq(opts.resultTemplate(result)).appendTo(target);
+                        });
+                    })
+                    .error(function(err) {
+                        if (err.statusText != 'abort') {
+                            emr.errorMessage(err);
+                        }
+                    })
+                    .complete(function() {
+                        if (state.xhr === xhr) {
+                            state.xhr = null;
+                        }
                     });
-                })
-                .error(function(err) {
-                    emr.errorMessage(err);
-                });
+                state.xhr = xhr;
+            }, opts.delay === undefined ? 300 : opts.delay);
         },
 
         successMessage: function(message) {
@@ -20,6 +20,7 @@ import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonName;
+import org.openmrs.module.emr.patient.PatientSearchResult;
 import org.openmrs.module.emr.test.TestUiUtils;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.ui.framework.SimpleObject;
@@ -70,4 +71,29 @@ public class FindPatientFragmentControllerTest {
         assertThat((String) PropertyUtils.getProperty(primaryIdentifier, "identifier"), is("44"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSimplifySearchResult() throws Exception {
+        PatientSearchResult result = new PatientSearchResult(44);
+        result.setGivenName("Barack");
+        result.setFamilyName("Obama");
+        result.setGender("M");
+        result.setBirthdate(new SimpleDateFormat("yyyy-MM-dd").parse("1961-08-04"));
+        result.setBirthdateEstimated(false);
+        result.addPrimaryIdentifier("44");
+
+        TestUiUtils ui = new TestUiUtils();
+        SimpleObject o = new FindPatientFragmentController().simplify(ui, result);
+
+        assertEquals("Barack", PropertyUtils.getProperty(o, "preferredName.givenName"));
+        assertNull(PropertyUtils.getProperty(o, "preferredName.middleName"));
+        assertEquals("Obama", PropertyUtils.getProperty(o, "preferredName.familyName"));
+        assertEquals("Barack Obama", PropertyUtils.getProperty(o, "preferredName.fullName"));
+        assertEquals("04.Aug.1961", PropertyUtils.getProperty(o, "birthdate"));
+        assertEquals(Boolean.FALSE, PropertyUtils.getProperty(o, "birthdateEstimated"));
+        assertEquals("M", PropertyUtils.getProperty(o, "gender"));
+
+        Object primaryIdentifier = ((List) o.get("primaryIdentifiers")).get(0);
+        assertThat((String) PropertyUtils.getProperty(primaryIdentifier, "identifier"), is("44"));
+    }
+
+}
@@ -20,14 +20,19 @@ import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Provider;
+import org.openmrs.Visit;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.FormService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.ProviderService;
+import org.openmrs.api.VisitService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.emr.EmrContext;
+import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.htmlform.FormSubmissionRegistry;
+import org.openmrs.module.emr.htmlform.HtmlFormUtil;
 import org.openmrs.module.emr.test.TestUiUtils;
-import org.openmrs.module.emrapi.adt.AdtService;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
@@ -37,12 +42,16 @@ import org.openmrs.ui.framework.fragment.FragmentConfiguration;
 import org.openmrs.ui.framework.fragment.FragmentModel;
 import org.openmrs.ui.framework.resource.ResourceFactory;
 import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.aop.MethodBeforeAdvice;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.mock.web.MockHttpServletRequest;
 
+import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
@@ -80,9 +89,15 @@ public class EnterHtmlFormFragmentControllerComponentTest extends BaseModuleWebC
     @Autowired
     EncounterService encounterService;
 
-    @Qualifier("adtService")
+    @Qualifier("emrService")
     @Autowired
-    AdtService adtService;
+    EmrService emrService;
+
+    @Qualifier("visitService")
+    @Autowired
+    VisitService visitService;
+
+    FormSubmissionRegistry formSubmissionRegistry;
 
     ResourceFactory resourceFactory;
 
@@ -103,6 +118,8 @@ public class EnterHtmlFormFragmentControllerComponentTest extends BaseModuleWebC
 
         ui = new TestUiUtils();
 
+        formSubmissionRegistry = new FormSubmissionRegistry();
+
         controller = new EnterHtmlFormFragmentController();
     }
 
@@ -147,7 +164,7 @@ public class EnterHtmlFormFragmentControllerComponentTest extends BaseModuleWebC
         request.addParameter("w5", "2"); // location = Xanadu
         request.addParameter("w7", "502"); // provider = Hippocrates
 
-        SimpleObject result = controller.submit(emrContext, patient, hf, null, null, null, null, encounterService, adtService, resourceFactory, ui, request);
+        SimpleObject result = controller.submit(emrContext, patient, hf, null, null, null, null, null, null, null, emrService, formSubmissionRegistry, resourceFactory, ui, request);
         assertThat((Boolean) result.get("success"), is(Boolean.TRUE));
         assertThat(encounterService.getEncountersByPatient(patient).size(), is(1));
         Encounter created = encounterService.getEncountersByPatient(patient).get(0);
@@ -159,4 +176,111 @@ public class EnterHtmlFormFragmentControllerComponentTest extends BaseModuleWebC
         assertThat(weightObs.getConcept().getId(), is(5089));
         assertThat(weightObs.getValueNumeric(), is(Double.valueOf(70d)));
     }
+
+    @Test
+    public void testRepeatedSubmitWithTheSameKeyCreatesOneEncounter() throws Exception {
+        testDefiningAnHtmlFormInUiResource();
+        HtmlForm hf = htmlFormEntryService.getHtmlFormByForm(formService.getFormByUuid("form-uuid"));
+
+        Provider provider = new Provider();
+        provider.setPerson(personService.getPerson(502));
+        providerService.saveProvider(provider);
+
+        Patient patient = patientService.getPatient(8);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("w2", "70");
+        request.addParameter("w3", "2012-12-17");
+        request.addParameter("w5", "2");
+        request.addParameter("w7", "502");
+
+        SimpleObject first = controller.submit(emrContext, patient, hf, null, null, null, null, "key", null, null, emrService, formSubmissionRegistry, resourceFactory, ui, request);
+        SimpleObject second = controller.submit(emrContext, patient, hf, null, null, null, null, "key", null, null, emrService, formSubmissionRegistry, resourceFactory, ui, request);
+
+        assertThat((Boolean) first.get("success"), is(Boolean.TRUE));
+        assertThat((Boolean) second.get("success"), is(Boolean.TRUE));
+        assertThat(encounterService.getEncountersByPatient(patient).size(), is(1));
+    }
+
+    @Test
+    public void testSubmittingIntoVisitSavesEncounterOnceInThatVisit() throws Exception {
+        testDefiningAnHtmlFormInUiResource();
+        HtmlForm hf = htmlFormEntryService.getHtmlFormByForm(formService.getFormByUuid("form-uuid"));
+
+        Provider provider = new Provider();
+        provider.setPerson(personService.getPerson(502));
+        providerService.saveProvider(provider);
+
+        Patient patient = patientService.getPatient(8);
+        Visit visit = new Visit(patient, visitService.getVisitType(1), new SimpleDateFormat("yyyy-MM-dd").parse("2012-12-16"));
+        visitService.saveVisit(visit);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("w2", "70");
+        request.addParameter("w3", "2012-12-17");
+        request.addParameter("w5", "2");
+        request.addParameter("w7", "502");
+
+        final AtomicInteger encounterSaves = new AtomicInteger();
+        MethodBeforeAdvice countEncounterSaves = new MethodBeforeAdvice() {
+            @Override
+            public void before(Method method, Object[] args, Object target) throws Throwable {
+                if (method.getName().equals("saveEncounter")) {
+                    encounterSaves.incrementAndGet();
+                }
+            }
+        };
+        Context.addAdvice(EncounterService.class, countEncounterSaves);
+        SimpleObject result;
+        try {
+            result = controller.submit(emrContext, patient, hf, null, visit, null, null, null, null, null, emrService, formSubmissionRegistry, resourceFactory, ui, request);
+        } finally {
+            Context.removeAdvice(EncounterService.class, countEncounterSaves);
+        }
+
+        assertThat((Boolean) result.get("success"), is(Boolean.TRUE));
+        assertThat(encounterSaves.get(), is(1));
+        Encounter created = encounterService.getEncountersByPatient(patient).get(0);
+        assertThat(created.getVisit(), is(visit));
+    }
+
+    @Test
+    public void testSubmittingFormThatChangedSinceItWasRenderedIsRejected() throws Exception {
+        testDefiningAnHtmlFormInUiResource();
+        HtmlForm hf = htmlFormEntryService.getHtmlFormByForm(formService.getFormByUuid("form-uuid"));
+        long renderedFormTimestamp = HtmlFormUtil.getModifiedTimestamp(hf) - 1000;
+
+        Patient patient = patientService.getPatient(8);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("w2", "70");
+        request.addParameter("w3", "2012-12-17");
+        request.addParameter("w5", "2");
+        request.addParameter("w7", "502");
+
+        SimpleObject result = controller.submit(emrContext, patient, hf, null, null, null, null, null, renderedFormTimestamp, null, emrService, formSubmissionRegistry, resourceFactory, ui, request);
+        assertThat((Boolean) result.get("success"), is(Boolean.FALSE));
+        assertThat(((Map<String, String>) result.get("errors")).get("general-form-error"), is("emr.htmlForm.formModified"));
+        assertThat(encounterService.getEncountersByPatient(patient).size(), is(0));
+    }
+
+    @Test
+    public void testEditingEncounterThatChangedSinceItWasRenderedIsRejected() throws Exception {
+        testSubmittingHtmlFormDefinedInUiResource();
+        HtmlForm hf = htmlFormEntryService.getHtmlFormByForm(formService.getFormByUuid("form-uuid"));
+        Patient patient = patientService.getPatient(8);
+        Encounter encounter = encounterService.getEncountersByPatient(patient).get(0);
+        long renderedEncounterTimestamp = HtmlFormUtil.getModifiedTimestamp(encounter) - 1000;
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("w2", "80");
+        request.addParameter("w3", "2012-12-17");
+        request.addParameter("w5", "2");
+        request.addParameter("w7", "502");
+
+        SimpleObject result = controller.submit(emrContext, patient, hf, encounter, null, null, null, null, HtmlFormUtil.getModifiedTimestamp(hf), renderedEncounterTimestamp, emrService, formSubmissionRegistry, resourceFactory, ui, request);
+        assertThat((Boolean) result.get("success"), is(Boolean.FALSE));
+        assertThat(((Map<String, String>) result.get("errors")).get("general-form-error"), is("emr.editHtmlForm.encounterModified"));
+        assertThat(encounter.getAllObs().size(), is(1));
+        assertThat(encounter.getAllObs().iterator().next().getValueNumeric(), is(Double.valueOf(70d)));
+    }
 }